@@ -71,6 +71,14 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(RejectMessage.class, "reject");
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
+        names.put(SendCompactBlocksMessage.class, "sendcmpct");
+        names.put(CompactBlockMessage.class, "cmpctblock");
+        names.put(GetBlockTxnMessage.class, "getblocktxn");
+        names.put(BlockTxnMessage.class, "blocktxn");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
     }
 
     /**
@@ -229,6 +237,22 @@ public class BitcoinSerializer extends MessageSerializer {
             return new UTXOsMessage(params, payloadBytes);
         } else if (command.equals("getutxos")) {
             return new GetUTXOsMessage(params, payloadBytes);
+        } else if (command.equals("sendcmpct")) {
+            return new SendCompactBlocksMessage(params, payloadBytes);
+        } else if (command.equals("cmpctblock")) {
+            return new CompactBlockMessage(params, payloadBytes);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTxnMessage(params, payloadBytes);
+        } else if (command.equals("blocktxn")) {
+            return new BlockTxnMessage(params, payloadBytes);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(params, payloadBytes);
+        } else if (command.equals("cfilter")) {
+            return new CFilterMessage(params, payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("cfheaders")) {
+            return new CFHeadersMessage(params, payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
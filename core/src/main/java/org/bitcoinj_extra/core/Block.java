@@ -574,7 +574,7 @@ public class Block extends Message {
             throw new VerificationException("Block had too many Signature Operations");
     }
 
-    private void checkMerkleRoot() throws VerificationException {
+    /* package */ void checkMerkleRoot() throws VerificationException {
         Sha256Hash calculatedRoot = calculateMerkleRoot();
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
@@ -0,0 +1,652 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.store.BlockStore;
+import org.bitcoinj_extra.store.BlockStoreException;
+import org.bitcoinj_extra.utils.Threading;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain from all connected peers at once. Used by {@link PeerGroup} when
+ * {@link PeerGroup#setParallelBlockDownload(boolean)} is enabled.</p>
+ *
+ * <p>Headers are fetched first, from the download peer. Headers that pre-date the fast catchup time are added to the
+ * chain straight away, the rest are queued up. Full or filtered blocks for the queued headers are then requested
+ * from every peer that has room for more requests, within a sliding window over the queue. Blocks can arrive in any
+ * order, they are held back until all blocks before them were added to the chain. Once the blocks held back take
+ * up {@link #MAX_BUFFERED_BYTES}, only the block that holds up the others is requested. A peer that holds up the oldest
+ * block of the window for too long is considered stalled: its requests are handed to other peers and it is not asked
+ * for more blocks for a while.</p>
+ *
+ * <p>Once the headers of all peers are exhausted and every queued block was added, the future returned by
+ * {@link #getFuture()} completes and chain download carries on in the usual way with the download peer.</p>
+ */
+class BlockFetcher {
+    private static final Logger log = LoggerFactory.getLogger(BlockFetcher.class);
+
+    /** How many blocks beyond the last one added to the chain may be requested or buffered. */
+    public static final int WINDOW_SIZE = 1024;
+    /** How many bytes of blocks may be held back before no more blocks but the oldest missing one are requested. */
+    public static final long MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+    /** How many blocks may be requested from a single peer at once. */
+    public static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    /** How long a peer may hold up the oldest block of the window, or a headers request, before it counts as stalled. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10 * 1000;
+    // For how many stall timeouts a stalled peer is passed over.
+    private static final int STALL_PENALTY = 6;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    private final ReentrantLock lock = Threading.lock("blockfetcher");
+    // Held whilst adding to the chain, so blocks go in one at a time and in order. Taken before lock, never after.
+    private final ReentrantLock deliveryLock = Threading.lock("blockfetcher-delivery");
+
+    private volatile boolean vActive = true;
+
+    private static class PeerState {
+        int blocksInFlight;
+        long stalledUntil;
+        // False while we wait for the peer to apply a fresh filter.
+        boolean ready = true;
+    }
+
+    private static class Slot {
+        // Who the block was requested from, or null if it has to be requested (again).
+        @Nullable Peer peer;
+        long requestTime;
+        // The block once it has arrived, and who sent it.
+        @Nullable Message data;
+        @Nullable Peer source;
+    }
+
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new LinkedHashMap<Peer, PeerState>();
+    // The peer listeners are notified on and headers are preferably asked from, normally the download peer.
+    @GuardedBy("lock") @Nullable private Peer headerPeer;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+    @GuardedBy("lock") private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    // The last header we know of, either in the chain or queued, or null before the first headers request.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") @Nullable private Peer headersRequestedFrom;
+    @GuardedBy("lock") private long headersRequestTime;
+    @GuardedBy("lock") private boolean headersComplete;
+    // Set once a header passes the fast catchup time. From then on everything is downloaded in full.
+    @GuardedBy("lock") private boolean downloadBodies;
+
+    // Hashes of queued headers whose blocks are beyond the window.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> queued = new ArrayDeque<Sha256Hash>();
+    // Blocks within the window in chain order, the first one is the next to be added to the chain.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Slot> window = new LinkedHashMap<Sha256Hash, Slot>();
+    // Blocks within the window that have to be requested, oldest first.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> toRequest = new ArrayDeque<Sha256Hash>();
+    // The size of the blocks within the window that arrived but weren't added to the chain yet.
+    @GuardedBy("lock") private long bufferedBytes;
+    // Whether block requests are on hold because the Bloom filter ran out of keys.
+    @GuardedBy("lock") private boolean awaitingFreshFilter;
+
+    BlockFetcher(NetworkParameters params, AbstractBlockChain chain, long fastCatchupTimeSecs,
+                 boolean useFilteredBlocks) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        setDownloadParameters(fastCatchupTimeSecs, useFilteredBlocks);
+    }
+
+    /** Completes once the chain has caught up with the headers of the peers, or fails if the download had to stop. */
+    ListenableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /** Returns true until the download completed or failed. */
+    boolean isActive() {
+        return vActive;
+    }
+
+    /** See {@link Peer#setDownloadParameters(long, boolean)}. */
+    void setDownloadParameters(long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs == 0 ? params.getGenesisBlock().getTimeSeconds()
+                    : fastCatchupTimeSecs;
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setStallTimeoutMillis(long stallTimeoutMillis) {
+        lock.lock();
+        try {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!vActive || peers.containsKey(peer))
+                return;
+            peers.put(peer, new PeerState());
+            requestBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets about a peer that went away, handing its requests to the other peers. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            if (headerPeer == peer)
+                headerPeer = null;
+            reassign(peer);
+            if (headersRequestedFrom == peer) {
+                headersRequestedFrom = null;
+                requestHeaders();
+            }
+            requestBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the download, or carries on with the given peer as the download peer if it is already running. Called
+     * by {@link Peer#startBlockChainDownload()}.
+     */
+    void start(Peer downloadPeer) {
+        lock.lock();
+        try {
+            if (!vActive)
+                return;
+            if (!peers.containsKey(downloadPeer))
+                peers.put(downloadPeer, new PeerState());
+            headerPeer = downloadPeer;
+            if (headersRequestedFrom == null)
+                requestHeaders();
+            requestBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handles headers received from a peer.
+     * @return false if the download is over and the peer should handle the message itself.
+     */
+    boolean onHeaders(Peer peer, HeadersMessage m) throws ProtocolException {
+        List<Block> headersOnly = new ArrayList<Block>();
+        deliveryLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (!vActive)
+                    return false;
+                if (peer != headersRequestedFrom) {
+                    log.debug("{}: Ignoring unrequested headers", peer);
+                    return true;
+                }
+                headersRequestedFrom = null;
+                // Check all headers before taking any of them, so a bad one leaves nothing half done.
+                List<Block> headers = m.getBlockHeaders();
+                List<Sha256Hash> toQueue = new ArrayList<Sha256Hash>();
+                Sha256Hash last = lastHeaderHash;
+                boolean bodies = downloadBodies;
+                for (Block header : headers) {
+                    if (last != null && !header.getPrevBlockHash().equals(last)) {
+                        // The first headers may fork off below our chain head, that's a re-org.
+                        boolean reorg = queued.isEmpty() && window.isEmpty() && headersOnly.isEmpty() && toQueue.isEmpty()
+                                && chain.getBlockStore().get(header.getPrevBlockHash()) != null;
+                        if (!reorg)
+                            throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    }
+                    header.verifyHeader();
+                    last = header.getHash();
+                    if (!bodies && header.getTimeSeconds() >= fastCatchupTimeSecs) {
+                        log.info("Passed the fast catchup time at block {}, downloading blocks from all peers",
+                                header.getHashAsString());
+                        bodies = true;
+                    }
+                    if (bodies)
+                        toQueue.add(header.getHash());
+                    else
+                        headersOnly.add(header);
+                }
+                lastHeaderHash = last;
+                downloadBodies = bodies;
+                queued.addAll(toQueue);
+                headersComplete = headers.size() < HeadersMessage.MAX_HEADERS;
+                log.info("{}: Got {} headers, {} blocks queued, {} in window", peer, headers.size(), queued.size(),
+                        window.size());
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            } finally {
+                lock.unlock();
+            }
+            // Headers before the fast catchup time go straight into the chain, before any of the blocks after them.
+            for (Block header : headersOnly) {
+                if (!chain.add(header)) {
+                    fail(new VerificationException("Header does not connect to the chain: " + header.getHashAsString()));
+                    return true;
+                }
+                notifyBlocksDownloaded(peer, header, null);
+            }
+            lock.lock();
+            try {
+                requestHeaders();
+                requestBlocks();
+            } finally {
+                lock.unlock();
+            }
+        } catch (VerificationException e) {
+            log.warn("Block header verification failed", e);
+            fail(e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        } finally {
+            deliveryLock.unlock();
+        }
+        deliver();
+        return true;
+    }
+
+    /**
+     * Handles a block or filtered block received from a peer.
+     * @return false if the download is over and the peer should handle the block itself.
+     */
+    boolean onBlock(Peer peer, Message block) {
+        Sha256Hash hash = block.getHash();
+        lock.lock();
+        try {
+            if (!vActive)
+                return false;
+            Slot slot = window.get(hash);
+            if (slot == null || slot.data != null) {
+                // Duplicate, or a response to a request we gave up on.
+                log.debug("{}: Ignoring block {}", peer, hash);
+                return true;
+            }
+            if (slot.peer != null) {
+                PeerState state = peers.get(slot.peer);
+                if (state != null)
+                    state.blocksInFlight--;
+            } else {
+                // It was reassigned but not requested again yet.
+                toRequest.remove(hash);
+            }
+            slot.peer = null;
+            slot.data = block;
+            slot.source = peer;
+            bufferedBytes += block.getMessageSize();
+            requestBlocks();
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        return true;
+    }
+
+    /**
+     * Called after a new Bloom filter was sent to the peer. If block requests were on hold because the old filter
+     * ran out of keys, the peer gets them again once it acknowledges the filter with a pong.
+     */
+    void onFilterSent(final Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null || state.ready)
+                return;
+        } finally {
+            lock.unlock();
+        }
+        awaitFilter(peer);
+    }
+
+    /**
+     * Hands the requests of peers that hold up the download to other peers, and asks another peer for headers if the
+     * headers request timed out. {@link PeerGroup} calls this every second.
+     */
+    void checkForStalls() {
+        lock.lock();
+        try {
+            if (!vActive)
+                return;
+            final long now = Utils.currentTimeMillis();
+            for (Slot slot : window.values()) {
+                if (slot.data != null)
+                    continue;
+                if (slot.peer != null && now - slot.requestTime > stallTimeoutMillis) {
+                    log.info("{}: Stalled the block download, handing its requests to other peers", slot.peer);
+                    PeerState state = peers.get(slot.peer);
+                    if (state != null)
+                        state.stalledUntil = now + stallTimeoutMillis * STALL_PENALTY;
+                    reassign(slot.peer);
+                }
+                // Only the oldest missing block matters, later ones can't be added before it anyway.
+                break;
+            }
+            if (headersRequestedFrom != null && now - headersRequestTime > stallTimeoutMillis) {
+                log.info("{}: Stalled on headers, asking another peer", headersRequestedFrom);
+                PeerState state = peers.get(headersRequestedFrom);
+                if (state != null)
+                    state.stalledUntil = now + stallTimeoutMillis * STALL_PENALTY;
+                headersRequestedFrom = null;
+                requestHeaders();
+            }
+            requestBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestHeaders() {
+        if (headersComplete || headersRequestedFrom != null || queued.size() >= HeadersMessage.MAX_HEADERS)
+            return;
+        Peer peer = headerPeer;
+        if (peer == null || isStalled(peer))
+            peer = pickPeer();
+        if (peer == null)
+            return;
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(102);
+        if (lastHeaderHash != null && !lastHeaderHash.equals(chain.getChainHead().getHeader().getHash()))
+            locator.add(lastHeaderHash);
+        locator.addAll(buildLocator(params, chain));
+        headersRequestedFrom = peer;
+        headersRequestTime = Utils.currentTimeMillis();
+        peer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    // Same shape of locator as Peer uses: the top 100 blocks of the chain and the genesis block.
+    /* package */ static List<Sha256Hash> buildLocator(NetworkParameters params, AbstractBlockChain chain) {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(101);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator.add(cursor.getHeader().getHash());
+            try {
+                cursor = cursor.getPrev(store);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    // Tops up the window from the queue and spreads the outstanding requests over the peers that have room.
+    @GuardedBy("lock")
+    private void requestBlocks() {
+        if (!vActive || awaitingFreshFilter)
+            return;
+        while (window.size() < WINDOW_SIZE && !queued.isEmpty()) {
+            Sha256Hash hash = queued.poll();
+            window.put(hash, new Slot());
+            toRequest.add(hash);
+        }
+        requestHeaders();
+        if (toRequest.isEmpty())
+            return;
+        // Past the cap only the oldest block may still be requested, so that the held back ones can be added.
+        final Sha256Hash oldest = window.keySet().iterator().next();
+        final boolean full = bufferedBytes >= MAX_BUFFERED_BYTES;
+        final long now = Utils.currentTimeMillis();
+        for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+            Peer peer = entry.getKey();
+            PeerState state = entry.getValue();
+            if (!state.ready || state.stalledUntil > now)
+                continue;
+            boolean filtered = useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported();
+            GetDataMessage getdata = new GetDataMessage(params);
+            while (state.blocksInFlight < MAX_BLOCKS_IN_FLIGHT_PER_PEER && !toRequest.isEmpty()) {
+                if (full && !toRequest.peek().equals(oldest))
+                    break;
+                Sha256Hash hash = toRequest.poll();
+                Slot slot = window.get(hash);
+                slot.peer = peer;
+                slot.requestTime = now;
+                state.blocksInFlight++;
+                if (filtered)
+                    getdata.addFilteredBlock(hash);
+                else
+                    getdata.addBlock(hash);
+            }
+            if (getdata.getItems().isEmpty())
+                continue;
+            peer.sendMessage(getdata);
+            // Marks the end of the transactions following the last filtered block, see Peer.startFilteredBlock().
+            if (filtered)
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+            if (toRequest.isEmpty())
+                break;
+        }
+    }
+
+    // Puts the outstanding requests of the given peer back in front of the queue of blocks to request.
+    @GuardedBy("lock")
+    private void reassign(Peer peer) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, Slot> entry : window.entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.peer == peer && slot.data == null) {
+                slot.peer = null;
+                hashes.add(entry.getKey());
+            }
+        }
+        for (int i = hashes.size() - 1; i >= 0; i--)
+            toRequest.addFirst(hashes.get(i));
+        PeerState state = peers.get(peer);
+        if (state != null)
+            state.blocksInFlight = 0;
+    }
+
+    @GuardedBy("lock")
+    private boolean isStalled(Peer peer) {
+        PeerState state = peers.get(peer);
+        return state == null || !state.ready || state.stalledUntil > Utils.currentTimeMillis();
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Peer pickPeer() {
+        for (Peer peer : peers.keySet())
+            if (!isStalled(peer))
+                return peer;
+        return null;
+    }
+
+    // Adds the blocks at the front of the window to the chain, for as long as they are there.
+    private void deliver() {
+        deliveryLock.lock();
+        try {
+            while (true) {
+                Sha256Hash hash;
+                Slot slot;
+                lock.lock();
+                try {
+                    if (!vActive || awaitingFreshFilter)
+                        return;
+                    Iterator<Map.Entry<Sha256Hash, Slot>> it = window.entrySet().iterator();
+                    if (!it.hasNext()) {
+                        if (headersComplete && queued.isEmpty() && headersRequestedFrom == null)
+                            complete();
+                        return;
+                    }
+                    Map.Entry<Sha256Hash, Slot> first = it.next();
+                    if (first.getValue().data == null)
+                        return;
+                    it.remove();
+                    hash = first.getKey();
+                    slot = first.getValue();
+                    bufferedBytes -= slot.data.getMessageSize();
+                    requestBlocks();
+                } finally {
+                    lock.unlock();
+                }
+                Peer source = checkNotNull(slot.source);
+                if (slot.data instanceof FilteredBlock) {
+                    FilteredBlock filteredBlock = (FilteredBlock) slot.data;
+                    if (isFilterExhausted(source, hash, filteredBlock))
+                        return;
+                    if (!chain.add(filteredBlock)) {
+                        fail(new VerificationException("Block does not connect to the chain: " + hash));
+                        return;
+                    }
+                    notifyBlocksDownloaded(source, filteredBlock.getBlockHeader(), filteredBlock);
+                } else {
+                    Block block = (Block) slot.data;
+                    if (!chain.add(block)) {
+                        fail(new VerificationException("Block does not connect to the chain: " + hash));
+                        return;
+                    }
+                    notifyBlocksDownloaded(source, block, null);
+                }
+            }
+        } catch (VerificationException e) {
+            log.warn("Block verification failed", e);
+            fail(e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    // If the block used up the keys of the filter it was fetched with, it and all blocks after it are requested again
+    // once the peers have a fresh filter, like Peer does for a single peer.
+    private boolean isFilterExhausted(Peer source, Sha256Hash hash, FilteredBlock block) {
+        Map<Peer, BloomFilter> filters = new HashMap<Peer, BloomFilter>();
+        lock.lock();
+        try {
+            for (Peer peer : peers.keySet())
+                filters.put(peer, peer.getBloomFilter());
+        } finally {
+            lock.unlock();
+        }
+        if (!source.checkForFilterExhaustion(block))
+            return false;
+        log.info("Bloom filter exhausted whilst processing block {}, waiting for a fresh filter", hash);
+        List<Peer> refreshed = new ArrayList<Peer>();
+        lock.lock();
+        try {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(window.size() + 1);
+            hashes.add(hash);
+            hashes.addAll(window.keySet());
+            for (int i = hashes.size() - 1; i >= 0; i--)
+                queued.addFirst(hashes.get(i));
+            window.clear();
+            bufferedBytes = 0;
+            toRequest.clear();
+            awaitingFreshFilter = true;
+            for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+                entry.getValue().blocksInFlight = 0;
+                entry.getValue().ready = false;
+                // The new filter may have gone out already.
+                if (entry.getKey().getBloomFilter() != filters.get(entry.getKey()))
+                    refreshed.add(entry.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Peer peer : refreshed)
+            awaitFilter(peer);
+        return true;
+    }
+
+    // Pings the peer so we know when everything it sent with the old filter has arrived, then asks it for blocks again.
+    private void awaitFilter(final Peer peer) {
+        Runnable ready = new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    PeerState state = peers.get(peer);
+                    if (state == null)
+                        return;
+                    state.ready = true;
+                    if (awaitingFreshFilter) {
+                        log.info("Restarting chain download");
+                        awaitingFreshFilter = false;
+                    }
+                    requestBlocks();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        try {
+            peer.ping().addListener(ready, Threading.SAME_THREAD);
+        } catch (ProtocolException e) {
+            // Can't tell when the filter is in use, so just carry on.
+            ready.run();
+        }
+    }
+
+    private void notifyBlocksDownloaded(Peer source, Block block, @Nullable FilteredBlock filteredBlock) {
+        Peer peer;
+        lock.lock();
+        try {
+            peer = headerPeer != null ? headerPeer : source;
+        } finally {
+            lock.unlock();
+        }
+        peer.invokeOnBlocksDownloaded(block, filteredBlock);
+    }
+
+    @GuardedBy("lock")
+    private void complete() {
+        log.info("Parallel block download caught up with the chain at height {}", chain.getBestChainHeight());
+        vActive = false;
+        future.set(null);
+    }
+
+    private void fail(Exception e) {
+        lock.lock();
+        try {
+            if (!vActive)
+                return;
+            vActive = false;
+            window.clear();
+            bufferedBytes = 0;
+            queued.clear();
+            toRequest.clear();
+        } finally {
+            lock.unlock();
+        }
+        future.setException(e);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>The answer to a {@link GetBlockTxnMessage}: the requested transactions of a block, in the order they were
+ * requested. See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class BlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private ImmutableList<Transaction> transactions;
+
+    public BlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, List<Transaction> transactions) {
+        super(params);
+        this.blockHash = blockHash;
+        this.transactions = ImmutableList.copyOf(transactions);
+    }
+
+    public BlockTxnMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numTransactions = readVarInt();
+        if (numTransactions > Block.MAX_BLOCK_SIZE)
+            throw new ProtocolException("Too many transactions: " + numTransactions);
+        ImmutableList.Builder<Transaction> list = ImmutableList.builder();
+        for (long i = 0; i < numTransactions; i++) {
+            Transaction tx = params.getDefaultSerializer().makeTransaction(payload, cursor, UNKNOWN_LENGTH, null);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            list.add(tx);
+            cursor += tx.getMessageSize();
+        }
+        transactions = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(transactions.size()).encode());
+        for (Transaction tx : transactions)
+            tx.bitcoinSerialize(stream);
+    }
+
+    /** Returns the hash of the block the transactions are from. */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the transactions, in the order they were requested. */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+}
@@ -20,13 +20,10 @@ package org.bitcoinj_extra.core;
 import org.bitcoinj_extra.script.Script;
 import org.bitcoinj_extra.script.ScriptChunk;
 import com.google.common.base.Objects;
-import com.google.common.collect.Lists;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.*;
@@ -216,6 +213,70 @@ public class BloomFilter extends Message {
         return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
     }
     
+    /**
+     * An object prepared for testing against many filters, see {@link BloomMatcher}. MurmurHash3 mixes every four
+     * bytes of the object the same way whatever the seed, so that is done once here and only the seed dependent
+     * rounds are left for each filter and hash function.
+     */
+    /* package */ static final class PreparedObject {
+        private final int[] blocks;
+        private final int tail;
+        private final int length;
+
+        PreparedObject(byte[] object) {
+            final int c1 = 0xcc9e2d51;
+            final int c2 = 0x1b873593;
+            length = object.length;
+            int numBlocks = length / 4;
+            blocks = new int[numBlocks];
+            for (int i = 0; i < numBlocks; i++) {
+                int k1 = (object[i * 4] & 0xFF) |
+                        ((object[i * 4 + 1] & 0xFF) << 8) |
+                        ((object[i * 4 + 2] & 0xFF) << 16) |
+                        ((object[i * 4 + 3] & 0xFF) << 24);
+                k1 *= c1;
+                k1 = rotateLeft32(k1, 15);
+                k1 *= c2;
+                blocks[i] = k1;
+            }
+            int k1 = 0;
+            int end = numBlocks * 4;
+            switch (length & 3) {
+                case 3:
+                    k1 ^= (object[end + 2] & 0xff) << 16;
+                    // Fall through.
+                case 2:
+                    k1 ^= (object[end + 1] & 0xff) << 8;
+                    // Fall through.
+                case 1:
+                    k1 ^= (object[end] & 0xff);
+                    k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+                    // Fall through.
+                default:
+                    break;
+            }
+            tail = k1;
+        }
+
+        // Same as murmurHash3(data, nTweak, hashNum, object) for the object this was prepared from.
+        int hash(long nTweak, int hashNum, int numBits) {
+            int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+            for (int k1 : blocks) {
+                h1 ^= k1;
+                h1 = rotateLeft32(h1, 13);
+                h1 = h1*5+0xe6546b64;
+            }
+            h1 ^= tail;
+            h1 ^= length;
+            h1 ^= h1 >>> 16;
+            h1 *= 0x85ebca6b;
+            h1 ^= h1 >>> 13;
+            h1 *= 0xc2b2ae35;
+            h1 ^= h1 >>> 16;
+            return (int)((h1&0xFFFFFFFFL) % numBits);
+        }
+    }
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
@@ -228,6 +289,16 @@ public class BloomFilter extends Message {
         return true;
     }
     
+    /** Like {@link #contains(byte[])}, for an object prepared by a {@link BloomMatcher}. */
+    /* package */ synchronized boolean contains(PreparedObject object) {
+        int numBits = data.length * 8;
+        for (int i = 0; i < hashFuncs; i++) {
+            if (!Utils.checkBitLE(data, object.hash(nTweak, i, numBits)))
+                return false;
+        }
+        return true;
+    }
+
     /** Insert the given arbitrary data into the filter */
     public synchronized void insert(byte[] object) {
         for (int i = 0; i < hashFuncs; i++)
@@ -297,26 +368,11 @@ public class BloomFilter extends Message {
      * Creates a new FilteredBlock from the given Block, using this filter to select transactions. Matches can cause the
      * filter to be updated with the matched element, this ensures that when a filter is applied to a block, spends of
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
-     * filtered block already has the matched transactions associated with it.
+     * filtered block already has the matched transactions associated with it. To apply many filters to the same block,
+     * use a {@link BloomMatcher}.
      */
     public synchronized FilteredBlock applyAndUpdate(Block block) {
-        List<Transaction> txns = block.getTransactions();
-        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
-        List<Transaction> matched = Lists.newArrayList();
-        byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
-        for (int i = 0; i < txns.size(); i++) {
-            Transaction tx = txns.get(i);
-            txHashes.add(tx.getHash());
-            if (applyAndUpdate(tx)) {
-                Utils.setBitLE(bits, i);
-                matched.add(tx);
-            }
-        }
-        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), bits, txHashes);
-        FilteredBlock filteredBlock = new FilteredBlock(block.getParams(), block.cloneAsHeader(), pmt);
-        for (Transaction transaction : matched)
-            filteredBlock.provideTransaction(transaction);
-        return filteredBlock;
+        return new BloomMatcher(block).applyAndUpdate(this);
     }
 
     public synchronized boolean applyAndUpdate(Transaction tx) {
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.core.BloomFilter.BloomUpdate;
+import org.bitcoinj_extra.core.BloomFilter.PreparedObject;
+import org.bitcoinj_extra.script.Script;
+import org.bitcoinj_extra.script.ScriptChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Applies many {@link BloomFilter}s to the same block, as a node serving filtered blocks to many peers does. All
+ * the work that doesn't depend on the filter is done once when the matcher is created: the scripts of every
+ * transaction are parsed, the objects a filter can match are collected and prepared for hashing, and every level of
+ * the merkle tree is calculated. Applying a filter then only has to test the prepared objects and pick hashes from the
+ * tree, which gives the same results as {@link BloomFilter#applyAndUpdate(Block)}.</p>
+ *
+ * <p>A matcher doesn't change once created, so it can be used by many threads at the same time.</p>
+ */
+public class BloomMatcher {
+    private static final Logger log = LoggerFactory.getLogger(BloomMatcher.class);
+
+    private final Block block;
+    private final List<Transaction> transactions;
+    private final List<PreparedTransaction> prepared;
+    private final List<List<Sha256Hash>> merkleLevels;
+
+    private static class PreparedOutput {
+        final TransactionOutput output;
+        final List<PreparedObject> pushData;
+        final boolean isSendingToPubKeys;
+
+        PreparedOutput(TransactionOutput output, List<PreparedObject> pushData, boolean isSendingToPubKeys) {
+            this.output = output;
+            this.pushData = pushData;
+            this.isSendingToPubKeys = isSendingToPubKeys;
+        }
+    }
+
+    private static class PreparedTransaction {
+        final PreparedObject hash;
+        final List<PreparedOutput> outputs = new ArrayList<PreparedOutput>();
+        // The outpoint of each input, followed by its script's data pushes, in the order they are tested.
+        final List<PreparedObject> inputs = new ArrayList<PreparedObject>();
+
+        PreparedTransaction(Transaction tx) {
+            hash = new PreparedObject(tx.getHash().getBytes());
+            for (TransactionOutput output : tx.getOutputs()) {
+                Script script = parse(tx, output.getScriptBytes());
+                if (script == null)
+                    continue;
+                List<PreparedObject> pushData = pushData(script);
+                if (!pushData.isEmpty())
+                    outputs.add(new PreparedOutput(output, pushData,
+                            script.isSentToRawPubKey() || script.isSentToMultiSig()));
+            }
+            for (TransactionInput input : tx.getInputs()) {
+                inputs.add(new PreparedObject(input.getOutpoint().unsafeBitcoinSerialize()));
+                Script script = parse(tx, input.getScriptBytes());
+                if (script != null)
+                    inputs.addAll(pushData(script));
+            }
+        }
+    }
+
+    /** Prepares the given block. Takes time in proportion to the size of the block. */
+    public BloomMatcher(Block block) {
+        this.block = checkNotNull(block);
+        transactions = checkNotNull(block.getTransactions(), "Block has no transactions");
+        prepared = new ArrayList<PreparedTransaction>(transactions.size());
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(transactions.size());
+        for (Transaction tx : transactions) {
+            prepared.add(new PreparedTransaction(tx));
+            txHashes.add(tx.getHash());
+        }
+        merkleLevels = PartialMerkleTree.buildLevels(txHashes);
+    }
+
+    /**
+     * Creates a new FilteredBlock from the block, using the given filter to select transactions. The filter is
+     * updated with matched outpoints according to its update flag, just as by {@link BloomFilter#applyAndUpdate(Block)}.
+     */
+    public FilteredBlock applyAndUpdate(BloomFilter filter) {
+        List<Transaction> matched = new ArrayList<Transaction>();
+        byte[] bits = new byte[(int) Math.ceil(transactions.size() / 8.0)];
+        synchronized (filter) {
+            BloomUpdate flag = filter.getUpdateFlag();
+            for (int i = 0; i < transactions.size(); i++) {
+                if (matches(filter, flag, prepared.get(i))) {
+                    Utils.setBitLE(bits, i);
+                    matched.add(transactions.get(i));
+                }
+            }
+        }
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLevels(block.getParams(), bits, merkleLevels);
+        FilteredBlock filteredBlock = new FilteredBlock(block.getParams(), block.cloneAsHeader(), pmt);
+        for (Transaction transaction : matched)
+            filteredBlock.provideTransaction(transaction);
+        return filteredBlock;
+    }
+
+    /** Applies each of the given filters in turn, returning the filtered blocks in the same order. */
+    public List<FilteredBlock> applyAndUpdate(List<BloomFilter> filters) {
+        List<FilteredBlock> filteredBlocks = new ArrayList<FilteredBlock>(filters.size());
+        for (BloomFilter filter : filters)
+            filteredBlocks.add(applyAndUpdate(filter));
+        return filteredBlocks;
+    }
+
+    // Same as BloomFilter.applyAndUpdate(Transaction), on the prepared objects.
+    private static boolean matches(BloomFilter filter, BloomUpdate flag, PreparedTransaction tx) {
+        if (filter.contains(tx.hash))
+            return true;
+        boolean found = false;
+        for (PreparedOutput output : tx.outputs) {
+            for (PreparedObject pushData : output.pushData) {
+                if (filter.contains(pushData)) {
+                    if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && output.isSendingToPubKeys))
+                        filter.insert(output.output.getOutPointFor().unsafeBitcoinSerialize());
+                    found = true;
+                }
+            }
+        }
+        if (found)
+            return true;
+        for (PreparedObject input : tx.inputs) {
+            if (filter.contains(input))
+                return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    private static Script parse(Transaction tx, byte[] scriptBytes) {
+        try {
+            return new Script(scriptBytes);
+        } catch (ScriptException e) {
+            // Coinbases and non-standard outputs can hold anything. Bitcoin Core would test the pushes before the
+            // broken one, but nobody can have meant to match those.
+            log.debug("Not matching unparseable script in {}: {}", tx.getHashAsString(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<PreparedObject> pushData(Script script) {
+        List<PreparedObject> objects = new ArrayList<PreparedObject>();
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Small numbers and empty pushes have no data to match, as in Bitcoin Core.
+            if (chunk.isPushData() && chunk.data != null && chunk.data.length > 0)
+                objects.add(new PreparedObject(chunk.data));
+        }
+        return objects;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>The answer to a {@link GetCFHeadersMessage}: the filter header of the block before the requested range and the
+ * hashes of the filters of the blocks in it, from which the filter headers of those blocks follow. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private int filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private ImmutableList<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, int filterType, Sha256Hash stopHash,
+                            Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = ImmutableList.copyOf(filterHashes);
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long numHashes = readVarInt();
+        if (numHashes > GetCFHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + numHashes);
+        ImmutableList.Builder<Sha256Hash> list = ImmutableList.builder();
+        for (long i = 0; i < numHashes; i++)
+            list.add(readHash());
+        filterHashes = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    /** Returns the type of the filters, see {@link CompactBlockFilter#BASIC}. */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    /** Returns the hash of the last block of the range. */
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter header of the block before the range. */
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    /** Returns the hashes of the filters of the blocks in the range, in chain order. */
+    public List<Sha256Hash> getFilterHashes() {
+        return filterHashes;
+    }
+
+    /** Returns the filter headers of the blocks in the range, in chain order. */
+    public List<Sha256Hash> getFilterHeaders() {
+        ImmutableList.Builder<Sha256Hash> headers = ImmutableList.builder();
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes) {
+            header = CompactBlockFilter.calculateHeader(filterHash, header);
+            headers.add(header);
+        }
+        return headers.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFHeadersMessage other = (CFHeadersMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash)
+                && previousFilterHeader.equals(other.previousFilterHeader) && filterHashes.equals(other.filterHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, stopHash, previousFilterHeader, filterHashes);
+    }
+}
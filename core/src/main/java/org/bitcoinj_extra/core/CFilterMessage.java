@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>The compact filter of a block, sent in answer to a {@link GetCFiltersMessage}. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFilterMessage extends Message {
+    private int filterType;
+    private Sha256Hash blockHash;
+    private byte[] filter;
+
+    public CFilterMessage(NetworkParameters params, int filterType, Sha256Hash blockHash, byte[] filter) {
+        super(params);
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filter = filter.clone();
+    }
+
+    public CFilterMessage(NetworkParameters params, CompactBlockFilter filter) {
+        this(params, CompactBlockFilter.BASIC, filter.getBlockHash(), filter.getFilterBytes());
+    }
+
+    public CFilterMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        blockHash = readHash();
+        filter = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filter.length).encode());
+        stream.write(filter);
+    }
+
+    /** Returns the type of the filter, see {@link CompactBlockFilter#BASIC}. */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    /** Returns the hash of the block the filter belongs to. */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the serialized filter. */
+    public byte[] getFilterBytes() {
+        return filter.clone();
+    }
+
+    /** Parses the filter, which must be a basic filter. */
+    public CompactBlockFilter getFilter() throws ProtocolException {
+        if (filterType != CompactBlockFilter.BASIC)
+            throw new ProtocolException("Unknown filter type " + filterType);
+        return new CompactBlockFilter(blockHash, filter);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFilterMessage other = (CFilterMessage) o;
+        return filterType == other.filterType && blockHash.equals(other.blockHash) && Arrays.equals(filter, other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, blockHash, Arrays.hashCode(filter));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.bitcoinj_extra.script.ScriptOpCodes.OP_RETURN;
+
+/**
+ * <p>The basic compact filter of a block as defined by <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP
+ * 158</a>: a {@link GolombCodedSet} of every output script of the block and every output script spent by its inputs.
+ * Peers that advertise {@link VersionMessage#NODE_COMPACT_FILTERS} serve these filters, see {@link CFilterMessage}. A
+ * client tests its own scripts against the filter and only downloads the block if one of them may be in it, which
+ * tells the peer nothing about the wallet.</p>
+ *
+ * <p>Filters are committed to by a chain of filter headers, each the hash of the filter hash and the previous
+ * header, see {@link #calculateHeader(Sha256Hash, Sha256Hash)}.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class CompactBlockFilter {
+    /** The filter type of basic filters. */
+    public static final int BASIC = 0;
+    /** The Golomb-Rice parameter of basic filters. */
+    public static final int BASIC_P = 19;
+    /** The inverse false positive rate of basic filters. */
+    public static final long BASIC_M = 784931;
+
+    private final Sha256Hash blockHash;
+    private final GolombCodedSet set;
+    private final byte[] filter;
+
+    /**
+     * Parses the serialized basic filter of the given block: the number of items as a variable length integer,
+     * followed by the set.
+     */
+    public CompactBlockFilter(Sha256Hash blockHash, byte[] filter) throws ProtocolException {
+        VarInt n;
+        try {
+            n = new VarInt(filter, 0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        int offset = n.getOriginalSizeInBytes();
+        // Every item takes at least P + 1 bits.
+        if (n.value < 0 || n.value > (filter.length - offset) * 8L / (BASIC_P + 1))
+            throw new ProtocolException("Compact filter has too many items: " + n.value);
+        this.blockHash = blockHash;
+        this.set = new GolombCodedSet(BASIC_P, BASIC_M, key(blockHash), (int) n.value,
+                Arrays.copyOfRange(filter, offset, filter.length));
+        this.filter = filter.clone();
+    }
+
+    /**
+     * Builds the basic filter of a block.
+     *
+     * @param spentScripts the output scripts spent by the inputs of the block, which aren't in the block itself
+     */
+    public static CompactBlockFilter build(Block block, Collection<byte[]> spentScripts) {
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions == null)
+            throw new IllegalArgumentException("Block has no transactions");
+        // Each item only goes in once.
+        Set<ByteBuffer> items = new LinkedHashSet<ByteBuffer>();
+        for (Transaction tx : transactions) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                byte[] script = output.getScriptBytes();
+                if (script.length > 0 && (script[0] & 0xff) != OP_RETURN)
+                    items.add(ByteBuffer.wrap(script));
+            }
+        }
+        for (byte[] script : spentScripts)
+            if (script.length > 0)
+                items.add(ByteBuffer.wrap(script));
+        List<byte[]> elements = new ArrayList<byte[]>(items.size());
+        for (ByteBuffer item : items)
+            elements.add(item.array());
+        Sha256Hash blockHash = block.getHash();
+        GolombCodedSet set = GolombCodedSet.build(BASIC_P, BASIC_M, key(blockHash), elements);
+        byte[] data = set.getData();
+        byte[] n = new VarInt(set.getN()).encode();
+        byte[] filter = new byte[n.length + data.length];
+        System.arraycopy(n, 0, filter, 0, n.length);
+        System.arraycopy(data, 0, filter, n.length, data.length);
+        return new CompactBlockFilter(blockHash, filter);
+    }
+
+    /** Returns the hash of the block this filter belongs to. */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the serialized filter, as in {@link CFilterMessage}. */
+    public byte[] getFilterBytes() {
+        return filter.clone();
+    }
+
+    /** Returns the number of items in the filter. */
+    public int getSize() {
+        return set.getN();
+    }
+
+    /** Returns true if the given script may be in the block. */
+    public boolean match(byte[] script) {
+        return set.match(script);
+    }
+
+    /** Returns true if any of the given scripts may be in the block. */
+    public boolean matchAny(Collection<byte[]> scripts) {
+        return set.matchAny(scripts);
+    }
+
+    /** Returns the hash of the serialized filter, which the filter headers commit to. */
+    public Sha256Hash getFilterHash() {
+        return calculateFilterHash(filter);
+    }
+
+    /** Returns the hash of the given serialized filter. */
+    public static Sha256Hash calculateFilterHash(byte[] filter) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filter));
+    }
+
+    /** Returns the filter header of a filter, given the header of the filter of the previous block. */
+    public static Sha256Hash calculateHeader(Sha256Hash filterHash, Sha256Hash previousHeader) {
+        byte[] filterHashBytes = filterHash.getReversedBytes();
+        byte[] previousHeaderBytes = previousHeader.getReversedBytes();
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHashBytes, 0, filterHashBytes.length,
+                previousHeaderBytes, 0, previousHeaderBytes.length));
+    }
+
+    // The SipHash key is the first half of the block hash, in the byte order it has on the wire.
+    private static byte[] key(Sha256Hash blockHash) {
+        return Arrays.copyOf(blockHash.getReversedBytes(), 16);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompactBlockFilter other = (CompactBlockFilter) o;
+        return blockHash.equals(other.blockHash) && Arrays.equals(filter, other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+        return blockHash.hashCode() * 31 + Arrays.hashCode(filter);
+    }
+
+    @Override
+    public String toString() {
+        return "compact filter of " + blockHash + ": " + Utils.HEX.encode(filter);
+    }
+}
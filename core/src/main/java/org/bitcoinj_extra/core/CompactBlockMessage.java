@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A block header together with short ids of its transactions, see
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>. The receiver rebuilds the
+ * block from transactions it already has, matching them by short id, and asks for the rest with a
+ * {@link GetBlockTxnMessage}. Transactions the sender expects the receiver not to have, at least the coinbase, are
+ * sent in full.</p>
+ *
+ * <p>Short ids are the lowest 6 bytes of the SipHash-2-4 of the transaction hash, keyed with the SHA-256 of the header
+ * and the nonce of this message. This is version 1 of compact blocks, version 2 uses the hashes of transactions
+ * including witness data, which this library doesn't understand.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactBlockMessage extends Message {
+    /** A transaction that is sent in full, and its position in the block. */
+    public static class PrefilledTransaction {
+        public final int index;
+        public final Transaction tx;
+
+        public PrefilledTransaction(int index, Transaction tx) {
+            this.index = index;
+            this.tx = tx;
+        }
+    }
+
+    private static final int SHORT_ID_LENGTH = 6;
+    private static final long SHORT_ID_MASK = 0xFFFFFFFFFFFFL;
+    // BIP 152 encodes the differences between prefilled transaction indexes in 16 bits.
+    private static final long MAX_DIFFERENTIAL = 0xFFFF;
+
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    private ImmutableList<PrefilledTransaction> prefilledTransactions;
+    private transient HashFunction shortIdFunction;
+
+    /**
+     * Creates the compact form of the given block, with only the coinbase sent in full.
+     * @param nonce a random number, so that short id collisions can't be engineered for all peers at once
+     */
+    public CompactBlockMessage(NetworkParameters params, Block block, long nonce) {
+        super(params);
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+        this.header = block.cloneAsHeader();
+        this.nonce = nonce;
+        this.prefilledTransactions = ImmutableList.of(new PrefilledTransaction(0, transactions.get(0)));
+        this.shortIds = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++)
+            shortIds[i - 1] = getShortId(transactions.get(i).getHash());
+    }
+
+    public CompactBlockMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        header = params.getDefaultSerializer().makeBlock(readBytes(Block.HEADER_SIZE));
+        nonce = readInt64();
+        long numShortIds = readVarInt();
+        if (numShortIds > Block.MAX_BLOCK_SIZE)
+            throw new ProtocolException("Too many short ids: " + numShortIds);
+        shortIds = new long[(int) numShortIds];
+        for (int i = 0; i < shortIds.length; i++) {
+            byte[] bytes = readBytes(SHORT_ID_LENGTH);
+            long shortId = 0;
+            for (int j = SHORT_ID_LENGTH - 1; j >= 0; j--)
+                shortId = (shortId << 8) | (bytes[j] & 0xFF);
+            shortIds[i] = shortId;
+        }
+        long numPrefilled = readVarInt();
+        if (numPrefilled > Block.MAX_BLOCK_SIZE)
+            throw new ProtocolException("Too many prefilled transactions: " + numPrefilled);
+        ImmutableList.Builder<PrefilledTransaction> list = ImmutableList.builder();
+        // Indexes are encoded as the difference to the previous one, minus one. readVarInt() returns the raw 64 bits,
+        // so check the difference before adding it up or a huge one wraps the index around.
+        long index = -1;
+        for (long i = 0; i < numPrefilled; i++) {
+            long differential = readVarInt();
+            if (differential < 0 || differential > MAX_DIFFERENTIAL)
+                throw new ProtocolException("Prefilled transaction index differential out of range: " + differential);
+            index += differential + 1;
+            if (index >= numShortIds + numPrefilled)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            Transaction tx = params.getDefaultSerializer().makeTransaction(payload, cursor, UNKNOWN_LENGTH, null);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            cursor += tx.getMessageSize();
+            list.add(new PrefilledTransaction((int) index, tx));
+        }
+        prefilledTransactions = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        header.bitcoinSerialize(stream);
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        byte[] bytes = new byte[SHORT_ID_LENGTH];
+        for (long shortId : shortIds) {
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                bytes[j] = (byte) (shortId >>> (8 * j));
+            stream.write(bytes);
+        }
+        stream.write(new VarInt(prefilledTransactions.size()).encode());
+        int previous = -1;
+        for (PrefilledTransaction prefilled : prefilledTransactions) {
+            stream.write(new VarInt(prefilled.index - previous - 1).encode());
+            prefilled.tx.bitcoinSerialize(stream);
+            previous = prefilled.index;
+        }
+    }
+
+    /** Returns the header of the block, without transactions. */
+    public Block getHeader() {
+        return header;
+    }
+
+    /** Returns the nonce that goes into the short id keys. */
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short ids of the transactions that weren't sent in full, in block order. */
+    public long[] getShortIds() {
+        return Arrays.copyOf(shortIds, shortIds.length);
+    }
+
+    /** Returns the transactions that were sent in full, in block order. */
+    public List<PrefilledTransaction> getPrefilledTransactions() {
+        return prefilledTransactions;
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledTransactions.size();
+    }
+
+    /** Returns the short id the transaction with the given hash has in this block. */
+    public long getShortId(Sha256Hash txHash) {
+        if (shortIdFunction == null) {
+            // The keys are the first two little endian 64 bit numbers of the SHA-256 of the header and nonce.
+            byte[] data = new byte[Block.HEADER_SIZE + 8];
+            System.arraycopy(header.bitcoinSerialize(), 0, data, 0, Block.HEADER_SIZE);
+            Utils.uint64ToByteArrayLE(nonce, data, Block.HEADER_SIZE);
+            byte[] key = Sha256Hash.hash(data);
+            shortIdFunction = Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+        }
+        return shortIdFunction.hashBytes(txHash.getReversedBytes()).asLong() & SHORT_ID_MASK;
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock: " + header.getHashAsString() + " with " + getTransactionCount() + " transactions, " +
+                prefilledTransactions.size() + " prefilled";
+    }
+
+    /** Returns the positions in the block of the transactions that weren't sent in full. */
+    List<Integer> getShortIdIndexes() {
+        List<Integer> indexes = new ArrayList<Integer>(shortIds.length);
+        int next = 0;
+        for (PrefilledTransaction prefilled : prefilledTransactions) {
+            while (next < prefilled.index)
+                indexes.add(next++);
+            next++;
+        }
+        while (indexes.size() < shortIds.length)
+            indexes.add(next++);
+        return indexes;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared by the peers of a {@link PeerGroup} when {@link PeerGroup#setCompactBlockRelay(boolean)} is enabled. Holds on
+ * to the transactions recently relayed by any peer, which are what most of the next block is made of, so that blocks
+ * can be rebuilt from {@link CompactBlockMessage}s.
+ */
+class CompactBlockRelay {
+    /** How many relayed transactions are kept. */
+    public static final int MAX_TRANSACTIONS = 20000;
+
+    private final ReentrantLock lock = Threading.lock("compactblockrelay");
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> transactions =
+            new LinkedHashMap<Sha256Hash, Transaction>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+                    return size() > MAX_TRANSACTIONS;
+                }
+            };
+
+    /** Remembers a transaction that was relayed to us. */
+    void add(Transaction tx) {
+        lock.lock();
+        try {
+            transactions.put(tx.getHash(), tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets the transactions of a block that was received, as they won't be in the next one. */
+    void remove(List<Transaction> confirmed) {
+        lock.lock();
+        try {
+            for (Transaction tx : confirmed)
+                transactions.remove(tx.getHash());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the remembered transactions. */
+    List<Transaction> getTransactions() {
+        lock.lock();
+        try {
+            return new ArrayList<Transaction>(transactions.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
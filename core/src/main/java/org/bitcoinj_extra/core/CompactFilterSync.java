@@ -0,0 +1,635 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.script.Script;
+import org.bitcoinj_extra.store.BlockStoreException;
+import org.bitcoinj_extra.store.FilterHeaderStore;
+import org.bitcoinj_extra.utils.Threading;
+import org.bitcoinj_extra.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain with compact block filters (BIP 157 and 158) rather than Bloom filters. Used by
+ * {@link PeerGroup} when {@link PeerGroup#setCompactFilterSync(FilterHeaderStore)} is enabled.</p>
+ *
+ * <p>Headers are fetched from the download peer. Headers that pre-date the fast catchup time are added to the chain
+ * straight away, the rest are queued up. For the queued headers, the filter hashes and the filters are requested in
+ * batches. Each filter is checked against the filter headers, which are kept in a {@link FilterHeaderStore}, and then
+ * matched against the scripts of the wallets. Only blocks whose filter matches are downloaded in full, the others are
+ * added to the chain as headers. Either way the blocks go into the chain in order, so a wallet sees a matching block
+ * before the filters of later blocks are matched against its new keys.</p>
+ *
+ * <p>Once caught up, announcements of new blocks by the download peer make it fetch the new headers, so the sync
+ * carries on for as long as it is in use. Headers that fork off below the queued ones replace the queued headers
+ * after the fork point. A peer that sends filters that don't match their headers, or headers that don't connect, or
+ * that leaves a request unanswered for too long, is disconnected and the sync starts over with the next download
+ * peer.</p>
+ *
+ * <p>Filter headers are only checked for following on from each other. The filter header before the first batch can
+ * be checked when the sync starts at the genesis block or follows on from the store. Otherwise there is nothing to
+ * check it against and it is taken from the download peer, which could then hide transactions from the wallets by
+ * sending filter headers for filters that leave them out. The filter headers are not compared across peers.</p>
+ */
+class CompactFilterSync {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterSync.class);
+
+    /** How long the peer may take to answer a request, or to send the next filter of a batch, before it is dropped. */
+    public static final long STALL_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final FilterHeaderStore store;
+    private final List<Wallet> wallets;
+
+    private final ReentrantLock lock = Threading.lock("compactfiltersync");
+    // Held whilst adding to the chain, so blocks go in one at a time and in order. Taken before lock, never after.
+    private final ReentrantLock deliveryLock = Threading.lock("compactfiltersync-delivery");
+
+    private static class Slot {
+        final Block header;
+        final int height;
+        // From the filter headers message.
+        @Nullable Sha256Hash filterHash;
+        @Nullable Sha256Hash filterHeader;
+        boolean filterRequested;
+        @Nullable byte[] filter;
+        boolean blockRequested;
+        long blockRequestTime;
+        @Nullable Block block;
+
+        Slot(Block header, int height) {
+            this.header = header;
+            this.height = height;
+        }
+    }
+
+    @GuardedBy("lock") @Nullable private Peer peer;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    // The last header we know of, either in the chain or queued, and its height.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    @GuardedBy("lock") private boolean headersRequested;
+    @GuardedBy("lock") private long headersRequestTime;
+    // Whether the peer may have more headers than it sent last.
+    @GuardedBy("lock") private boolean moreHeaders;
+    // Headers in chain order, the first one is the next to be added to the chain.
+    @GuardedBy("lock") private final ArrayDeque<Slot> queue = new ArrayDeque<Slot>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Slot> slots = new HashMap<Sha256Hash, Slot>();
+    // The batch of slots whose filter hashes were requested and haven't arrived yet.
+    @GuardedBy("lock") @Nullable private List<Slot> filterHeadersBatch;
+    // The batch of slots whose filters were requested, until all of them arrived.
+    @GuardedBy("lock") @Nullable private List<Slot> filtersBatch;
+    // When the filter hashes or a filter of the batch last arrived, or the batch was requested.
+    @GuardedBy("lock") private long filtersProgressTime;
+    // The filter header of the last slot that has one, which the next batch must follow on from.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastFilterHeader;
+    @GuardedBy("lock") private int lastFilterHeaderHeight = -1;
+    @GuardedBy("lock") @Nullable private Sha256Hash genesisFilterHeader;
+
+    CompactFilterSync(NetworkParameters params, AbstractBlockChain chain, FilterHeaderStore store,
+                      List<Wallet> wallets, long fastCatchupTimeSecs) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.store = checkNotNull(store);
+        this.wallets = checkNotNull(wallets);
+        setFastCatchupTimeSecs(fastCatchupTimeSecs);
+    }
+
+    /** See {@link Peer#setDownloadParameters(long, boolean)}. */
+    void setFastCatchupTimeSecs(long fastCatchupTimeSecs) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs == 0 ? params.getGenesisBlock().getTimeSeconds()
+                    : fastCatchupTimeSecs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts syncing from the given peer, forgetting what was queued up from another one. Called by
+     * {@link Peer#startBlockChainDownload()}.
+     * @return false if the peer doesn't serve compact filters, in which case it has to download the chain itself.
+     */
+    boolean start(Peer downloadPeer) {
+        VersionMessage version = downloadPeer.getPeerVersionMessage();
+        if (version == null || !version.isCompactFiltersSupported())
+            return false;
+        lock.lock();
+        try {
+            if (peer != downloadPeer) {
+                reset();
+                peer = downloadPeer;
+            }
+            moreHeaders = true;
+            requestHeaders();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /** Returns true if blocks are synced from the given peer. */
+    boolean isSyncingFrom(Peer peer) {
+        lock.lock();
+        try {
+            return this.peer == peer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets about a peer that went away. The sync carries on once a new download peer is started. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (this.peer == peer)
+                reset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when the peer announces new blocks, which are then synced like the rest of the chain. */
+    void onBlocksAnnounced(Peer peer) {
+        lock.lock();
+        try {
+            if (this.peer != peer)
+                return;
+            moreHeaders = true;
+            requestHeaders();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handles headers received from a peer.
+     * @return false if the headers are not from the peer synced from, which should handle the message itself.
+     */
+    boolean onHeaders(Peer peer, HeadersMessage m) throws ProtocolException {
+        List<Block> headersOnly = new ArrayList<Block>();
+        deliveryLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (this.peer != peer)
+                    return false;
+                if (!headersRequested) {
+                    log.debug("{}: Ignoring unrequested headers", peer);
+                    return true;
+                }
+                headersRequested = false;
+                // Check all headers before taking any of them, so a bad one leaves nothing half done.
+                List<Block> headers = m.getBlockHeaders();
+                List<Slot> toQueue = new ArrayList<Slot>();
+                Sha256Hash last = lastHeaderHash;
+                int height = lastHeaderHeight;
+                // How many of the queued headers stay, fewer if the new ones fork off below the last one.
+                int keep = queue.size();
+                for (Block header : headers) {
+                    if (!header.getPrevBlockHash().equals(last)) {
+                        // The first header may fork off below the last one, as the peer switched to another branch.
+                        // Then it follows on from a queued header or, for a re-org, from a block in the store.
+                        if (!headersOnly.isEmpty() || !toQueue.isEmpty())
+                            throw new VerificationException("Got unconnected header " + header.getHashAsString());
+                        Slot forkSlot = slots.get(header.getPrevBlockHash());
+                        if (forkSlot != null) {
+                            keep = indexOf(forkSlot) + 1;
+                            height = forkSlot.height;
+                        } else {
+                            StoredBlock prev = chain.getBlockStore().get(header.getPrevBlockHash());
+                            if (prev == null)
+                                throw new VerificationException("Got unconnected header " + header.getHashAsString());
+                            keep = 0;
+                            height = prev.getHeight();
+                        }
+                    }
+                    header.verifyHeader();
+                    last = header.getHash();
+                    height++;
+                    if (keep == 0 && toQueue.isEmpty() && header.getTimeSeconds() < fastCatchupTimeSecs)
+                        headersOnly.add(header);
+                    else
+                        toQueue.add(new Slot(header, height));
+                }
+                if (keep < queue.size())
+                    dropQueuedHeaders(keep);
+                lastHeaderHash = last;
+                lastHeaderHeight = height;
+                for (Slot slot : toQueue) {
+                    queue.add(slot);
+                    slots.put(slot.header.getHash(), slot);
+                }
+                moreHeaders = headers.size() >= HeadersMessage.MAX_HEADERS;
+                log.info("{}: Got {} headers, {} waiting for their filters or blocks", peer, headers.size(),
+                        queue.size());
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            } finally {
+                lock.unlock();
+            }
+            // Headers before the fast catchup time go straight into the chain, before any of the blocks after them.
+            for (Block header : headersOnly) {
+                if (!chain.add(header)) {
+                    abandon(peer, "Header does not connect to the chain: " + header.getHashAsString());
+                    return true;
+                }
+                peer.invokeOnBlocksDownloaded(header, null);
+            }
+            lock.lock();
+            try {
+                requestHeaders();
+                requestFilters();
+            } finally {
+                lock.unlock();
+            }
+        } catch (VerificationException e) {
+            log.warn("Block header verification failed", e);
+            abandon(peer, e.getMessage());
+            return true;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        } finally {
+            deliveryLock.unlock();
+        }
+        deliver();
+        return true;
+    }
+
+    /** Handles the filter hashes of a batch of queued headers. */
+    void onFilterHeaders(Peer peer, CFHeadersMessage m) {
+        String error = null;
+        lock.lock();
+        try {
+            List<Slot> batch = filterHeadersBatch;
+            if (this.peer != peer || batch == null
+                    || !m.getStopHash().equals(batch.get(batch.size() - 1).header.getHash())) {
+                log.debug("{}: Ignoring unrequested filter headers", peer);
+                return;
+            }
+            filterHeadersBatch = null;
+            filtersProgressTime = Utils.currentTimeMillis();
+            Sha256Hash previous = getFilterHeader(batch.get(0));
+            if (m.getFilterType() != CompactBlockFilter.BASIC || m.getFilterHashes().size() != batch.size())
+                error = "Got " + m.getFilterHashes().size() + " filter hashes for " + batch.size() + " blocks";
+            else if (previous != null && !previous.equals(m.getPreviousFilterHeader()))
+                error = "Filter headers do not connect at height " + batch.get(0).height;
+            if (error != null)
+                return;
+            if (previous == null)
+                log.warn("{}: Trusting the peer for the filter header at height {}, nothing to check it against", peer,
+                        batch.get(0).height - 1);
+            List<Sha256Hash> headers = m.getFilterHeaders();
+            for (int i = 0; i < batch.size(); i++) {
+                Slot slot = batch.get(i);
+                slot.filterHash = m.getFilterHashes().get(i);
+                slot.filterHeader = headers.get(i);
+            }
+            Slot last = batch.get(batch.size() - 1);
+            lastFilterHeader = last.filterHeader;
+            lastFilterHeaderHeight = last.height;
+            requestFilters();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+            if (error != null)
+                abandon(peer, error);
+        }
+        deliver();
+    }
+
+    /** Handles the filter of a queued header. */
+    void onFilter(Peer peer, CFilterMessage m) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(m.getBlockHash());
+            if (this.peer != peer || slot == null || !slot.filterRequested || slot.filter != null) {
+                log.debug("{}: Ignoring unrequested filter for {}", peer, m.getBlockHash());
+                return;
+            }
+            if (m.getFilterType() == CompactBlockFilter.BASIC) {
+                slot.filter = m.getFilterBytes();
+                filtersProgressTime = Utils.currentTimeMillis();
+                requestFilters();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (m.getFilterType() != CompactBlockFilter.BASIC) {
+            abandon(peer, "Got a filter of type " + m.getFilterType());
+            return;
+        }
+        deliver();
+    }
+
+    /**
+     * Handles a block received from a peer.
+     * @return false if the block wasn't requested by the sync, so the peer should handle it itself.
+     */
+    boolean onBlock(Peer peer, Block block) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(block.getHash());
+            if (this.peer != peer || slot == null || !slot.blockRequested)
+                return false;
+            if (slot.block == null)
+                slot.block = block;
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        return true;
+    }
+
+    /**
+     * Drops the peer if it left headers, filters or a block unanswered for longer than {@link #STALL_TIMEOUT_MILLIS}.
+     * The sync then starts over with the next download peer. {@link PeerGroup} calls this every second.
+     */
+    void checkForStalls() {
+        Peer stalled = null;
+        String what = null;
+        lock.lock();
+        try {
+            if (peer == null)
+                return;
+            final long now = Utils.currentTimeMillis();
+            Slot front = queue.peek();
+            if (headersRequested && now - headersRequestTime > STALL_TIMEOUT_MILLIS)
+                what = "headers";
+            else if ((filterHeadersBatch != null || filtersPending())
+                    && now - filtersProgressTime > STALL_TIMEOUT_MILLIS)
+                what = "filters";
+            else if (front != null && front.blockRequested && front.block == null
+                    && now - front.blockRequestTime > STALL_TIMEOUT_MILLIS)
+                what = "block " + front.header.getHashAsString();
+            if (what != null)
+                stalled = peer;
+        } finally {
+            lock.unlock();
+        }
+        if (stalled != null)
+            abandon(stalled, "Stalled the sync waiting for " + what);
+    }
+
+    @GuardedBy("lock")
+    private void requestHeaders() {
+        if (peer == null || headersRequested || !moreHeaders || queue.size() >= HeadersMessage.MAX_HEADERS)
+            return;
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(102);
+        if (lastHeaderHash != null && !lastHeaderHash.equals(chain.getChainHead().getHeader().getHash()))
+            locator.add(lastHeaderHash);
+        locator.addAll(BlockFetcher.buildLocator(params, chain));
+        headersRequested = true;
+        headersRequestTime = Utils.currentTimeMillis();
+        peer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    // Asks for the filter hashes and filters of the next batch of queued headers, once the last batch is in.
+    @GuardedBy("lock")
+    private void requestFilters() {
+        if (peer == null || filterHeadersBatch != null || filtersPending())
+            return;
+        List<Slot> batch = new ArrayList<Slot>();
+        for (Slot slot : queue) {
+            if (slot.filterRequested)
+                continue;
+            if (batch.size() == GetCFiltersMessage.MAX_FILTERS)
+                break;
+            slot.filterRequested = true;
+            batch.add(slot);
+        }
+        if (batch.isEmpty())
+            return;
+        int startHeight = batch.get(0).height;
+        Sha256Hash stopHash = batch.get(batch.size() - 1).header.getHash();
+        filterHeadersBatch = batch;
+        filtersBatch = batch;
+        filtersProgressTime = Utils.currentTimeMillis();
+        peer.sendMessage(new GetCFHeadersMessage(params, CompactBlockFilter.BASIC, startHeight, stopHash));
+        peer.sendMessage(new GetCFiltersMessage(params, CompactBlockFilter.BASIC, startHeight, stopHash));
+    }
+
+    // Whether filters of the last batch requested are still missing.
+    @GuardedBy("lock")
+    private boolean filtersPending() {
+        if (filtersBatch == null)
+            return false;
+        for (Slot slot : filtersBatch)
+            if (slot.filter == null)
+                return true;
+        filtersBatch = null;
+        return false;
+    }
+
+    @GuardedBy("lock")
+    private int indexOf(Slot slot) {
+        int index = 0;
+        for (Slot queued : queue) {
+            if (queued == slot)
+                return index;
+            index++;
+        }
+        throw new IllegalStateException();
+    }
+
+    // Drops the queued headers after the first keep ones, which are on a branch the peer no longer follows. The filter
+    // requests in flight may be for dropped headers, so the missing filters of the kept ones are requested again.
+    @GuardedBy("lock")
+    private void dropQueuedHeaders(int keep) {
+        log.info("{}: Headers fork off below the queued ones, dropping {} of them", peer, queue.size() - keep);
+        while (queue.size() > keep)
+            slots.remove(queue.pollLast().header.getHash());
+        filterHeadersBatch = null;
+        filtersBatch = null;
+        lastFilterHeader = null;
+        lastFilterHeaderHeight = -1;
+        // Batches must cover consecutive heights, so everything from the first slot that lacks something goes again.
+        boolean again = false;
+        for (Slot slot : queue) {
+            if (slot.filterHeader == null || slot.filter == null)
+                again = true;
+            if (again) {
+                slot.filterRequested = false;
+            } else {
+                lastFilterHeader = slot.filterHeader;
+                lastFilterHeaderHeight = slot.height;
+            }
+        }
+    }
+
+    // The filter header before the given slot, or null if we don't know it. Then the peer is trusted with it.
+    @GuardedBy("lock")
+    @Nullable
+    private Sha256Hash getFilterHeader(Slot slot) throws BlockStoreException {
+        int height = slot.height - 1;
+        if (lastFilterHeader != null && lastFilterHeaderHeight == height)
+            return lastFilterHeader;
+        if (height == 0 && slot.header.getPrevBlockHash().equals(params.getGenesisBlock().getHash())) {
+            // The genesis block is known in full, and has nothing before it.
+            if (genesisFilterHeader == null) {
+                CompactBlockFilter filter = CompactBlockFilter.build(params.getGenesisBlock(),
+                        Collections.<byte[]>emptyList());
+                genesisFilterHeader = CompactBlockFilter.calculateHeader(filter.getFilterHash(), Sha256Hash.ZERO_HASH);
+            }
+            return genesisFilterHeader;
+        }
+        if (slot.header.getPrevBlockHash().equals(store.getBlockHash(height)))
+            return store.getFilterHeader(height);
+        return null;
+    }
+
+    // Adds the blocks at the front of the queue to the chain, for as long as their filters or bodies are there.
+    private void deliver() {
+        deliveryLock.lock();
+        try {
+            List<byte[]> scripts = null;
+            while (true) {
+                Slot slot;
+                Peer source;
+                lock.lock();
+                try {
+                    slot = queue.peek();
+                    source = peer;
+                    if (slot == null || source == null || slot.filterHeader == null || slot.filter == null)
+                        return;
+                    if (slot.blockRequested && slot.block == null)
+                        return;
+                } finally {
+                    lock.unlock();
+                }
+                if (slot.block == null) {
+                    CompactBlockFilter filter;
+                    try {
+                        filter = new CompactBlockFilter(slot.header.getHash(), slot.filter);
+                        if (!filter.getFilterHash().equals(slot.filterHash)) {
+                            abandon(source, "Filter does not match its header at height " + slot.height);
+                            return;
+                        }
+                        if (scripts == null)
+                            scripts = getScripts();
+                        if (filter.matchAny(scripts)) {
+                            log.info("Compact filter of block {} matches, downloading it", slot.header.getHashAsString());
+                            lock.lock();
+                            try {
+                                if (peer != source)
+                                    return;
+                                slot.blockRequested = true;
+                                slot.blockRequestTime = Utils.currentTimeMillis();
+                            } finally {
+                                lock.unlock();
+                            }
+                            GetDataMessage getdata = new GetDataMessage(params);
+                            getdata.addBlock(slot.header.getHash());
+                            source.sendMessage(getdata);
+                            return;
+                        }
+                    } catch (ProtocolException e) {
+                        abandon(source, "Bad filter at height " + slot.height + ": " + e.getMessage());
+                        return;
+                    }
+                }
+                Block block = slot.block != null ? slot.block : slot.header;
+                if (!chain.add(block)) {
+                    abandon(source, "Block does not connect to the chain: " + block.getHashAsString());
+                    return;
+                }
+                store.put(slot.height, block.getHash(), checkNotNull(slot.filterHeader));
+                lock.lock();
+                try {
+                    if (peer != source || queue.peek() != slot)
+                        return;
+                    queue.poll();
+                    slots.remove(block.getHash());
+                    requestHeaders();
+                    requestFilters();
+                } finally {
+                    lock.unlock();
+                }
+                // The wallets may have new keys now.
+                if (slot.block != null)
+                    scripts = null;
+                source.invokeOnBlocksDownloaded(block, null);
+            }
+        } catch (VerificationException e) {
+            log.warn("Block verification failed", e);
+            Peer source;
+            lock.lock();
+            try {
+                source = peer;
+            } finally {
+                lock.unlock();
+            }
+            if (source != null)
+                abandon(source, e.getMessage());
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    private List<byte[]> getScripts() {
+        List<byte[]> scripts = new ArrayList<byte[]>();
+        for (Wallet wallet : wallets)
+            for (Script script : wallet.getFilterScripts())
+                scripts.add(script.getProgram());
+        return scripts;
+    }
+
+    // Gives up on a peer that sent something wrong. The next download peer starts over.
+    private void abandon(Peer peer, String reason) {
+        lock.lock();
+        try {
+            if (this.peer != peer)
+                return;
+            reset();
+        } finally {
+            lock.unlock();
+        }
+        log.warn("{}: {}, disconnecting", peer, reason);
+        peer.close();
+    }
+
+    @GuardedBy("lock")
+    private void reset() {
+        peer = null;
+        lastHeaderHash = chain.getChainHead().getHeader().getHash();
+        lastHeaderHeight = chain.getBestChainHeight();
+        headersRequested = false;
+        queue.clear();
+        slots.clear();
+        filterHeadersBatch = null;
+        filtersBatch = null;
+        lastFilterHeader = null;
+        lastFilterHeaderHeight = -1;
+    }
+}
@@ -295,6 +295,19 @@ public class ECKey implements EncryptableItem {
         return new ECKey(new BigInteger(1, priv), CURVE.getCurve().decodePoint(pub));
     }
 
+    /**
+     * Creates an ECKey from an encoded public key and, optionally, the matching private key, trusting the caller that
+     * they are valid and belong together. Unlike the other factory methods the point is not decoded until it is first
+     * needed, which makes reading many keys from a trusted source such as a wallet file cheap.
+     */
+    public static ECKey fromPrivateAndPrecalculatedPublic(@Nullable BigInteger priv, LazyECPoint pub) {
+        if (priv != null) {
+            checkArgument(!priv.equals(BigInteger.ZERO));
+            checkArgument(!priv.equals(BigInteger.ONE));
+        }
+        return new ECKey(priv, pub);
+    }
+
     /**
      * Creates an ECKey that cannot be used for signing, only verifying signatures, from the given point. The
      * compression state of pub will be preserved.
@@ -353,7 +366,8 @@ public class ECKey implements EncryptableItem {
      * unusable for signing unless a decryption key is supplied.
      */
     public static ECKey fromEncrypted(EncryptedData encryptedPrivateKey, KeyCrypter crypter, byte[] pubKey) {
-        ECKey key = fromPublicOnly(pubKey);
+        // The point is decoded lazily, as encrypted keys are usually only read from wallet files.
+        ECKey key = new ECKey(null, new LazyECPoint(CURVE.getCurve(), pubKey));
         key.encryptedPrivateKey = checkNotNull(encryptedPrivateKey);
         key.keyCrypter = checkNotNull(crypter);
         return key;
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Estimates the fee needed to get a transaction confirmed within a number of blocks, from the fees paid by relayed
+ * transactions and how long they took to confirm, much like Bitcoin Core does. Give it to a {@link TxMemoryPool} with
+ * {@link TxMemoryPool#setFeeEstimator(FeeEstimator)}, which tells it the fee rate of each transaction when it is first
+ * seen and the height of the block that confirms it. A wallet uses it when a
+ * {@link org.bitcoinj_extra.wallet.SendRequest} has its <tt>feeEstimator</tt> set.</p>
+ *
+ * <p>Fee rates are sorted into exponentially spaced buckets. For each bucket it counts how many transactions confirmed
+ * after each number of blocks up to {@link #MAX_TARGET}, and how many took longer than that. Counting a transaction
+ * takes constant time. With every block all counts decay a little, so that recent blocks count most. The estimate for
+ * a target is the lowest fee rate at which, going down from the highest, at least 85% of transactions confirmed in
+ * time.</p>
+ *
+ * <p>Only transactions of known fee that are seen confirmed in blocks are counted. When the chain is downloaded with
+ * Bloom filtering almost none are, so the estimator needs full or compact blocks to be useful. Its state can be saved
+ * with {@link #saveToFile(File)} and loaded again with {@link #loadFromFile(File)}. Transactions that were waiting to
+ * confirm are not saved.</p>
+ */
+public class FeeEstimator {
+    private static final Logger log = LoggerFactory.getLogger(FeeEstimator.class);
+
+    /** The most blocks a fee can be estimated for. */
+    public static final int MAX_TARGET = 25;
+    /** The lowest fee rate tracked, per kilobyte. Lower fee rates are counted as if they paid this much. */
+    public static final Coin MIN_FEE_PER_KB = Coin.valueOf(1000);
+    // Each bucket starts at a fee rate this much higher than the previous one.
+    private static final double BUCKET_SPACING = 1.1;
+    private static final int NUM_BUCKETS = 98;
+    // How much counts keep with every block, giving a half life of about 350 blocks.
+    private static final double DECAY = 0.998;
+    // What fraction of transactions must have confirmed in time, and how many must have been counted at all.
+    private static final double SUCCESS_RATE = 0.85;
+    private static final int SUFFICIENT_TRANSACTIONS = 10;
+    private static final int MAX_TRACKED = 100000;
+
+    private static final int MAGIC = 0x46454553; // "FEES"
+    private static final int VERSION = 1;
+
+    private final ReentrantLock lock = Threading.lock("feeestimator");
+
+    private static class Tracked {
+        final int height;
+        final int bucket;
+
+        Tracked(int height, int bucket) {
+            this.height = height;
+            this.bucket = bucket;
+        }
+    }
+
+    // How many transactions of each bucket confirmed after 1, 2, ... MAX_TARGET blocks.
+    @GuardedBy("lock") private final double[][] confirmed = new double[MAX_TARGET][NUM_BUCKETS];
+    // How many transactions of each bucket took longer than MAX_TARGET blocks to confirm, or never did.
+    @GuardedBy("lock") private final double[] late = new double[NUM_BUCKETS];
+    // Transactions waiting to confirm, by hash and by the height they were first seen at.
+    @GuardedBy("lock") private final Map<Sha256Hash, Tracked> tracked = new HashMap<Sha256Hash, Tracked>();
+    @GuardedBy("lock") private final Map<Integer, List<Sha256Hash>> trackedByHeight = new HashMap<Integer, List<Sha256Hash>>();
+    @GuardedBy("lock") private int bestHeight = -1;
+
+    /**
+     * Called when a transaction paying the given fee per kilobyte is first seen. It is counted once it confirms or
+     * {@link #MAX_TARGET} blocks have passed. Ignored until the height of the best chain is known.
+     */
+    public void seen(Sha256Hash hash, Coin feePerKb) {
+        lock.lock();
+        try {
+            if (bestHeight < 0 || tracked.containsKey(hash) || tracked.size() >= MAX_TRACKED)
+                return;
+            tracked.put(hash, new Tracked(bestHeight, bucketFor(feePerKb)));
+            List<Sha256Hash> hashes = trackedByHeight.get(bestHeight);
+            if (hashes == null) {
+                hashes = new ArrayList<Sha256Hash>();
+                trackedByHeight.put(bestHeight, hashes);
+            }
+            hashes.add(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when a transaction is confirmed by a block of the best chain at the given height. */
+    public void confirmed(Sha256Hash hash, int height) {
+        lock.lock();
+        try {
+            Tracked t = tracked.remove(hash);
+            if (t == null)
+                return;
+            int blocks = height - t.height;
+            if (blocks <= 0)
+                return;
+            if (blocks > MAX_TARGET)
+                late[t.bucket]++;
+            else
+                confirmed[blocks - 1][t.bucket]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when a transaction left the memory pool without confirming, for example because it was evicted. */
+    public void removed(Sha256Hash hash) {
+        lock.lock();
+        try {
+            tracked.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when the best chain reaches the given height. Decays the counts once for every new block and counts
+     * transactions that have waited too long as late.
+     */
+    public void newBestBlock(int height) {
+        lock.lock();
+        try {
+            if (bestHeight >= 0 && height > bestHeight) {
+                double decay = Math.pow(DECAY, Math.min(height - bestHeight, 10 * MAX_TARGET));
+                for (double[] counts : confirmed)
+                    for (int i = 0; i < NUM_BUCKETS; i++)
+                        counts[i] *= decay;
+                for (int i = 0; i < NUM_BUCKETS; i++)
+                    late[i] *= decay;
+            }
+            bestHeight = height;
+            Iterator<Map.Entry<Integer, List<Sha256Hash>>> it = trackedByHeight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, List<Sha256Hash>> entry = it.next();
+                if (entry.getKey() > height - MAX_TARGET)
+                    continue;
+                for (Sha256Hash hash : entry.getValue()) {
+                    Tracked t = tracked.remove(hash);
+                    if (t != null)
+                        late[t.bucket]++;
+                }
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fee per kilobyte that should get a transaction confirmed within the given number of blocks, or null
+     * if not enough transactions were seen to tell.
+     */
+    @Nullable
+    public Coin estimateFee(int targetBlocks) {
+        checkArgument(targetBlocks >= 1 && targetBlocks <= MAX_TARGET, "targetBlocks must be between 1 and %s",
+                MAX_TARGET);
+        lock.lock();
+        try {
+            // Collect buckets from the highest fee rate down until there are enough transactions to judge them by,
+            // then start over with the next. Stop at the first group that confirmed too slowly.
+            double inTime = 0, total = 0;
+            int lowest = -1;
+            for (int bucket = NUM_BUCKETS - 1; bucket >= 0; bucket--) {
+                for (int blocks = 0; blocks < MAX_TARGET; blocks++) {
+                    if (blocks < targetBlocks)
+                        inTime += confirmed[blocks][bucket];
+                    total += confirmed[blocks][bucket];
+                }
+                total += late[bucket];
+                if (total >= SUFFICIENT_TRANSACTIONS) {
+                    if (inTime / total < SUCCESS_RATE)
+                        break;
+                    lowest = bucket;
+                    inTime = total = 0;
+                }
+            }
+            if (lowest < 0)
+                return null;
+            // The top of the bucket, so that every fee rate counted in it is paid.
+            return Coin.valueOf((long) Math.ceil(MIN_FEE_PER_KB.value * Math.pow(BUCKET_SPACING, lowest + 1)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions are waiting to confirm. */
+    public int getNumTracked() {
+        lock.lock();
+        try {
+            return tracked.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int bucketFor(Coin feePerKb) {
+        if (feePerKb.value <= MIN_FEE_PER_KB.value)
+            return 0;
+        int bucket = (int) (Math.log((double) feePerKb.value / MIN_FEE_PER_KB.value) / Math.log(BUCKET_SPACING));
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+
+    /** Writes the counts and the height of the best chain to the given stream. */
+    public void writeTo(OutputStream stream) throws IOException {
+        lock.lock();
+        try {
+            DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(bestHeight);
+            output.writeInt(MAX_TARGET);
+            output.writeInt(NUM_BUCKETS);
+            for (double[] counts : confirmed)
+                for (double count : counts)
+                    output.writeDouble(count);
+            for (double count : late)
+                output.writeDouble(count);
+            output.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Reads an estimator written by {@link #writeTo(OutputStream)}. */
+    public static FeeEstimator readFrom(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        if (input.readInt() != MAGIC)
+            throw new IOException("Not a fee estimator");
+        if (input.readInt() > VERSION)
+            throw new IOException("Fee estimator is from a newer version");
+        FeeEstimator estimator = new FeeEstimator();
+        int bestHeight = input.readInt();
+        if (input.readInt() != MAX_TARGET || input.readInt() != NUM_BUCKETS) {
+            // Written with different buckets, start from scratch.
+            log.info("Discarding fee estimates of different layout");
+            return estimator;
+        }
+        estimator.bestHeight = bestHeight;
+        for (double[] counts : estimator.confirmed)
+            for (int i = 0; i < NUM_BUCKETS; i++)
+                counts[i] = input.readDouble();
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            estimator.late[i] = input.readDouble();
+        return estimator;
+    }
+
+    /** Saves the estimator to the given file, replacing it in one step. */
+    public void saveToFile(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            writeTo(new BufferedOutputStream(stream));
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (Utils.isWindows()) {
+            // Windows can't rename over existing files.
+            File canonical = file.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical);
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+
+    /** Loads an estimator saved with {@link #saveToFile(File)}. */
+    public static FeeEstimator loadFromFile(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return readFrom(stream);
+        } finally {
+            stream.close();
+        }
+    }
+}
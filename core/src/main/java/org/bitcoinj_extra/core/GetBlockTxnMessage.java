@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>Requests the transactions of a block that were missing when it was rebuilt from a {@link CompactBlockMessage}, by
+ * their position in the block. The peer answers with a {@link BlockTxnMessage}. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetBlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private ImmutableList<Integer> indexes;
+
+    /** Creates a request for the transactions at the given positions, which must be in ascending order. */
+    public GetBlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, List<Integer> indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = ImmutableList.copyOf(indexes);
+    }
+
+    public GetBlockTxnMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numIndexes = readVarInt();
+        if (numIndexes > Block.MAX_BLOCK_SIZE)
+            throw new ProtocolException("Too many indexes: " + numIndexes);
+        ImmutableList.Builder<Integer> list = ImmutableList.builder();
+        // Indexes are encoded as the difference to the previous one, minus one.
+        long index = -1;
+        for (long i = 0; i < numIndexes; i++) {
+            index += readVarInt() + 1;
+            if (index > Integer.MAX_VALUE)
+                throw new ProtocolException("Index out of range: " + index);
+            list.add((int) index);
+        }
+        indexes = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(indexes.size()).encode());
+        int previous = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - previous - 1).encode());
+            previous = index;
+        }
+    }
+
+    /** Returns the hash of the block the transactions are requested from. */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the positions of the requested transactions in the block, in ascending order. */
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetBlockTxnMessage other = (GetBlockTxnMessage) o;
+        return blockHash.equals(other.blockHash) && indexes.equals(other.indexes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(blockHash, indexes);
+    }
+}
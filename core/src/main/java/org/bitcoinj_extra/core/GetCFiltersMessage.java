@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Requests the compact filters of a range of blocks, see <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP
+ * 157</a>. The peer answers with a {@link CFilterMessage} for each block, in order.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFiltersMessage extends Message {
+    /** The most filters that may be requested at once. */
+    public static final int MAX_FILTERS = 1000;
+
+    private int filterType;
+    private long startHeight;
+    private Sha256Hash stopHash;
+
+    /**
+     * Creates a request for the filters of the blocks from the given height up to and including the block with the given
+     * hash.
+     */
+    public GetCFiltersMessage(NetworkParameters params, int filterType, long startHeight, Sha256Hash stopHash) {
+        super(params);
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    public GetCFiltersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    /** Returns the type of filter requested, see {@link CompactBlockFilter#BASIC}. */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    /** Returns the height of the first block. */
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    /** Returns the hash of the last block. */
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFiltersMessage other = (GetCFiltersMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, startHeight, stopHash);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfilters: type " + filterType + " from height " + startHeight + " to " + stopHash;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A Golomb-coded set as defined by <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP
+ * 158</a>: a compact, probabilistic set of byte strings. Each item is hashed with SipHash under a 16 byte key into the
+ * range [0, N * M), the hashes are sorted and the differences between them are written with Golomb-Rice coding of
+ * parameter P. Testing an item that was added always succeeds, testing any other item succeeds with a probability of
+ * about 1/M.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class GolombCodedSet {
+    private final int p;
+    private final long m;
+    private final byte[] key;
+    private final int n;
+    private final byte[] data;
+
+    /**
+     * Wraps an encoded set.
+     *
+     * @param key the 16 byte SipHash key
+     * @param n the number of items in the set
+     * @param data the Golomb-Rice coded differences, without the number of items in front
+     */
+    public GolombCodedSet(int p, long m, byte[] key, int n, byte[] data) {
+        checkArgument(p > 0 && p < 32, "p out of range: %s", p);
+        checkArgument(key.length == 16, "key must be 16 bytes");
+        checkArgument(n >= 0);
+        this.p = p;
+        this.m = m;
+        this.key = key.clone();
+        this.n = n;
+        this.data = data.clone();
+    }
+
+    /**
+     * Builds a set of the given items. Each item is hashed as given, so duplicates have to be removed beforehand if
+     * the set is meant to hold distinct items, as BIP 158 filters do.
+     */
+    public static GolombCodedSet build(int p, long m, byte[] key, Collection<byte[]> items) {
+        checkArgument(key.length == 16, "key must be 16 bytes");
+        long[] values = hashedSetConstruct(key, m, items);
+        Arrays.sort(values);
+        BitWriter writer = new BitWriter();
+        long last = 0;
+        for (long value : values) {
+            long delta = value - last;
+            long quotient = delta >>> p;
+            for (long i = 0; i < quotient; i++)
+                writer.write(1, 1);
+            writer.write(0, 1);
+            writer.write(delta, p);
+            last = value;
+        }
+        return new GolombCodedSet(p, m, key, values.length, writer.toByteArray());
+    }
+
+    /** Returns true if the given item may be in the set. */
+    public boolean match(byte[] item) {
+        return matchAny(Arrays.asList(item));
+    }
+
+    /**
+     * Returns true if any of the given items may be in the set. Takes time in proportion to the size of the set plus
+     * the number of items, so testing many items at once is much faster than testing them one by one.
+     */
+    public boolean matchAny(Collection<byte[]> items) {
+        if (n == 0 || items.isEmpty())
+            return false;
+        long[] queries = hashedSetConstruct(key, m, items, n);
+        Arrays.sort(queries);
+        BitReader reader = new BitReader(data);
+        long value = 0;
+        int queryIndex = 0;
+        for (int i = 0; i < n; i++) {
+            long quotient = 0;
+            while (reader.read(1) == 1)
+                quotient++;
+            value += (quotient << p) | reader.read(p);
+            while (queries[queryIndex] < value) {
+                if (++queryIndex == queries.length)
+                    return false;
+            }
+            if (queries[queryIndex] == value)
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of items in the set. */
+    public int getN() {
+        return n;
+    }
+
+    /** Returns the Golomb-Rice coded differences, without the number of items in front. */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    private static long[] hashedSetConstruct(byte[] key, long m, Collection<byte[]> items) {
+        return hashedSetConstruct(key, m, items, items.size());
+    }
+
+    // Hashes the items into the range [0, n * m).
+    private static long[] hashedSetConstruct(byte[] key, long m, Collection<byte[]> items, int n) {
+        HashFunction sipHash = Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+        long range = n * m;
+        long[] values = new long[items.size()];
+        int i = 0;
+        for (byte[] item : items)
+            values[i++] = multiplyHigh(sipHash.hashBytes(item).asLong(), range);
+        return values;
+    }
+
+    // The upper 64 bits of the 128 bit product of two unsigned longs, which maps a hash onto [0, b) without division.
+    /* package */ static long multiplyHigh(long a, long b) {
+        long aLow = a & 0xFFFFFFFFL, aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL, bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+        return aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+    }
+
+    // Writes bits from the most significant to the least significant bit of each byte.
+    private static class BitWriter {
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        private int current;
+        private int bitsInCurrent;
+
+        // Writes the lowest count bits of value, most significant first.
+        void write(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++bitsInCurrent == 8) {
+                    stream.write(current);
+                    current = 0;
+                    bitsInCurrent = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (bitsInCurrent > 0) {
+                stream.write(current << (8 - bitsInCurrent));
+                current = 0;
+                bitsInCurrent = 0;
+            }
+            return stream.toByteArray();
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private int position;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        long read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                if (position >= data.length * 8)
+                    throw new ProtocolException("Golomb-coded set ends early");
+                int bit = (data[position >>> 3] >>> (7 - (position & 7))) & 1;
+                value = (value << 1) | bit;
+                position++;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decides which peer to download announced transactions from, across all peers of a {@link PeerGroup}. Used by
+ * {@link PeerGroup} when {@link PeerGroup#setInventoryScheduling(boolean)} is enabled.</p>
+ *
+ * <p>Every peer that announces a transaction is remembered, but it is only requested from the first of them. Requests
+ * for the same peer are collected for a short while and then sent together in one getdata message. If the peer doesn't
+ * deliver in time, says it doesn't have the transaction or disconnects, the transaction is requested from the next
+ * peer that announced it. Announcements of transactions that were recently received are ignored.</p>
+ */
+class InventoryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(InventoryScheduler.class);
+
+    /** How long requests for a peer are collected before they are sent. */
+    public static final long BATCH_DELAY_MILLIS = 100;
+    /** How long a peer has to deliver a requested transaction before it is requested from another peer. */
+    public static final long REQUEST_TIMEOUT_MILLIS = 5 * 1000;
+    /** The most requests sent to a peer in one getdata message. Larger batches are sent right away. */
+    public static final int MAX_BATCH_SIZE = 1000;
+    // How many received transactions are remembered, so that later announcements of them can be ignored.
+    private static final int MAX_RECENTLY_RECEIVED = 50000;
+
+    private final NetworkParameters params;
+    private final ScheduledExecutorService executor;
+    private final ReentrantLock lock = Threading.lock("inventoryscheduler");
+
+    private static class PeerState {
+        // Requests waiting to be sent.
+        final List<Sha256Hash> batch = new ArrayList<Sha256Hash>();
+        @Nullable ScheduledFuture<?> flush;
+    }
+
+    private static class Request {
+        final TransactionConfidence confidence;
+        // Other peers that announced the transaction, in the order they did.
+        final LinkedHashSet<Peer> announcers = new LinkedHashSet<Peer>();
+        Peer peer;
+        long deadline;
+
+        Request(TransactionConfidence confidence) {
+            // Holding on to the confidence keeps its peer count alive until the transaction arrives.
+            this.confidence = confidence;
+        }
+    }
+
+    private static class OutgoingGetData {
+        final Peer peer;
+        final GetDataMessage getdata;
+
+        OutgoingGetData(Peer peer, GetDataMessage getdata) {
+            this.peer = peer;
+            this.getdata = getdata;
+        }
+    }
+
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new HashMap<Peer, PeerState>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    // Messages built by flush(), sent by sendOutgoing() once the lock is released.
+    @GuardedBy("lock") private final List<OutgoingGetData> outgoing = new ArrayList<OutgoingGetData>();
+    @GuardedBy("lock") private final Set<Sha256Hash> recentlyReceived = Collections.newSetFromMap(
+            new LinkedHashMap<Sha256Hash, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                    return size() > MAX_RECENTLY_RECEIVED;
+                }
+            });
+
+    InventoryScheduler(NetworkParameters params, ScheduledExecutorService executor) {
+        this.params = checkNotNull(params);
+        this.executor = checkNotNull(executor);
+    }
+
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets about the given peer and requests whatever it was supposed to deliver from other peers. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.remove(peer);
+            if (state == null)
+                return;
+            if (state.flush != null)
+                state.flush.cancel(false);
+            for (Request request : new ArrayList<Request>(requests.values())) {
+                request.announcers.remove(peer);
+                if (request.peer == peer)
+                    reassign(request);
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /** Called by peers for every transaction they announce. */
+    void announced(Peer peer, Sha256Hash hash, TransactionConfidence confidence) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer) || recentlyReceived.contains(hash))
+                return;
+            Request request = requests.get(hash);
+            if (request != null) {
+                if (request.peer != peer)
+                    request.announcers.add(peer);
+                return;
+            }
+            request = new Request(confidence);
+            requests.put(hash, request);
+            assign(hash, request, peer);
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /** Called by peers for every transaction they receive, whether it was requested from them or not. */
+    void received(Sha256Hash hash) {
+        lock.lock();
+        try {
+            recentlyReceived.add(hash);
+            Request request = requests.remove(hash);
+            if (request != null) {
+                PeerState state = peers.get(request.peer);
+                if (state != null)
+                    state.batch.remove(hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by peers that were asked for transactions they don't have. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request != null && request.peer == peer)
+                    reassign(request);
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /** Requests transactions that weren't delivered in time from other peers. Should be called regularly. */
+    void checkForTimeouts() {
+        lock.lock();
+        try {
+            final long now = Utils.currentTimeMillis();
+            for (Request request : new ArrayList<Request>(requests.values())) {
+                if (request.deadline < now) {
+                    log.info("{}: Timed out waiting for tx {}", request.peer, request.confidence.getTransactionHash());
+                    reassign(request);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /** Drops all pending requests and stops sending any. */
+    void close() {
+        lock.lock();
+        try {
+            for (PeerState state : peers.values())
+                if (state.flush != null)
+                    state.flush.cancel(false);
+            peers.clear();
+            requests.clear();
+            outgoing.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions that are requested or waiting to be requested. */
+    int numPendingRequests() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void assign(Sha256Hash hash, Request request, final Peer peer) {
+        PeerState state = peers.get(peer);
+        request.peer = peer;
+        request.deadline = Utils.currentTimeMillis() + BATCH_DELAY_MILLIS + REQUEST_TIMEOUT_MILLIS;
+        state.batch.add(hash);
+        if (state.batch.size() >= MAX_BATCH_SIZE) {
+            flush(peer, state);
+        } else if (state.flush == null) {
+            state.flush = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    try {
+                        PeerState state = peers.get(peer);
+                        if (state != null)
+                            flush(peer, state);
+                    } finally {
+                        lock.unlock();
+                    }
+                    sendOutgoing();
+                }
+            }, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Requests the transaction from the next peer that announced it, or gives up if there is none.
+    @GuardedBy("lock")
+    private void reassign(Request request) {
+        Sha256Hash hash = request.confidence.getTransactionHash();
+        PeerState oldState = peers.get(request.peer);
+        if (oldState != null)
+            oldState.batch.remove(hash);
+        Iterator<Peer> it = request.announcers.iterator();
+        while (it.hasNext()) {
+            Peer next = it.next();
+            it.remove();
+            if (peers.containsKey(next)) {
+                log.debug("{}: Requesting tx {} instead", next, hash);
+                assign(hash, request, next);
+                return;
+            }
+        }
+        // Nobody else has it. A later announcement will try again.
+        requests.remove(hash);
+    }
+
+    // Builds the getdata message for the batch of the given peer. It is sent by sendOutgoing().
+    @GuardedBy("lock")
+    private void flush(Peer peer, PeerState state) {
+        if (state.flush != null) {
+            state.flush.cancel(false);
+            state.flush = null;
+        }
+        if (state.batch.isEmpty())
+            return;
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : state.batch)
+            getdata.addTransaction(hash);
+        state.batch.clear();
+        outgoing.add(new OutgoingGetData(peer, getdata));
+    }
+
+    // Sends the messages built by flush(). Sending can block on the peer's connection, so it mustn't hold up the
+    // other peers by doing it under the lock.
+    private void sendOutgoing() {
+        final List<OutgoingGetData> messages;
+        lock.lock();
+        try {
+            if (outgoing.isEmpty())
+                return;
+            messages = new ArrayList<OutgoingGetData>(outgoing);
+            outgoing.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (OutgoingGetData message : messages) {
+            log.debug("{}: getdata on {} txns", message.peer, message.getdata.getItems().size());
+            message.peer.sendMessage(message.getdata);
+        }
+    }
+}
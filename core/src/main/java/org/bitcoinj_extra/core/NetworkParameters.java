@@ -531,6 +531,7 @@ public abstract class NetworkParameters extends CoinDetails implements Serializa
         MINIMUM(70000),
         PONG(60001),
         BLOOM_FILTER(70000),
+        COMPACT_BLOCKS(70014),
         CURRENT(70001);
 
         private final int bitcoinProtocol;
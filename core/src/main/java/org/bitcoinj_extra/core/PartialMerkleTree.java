@@ -85,18 +85,47 @@ public class PartialMerkleTree extends Message {
      * are calculated and a new PMT returned.
      */
     public static PartialMerkleTree buildFromLeaves(NetworkParameters params, byte[] includeBits, List<Sha256Hash> allLeafHashes) {
-        // Calculate height of the tree.
+        return buildFromLevels(params, includeBits, buildLevels(allLeafHashes));
+    }
+
+    /**
+     * Calculates every level of the merkle tree over the given leaf hashes, from the leaves at index 0 up to the root.
+     * The result can be given to {@link #buildFromLevels(NetworkParameters, byte[], List)} any number of times.
+     */
+    public static List<List<Sha256Hash>> buildLevels(List<Sha256Hash> allLeafHashes) {
+        List<List<Sha256Hash>> levels = new ArrayList<List<Sha256Hash>>();
+        levels.add(allLeafHashes);
         int height = 0;
-        while (getTreeWidth(allLeafHashes.size(), height) > 1)
+        while (getTreeWidth(allLeafHashes.size(), height) > 1) {
+            List<Sha256Hash> below = levels.get(height);
             height++;
+            int width = getTreeWidth(allLeafHashes.size(), height);
+            List<Sha256Hash> level = new ArrayList<Sha256Hash>(width);
+            for (int pos = 0; pos < width; pos++) {
+                Sha256Hash left = below.get(pos * 2);
+                // Copy the left hash if the right one is beyond the end of the level.
+                Sha256Hash right = pos * 2 + 1 < below.size() ? below.get(pos * 2 + 1) : left;
+                level.add(combineLeftRight(left.getBytes(), right.getBytes()));
+            }
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    /**
+     * Like {@link #buildFromLeaves(NetworkParameters, byte[], List)}, but takes the interior hashes from levels
+     * calculated by {@link #buildLevels(List)} instead of calculating them again.
+     */
+    public static PartialMerkleTree buildFromLevels(NetworkParameters params, byte[] includeBits, List<List<Sha256Hash>> levels) {
+        int height = levels.size() - 1;
         List<Boolean> bitList = new ArrayList<Boolean>();
         List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
+        traverseAndBuild(height, 0, levels, includeBits, bitList, hashes);
         byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
         for (int i = 0; i < bitList.size(); i++)
             if (bitList.get(i))
                 Utils.setBitLE(bits, i);
-        return new PartialMerkleTree(params, bits, hashes, allLeafHashes.size());
+        return new PartialMerkleTree(params, bits, hashes, levels.get(0).size());
     }
 
     @Override
@@ -127,11 +156,12 @@ public class PartialMerkleTree extends Message {
     }
 
     // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
+    private static void traverseAndBuild(int height, int pos, List<List<Sha256Hash>> levels, byte[] includeBits,
                                          List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
+        int leafCount = levels.get(0).size();
         boolean parentOfMatch = false;
         // Is this node a parent of at least one matched hash?
-        for (int p = pos << height; p < (pos+1) << height && p < allLeafHashes.size(); p++) {
+        for (int p = pos << height; p < (pos+1) << height && p < leafCount; p++) {
             if (Utils.checkBitLE(includeBits, p)) {
                 parentOfMatch = true;
                 break;
@@ -141,33 +171,15 @@ public class PartialMerkleTree extends Message {
         matchedChildBits.add(parentOfMatch);
         if (height == 0 || !parentOfMatch) {
             // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
+            resultHashes.add(levels.get(height).get(pos));
         } else {
             // Otherwise descend into the subtrees.
             int h = height - 1;
             int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-            if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-        }
-    }
-
-    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
+            traverseAndBuild(h, p, levels, includeBits, matchedChildBits, resultHashes);
+            if (p + 1 < getTreeWidth(leafCount, h))
+                traverseAndBuild(h, p + 1, levels, includeBits, matchedChildBits, resultHashes);
         }
-        return combineLeftRight(left.getBytes(), right.getBytes());
     }
 
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * <p>A block being rebuilt from a {@link CompactBlockMessage}. The transactions sent in full are put in place, then the
+ * given transactions we already know about are indexed by their short id in this block and matched against the short
+ * ids of the message. Whatever couldn't be matched is listed by {@link #getMissingIndexes()}, to be requested with a
+ * {@link GetBlockTxnMessage} and filled in with {@link #fill(BlockTxnMessage)}.</p>
+ *
+ * <p>Short ids are only 6 bytes long, so a known transaction can match by accident. {@link #build()} then fails to
+ * verify the merkle root and the block has to be downloaded in full.</p>
+ */
+class PartiallyDownloadedBlock {
+    private final NetworkParameters params;
+    private final CompactBlockMessage message;
+    private final Block header;
+    private final Transaction[] transactions;
+    // Where each short id of the message goes in the block.
+    private final Map<Long, Integer> positions;
+    // Positions that more than one known transaction matched.
+    private final Set<Integer> ambiguous = new HashSet<Integer>();
+    private final List<Integer> missing = new ArrayList<Integer>();
+
+    /**
+     * @param known transactions we already have, typically from the memory pool
+     * @throws ProtocolException if the message is malformed, or two transactions of the block have the same short id
+     */
+    PartiallyDownloadedBlock(NetworkParameters params, CompactBlockMessage message, Iterable<Transaction> known)
+            throws ProtocolException {
+        this.params = params;
+        this.message = message;
+        this.header = message.getHeader();
+        final int count = message.getTransactionCount();
+        if (count == 0)
+            throw new ProtocolException("Compact block without transactions");
+        transactions = new Transaction[count];
+        for (CompactBlockMessage.PrefilledTransaction prefilled : message.getPrefilledTransactions()) {
+            if (prefilled.index < 0 || prefilled.index >= count)
+                throw new ProtocolException("Prefilled transaction index out of range: " + prefilled.index);
+            transactions[prefilled.index] = prefilled.tx;
+        }
+
+        // Index the short ids of the block by where they go.
+        long[] shortIds = message.getShortIds();
+        List<Integer> indexes = message.getShortIdIndexes();
+        positions = new HashMap<Long, Integer>(shortIds.length * 2);
+        for (int i = 0; i < shortIds.length; i++) {
+            int index = indexes.get(i);
+            if (index >= count || transactions[index] != null)
+                throw new ProtocolException("Short id index out of range or taken: " + index);
+            if (positions.put(shortIds[i], index) != null)
+                throw new ProtocolException("Duplicate short id in compact block " + header.getHashAsString());
+        }
+
+        for (Transaction tx : known)
+            addKnown(tx);
+        findMissing();
+    }
+
+    /**
+     * Puts the given transaction in place if its short id is one of the block's. Call {@link #findMissing()} once all
+     * known transactions were added.
+     */
+    void addKnown(Transaction tx) {
+        Integer index = positions.get(message.getShortId(tx.getHash()));
+        if (index == null)
+            return;
+        Transaction existing = transactions[index];
+        if (existing == null)
+            transactions[index] = tx;
+        else if (!existing.getHash().equals(tx.getHash()))
+            ambiguous.add(index);
+    }
+
+    /**
+     * Updates the missing positions after known transactions were added. Any that match the same short id are
+     * useless, as we can't tell which one is in the block.
+     */
+    void findMissing() {
+        for (int index : ambiguous)
+            transactions[index] = null;
+        missing.clear();
+        for (int i = 0; i < transactions.length; i++)
+            if (transactions[i] == null)
+                missing.add(i);
+    }
+
+    /** Returns the hash of the block. */
+    Sha256Hash getHash() {
+        return header.getHash();
+    }
+
+    /** Returns the positions of the transactions that are still missing, in ascending order. */
+    List<Integer> getMissingIndexes() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /** Returns whether all transactions are in place. */
+    boolean isComplete() {
+        return missing.isEmpty();
+    }
+
+    /**
+     * Puts the transactions of the given message into the missing positions.
+     * @throws ProtocolException if the message doesn't have exactly the missing transactions
+     */
+    void fill(BlockTxnMessage message) throws ProtocolException {
+        List<Transaction> received = message.getTransactions();
+        if (received.size() != missing.size())
+            throw new ProtocolException("Expected " + missing.size() + " transactions for block " + getHash() +
+                    ", got " + received.size());
+        for (int i = 0; i < missing.size(); i++)
+            transactions[missing.get(i)] = received.get(i);
+        missing.clear();
+    }
+
+    /**
+     * Returns the complete block, or null if its transactions don't match its merkle root because of a short id that
+     * matched the wrong transaction.
+     */
+    @Nullable
+    Block build() {
+        if (!isComplete())
+            throw new IllegalStateException("Transactions still missing: " + missing);
+        Block block = new Block(params, header.getVersion(), header.getPrevBlockHash(), header.getMerkleRoot(),
+                header.getTimeSeconds(), header.getDifficultyTarget(), header.getNonce(),
+                Arrays.asList(transactions));
+        try {
+            block.checkMerkleRoot();
+        } catch (VerificationException e) {
+            return null;
+        }
+        return block;
+    }
+}
@@ -82,6 +82,31 @@ public class Peer extends PeerSocketHandler {
     // primary peer. This is to avoid redundant work and concurrency problems with downloading the same chain
     // in parallel.
     private volatile boolean vDownloadData;
+    // Set by PeerGroup whilst the chain is downloaded from all peers at once, see BlockFetcher.
+    @Nullable private volatile BlockFetcher vBlockFetcher;
+    // Set by the PeerGroup when it decides which peer to download announced transactions from.
+    @Nullable private volatile InventoryScheduler vInventoryScheduler;
+    // Set by the PeerGroup when the chain is synced with compact block filters rather than Bloom filters.
+    @Nullable private volatile CompactFilterSync vCompactFilterSync;
+    // Set by the PeerGroup to collect relayed transactions.
+    @Nullable private volatile TxMemoryPool vTxMemoryPool;
+    // How many compact blocks may wait for their missing transactions at once. Each holds up to a block's worth of
+    // transactions, and an honest peer has no reason to announce more than a couple before sending blocktxn.
+    private static final int MAX_PARTIAL_BLOCKS = 3;
+    // Set by the PeerGroup when new blocks should be relayed as compact blocks.
+    @Nullable private volatile CompactBlockRelay vCompactBlockRelay;
+    @GuardedBy("lock") private boolean compactBlocksHighBandwidth;
+    // What we last told the remote peer in a sendcmpct message, or null if nothing yet.
+    @Nullable @GuardedBy("lock") private Boolean announcedHighBandwidth;
+    // Blocks rebuilt from compact blocks that wait for their missing transactions.
+    @GuardedBy("lock") private final Map<Sha256Hash, PartiallyDownloadedBlock> partialBlocks =
+            new LinkedHashMap<Sha256Hash, PartiallyDownloadedBlock>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, PartiallyDownloadedBlock> eldest) {
+                    // The peer never sent the transactions, give up on it.
+                    return size() > MAX_PARTIAL_BLOCKS;
+                }
+            };
     // The version data to announce to the other side of the connections we make: useful for setting our "user agent"
     // equivalent and other things.
     private final VersionMessage versionMessage;
@@ -489,6 +514,18 @@ public class Peer extends PeerSocketHandler {
             processInv((InventoryMessage) m);
         } else if (m instanceof Block) {
             processBlock((Block) m);
+        } else if (m instanceof CompactBlockMessage) {
+            processCompactBlock((CompactBlockMessage) m);
+        } else if (m instanceof BlockTxnMessage) {
+            processBlockTxn((BlockTxnMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processFilterHeaders((CFHeadersMessage) m);
+        } else if (m instanceof CFilterMessage) {
+            processFilter((CFilterMessage) m);
+        } else if (m instanceof SendCompactBlocksMessage || m instanceof GetBlockTxnMessage
+                || m instanceof GetCFiltersMessage || m instanceof GetCFHeadersMessage) {
+            // We don't serve blocks, so there is nothing to do.
+            log.debug("{}: Ignoring {}", this, m);
         } else if (m instanceof FilteredBlock) {
             startFilteredBlock((FilteredBlock) m);
         } else if (m instanceof Transaction) {
@@ -603,6 +640,13 @@ public class Peer extends PeerSocketHandler {
             log.warn("Connected to a peer speaking protocol version {} but need {}, closing",
                     vPeerVersionMessage.clientVersion, version);
             close();
+            return;
+        }
+        lock.lock();
+        try {
+            announceCompactBlocksLocked();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -627,6 +671,9 @@ public class Peer extends PeerSocketHandler {
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
         // in the chain).
         //
+        final InventoryScheduler scheduler = vInventoryScheduler;
+        if (scheduler != null)
+            scheduler.notFound(this, m.getItems());
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
@@ -665,6 +712,13 @@ public class Peer extends PeerSocketHandler {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
+        final BlockFetcher fetcher = vBlockFetcher;
+        if (blockChain != null && fetcher != null && fetcher.onHeaders(this, m))
+            return;
+        final CompactFilterSync filterSync = vCompactFilterSync;
+        if (blockChain != null && filterSync != null && filterSync.onHeaders(this, m))
+            return;
+
         lock.lock();
         try {
             if (blockChain == null) {
@@ -756,6 +810,12 @@ public class Peer extends PeerSocketHandler {
     protected void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        final InventoryScheduler scheduler = vInventoryScheduler;
+        if (scheduler != null)
+            scheduler.received(tx.getHash());
+        final CompactBlockRelay relay = vCompactBlockRelay;
+        if (relay != null)
+            relay.add(tx);
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
@@ -772,6 +832,11 @@ public class Peer extends PeerSocketHandler {
             if (maybeHandleRequestedData(tx)) {
                 return;
             }
+            if (currentFilteredBlock == null) {
+                final TxMemoryPool pool = vTxMemoryPool;
+                if (pool != null)
+                    pool.add(tx);
+            }
             if (currentFilteredBlock != null) {
                 if (!currentFilteredBlock.provideTransaction(tx)) {
                     // Got a tx that didn't fit into the filtered block, so we must have received everything.
@@ -976,6 +1041,12 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        final BlockFetcher fetcher = vBlockFetcher;
+        if (fetcher != null && fetcher.onBlock(this, m))
+            return;
+        final CompactFilterSync filterSync = vCompactFilterSync;
+        if (filterSync != null && filterSync.onBlock(this, m))
+            return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1027,10 +1098,131 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    protected void processCompactBlock(CompactBlockMessage m) {
+        final Sha256Hash hash = m.getHeader().getHash();
+        final CompactBlockRelay relay = vCompactBlockRelay;
+        final BlockFetcher fetcher = vBlockFetcher;
+        if (relay == null || blockChain == null || !vDownloadData || (fetcher != null && fetcher.isActive())) {
+            log.debug("{}: Received compact block we did not ask for: {}", getAddress(), hash);
+            return;
+        }
+        // Check the header before matching any transactions, so that made up blocks cost the peer real work.
+        try {
+            m.getHeader().verifyHeader();
+        } catch (VerificationException e) {
+            log.warn("{}: Compact block {} has an invalid header: {}", getAddress(), hash, e.getMessage());
+            return;
+        }
+        try {
+            if (blockChain.getBlockStore().get(m.getHeader().getPrevBlockHash()) == null) {
+                // Probably a block we're not synced up to yet, the full block leads to the usual orphan handling.
+                log.debug("{}: Compact block {} does not connect, downloading it in full", getAddress(), hash);
+                getFullBlock(hash);
+                return;
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        List<Transaction> known = relay.getTransactions();
+        for (Wallet wallet : wallets)
+            known.addAll(wallet.getPendingTransactions());
+        PartiallyDownloadedBlock partial;
+        try {
+            partial = new PartiallyDownloadedBlock(params, m, known);
+        } catch (ProtocolException e) {
+            log.info("{}: Can't rebuild compact block {}, downloading it in full: {}", getAddress(), hash,
+                    e.getMessage());
+            getFullBlock(hash);
+            return;
+        }
+        final TxMemoryPool pool = vTxMemoryPool;
+        if (pool != null) {
+            pool.addKnownTo(partial);
+            partial.findMissing();
+        }
+        if (partial.isComplete()) {
+            completeCompactBlock(partial);
+            return;
+        }
+        log.debug("{}: Compact block {} is missing {} of {} transactions", getAddress(), hash,
+                partial.getMissingIndexes().size(), m.getTransactionCount());
+        lock.lock();
+        try {
+            partialBlocks.put(hash, partial);
+        } finally {
+            lock.unlock();
+        }
+        sendMessage(new GetBlockTxnMessage(params, hash, partial.getMissingIndexes()));
+    }
+
+    protected void processBlockTxn(BlockTxnMessage m) {
+        PartiallyDownloadedBlock partial;
+        lock.lock();
+        try {
+            partial = partialBlocks.remove(m.getBlockHash());
+        } finally {
+            lock.unlock();
+        }
+        if (partial == null) {
+            log.debug("{}: Received transactions for a block we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        try {
+            partial.fill(m);
+        } catch (ProtocolException e) {
+            log.info("{}: {}, downloading the block in full", getAddress(), e.getMessage());
+            getFullBlock(partial.getHash());
+            return;
+        }
+        completeCompactBlock(partial);
+    }
+
+    private void completeCompactBlock(PartiallyDownloadedBlock partial) {
+        Block block = partial.build();
+        if (block == null) {
+            // A short id matched the wrong transaction.
+            log.info("{}: Compact block {} did not rebuild correctly, downloading it in full", getAddress(),
+                    partial.getHash());
+            getFullBlock(partial.getHash());
+            return;
+        }
+        final CompactBlockRelay relay = vCompactBlockRelay;
+        if (relay != null)
+            relay.remove(block.getTransactions());
+        processBlock(block);
+    }
+
+    protected void processFilterHeaders(CFHeadersMessage m) {
+        final CompactFilterSync filterSync = vCompactFilterSync;
+        if (filterSync == null) {
+            log.debug("{}: Received filter headers we did not ask for", getAddress());
+            return;
+        }
+        filterSync.onFilterHeaders(this, m);
+    }
+
+    protected void processFilter(CFilterMessage m) {
+        final CompactFilterSync filterSync = vCompactFilterSync;
+        if (filterSync == null) {
+            log.debug("{}: Received compact filter we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        filterSync.onFilter(this, m);
+    }
+
+    private void getFullBlock(Sha256Hash hash) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(hash);
+        sendMessage(getdata);
+    }
+
     // TODO: Fix this duplication.
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        final BlockFetcher fetcher = vBlockFetcher;
+        if (blockChain != null && fetcher != null && fetcher.onBlock(this, m))
+            return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1126,7 +1318,7 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    /* package */ boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
@@ -1148,7 +1340,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    /* package */ void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1184,6 +1376,16 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        // Blocks are being fetched from all peers, announcements would only get in the way.
+        final BlockFetcher fetcher = vBlockFetcher;
+        final boolean fetchingBlocks = fetcher != null && fetcher.isActive();
+        // The compact filter sync fetches the headers of new blocks and decides which blocks to download.
+        final CompactFilterSync filterSync = vCompactFilterSync;
+        final boolean syncingFilters = filterSync != null && filterSync.isSyncingFrom(this);
+        final InventoryScheduler scheduler = vInventoryScheduler;
+        final TxMemoryPool pool = vTxMemoryPool;
+        // New blocks can be rebuilt from transactions we already have, if the peer sends them in compact form.
+        final boolean compactBlocks = vCompactBlockRelay != null && isCompactBlocksSupported();
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -1209,11 +1411,20 @@ public class Peer extends PeerSocketHandler {
             // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
             // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
             // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-            // sending us the transaction: currently we'll never try to re-fetch after a timeout.
+            // sending us the transaction: currently we'll never try to re-fetch after a timeout, unless the PeerGroup
+            // schedules the downloads, see PeerGroup.setInventoryScheduling().
             //
             // The line below can trigger confidence listeners.
             TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
+            if (pool != null && pool.contains(item.hash)) {
+                // We already have it.
+                it.remove();
+            } else if (scheduler != null) {
+                // The scheduler decides which peer to download it from, and sends the getdata.
+                it.remove();
+                if (!conf.getSource().equals(TransactionConfidence.Source.SELF))
+                    scheduler.announced(this, item.hash, conf);
+            } else if (conf.numBroadcastPeers() > 1) {
                 // Some other peer already announced this so don't download.
                 it.remove();
             } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
@@ -1233,7 +1444,9 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadData && syncingFilters) {
+                filterSync.onBlocksAnnounced(this);
+            } else if (blocks.size() > 0 && downloadData && blockChain != null && !fetchingBlocks) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1260,6 +1473,8 @@ public class Peer extends PeerSocketHandler {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
+                            } else if (compactBlocks && blocks.size() == 1) {
+                                getdata.addCompactBlock(item.hash);
                             } else {
                                 getdata.addItem(item);
                             }
@@ -1494,6 +1709,14 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            final CompactFilterSync filterSync = vCompactFilterSync;
+            if (filterSync != null && filterSync.start(this))
+                return;
+            final BlockFetcher fetcher = vBlockFetcher;
+            if (fetcher != null && fetcher.isActive()) {
+                fetcher.start(this);
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1504,6 +1727,73 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Asks the peer for any blocks after our chain head, without announcing the start of a chain download. Used to
+     * carry on after the chain was downloaded from several peers at once.
+     */
+    /* package */ void continueBlockChainDownload() {
+        lock.lock();
+        try {
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* package */ void setBlockFetcher(@Nullable BlockFetcher fetcher) {
+        this.vBlockFetcher = fetcher;
+    }
+
+    /* package */ void setInventoryScheduler(@Nullable InventoryScheduler scheduler) {
+        this.vInventoryScheduler = scheduler;
+    }
+
+    /* package */ void setCompactFilterSync(@Nullable CompactFilterSync sync) {
+        this.vCompactFilterSync = sync;
+    }
+
+    /* package */ void setTxMemoryPool(@Nullable TxMemoryPool pool) {
+        this.vTxMemoryPool = pool;
+    }
+
+    /**
+     * Makes this peer relay new blocks as compact blocks, or stop doing so if the relay is null. In high bandwidth mode
+     * the remote peer sends them without waiting for us to ask.
+     */
+    /* package */ void setCompactBlockRelay(@Nullable CompactBlockRelay relay, boolean highBandwidth) {
+        lock.lock();
+        try {
+            this.vCompactBlockRelay = relay;
+            this.compactBlocksHighBandwidth = highBandwidth;
+            if (relay == null)
+                partialBlocks.clear();
+            announceCompactBlocksLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Tells the remote peer how we want new blocks announced, if that changed. Before the handshake completes this is
+    // left to versionHandshakeComplete().
+    @GuardedBy("lock")
+    private void announceCompactBlocksLocked() {
+        if (!versionHandshakeFuture.isDone() || !isCompactBlocksSupported())
+            return;
+        if (vCompactBlockRelay == null && announcedHighBandwidth == null)
+            return;
+        final boolean highBandwidth = vCompactBlockRelay != null && compactBlocksHighBandwidth;
+        if (announcedHighBandwidth != null && announcedHighBandwidth == highBandwidth)
+            return;
+        sendMessage(new SendCompactBlocksMessage(params, highBandwidth, SendCompactBlocksMessage.VERSION_1));
+        announcedHighBandwidth = highBandwidth;
+    }
+
+    /** Returns whether both sides speak a protocol version that has compact blocks. */
+    /* package */ boolean isCompactBlocksSupported() {
+        VersionMessage peerVersion = vPeerVersionMessage;
+        return peerVersion != null && peerVersion.isCompactBlocksSupported() && versionMessage.isCompactBlocksSupported();
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1730,6 +2020,9 @@ public class Peer extends PeerSocketHandler {
         sendMessage(filter);
         if (andQueryMemPool)
             sendMessage(new MemoryPoolMessage());
+        final BlockFetcher fetcher = vBlockFetcher;
+        if (fetcher != null)
+            fetcher.onFilterSent(this);
         maybeRestartChainDownload();
     }
 
@@ -31,6 +31,7 @@ import org.bitcoinj_extra.crypto.*;
 import org.bitcoinj_extra.net.*;
 import org.bitcoinj_extra.net.discovery.*;
 import org.bitcoinj_extra.script.*;
+import org.bitcoinj_extra.store.FilterHeaderStore;
 import org.bitcoinj_extra.utils.*;
 import org.bitcoinj_extra.utils.Threading;
 import org.bitcoinj_extra.wallet.Wallet;
@@ -85,6 +86,12 @@ public class PeerGroup implements TransactionBroadcaster {
      */
     public static final int DEFAULT_CONNECTIONS = 12;
     private static final int TOR_TIMEOUT_SECONDS = 60;
+    /**
+     * The number of clean exit circuits kept open to the network's port by {@link #newWithTor(Context, AbstractBlockChain, TorClient, boolean)},
+     * so that connecting to a new peer doesn't have to wait for a circuit to be built. Use
+     * {@link com.subgraph.orchid.CircuitManager#setWarmExitCircuitCount(int, int)} to change it.
+     */
+    public static final int DEFAULT_TOR_WARM_CIRCUITS = 2;
     private volatile int vMaxPeersToDiscoverCount = 100;
     private static final long DEFAULT_PEER_DISCOVERY_TIMEOUT_MILLIS = 5000;
     private volatile long vPeerDiscoveryTimeoutMillis = DEFAULT_PEER_DISCOVERY_TIMEOUT_MILLIS;
@@ -159,6 +166,21 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
+    // Whether the chain is downloaded from all peers at once, and the fetcher doing so whilst it is.
+    private volatile boolean vParallelBlockDownload = false;
+    @Nullable @GuardedBy("lock") private BlockFetcher blockFetcher;
+    @Nullable @GuardedBy("lock") private ListenableScheduledFuture<?> blockFetcherStallCheck;
+    @Nullable @GuardedBy("lock") private InventoryScheduler inventoryScheduler;
+    @Nullable @GuardedBy("lock") private ListenableScheduledFuture<?> inventoryTimeoutCheck;
+    @Nullable @GuardedBy("lock") private CompactBlockRelay compactBlockRelay;
+    @Nullable @GuardedBy("lock") private CompactFilterSync compactFilterSync;
+    @Nullable @GuardedBy("lock") private ListenableScheduledFuture<?> compactFilterSyncStallCheck;
+    @Nullable @GuardedBy("lock") private FilterHeaderStore filterHeaderStore;
+    // The peers that send compact blocks without being asked, see BIP 152.
+    @GuardedBy("lock") private final List<Peer> highBandwidthPeers = new ArrayList<Peer>();
+    /** The most peers asked to send compact blocks without being asked, as BIP 152 recommends. */
+    public static final int MAX_HIGH_BANDWIDTH_PEERS = 3;
+    @Nullable @GuardedBy("lock") private TxMemoryPool txMemoryPool;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
@@ -345,6 +367,9 @@ public class PeerGroup implements TransactionBroadcaster {
      * <p>If running on the Oracle JDK the unlimited strength jurisdiction checks will also be overridden,
      * as they no longer apply anyway and can cause startup failures due to the requirement for AES-256.</p>
      *
+     * <p>The TorClient is asked to keep {@link #DEFAULT_TOR_WARM_CIRCUITS} exit circuits to the network's port open
+     * ahead of time, so new peer connections are usually opened on a circuit that is already built.</p>
+     *
      * <p>The user does not need any additional software for this: it's all pure Java. As of April 2014 <b>this mode
      * is experimental</b>.</p>
      *
@@ -354,6 +379,7 @@ public class PeerGroup implements TransactionBroadcaster {
     public static PeerGroup newWithTor(Context context, @Nullable AbstractBlockChain chain, TorClient torClient, boolean doDiscovery) throws TimeoutException {
         checkNotNull(torClient);
         DRMWorkaround.maybeDisableExportControls();
+        torClient.getCircuitManager().setWarmExitCircuitCount(context.getParams().getPort(), DEFAULT_TOR_WARM_CIRCUITS);
         BlockingClientManager manager = new BlockingClientManager(torClient.getSocketFactory());
         final int CONNECT_TIMEOUT_MSEC = TOR_TIMEOUT_SECONDS * 1000;
         manager.setConnectTimeoutMillis(CONNECT_TIMEOUT_MSEC);
@@ -1357,6 +1383,21 @@ public class PeerGroup implements TransactionBroadcaster {
 
             public void go() {
                 checkState(!lock.isHeldByCurrentThread());
+                if (isCompactFilterSync()) {
+                    // Compact filters are matched locally, so there is no filter to send, only the fast catchup time
+                    // to update.
+                    long earliestKeyTimeSecs = Long.MAX_VALUE;
+                    for (PeerFilterProvider provider : peerFilterProviders)
+                        earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, provider.getEarliestKeyCreationTime());
+                    // A week back for clock drift, as with Bloom filters.
+                    if (earliestKeyTimeSecs != Long.MAX_VALUE)
+                        setFastCatchupTimeSecs(earliestKeyTimeSecs - 86400 * 7);
+                    synchronized (inFlightRecalculations) {
+                        inFlightRecalculations.put(mode, null);
+                    }
+                    future.set(null);
+                    return;
+                }
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
                 if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
                     return;
@@ -1481,6 +1522,11 @@ public class PeerGroup implements TransactionBroadcaster {
         VersionMessage ver = getVersionMessage().duplicate();
         ver.bestHeight = chain == null ? 0 : chain.getBestChainHeight();
         ver.time = Utils.currentTimeSeconds();
+        if (compactBlockRelay != null) {
+            // Peers only relay compact blocks to nodes that speak a protocol version new enough to understand them.
+            final int version = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS);
+            ver.clientVersion = Math.max(ver.clientVersion, version);
+        }
 
         Peer peer = createPeer(address, ver);
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
@@ -1611,11 +1657,24 @@ public class PeerGroup implements TransactionBroadcaster {
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
-            if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
+            if (blockFetcher != null) {
+                peer.setBlockFetcher(blockFetcher);
+                blockFetcher.addPeer(peer);
+            }
+            if (inventoryScheduler != null) {
+                inventoryScheduler.addPeer(peer);
+                peer.setInventoryScheduler(inventoryScheduler);
+            }
+            peer.setTxMemoryPool(txMemoryPool);
+            if (compactFilterSync != null)
+                peer.setCompactFilterSync(compactFilterSync);
+            else if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            if (compactBlockRelay != null)
+                updateCompactBlockPeers();
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1708,7 +1767,11 @@ public class PeerGroup implements TransactionBroadcaster {
                 }
                 downloadPeer.setDownloadData(true);
                 if (chain != null)
-                    downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+                    downloadPeer.setDownloadParameters(fastCatchupTimeSecs, isUsingFilteredBlocks());
+                if (blockFetcher != null)
+                    blockFetcher.setDownloadParameters(fastCatchupTimeSecs, isUsingFilteredBlocks());
+                if (compactFilterSync != null)
+                    compactFilterSync.setFastCatchupTimeSecs(fastCatchupTimeSecs);
             }
         } finally {
             lock.unlock();
@@ -1732,7 +1795,13 @@ public class PeerGroup implements TransactionBroadcaster {
             checkState(chain == null || !chain.shouldVerifyTransactions(), "Fast catchup is incompatible with fully verifying");
             fastCatchupTimeSecs = secondsSinceEpoch;
             if (downloadPeer != null) {
-                downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
+                downloadPeer.setDownloadParameters(secondsSinceEpoch, isUsingFilteredBlocks());
+            }
+            if (blockFetcher != null) {
+                blockFetcher.setDownloadParameters(secondsSinceEpoch, isUsingFilteredBlocks());
+            }
+            if (compactFilterSync != null) {
+                compactFilterSync.setFastCatchupTimeSecs(secondsSinceEpoch);
             }
         } finally {
             lock.unlock();
@@ -1768,6 +1837,14 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (blockFetcher != null)
+                blockFetcher.removePeer(peer);
+            if (inventoryScheduler != null)
+                inventoryScheduler.removePeer(peer);
+            if (compactFilterSync != null)
+                compactFilterSync.removePeer(peer);
+            if (highBandwidthPeers.remove(peer))
+                updateCompactBlockPeers();
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1985,6 +2062,9 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if (vParallelBlockDownload && chain != null && blockFetcher == null && compactFilterSync == null)
+                startBlockFetcher();
+
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -1992,6 +2072,344 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    @GuardedBy("lock")
+    private void startBlockFetcher() {
+        final BlockFetcher fetcher = new BlockFetcher(params, checkNotNull(chain), fastCatchupTimeSecs,
+                isUsingFilteredBlocks());
+        blockFetcher = fetcher;
+        for (Peer peer : peers) {
+            peer.setBlockFetcher(fetcher);
+            fetcher.addPeer(peer);
+        }
+        blockFetcherStallCheck = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetcher.checkForStalls();
+                } catch (Throwable e) {
+                    log.error("Exception when checking for stalled block downloads", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        Futures.addCallback(fetcher.getFuture(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                log.info("Finished downloading blocks from all peers");
+                stopBlockFetcher(fetcher);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("Downloading blocks from all peers failed, carrying on with the download peer only", t);
+                stopBlockFetcher(fetcher);
+            }
+        }, executor);
+    }
+
+    // Hands the rest of the download, including any blocks found in the meantime, back to the download peer.
+    private void stopBlockFetcher(BlockFetcher fetcher) {
+        lock.lock();
+        try {
+            if (blockFetcher != fetcher)
+                return;
+            blockFetcher = null;
+            if (blockFetcherStallCheck != null) {
+                blockFetcherStallCheck.cancel(false);
+                blockFetcherStallCheck = null;
+            }
+            for (Peer peer : peers)
+                peer.setBlockFetcher(null);
+            if (downloadPeer != null)
+                downloadPeer.continueBlockChainDownload();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>If enabled, the block chain is downloaded from all connected peers at once rather than from the download peer
+     * alone. Headers are fetched first, then the bodies of full or filtered blocks are requested from a sliding window
+     * spread over every peer. Peers that stall have their requests handed to others, and blocks are put back in order
+     * before they are added to the chain. Once caught up, new blocks are downloaded from the download peer as usual.
+     * </p>
+     *
+     * <p>This must be set before {@link #startBlockChainDownload(PeerDataEventListener)} or
+     * {@link #downloadBlockChain()} is called. It is disabled by default.</p>
+     */
+    public void setParallelBlockDownload(boolean parallelBlockDownload) {
+        this.vParallelBlockDownload = parallelBlockDownload;
+    }
+
+    /** Returns whether the block chain is downloaded from all connected peers at once. */
+    public boolean isParallelBlockDownload() {
+        return vParallelBlockDownload;
+    }
+
+    /**
+     * <p>If enabled, announced transactions are downloaded by a scheduler shared between all peers, rather than by
+     * each peer on its own. Every transaction is requested from one peer only, and requested from the next peer that
+     * announced it if that one doesn't deliver within a few seconds, doesn't have it or disconnects. Requests for the
+     * same peer are collected for a moment and then sent together. This saves bandwidth and processing when many peers
+     * relay a busy memory pool.</p>
+     *
+     * <p>It is disabled by default, in which case a transaction is only ever requested from the first peer that
+     * announced it.</p>
+     */
+    public void setInventoryScheduling(boolean inventoryScheduling) {
+        lock.lock();
+        try {
+            if (inventoryScheduling == (inventoryScheduler != null))
+                return;
+            if (inventoryScheduling) {
+                final InventoryScheduler scheduler = new InventoryScheduler(params, executor);
+                inventoryScheduler = scheduler;
+                for (Peer peer : peers) {
+                    scheduler.addPeer(peer);
+                    peer.setInventoryScheduler(scheduler);
+                }
+                inventoryTimeoutCheck = executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            scheduler.checkForTimeouts();
+                        } catch (Throwable e) {
+                            log.error("Exception when checking for timed out transaction downloads", e);  // The executor swallows exceptions :(
+                        }
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+            } else {
+                for (Peer peer : peers)
+                    peer.setInventoryScheduler(null);
+                inventoryScheduler.close();
+                inventoryScheduler = null;
+                inventoryTimeoutCheck.cancel(false);
+                inventoryTimeoutCheck = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether announced transactions are downloaded by a scheduler shared between all peers. */
+    public boolean isInventoryScheduling() {
+        lock.lock();
+        try {
+            return inventoryScheduler != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>If enabled, new blocks are relayed as compact blocks (BIP 152) by peers that support them. A compact block is
+     * the header and short ids of the transactions, the block is rebuilt from transactions that were relayed to us
+     * before and the pending transactions of our wallets. Only transactions that are still missing are downloaded.
+     * Up to {@link #MAX_HIGH_BANDWIDTH_PEERS} peers are asked to send compact blocks straight away, the others
+     * announce them as usual and are then asked for the compact form.</p>
+     *
+     * <p>This only helps when downloading full blocks: it has no effect while a Bloom filter is in use. Compact blocks
+     * need a newer protocol version, which is advertised to peers that connect after this is enabled. It is disabled
+     * by default.</p>
+     */
+    public void setCompactBlockRelay(boolean compactBlockRelay) {
+        lock.lock();
+        try {
+            if (compactBlockRelay == (this.compactBlockRelay != null))
+                return;
+            if (compactBlockRelay) {
+                this.compactBlockRelay = new CompactBlockRelay();
+                updateCompactBlockPeers();
+            } else {
+                this.compactBlockRelay = null;
+                highBandwidthPeers.clear();
+                for (Peer peer : peers)
+                    peer.setCompactBlockRelay(null, false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether new blocks are relayed as compact blocks. */
+    public boolean isCompactBlockRelay() {
+        lock.lock();
+        try {
+            return compactBlockRelay != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets the pool that the transactions relayed by all peers are added to, or stops adding them if null. Peers
+     * don't download announced transactions that are already in the pool.</p>
+     *
+     * <p>If this peer group has a block chain, the pool is registered with it, so that transactions leave the pool once
+     * they are confirmed and return to it if their block is reorganized away. None is set by default.</p>
+     */
+    public void setTxMemoryPool(@Nullable TxMemoryPool pool) {
+        lock.lock();
+        try {
+            if (chain != null && txMemoryPool != null) {
+                chain.removeTransactionReceivedListener(txMemoryPool);
+                chain.removeReorganizeListener(txMemoryPool);
+                chain.removeNewBestBlockListener(txMemoryPool);
+            }
+            txMemoryPool = pool;
+            if (chain != null && pool != null) {
+                // Run on the chain's thread so the pool is up to date when the next transaction is relayed.
+                chain.addTransactionReceivedListener(Threading.SAME_THREAD, pool);
+                chain.addReorganizeListener(Threading.SAME_THREAD, pool);
+                chain.addNewBestBlockListener(Threading.SAME_THREAD, pool);
+                pool.notifyNewBestBlock(chain.getChainHead());
+            }
+            for (Peer peer : peers)
+                peer.setTxMemoryPool(pool);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the pool that relayed transactions are added to, or null if there is none. */
+    @Nullable
+    public TxMemoryPool getTxMemoryPool() {
+        lock.lock();
+        try {
+            return txMemoryPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Tops up the high bandwidth peers and hands the relay to all peers.
+    @GuardedBy("lock")
+    private void updateCompactBlockPeers() {
+        for (Peer peer : peers) {
+            if (highBandwidthPeers.size() >= MAX_HIGH_BANDWIDTH_PEERS)
+                break;
+            if (!highBandwidthPeers.contains(peer) && peer.isCompactBlocksSupported())
+                highBandwidthPeers.add(peer);
+        }
+        for (Peer peer : peers)
+            peer.setCompactBlockRelay(compactBlockRelay, highBandwidthPeers.contains(peer));
+    }
+
+    /**
+     * <p>If given a store, the block chain is synced with compact block filters (BIP 157 and 158) rather than Bloom
+     * filters. The download peer sends the filter of each block after the fast catchup time, the filters are checked
+     * against their filter headers, which are kept in the store, and matched against the scripts of the wallets on
+     * this computer. Only blocks that match are downloaded, in full. Unlike with Bloom filters, peers learn nothing
+     * about the wallets from the filters, and there is no filter to send again when the wallets get new keys.</p>
+     *
+     * <p>Peers that advertise {@link VersionMessage#NODE_COMPACT_FILTERS} are preferred as download peer, consider
+     * {@link #setRequiredServices(long)} to only connect to such peers. If the download peer doesn't serve compact
+     * filters, it downloads full blocks. This must be set before
+     * {@link #startBlockChainDownload(PeerDataEventListener)} or {@link #downloadBlockChain()} is called, it replaces
+     * {@link #setParallelBlockDownload(boolean)}. Pass null to go back to Bloom filters for peers that connect
+     * afterwards.</p>
+     *
+     * <p>Filter headers are trusted from the download peer, they are not compared across peers. Only the filter header
+     * before the first synced block is at risk: the others must follow on from it, and each filter must match its
+     * header. It is derived from the genesis block if the fast catchup time is zero, and otherwise taken from the
+     * peer, which could then hide transactions from the wallets. Use the same store across restarts, so that it is
+     * only trusted once.</p>
+     */
+    public void setCompactFilterSync(@Nullable FilterHeaderStore store) {
+        lock.lock();
+        try {
+            if (store == filterHeaderStore)
+                return;
+            filterHeaderStore = store;
+            if (compactFilterSyncStallCheck != null) {
+                compactFilterSyncStallCheck.cancel(false);
+                compactFilterSyncStallCheck = null;
+            }
+            if (store != null) {
+                checkState(chain != null, "Compact filter sync needs a block chain");
+                checkState(!chain.shouldVerifyTransactions(), "Compact filter sync is incompatible with fully verifying");
+                final CompactFilterSync sync = new CompactFilterSync(params, chain, store, wallets, fastCatchupTimeSecs);
+                compactFilterSync = sync;
+                compactFilterSyncStallCheck = executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sync.checkForStalls();
+                        } catch (Throwable e) {
+                            log.error("Exception when checking for a stalled compact filter sync", e);  // The executor swallows exceptions :(
+                        }
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+            } else {
+                compactFilterSync = null;
+            }
+            for (Peer peer : peers)
+                peer.setCompactFilterSync(compactFilterSync);
+        } finally {
+            lock.unlock();
+        }
+        recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    /** Returns whether the block chain is synced with compact block filters. */
+    public boolean isCompactFilterSync() {
+        lock.lock();
+        try {
+            return compactFilterSync != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the store of filter headers given to {@link #setCompactFilterSync(FilterHeaderStore)}, if any. */
+    @Nullable
+    public FilterHeaderStore getFilterHeaderStore() {
+        lock.lock();
+        try {
+            return filterHeaderStore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether filtered blocks are to be downloaded, which needs a Bloom filter.
+    @GuardedBy("lock")
+    private boolean isUsingFilteredBlocks() {
+        return compactFilterSync == null && bloomFilterMerger.getLastFilter() != null;
+    }
+
+    /** Returns the scheduler downloading announced transactions, or null if there is none. */
+    @VisibleForTesting @Nullable
+    InventoryScheduler getInventoryScheduler() {
+        lock.lock();
+        try {
+            return inventoryScheduler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the fetcher downloading the chain from all peers, or null if there is none. */
+    @VisibleForTesting @Nullable
+    BlockFetcher getBlockFetcher() {
+        lock.lock();
+        try {
+            return blockFetcher;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the compact filter sync set up by {@link #setCompactFilterSync(FilterHeaderStore)}, or null. */
+    @VisibleForTesting @Nullable
+    CompactFilterSync getCompactFilterSync() {
+        lock.lock();
+        try {
+            return compactFilterSync;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link org.bitcoinj_extra.core.PeerGroup#getMaxConnections()} you can wait until the
@@ -2310,6 +2728,15 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
+        if (compactFilterSync != null) {
+            // Only peers that serve compact filters can sync the chain without a Bloom filter.
+            ArrayList<Peer> serving = new ArrayList<Peer>(candidates2.size());
+            for (Peer peer : candidates2)
+                if (peer.getPeerVersionMessage().isCompactFiltersSupported())
+                    serving.add(peer);
+            if (!serving.isEmpty())
+                candidates2 = serving;
+        }
         int index = (int) (Math.random() * candidates2.size());
         return candidates2.get(index);
     }
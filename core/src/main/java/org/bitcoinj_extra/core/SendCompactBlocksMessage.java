@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Tells a peer that we want new blocks announced as compact blocks, see
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>. In high bandwidth mode the
+ * peer sends a {@link CompactBlockMessage} for every new block straight away, without waiting for us to ask for it.
+ * In low bandwidth mode new blocks are announced as usual and we request compact blocks with getdata.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SendCompactBlocksMessage extends Message {
+    /** The version of compact blocks that uses transaction hashes without witness data for short ids. */
+    public static final long VERSION_1 = 1;
+
+    private boolean highBandwidth;
+    private long version;
+
+    public SendCompactBlocksMessage(NetworkParameters params, boolean highBandwidth, long version) {
+        super(params);
+        this.highBandwidth = highBandwidth;
+        this.version = version;
+        this.length = 9;
+    }
+
+    public SendCompactBlocksMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        highBandwidth = readBytes(1)[0] != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(highBandwidth ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    /** Returns whether compact blocks should be sent without being asked for. */
+    public boolean isHighBandwidth() {
+        return highBandwidth;
+    }
+
+    /** Returns the version of compact blocks, which determines how short ids are calculated. */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SendCompactBlocksMessage other = (SendCompactBlocksMessage) o;
+        return highBandwidth == other.highBandwidth && version == other.version;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(highBandwidth, version);
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: " + (highBandwidth ? "high" : "low") + " bandwidth, version " + version;
+    }
+}
@@ -23,6 +23,7 @@ import java.lang.ref.*;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,25 +36,65 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every peer calls into the table for every transaction it announces, so the table is split into segments by
+ * transaction hash, each with a lock of its own and each evicting its least recently used entries once full. Peers
+ * announcing different transactions rarely have to wait for each other. As each segment only holds its share of the
+ * maximum size, entries may be evicted a little before the table as a whole is full.</p>
  */
 public class TxConfidenceTable {
+    /** The most segments a table is split into. */
+    private static final int MAX_SEGMENTS = 16;
+    /** The fewest entries a segment holds, smaller tables are split into fewer segments. */
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    /**
+     * @deprecated The table no longer has a single lock, each segment has its own. Holding this lock doesn't keep
+     * other threads from changing the table.
+     */
+    @Deprecated
     protected ReentrantLock lock = Threading.lock("txconfidencetable");
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
+        // Set under the segment lock once the table no longer holds this reference, so that cleanTable() can tell
+        // without looking the hash up, which would count as an access and keep the entry from being evicted.
+        public boolean removed;
         public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
             super(confidence, queue);
             hash = confidence.getTransactionHash();
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Segment {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable");
+        private final LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+        Segment(final int size) {
+            // Access ordered, so the least recently used entry is evicted first.
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+                    // of some kind of DoS attack.
+                    if (size() <= size)
+                        return false;
+                    entry.getValue().removed = true;
+                    return true;
+                }
+            };
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
     // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
     // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
@@ -64,14 +105,15 @@ public class TxConfidenceTable {
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        checkArgument(size > 0, "size must be positive");
+        int numSegments = 1;
+        while (numSegments < MAX_SEGMENTS && numSegments * 2 * MIN_SEGMENT_SIZE <= size)
+            numSegments *= 2;
+        segments = new Segment[numSegments];
+        // Spread the size over the segments so they add up to exactly the requested size.
+        for (int i = 0; i < numSegments; i++)
+            segments[i] = new Segment(size / numSegments + (i < size % numSegments ? 1 : 0));
+        segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
         referenceQueue = new ReferenceQueue<TransactionConfidence>();
     }
 
@@ -83,6 +125,13 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private Segment segmentFor(Sha256Hash hash) {
+        if (segments.length == 1)
+            return segments[0];
+        // Use different bits than the hash maps inside the segments do.
+        return segments[(hash.hashCode() * 0x9E3779B9) >>> segmentShift];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -90,17 +139,22 @@ public class TxConfidenceTable {
      * are relevant to any of our wallets.
      */
     private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
+        Reference<? extends TransactionConfidence> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed, unless it was
+            // replaced in the meantime.
+            Segment segment = segmentFor(txRef.hash);
+            segment.lock.lock();
+            try {
+                if (!txRef.removed) {
+                    segment.table.remove(txRef.hash);
+                    txRef.removed = true;
+                }
+            } finally {
+                segment.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -108,24 +162,26 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        cleanTable();
+        Segment segment = segmentFor(txHash);
+        segment.lock.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            WeakConfidenceReference entry = segment.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    segment.table.remove(txHash);
+                    entry.removed = true;
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -136,15 +192,10 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        }
-        lock.unlock();
+        cleanTable();
+        TransactionConfidence confidence = getOrCreate(hash);
+        // Thread safe by itself, so it doesn't need to hold up other peers.
+        boolean fresh = confidence.markBroadcastBy(byPeer);
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
@@ -156,19 +207,22 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
+            WeakConfidenceReference reference = segment.table.get(hash);
             if (reference != null) {
                 TransactionConfidence confidence = reference.get();
                 if (confidence != null)
                     return confidence;
             }
+            if (reference != null)
+                reference.removed = true;
             TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            segment.table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
             return newConfidence;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -178,9 +232,10 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
+            WeakConfidenceReference ref = segment.table.get(hash);
             if (ref == null)
                 return null;
             TransactionConfidence confidence = ref.get();
@@ -189,7 +244,21 @@ public class TxConfidenceTable {
             else
                 return null;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions in the table, including ones that were garbage collected but not removed yet. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.table.size();
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        return size;
     }
 }
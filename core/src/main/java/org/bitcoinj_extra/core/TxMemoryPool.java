@@ -0,0 +1,677 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.core.listeners.NewBestBlockListener;
+import org.bitcoinj_extra.core.listeners.ReorganizeListener;
+import org.bitcoinj_extra.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Holds the unconfirmed transactions relayed to us, similar to the memory pool of Bitcoin Core. Give it to a
+ * {@link PeerGroup} with {@link PeerGroup#setTxMemoryPool(TxMemoryPool)} to have every relayed transaction added to it,
+ * and to have transactions removed again once the block chain of the peer group confirms them or a transaction that
+ * conflicts with them. Unlike the {@link TxConfidenceTable} it keeps the transactions themselves, not just their
+ * hashes.</p>
+ *
+ * <p>Transactions can be looked up by hash and by the outputs they spend. The first transaction seen spending an
+ * output wins, later ones that conflict with it are not added but can be found with {@link #getConflicts(Transaction)}.
+ * The pool is bounded by a rough estimate of the memory it uses. When it is full the transactions paying the lowest
+ * fee rate are evicted first, together with the transactions that depend on them. A transaction pays for its
+ * unconfirmed ancestors as well: ordering by fee rate looks at the transaction together with all its ancestors in the
+ * pool, and eviction spares low fee transactions that have a high fee child, as Bitcoin Core does.</p>
+ *
+ * <p>The fee of a transaction is only known when the values of all outputs it spends are: those of other transactions
+ * in the pool, of transactions in the last few blocks, or of inputs that are already connected. Without a full block
+ * chain that is often not the case. Transactions of unknown fee are kept too, but are ordered below all others and are
+ * evicted first.</p>
+ *
+ * <p>The pool follows the chain through the {@link TransactionReceivedInBlockListener}, {@link ReorganizeListener}
+ * and {@link NewBestBlockListener} interfaces, and passes on what it learns to a {@link FeeEstimator} if it has one.
+ * When the chain is downloaded with Bloom filtering, only the transactions matching the filter are seen in blocks, so
+ * other transactions stay until they are evicted.</p>
+ */
+public class TxMemoryPool implements TransactionReceivedInBlockListener, ReorganizeListener, NewBestBlockListener {
+    private static final Logger log = LoggerFactory.getLogger(TxMemoryPool.class);
+
+    /** The default limit of the memory used by the pool, in bytes. */
+    public static final long DEFAULT_MAX_MEMORY_USAGE = 64 * 1024 * 1024;
+    /** The most ancestors, or descendants, a transaction in the pool may have there, like in Bitcoin Core. */
+    public static final int MAX_PACKAGE_COUNT = 25;
+    // The transactions of this many recent blocks are remembered, both to put them back into the pool if the blocks are
+    // reorganized away, and to know the values of the outputs they create.
+    private static final int MAX_RECENT_BLOCKS = 6;
+    // A rough guess of how many bytes of heap a parsed transaction takes, per serialized byte and in addition.
+    private static final int MEMORY_PER_BYTE = 4;
+    private static final int MEMORY_PER_ENTRY = 512;
+
+    private final NetworkParameters params;
+    private final long maxMemoryUsage;
+    private final ReentrantLock lock = Threading.lock("txmemorypool");
+
+    private static class Entry {
+        final Transaction tx;
+        final Sha256Hash hash;
+        final long sequence;
+        final int size;
+        final long memoryUsage;
+        // The fee in satoshis, or -1 if unknown.
+        long fee = -1;
+        // Transactions in the pool spending outputs of this one, or whose outputs this one spends.
+        final Set<Entry> parents = new HashSet<Entry>();
+        final Set<Entry> children = new HashSet<Entry>();
+        // This transaction together with all its ancestors, or descendants, in the pool. The fees are -1 if any of them
+        // is unknown.
+        long ancestorFee, ancestorSize;
+        int ancestorCount;
+        long descendantFee, descendantSize;
+        int descendantCount;
+
+        Entry(Transaction tx, long sequence) {
+            this.tx = tx;
+            this.hash = tx.getHash();
+            this.sequence = sequence;
+            this.size = tx.unsafeBitcoinSerialize().length;
+            this.memoryUsage = MEMORY_PER_ENTRY + (long) MEMORY_PER_BYTE * size;
+        }
+
+        // Satoshis per byte a miner would get for including this transaction and its ancestors.
+        double ancestorScore() {
+            return ancestorFee < 0 ? -1 : (double) ancestorFee / ancestorSize;
+        }
+
+        // As in Bitcoin Core, the higher of the fee rate of this transaction alone and together with its descendants.
+        // Evicting it takes the descendants along, so a high fee child protects its parent.
+        double descendantScore() {
+            if (fee < 0)
+                return -1;
+            double score = (double) fee / size;
+            if (descendantFee >= 0)
+                score = Math.max(score, (double) descendantFee / descendantSize);
+            return score;
+        }
+    }
+
+    // Orders by score, then by arrival so that the earlier of two equal transactions comes first.
+    private abstract static class ScoreComparator implements Comparator<Entry> {
+        abstract double score(Entry entry);
+
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Double.compare(score(a), score(b));
+            if (result != 0)
+                return result;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    }
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Entry> spenders = new HashMap<TransactionOutPoint, Entry>();
+    // Highest score first.
+    @GuardedBy("lock") private final TreeSet<Entry> byAncestorScore = new TreeSet<Entry>(new ScoreComparator() {
+        @Override
+        double score(Entry entry) {
+            return -entry.ancestorScore();
+        }
+    });
+    // Lowest score first, which is the next to be evicted.
+    @GuardedBy("lock") private final TreeSet<Entry> byDescendantScore = new TreeSet<Entry>(new ScoreComparator() {
+        @Override
+        double score(Entry entry) {
+            return entry.descendantScore();
+        }
+    });
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, List<Transaction>> recentBlocks =
+            new LinkedHashMap<Sha256Hash, List<Transaction>>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, List<Transaction>> eldest) {
+                    if (size() <= MAX_RECENT_BLOCKS)
+                        return false;
+                    for (Transaction tx : eldest.getValue())
+                        recentTransactions.remove(tx.getHash());
+                    return true;
+                }
+            };
+    // The transactions of the recent blocks by hash.
+    @GuardedBy("lock") private final Map<Sha256Hash, Transaction> recentTransactions = new HashMap<Sha256Hash, Transaction>();
+    @Nullable @GuardedBy("lock") private FeeEstimator feeEstimator;
+    @GuardedBy("lock") private long memoryUsage;
+    @GuardedBy("lock") private long nextSequence;
+
+    /** Creates a pool that uses up to {@link #DEFAULT_MAX_MEMORY_USAGE} bytes. */
+    public TxMemoryPool(NetworkParameters params) {
+        this(params, DEFAULT_MAX_MEMORY_USAGE);
+    }
+
+    /** Creates a pool that evicts transactions once they use more than roughly the given number of bytes. */
+    public TxMemoryPool(NetworkParameters params, long maxMemoryUsage) {
+        checkArgument(maxMemoryUsage > 0, "maxMemoryUsage must be positive");
+        this.params = checkNotNull(params);
+        this.maxMemoryUsage = maxMemoryUsage;
+    }
+
+    /**
+     * Adds a relayed transaction to the pool. Returns false if it was not added: because it is already there, is a
+     * coinbase, conflicts with a transaction in the pool, would have too many relatives in the pool or pays too little
+     * to stay in a full pool.
+     */
+    public boolean add(Transaction tx) {
+        lock.lock();
+        try {
+            if (!addLocked(tx))
+                return false;
+            // Transactions put back by a reorganization are not new, so they are only counted here.
+            Entry entry = entries.get(tx.getHash());
+            if (feeEstimator != null && entry.fee >= 0)
+                feeEstimator.seen(entry.hash, Coin.valueOf(entry.fee * 1000 / entry.size));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean addLocked(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        if (entries.containsKey(hash) || tx.isCoinBase())
+            return false;
+        for (TransactionInput input : tx.getInputs()) {
+            if (spenders.containsKey(input.getOutpoint())) {
+                log.debug("Not adding tx {} as it double spends {}", hash, input.getOutpoint());
+                return false;
+            }
+        }
+        Entry entry = new Entry(tx, nextSequence++);
+        for (TransactionInput input : tx.getInputs()) {
+            Entry parent = entries.get(input.getOutpoint().getHash());
+            if (parent != null)
+                entry.parents.add(parent);
+        }
+        // Transactions spending this one may have arrived before it.
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            Entry child = spenders.get(new TransactionOutPoint(params, i, hash));
+            if (child != null)
+                entry.children.add(child);
+        }
+        Set<Entry> ancestors = collect(entry, true);
+        Set<Entry> descendants = collect(entry, false);
+        if (ancestors.size() >= MAX_PACKAGE_COUNT || descendants.size() >= MAX_PACKAGE_COUNT) {
+            log.debug("Not adding tx {} as it has too many relatives in the pool", hash);
+            return false;
+        }
+        for (Entry ancestor : ancestors) {
+            if (ancestor.descendantCount + 1 + descendants.size() > MAX_PACKAGE_COUNT) {
+                log.debug("Not adding tx {} as {} has too many descendants in the pool", hash, ancestor.hash);
+                return false;
+            }
+        }
+        for (Entry descendant : descendants) {
+            if (descendant.ancestorCount + 1 + ancestors.size() > MAX_PACKAGE_COUNT) {
+                log.debug("Not adding tx {} as {} has too many ancestors in the pool", hash, descendant.hash);
+                return false;
+            }
+        }
+
+        Set<Entry> changed = new HashSet<Entry>(ancestors);
+        changed.addAll(descendants);
+        unindex(changed);
+        for (Entry parent : entry.parents)
+            parent.children.add(entry);
+        for (Entry child : entry.children)
+            child.parents.add(entry);
+        entries.put(hash, entry);
+        for (TransactionInput input : tx.getInputs())
+            spenders.put(input.getOutpoint(), entry);
+        memoryUsage += entry.memoryUsage;
+        entry.fee = calculateFee(tx);
+        // Children that arrived first may only now have a known fee.
+        for (Entry child : entry.children) {
+            if (child.fee < 0)
+                child.fee = calculateFee(child.tx);
+        }
+        changed.add(entry);
+        reindex(changed);
+
+        trimToSize();
+        return entries.containsKey(hash);
+    }
+
+    /** Returns whether the transaction with the given hash is in the pool. */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return entries.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction with the given hash, or null if it is not in the pool. */
+    @Nullable
+    public Transaction get(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction in the pool that spends the given output, or null if there is none. */
+    @Nullable
+    public Transaction getSpender(TransactionOutPoint outpoint) {
+        lock.lock();
+        try {
+            Entry entry = spenders.get(outpoint);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transactions in the pool that spend any of the outputs the given transaction spends. */
+    public List<Transaction> getConflicts(Transaction tx) {
+        lock.lock();
+        try {
+            Set<Transaction> conflicts = new LinkedHashSet<Transaction>();
+            for (TransactionInput input : tx.getInputs()) {
+                Entry entry = spenders.get(input.getOutpoint());
+                if (entry != null && !entry.hash.equals(tx.getHash()))
+                    conflicts.add(entry.tx);
+            }
+            return new ArrayList<Transaction>(conflicts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fee of the transaction with the given hash, or null if it is not in the pool or its fee is unknown.
+     */
+    @Nullable
+    public Coin getFee(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry != null && entry.fee >= 0 ? Coin.valueOf(entry.fee) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fee per kilobyte paid by the transaction with the given hash together with its ancestors in the pool,
+     * or null if it is not in the pool or any of the fees is unknown.
+     */
+    @Nullable
+    public Coin getAncestorFeePerKb(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            if (entry == null || entry.ancestorFee < 0)
+                return null;
+            return Coin.valueOf(entry.ancestorFee * 1000 / entry.ancestorSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns all transactions in the pool, the highest fee rate first, counting the ancestors of each transaction.
+     * Transactions of unknown fee come last, in the order they arrived.
+     */
+    public List<Transaction> getTransactionsByFeeRate() {
+        lock.lock();
+        try {
+            List<Transaction> result = new ArrayList<Transaction>(byAncestorScore.size());
+            for (Entry entry : byAncestorScore)
+                result.add(entry.tx);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Offers every transaction in the pool to a block being rebuilt from a compact block, without copying or sorting
+     * them first. Short ids depend on the block, so they can't be indexed ahead of time.
+     */
+    void addKnownTo(PartiallyDownloadedBlock partial) {
+        lock.lock();
+        try {
+            for (Entry entry : entries.values())
+                partial.addKnown(entry.tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions are in the pool. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a rough estimate of the memory used by the transactions in the pool, in bytes. */
+    public long getMemoryUsage() {
+        lock.lock();
+        try {
+            return memoryUsage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the memory usage above which transactions are evicted, in bytes. */
+    public long getMaxMemoryUsage() {
+        return maxMemoryUsage;
+    }
+
+    /** Removes all transactions from the pool. */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            spenders.clear();
+            byAncestorScore.clear();
+            byDescendantScore.clear();
+            recentBlocks.clear();
+            recentTransactions.clear();
+            memoryUsage = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        lock.lock();
+        try {
+            rememberInBlock(block, tx);
+            if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN)
+                confirm(tx, block.getHeight());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the transaction from the pool if the block is on the best chain. Always returns false, so that the pool
+     * doesn't hide false positives of a Bloom filter.
+     */
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        lock.lock();
+        try {
+            Entry entry = entries.get(txHash);
+            if (entry != null) {
+                rememberInBlock(block, entry.tx);
+                if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN)
+                    confirm(entry.tx, block.getHeight());
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the transactions of the blocks that left the best chain back into the pool, and removes those of the blocks
+     * that joined it. Only the last few blocks are remembered, transactions of deeper reorganizations are lost.
+     */
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+            throws VerificationException {
+        lock.lock();
+        try {
+            // Both lists are ordered newest first, transactions go back in starting with the oldest block.
+            for (StoredBlock block : reverse(oldBlocks)) {
+                List<Transaction> transactions = recentBlocks.get(block.getHeader().getHash());
+                if (transactions == null)
+                    continue;
+                for (Transaction tx : transactions)
+                    addLocked(tx);
+            }
+            for (StoredBlock block : reverse(newBlocks)) {
+                List<Transaction> transactions = recentBlocks.get(block.getHeader().getHash());
+                if (transactions == null)
+                    continue;
+                for (Transaction tx : transactions)
+                    confirm(tx, block.getHeight());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        lock.lock();
+        try {
+            if (feeEstimator != null)
+                feeEstimator.newBestBlock(block.getHeight());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the estimator to tell about the fee rates of new transactions and when they confirm, or none if null. Only
+     * transactions added from now on are counted.
+     */
+    public void setFeeEstimator(@Nullable FeeEstimator feeEstimator) {
+        lock.lock();
+        try {
+            this.feeEstimator = feeEstimator;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimator told about new transactions, or null if there is none. */
+    @Nullable
+    public FeeEstimator getFeeEstimator() {
+        lock.lock();
+        try {
+            return feeEstimator;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T> List<T> reverse(List<T> list) {
+        List<T> result = new ArrayList<T>(list);
+        Collections.reverse(result);
+        return result;
+    }
+
+    @GuardedBy("lock")
+    private void rememberInBlock(StoredBlock block, Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        Sha256Hash blockHash = block.getHeader().getHash();
+        List<Transaction> transactions = recentBlocks.get(blockHash);
+        if (transactions == null) {
+            transactions = new ArrayList<Transaction>();
+            recentBlocks.put(blockHash, transactions);
+        }
+        transactions.add(tx);
+        recentTransactions.put(tx.getHash(), tx);
+    }
+
+    // Removes a transaction that was confirmed, and the transactions conflicting with it along with their descendants.
+    // Descendants of the confirmed transaction itself stay.
+    @GuardedBy("lock")
+    private void confirm(Transaction tx, int height) {
+        if (feeEstimator != null)
+            feeEstimator.confirmed(tx.getHash(), height);
+        Entry entry = entries.get(tx.getHash());
+        if (entry != null) {
+            Set<Entry> relatives = collect(entry, false);
+            // A valid transaction has no unconfirmed ancestors once it confirms, but the pool doesn't check validity.
+            relatives.addAll(collect(entry, true));
+            unindex(relatives);
+            unindex(Collections.singleton(entry));
+            for (Entry child : entry.children)
+                child.parents.remove(entry);
+            for (Entry parent : entry.parents)
+                parent.children.remove(entry);
+            removeEntry(entry);
+            reindex(relatives);
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            Entry conflict = spenders.get(input.getOutpoint());
+            if (conflict != null && conflict != entry) {
+                log.info("Removing tx {} as it double spends confirmed tx {}", conflict.hash, tx.getHash());
+                removeWithDescendants(conflict);
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void trimToSize() {
+        while (memoryUsage > maxMemoryUsage && !byDescendantScore.isEmpty()) {
+            Entry victim = byDescendantScore.first();
+            log.debug("Pool full, evicting tx {} and its descendants", victim.hash);
+            removeWithDescendants(victim);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removeWithDescendants(Entry entry) {
+        Set<Entry> removed = collect(entry, false);
+        removed.add(entry);
+        Set<Entry> ancestors = new HashSet<Entry>();
+        for (Entry e : removed)
+            ancestors.addAll(collect(e, true));
+        ancestors.removeAll(removed);
+        unindex(ancestors);
+        unindex(removed);
+        for (Entry e : removed) {
+            for (Entry parent : e.parents)
+                parent.children.remove(e);
+            removeEntry(e);
+            if (feeEstimator != null)
+                feeEstimator.removed(e.hash);
+        }
+        reindex(ancestors);
+    }
+
+    // Drops the entry from the maps. It must not be indexed by score at this point.
+    @GuardedBy("lock")
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.hash);
+        for (TransactionInput input : entry.tx.getInputs()) {
+            if (spenders.get(input.getOutpoint()) == entry)
+                spenders.remove(input.getOutpoint());
+        }
+        memoryUsage -= entry.memoryUsage;
+    }
+
+    // The score indexes are sorted by fields that are about to change, so entries must leave them first.
+    @GuardedBy("lock")
+    private void unindex(Collection<Entry> changed) {
+        for (Entry entry : changed) {
+            byAncestorScore.remove(entry);
+            byDescendantScore.remove(entry);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void reindex(Collection<Entry> changed) {
+        for (Entry entry : changed) {
+            Set<Entry> ancestors = collect(entry, true);
+            entry.ancestorCount = ancestors.size();
+            entry.ancestorFee = entry.fee;
+            entry.ancestorSize = entry.size;
+            for (Entry ancestor : ancestors) {
+                entry.ancestorFee = ancestor.fee < 0 || entry.ancestorFee < 0 ? -1 : entry.ancestorFee + ancestor.fee;
+                entry.ancestorSize += ancestor.size;
+            }
+            Set<Entry> descendants = collect(entry, false);
+            entry.descendantCount = descendants.size();
+            entry.descendantFee = entry.fee;
+            entry.descendantSize = entry.size;
+            for (Entry descendant : descendants) {
+                entry.descendantFee = descendant.fee < 0 || entry.descendantFee < 0 ? -1 :
+                        entry.descendantFee + descendant.fee;
+                entry.descendantSize += descendant.size;
+            }
+            byAncestorScore.add(entry);
+            byDescendantScore.add(entry);
+        }
+    }
+
+    // Returns all ancestors, or all descendants, of the entry in the pool, not including the entry itself.
+    private static Set<Entry> collect(Entry entry, boolean ancestors) {
+        Set<Entry> result = new HashSet<Entry>();
+        Deque<Entry> todo = new ArrayDeque<Entry>();
+        todo.add(entry);
+        while (!todo.isEmpty()) {
+            for (Entry relative : ancestors ? todo.poll().parents : todo.poll().children) {
+                if (result.add(relative))
+                    todo.add(relative);
+            }
+        }
+        return result;
+    }
+
+    // Returns the fee in satoshis, or -1 if the value of any spent output is unknown.
+    @GuardedBy("lock")
+    private long calculateFee(Transaction tx) {
+        long fee = 0;
+        for (TransactionInput input : tx.getInputs()) {
+            Coin value = input.getValue();
+            if (value == null)
+                value = findOutputValue(input.getOutpoint());
+            if (value == null)
+                return -1;
+            fee += value.value;
+        }
+        for (TransactionOutput output : tx.getOutputs())
+            fee -= output.getValue().value;
+        return fee;
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Coin findOutputValue(TransactionOutPoint outpoint) {
+        Entry entry = entries.get(outpoint.getHash());
+        Transaction tx = entry != null ? entry.tx : recentTransactions.get(outpoint.getHash());
+        if (tx == null || outpoint.getIndex() >= tx.getOutputs().size())
+            return null;
+        return tx.getOutput(outpoint.getIndex()).getValue();
+    }
+}
@@ -41,6 +41,8 @@ public class VersionMessage extends Message {
     public static final int NODE_NETWORK = 1;
     /** A flag that denotes whether the peer supports the getutxos message or not. */
     public static final int NODE_GETUTXOS = 2;
+    /** A flag that denotes whether the peer serves compact block filters (BIP 157) or not. */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
 
     /**
      * The version number of the protocol spoken.
@@ -288,9 +290,22 @@ public class VersionMessage extends Message {
         return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.BLOOM_FILTER);
     }
 
+    /**
+     * Returns true if the clientVersion field is >= ProtocolVersion.COMPACT_BLOCKS. If it is then new blocks can be
+     * relayed as compact blocks, see BIP 152.
+     */
+    public boolean isCompactBlocksSupported() {
+        return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS);
+    }
+
     /** Returns true if the protocol version and service bits both indicate support for the getutxos message. */
     public boolean isGetUTXOsSupported() {
         return clientVersion >= GetUTXOsMessage.MIN_PROTOCOL_VERSION &&
                 (localServices & NODE_GETUTXOS) == NODE_GETUTXOS;
     }
+
+    /** Returns true if the service bits indicate that the peer serves compact block filters, see BIP 157. */
+    public boolean isCompactFiltersSupported() {
+        return (localServices & NODE_COMPACT_FILTERS) == NODE_COMPACT_FILTERS;
+    }
 }
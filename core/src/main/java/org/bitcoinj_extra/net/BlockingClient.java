@@ -26,6 +26,7 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -45,6 +46,7 @@ public class BlockingClient implements MessageWriteTarget {
     private Socket socket;
     private volatile boolean vCloseRequested = false;
     private SettableFuture<SocketAddress> connectFuture;
+    private final Thread thread;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamConnection} to decode the data.
@@ -61,13 +63,35 @@ public class BlockingClient implements MessageWriteTarget {
     public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
                           final int connectTimeoutMillis, final SocketFactory socketFactory,
                           @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, connection, connectTimeoutMillis, socketFactory, clientSet, null);
+    }
+
+    /**
+     * <p>Creates a new client to the given server address using the given {@link StreamConnection} to decode the data.
+     * The given connection <b>MUST</b> be unique to this object. This does not block while waiting for the connection to
+     * open, but will call either the {@link StreamConnection#connectionOpened()} or
+     * {@link StreamConnection#connectionClosed()} callback on the created network event processing thread.</p>
+     *
+     * @param connectTimeoutMillis The connect timeout set on the connection (in milliseconds). 0 is interpreted as no
+     *                             timeout.
+     * @param socketFactory An object that creates {@link Socket} objects on demand, which may be customised to control
+     *                      how this client connects to the internet. If not sure, use SocketFactory.getDefault()
+     * @param clientSet A set which this object will add itself to after initialization, and then remove itself from
+     * @param threadFactory Creates the network event processing thread, for example
+     *                      {@link org.bitcoinj_extra.utils.Threading#virtualThreadFactory(String)}. If null, a daemon
+     *                      platform thread is used.
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory,
+                          @Nullable final Set<BlockingClient> clientSet,
+                          @Nullable ThreadFactory threadFactory) throws IOException {
         connectFuture = SettableFuture.create();
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
         connection.setWriteTarget(this);
         socket = socketFactory.createSocket();
         final Context context = Context.get();
-        Thread t = new Thread() {
+        Runnable readLoop = new Runnable() {
             @Override
             public void run() {
                 Context.propagate(context);
@@ -96,9 +120,14 @@ public class BlockingClient implements MessageWriteTarget {
                 }
             }
         };
-        t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
-        t.start();
+        if (threadFactory != null) {
+            thread = threadFactory.newThread(readLoop);
+        } else {
+            thread = new Thread(readLoop);
+            thread.setDaemon(true);
+        }
+        thread.setName("BlockingClient network thread for " + serverAddress);
+        thread.start();
     }
 
     /**
@@ -155,6 +184,15 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    /**
+     * Waits for the network event processing thread to finish, after the connection was closed.
+     * @return true if it finished in time
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        thread.join(Math.max(1, unit.toMillis(timeout)));
+        return !thread.isAlive();
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
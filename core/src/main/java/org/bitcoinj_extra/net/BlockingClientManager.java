@@ -18,14 +18,21 @@ package org.bitcoinj_extra.net;
 
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -35,12 +42,22 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager} as they scale significantly better, unless you wish to connect over a proxy or use
  * some other network settings that cannot be set using NIO.</p>
+ *
+ * <p>Each connection has a thread of its own, blocked in reading from the socket most of the time. On Java 21 and later
+ * these can be virtual threads, see {@link #setUseVirtualThreads(boolean)}, which makes many connections much cheaper.
+ * </p>
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private static final Logger log = LoggerFactory.getLogger(BlockingClientManager.class);
+
+    /** How long shutting down waits for the threads of the connections to finish. */
+    public static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
     private final SocketFactory socketFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
+    private volatile boolean vUseVirtualThreads = false;
 
     public BlockingClientManager() {
         socketFactory = SocketFactory.getDefault();
@@ -59,7 +76,9 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         try {
             if (!isRunning())
                 throw new IllegalStateException();
-            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients).getConnectFuture();
+            ThreadFactory threadFactory = vUseVirtualThreads ? Threading.virtualThreadFactory("BlockingClient") : null;
+            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients,
+                    threadFactory).getConnectFuture();
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
@@ -70,14 +89,39 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         this.connectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /**
+     * If true, connections opened from now on read from their sockets on virtual threads rather than platform threads,
+     * provided the JVM supports them (see {@link Threading#isVirtualThreadSupported()}). Otherwise this has no effect.
+     * Note that up to Java 23, a virtual thread that blocks inside a synchronized block holds on to its carrier thread,
+     * so socket factories that do that should be tried with care.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.vUseVirtualThreads = useVirtualThreads;
+    }
+
+    /** Returns true if new connections get virtual threads, which requires both the setting and JVM support. */
+    public boolean isUsingVirtualThreads() {
+        return vUseVirtualThreads && Threading.isVirtualThreadSupported();
+    }
+
     @Override
     protected void startUp() throws Exception { }
 
+    /** Closes all connections, then waits for up to {@link #SHUTDOWN_TIMEOUT_MILLIS} for their threads to finish. */
     @Override
     protected void shutDown() throws Exception {
+        List<BlockingClient> toClose;
         synchronized (clients) {
-            for (BlockingClient client : clients)
-                client.closeConnection();
+            toClose = new ArrayList<BlockingClient>(clients);
+        }
+        for (BlockingClient client : toClose)
+            client.closeConnection();
+        final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+        for (BlockingClient client : toClose) {
+            if (!client.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                log.warn("Timed out waiting for connections to close");
+                break;
+            }
         }
     }
 
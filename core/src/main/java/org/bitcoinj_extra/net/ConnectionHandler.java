@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -65,15 +66,43 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private Set<ConnectionHandler> connectedHandlers;
 
+    // If set, received bytes are handed to the connection on this executor rather than on the selector thread. Reading
+    // from the socket is paused until the connection is done with them, so bytes are handled one batch at a time and
+    // in order.
+    @Nullable private final Executor receiveExecutor;
+    private final Runnable receiveTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                receiveBytes();
+                lock.lock();
+                try {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    key.selector().wakeup();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (Exception e) {
+                handleException(e);
+            }
+        }
+    };
+
     public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
-        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
+        this(connectionFactory, key, null);
+    }
+
+    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key,
+                             @Nullable Executor receiveExecutor) throws IOException {
+        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key, receiveExecutor);
         if (connection == null)
             throw new IOException("Parser factory.getNewConnection returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key, @Nullable Executor receiveExecutor) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.receiveExecutor = receiveExecutor;
         if (connection == null) {
             readBuff = null;
             return;
@@ -85,7 +114,12 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+        this(connection, key, connectedHandlers, null);
+    }
+
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable Executor receiveExecutor) {
+        this(checkNotNull(connection), key, receiveExecutor);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -217,23 +251,43 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
+                if (handler.receiveExecutor != null) {
+                    // Stop reading until the executor is done with what we have so far.
+                    handler.lock.lock();
+                    try {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    } finally {
+                        handler.lock.unlock();
+                    }
+                    handler.receiveExecutor.execute(handler.receiveTask);
+                } else {
+                    handler.receiveBytes();
+                }
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
         } catch (Exception e) {
-            // This can happen eg if the channel closes while the thread is about to get killed
-            // (ClosedByInterruptException), or if handler.connection.receiveBytes throws something
-            Throwable t = Throwables.getRootCause(e);
-            log.warn("Error handling SelectionKey: {}", t.getMessage() != null ? t.getMessage() : t.getClass().getName());
-            handler.closeConnection();
+            handler.handleException(e);
         }
     }
+
+    // Hands the bytes in readBuff to the connection. Never runs on two threads at once for the same handler.
+    private void receiveBytes() throws Exception {
+        // "flip" the buffer - setting the limit to the current position and setting position to 0
+        readBuff.flip();
+        // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
+        int bytesConsumed = checkNotNull(connection).receiveBytes(readBuff);
+        checkState(readBuff.position() == bytesConsumed);
+        // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+        // position)
+        readBuff.compact();
+    }
+
+    private void handleException(Exception e) {
+        // This can happen eg if the channel closes while the thread is about to get killed
+        // (ClosedByInterruptException), or if connection.receiveBytes throws something
+        Throwable t = Throwables.getRootCause(e);
+        log.warn("Error handling SelectionKey: {}", t.getMessage() != null ? t.getMessage() : t.getClass().getName());
+        closeConnection();
+    }
 }
@@ -21,22 +21,30 @@ import com.google.common.util.concurrent.*;
 import org.bitcoinj_extra.utils.*;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread by default. It can instead spread connections over several selector threads, and
+ * hand the parsing and handling of received data to a pool of worker threads, see
+ * {@link #NioClientManager(int, int)}.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final int workerThreads;
+    @Nullable private volatile ExecutorService workers;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,8 +54,6 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
-
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
@@ -59,7 +65,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             PendingConnect data = (PendingConnect) key.attachment();
             StreamConnection connection = data.connection;
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, workers);
             try {
                 if (sc.finishConnect()) {
                     log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
@@ -82,7 +88,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                 data.future.setException(cause);
                 data.future = null;
             }
-        } else // Process bytes read
+        } else if (key.attachment() instanceof ConnectionHandler) // Process bytes read
             ConnectionHandler.handleKey(key);
     }
 
@@ -91,8 +97,31 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1, 0);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management.
+     *
+     * @param selectorThreads How many selectors to use, each with its own thread. New connections are assigned to
+     *                        them in turn.
+     * @param workerThreads How many threads to parse and handle received data on. If zero, this happens on the
+     *                      selector threads. Data received from a single connection is always handled in order.
+     */
+    public NioClientManager(int selectorThreads, int workerThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+        checkArgument(workerThreads >= 0, "workerThreads must not be negative");
+        this.workerThreads = workerThreads;
+        loops = new SelectorLoop[selectorThreads];
+        SelectorLoop.KeyHandler handler = new SelectorLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) throws IOException {
+                NioClientManager.this.handleKey(key);
+            }
+        };
         try {
-            selector = SelectorProvider.provider().openSelector();
+            for (int i = 0; i < selectorThreads; i++)
+                loops[i] = new SelectorLoop(handler);
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -100,48 +129,32 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        if (workerThreads > 0)
+            workers = Executors.newFixedThreadPool(workerThreads,
+                    new ContextPropagatingThreadFactory("NioClientManager worker"));
+        // The first loop runs on this thread, the others get threads of their own.
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            new ContextPropagatingThreadFactory("NioClientManager " + i, Thread.MIN_PRIORITY).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run(NioClientManager.this);
                 }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            }).start();
+        }
+        loops[0].run(this);
+        for (SelectorLoop loop : loops)
+            loop.wakeup();
+        try {
+            for (SelectorLoop loop : loops)
+                loop.awaitStopped();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        ExecutorService workers = this.workers;
+        if (workers != null)
+            workers.shutdown();
     }
 
     @Override
@@ -153,9 +166,29 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            final SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            loop.execute(new SelectorLoop.Task() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = data.sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    try {
+                        data.sc.close();
+                    } catch (IOException e) {
+                        log.warn("Error closing channel", e);
+                    }
+                    data.future.setException(new IllegalStateException("Client manager stopped before connecting"));
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +197,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.wakeup();
     }
 
     @Override
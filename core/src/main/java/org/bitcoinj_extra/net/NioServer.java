@@ -19,17 +19,24 @@ package org.bitcoinj_extra.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.bitcoinj_extra.utils.ContextPropagatingThreadFactory;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. By default everything happens on a single thread. The server can instead spread connections over
+ * several selector threads, and hand the parsing and handling of received data to a pool of worker threads, see
+ * {@link #NioServer(StreamConnectionFactory, InetSocketAddress, int, int)}.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,29 +44,63 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
+    // Connections are accepted by the first loop and then assigned to all loops in turn.
+    private final SelectorLoop[] loops;
+    private int nextLoop;
+    private final int workerThreads;
+    @Nullable private volatile ExecutorService workers;
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
             // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
+            final SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
-            }
+            final SelectorLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.execute(new SelectorLoop.Task() {
+                @Override
+                public void run() {
+                    register(loop, newChannel);
+                }
+
+                @Override
+                public void cancel() {
+                    // The loop stopped before it could take the connection.
+                    try {
+                        newChannel.close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                }
+            });
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    // Runs on the thread of the given loop.
+    private void register(SelectorLoop loop, SocketChannel newChannel) {
+        SelectionKey newKey = null;
+        try {
+            newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+            ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey, workers);
+            newKey.attach(handler);
+            handler.connection.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+            try {
+                newChannel.close();
+            } catch (IOException e1) {
+                log.error("Error closing channel", e1);
+            }
+        }
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
@@ -67,59 +108,84 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 1, 0);
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
+     *
+     * @param selectorThreads How many selectors to use, each with its own thread. Accepted connections are assigned to
+     *                        them in turn.
+     * @param workerThreads How many threads to parse and handle received data on. If zero, this happens on the
+     *                      selector threads. Data received from a single connection is always handled in order.
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     int selectorThreads, int workerThreads) throws IOException {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+        checkArgument(workerThreads >= 0, "workerThreads must not be negative");
         this.connectionFactory = connectionFactory;
+        this.workerThreads = workerThreads;
+
+        loops = new SelectorLoop[selectorThreads];
+        SelectorLoop.KeyHandler handler = new SelectorLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) throws IOException {
+                NioServer.this.handleKey(key);
+            }
+        };
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new SelectorLoop(handler);
+        selector = loops[0].selector;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
-        try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
+        if (workerThreads > 0)
+            workers = Executors.newFixedThreadPool(workerThreads, new ContextPropagatingThreadFactory("NioServer worker"));
+        // The first loop runs on this thread, the others get threads of their own.
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            new ContextPropagatingThreadFactory("NioServer " + i).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run(NioServer.this);
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            }).start();
+        }
+        loops[0].run(this);
+        for (SelectorLoop loop : loops)
+            loop.wakeup();
+        try {
+            for (SelectorLoop loop : loops)
+                loop.awaitStopped();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
             try {
                 sc.close();
             } catch (IOException e) {
                 log.error("Error closing server channel", e);
             }
+            ExecutorService workers = this.workers;
+            if (workers != null)
+                workers.shutdown();
         }
     }
 
+    @Override
+    protected void shutDown() throws Exception {
+        // run() is skipped if the server is stopped right after starting, in which case nothing else would release the
+        // server socket. Closing the selectors deregisters it, and closing twice does no harm.
+        for (SelectorLoop loop : loops)
+            loop.selector.close();
+        sc.close();
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -127,7 +193,8 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops as the ExecutionService !isRunning()
+        for (SelectorLoop loop : loops)
+            loop.wakeup();
     }
 }
@@ -19,7 +19,8 @@ package org.bitcoinj_extra.net;
 import org.bitcoinj_extra.core.Utils;
 import org.bitcoinj_extra.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +29,7 @@ import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,6 +43,10 @@ import static com.google.common.base.Preconditions.checkState;
  * <p>Messages are encoded with a 4-byte signed integer (big endian) prefix to indicate their length followed by the
  * serialized protobuf</p>
  *
+ * <p>Incoming messages are parsed out of a buffer that is kept and reused for the next message, and every outgoing
+ * message, or batch of messages written with {@link #writeAll(List)}, is framed into a single array, so that a stream
+ * of small messages costs little more than the messages themselves.</p>
+ *
  * <p>(Used to be called ProtobufParser)</p>
  */
 public class ProtobufConnection<MessageType extends MessageLite> extends AbstractTimeoutHandler implements StreamConnection {
@@ -68,12 +74,18 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
     // The maximum message size (NOT INCLUDING LENGTH PREFIX)
     final int maxMessageSize;
 
+    // Larger buffers than this are let go of once the message in them has been handled
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
     // A temporary buffer used when the message size is larger than the buffer being used by the network code
     // Because the networking code uses a constant size buffer and we want to allow for very large message sizes, we use
     // a smaller network buffer per client and only allocate more memory when we need it to deserialize large messages.
     // Though this is not in of itself a DoS protection, it allows for handling more legitimate clients per server and
     // attacking clients can be made to timeout/get blocked if they are sending crap to fill buffers.
+    // The same buffer is used to copy messages out of direct network buffers for parsing.
     @GuardedBy("lock") private int messageBytesOffset = 0;
+    // The length of the message being filled into messageBytes, or -1 if there is none
+    @GuardedBy("lock") private int messageBytesLength = -1;
     @GuardedBy("lock") private byte[] messageBytes;
     private final ReentrantLock lock = Threading.lock("ProtobufConnection");
 
@@ -122,30 +134,63 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
         closeConnection();
     }
 
-    // Deserializes and provides a listener event (buff must not have the length prefix in it)
-    // Does set the buffers's position to its limit
+    // Deserializes the next len bytes of buff and provides a listener event (buff must not have the length prefix in it)
+    // Does advance the buffer's position past the message
+    @GuardedBy("lock")
+    private void deserializeMessage(ByteBuffer buff, int len) throws Exception {
+        if (buff.hasArray()) {
+            final int offset = buff.arrayOffset() + buff.position();
+            buff.position(buff.position() + len);
+            deserializeMessage(buff.array(), offset, len);
+        } else {
+            // Direct buffers can't be parsed in place, so go through the buffer we keep for this
+            byte[] bytes = messageBuffer(len);
+            buff.get(bytes, 0, len);
+            deserializeMessage(bytes, 0, len);
+            releaseMessageBuffer();
+        }
+    }
+
     @SuppressWarnings("unchecked")
     // The warning 'unchecked cast' being suppressed here comes from the build() formally returning
     // a MessageLite-derived class that cannot be statically guaranteed to be the MessageType.
-    private void deserializeMessage(ByteBuffer buff) throws Exception {
-        MessageType msg = (MessageType) prototype.newBuilderForType().mergeFrom(ByteString.copyFrom(buff)).build();
+    private void deserializeMessage(byte[] bytes, int offset, int len) throws Exception {
+        // Fields of type bytes are copied out by the parser, so the array can be reused once this returns
+        MessageType msg = (MessageType) prototype.newBuilderForType()
+                .mergeFrom(CodedInputStream.newInstance(bytes, offset, len)).build();
         resetTimeout();
         handler.messageReceived(this, msg);
     }
 
+    // Returns the kept buffer, growing it to hold at least len bytes
+    @GuardedBy("lock")
+    private byte[] messageBuffer(int len) {
+        if (messageBytes == null || messageBytes.length < len)
+            messageBytes = new byte[len];
+        return messageBytes;
+    }
+
+    @GuardedBy("lock")
+    private void releaseMessageBuffer() {
+        if (messageBytes.length > MAX_RETAINED_BUFFER_SIZE)
+            messageBytes = null;
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) throws Exception {
         lock.lock();
         try {
-            if (messageBytes != null) {
+            if (messageBytesLength >= 0) {
                 // Just keep filling up the currently being worked on message
-                int bytesToGet = Math.min(messageBytes.length - messageBytesOffset, buff.remaining());
+                int bytesToGet = Math.min(messageBytesLength - messageBytesOffset, buff.remaining());
                 buff.get(messageBytes, messageBytesOffset, bytesToGet);
                 messageBytesOffset += bytesToGet;
-                if (messageBytesOffset == messageBytes.length) {
+                if (messageBytesOffset == messageBytesLength) {
                     // Filled up our buffer, decode the message
-                    deserializeMessage(ByteBuffer.wrap(messageBytes));
-                    messageBytes = null;
+                    final int len = messageBytesLength;
+                    messageBytesLength = -1;
+                    deserializeMessage(messageBytes, 0, len);
+                    releaseMessageBuffer();
                     if (buff.hasRemaining())
                         return bytesToGet + receiveBytes(buff);
                 }
@@ -168,8 +213,9 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
             // If the buffer's capacity is less than the next messages length + 4 (length prefix), we must use messageBytes
             // as a temporary buffer to store the message
             if (buff.capacity() < len + 4) {
-                messageBytes = new byte[len];
-                // Now copy all remaining bytes into the new buffer, set messageBytesOffset and tell the caller how many
+                messageBuffer(len);
+                messageBytesLength = len;
+                // Now copy all remaining bytes into the buffer, set messageBytesOffset and tell the caller how many
                 // bytes we consumed
                 int bytesToRead = buff.remaining();
                 buff.get(messageBytes, 0, bytesToRead);
@@ -183,12 +229,7 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
                 return 0;
             }
 
-            // Temporarily limit the buffer to the size of the message so that the protobuf decode doesn't get messed up
-            int limit = buff.limit();
-            buff.limit(buff.position() + len);
-            deserializeMessage(buff);
-            checkState(buff.remaining() == 0);
-            buff.limit(limit); // Reset the limit in case we have to recurse
+            deserializeMessage(buff, len);
 
             // If there are still bytes remaining, see if we can pull out another message since we won't get called again
             if (buff.hasRemaining())
@@ -219,14 +260,55 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
      * @throws IllegalStateException If the encoded message is larger than the maximum message size.
      */
     public void write(MessageType msg) throws IllegalStateException {
-        byte[] messageBytes = msg.toByteArray();
-        checkState(messageBytes.length <= maxMessageSize);
-        byte[] messageLength = new byte[4];
-        Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
+        final int size = msg.getSerializedSize();
+        checkState(size <= maxMessageSize);
+        byte[] bytes = new byte[4 + size];
+        frame(msg, size, bytes, 0);
+        writeFramed(bytes);
+    }
+
+    /**
+     * <p>Writes the given messages to the other side of the connection in one go, each prefixed with its length as by
+     * {@link #write(MessageLite)}. Several small messages that are ready at the same time are cheaper to send like
+     * this, as they are handed to the network as one write.</p>
+     *
+     * <p>Provides a write-order guarantee.</p>
+     *
+     * @throws IllegalStateException If any encoded message is larger than the maximum message size.
+     */
+    public void writeAll(List<? extends MessageType> msgs) throws IllegalStateException {
+        final int[] sizes = new int[msgs.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = msgs.get(i).getSerializedSize();
+            checkState(sizes[i] <= maxMessageSize);
+            total += 4 + sizes[i];
+        }
+        checkState(total <= Integer.MAX_VALUE);
+        byte[] bytes = new byte[(int) total];
+        int offset = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            frame(msgs.get(i), sizes[i], bytes, offset);
+            offset += 4 + sizes[i];
+        }
+        writeFramed(bytes);
+    }
+
+    // Writes the length prefix and the message of the given size into bytes at offset
+    private static void frame(MessageLite msg, int size, byte[] bytes, int offset) {
+        Utils.uint32ToByteArrayBE(size, bytes, offset);
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes, offset + 4, size);
+        try {
+            msg.writeTo(output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen when writing to an array of the right size.
+        }
+        output.checkNoSpaceLeft();
+    }
+
+    private void writeFramed(byte[] bytes) {
         try {
-            MessageWriteTarget target = writeTarget.get();
-            target.writeBytes(messageLength);
-            target.writeBytes(messageBytes);
+            writeTarget.get().writeBytes(bytes);
         } catch (IOException e) {
             closeConnection();
         }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.net;
+
+import com.google.common.util.concurrent.Service;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * A selector and the loop selecting on it. {@link NioClientManager} and {@link NioServer} run one or more of these,
+ * each on its own thread, and spread their connections over them. Channels should be registered from the thread of the
+ * loop, which is what {@link #execute(Runnable)} is for.
+ */
+class SelectorLoop implements Executor {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    /** Handles a key that was selected, or one of the remaining keys when the loop shuts down. */
+    interface KeyHandler {
+        void handleKey(SelectionKey key) throws IOException;
+    }
+
+    /** A task holding something, typically a channel, that it has to release if the loop stops before running it. */
+    interface Task extends Runnable {
+        /** Called instead of {@link #run()} once the loop has stopped. */
+        void cancel();
+    }
+
+    final Selector selector;
+    private final KeyHandler handler;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // Set once the loop no longer runs tasks, after which they are cancelled instead.
+    private volatile boolean closed;
+
+    SelectorLoop(KeyHandler handler) throws IOException {
+        this.handler = handler;
+        this.selector = SelectorProvider.provider().openSelector();
+    }
+
+    /**
+     * Runs the given task on the thread of the loop, before it selects again. If the loop has stopped, a {@link Task} is
+     * cancelled instead and any other task is dropped.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        // Whoever gets to remove the task from the queue after the loop has stopped cancels it.
+        if (closed && tasks.remove(task))
+            cancel(task);
+        else
+            selector.wakeup();
+    }
+
+    private static void cancel(Runnable task) {
+        if (task instanceof Task)
+            ((Task) task).cancel();
+        else
+            log.warn("Dropped a task submitted to a stopped selector loop");
+    }
+
+    /**
+     * Selects and handles keys for as long as the given service is running. Then closes all channels that are still
+     * registered, and the selector itself. If the loop fails, the service is stopped, so that it doesn't go on running
+     * without this loop and the connections on it.
+     */
+    void run(Service service) {
+        try {
+            while (service.isRunning()) {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handler.handleKey(key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error trying to open/read from connection, stopping: ", e);
+        } finally {
+            if (service.isRunning())
+                service.stopAsync();
+            closed = true;
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                cancel(task);
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.warn("Error closing channel", e);
+                }
+                key.cancel();
+                try {
+                    handler.handleKey(key); // Close connection if relevant
+                } catch (IOException e) {
+                    log.warn("Error closing selection key", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing selector", e);
+            }
+            stopped.countDown();
+        }
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /** Waits until {@link #run(Service)} has returned. */
+    void awaitStopped() throws InterruptedException {
+        stopped.await();
+    }
+}
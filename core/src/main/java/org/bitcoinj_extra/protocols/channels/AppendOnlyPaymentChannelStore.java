@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.protocols.channels;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+import org.bitcoinj_extra.core.Utils;
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A {@link PaymentChannelStore} in a single append-only file. Every write appends a record holding the contract hash
+ * and either the new channel record or a removal mark, so an update costs the size of one channel no matter how many
+ * channels are open. Only the offsets of the latest records are kept in memory. They are rebuilt by scanning the file
+ * when the store is opened, discarding an incomplete record at the end left over from a crash.</p>
+ *
+ * <p>Records that have been superseded or removed are dropped when the file is more than half dead: {@link #flush()}
+ * then rewrites the live records to a new file and renames it over the old one.</p>
+ */
+public class AppendOnlyPaymentChannelStore implements PaymentChannelStore {
+    private static final Logger log = LoggerFactory.getLogger(AppendOnlyPaymentChannelStore.class);
+
+    private static final int MAGIC = 0x50435354; // "PCST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    // Type, contract hash and payload length, then the payload and a CRC32 of all of it.
+    private static final int RECORD_HEADER_SIZE = 1 + 32 + 4;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    // Files smaller than this are never compacted.
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final ReentrantLock lock = Threading.lock("channelstore");
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long end;
+
+    // Where the latest record of each channel starts, and the total size of those records.
+    private final Map<Sha256Hash, Long> offsets = new HashMap<Sha256Hash, Long>();
+    private long liveBytes;
+
+    /** Opens the store in the given file, creating it if it doesn't exist yet. */
+    public AppendOnlyPaymentChannelStore(File file) throws IOException {
+        this.file = checkNotNull(file);
+        open();
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel);
+                end = HEADER_SIZE;
+            } else {
+                ByteBuffer header = read(0, HEADER_SIZE);
+                if (header.getInt() != MAGIC)
+                    throw new IOException("Not a payment channel store: " + file);
+                if (header.getInt() > VERSION)
+                    throw new IOException("Payment channel store is from a newer version: " + file);
+                scan();
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /** Returns the file the store is kept in. */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public Map<Sha256Hash, byte[]> load() throws IOException {
+        lock.lock();
+        try {
+            Map<Sha256Hash, byte[]> records = new HashMap<Sha256Hash, byte[]>(offsets.size() * 2);
+            for (Map.Entry<Sha256Hash, Long> entry : offsets.entrySet())
+                records.put(entry.getKey(), readPayload(entry.getValue()));
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Sha256Hash contractHash, byte[] record) throws IOException {
+        checkArgument(record.length <= MAX_RECORD_SIZE);
+        lock.lock();
+        try {
+            final long offset = append(TYPE_PUT, contractHash, record);
+            drop(offsets.put(contractHash, offset));
+            liveBytes += RECORD_HEADER_SIZE + record.length + 4;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(Sha256Hash contractHash) throws IOException {
+        lock.lock();
+        try {
+            final Long offset = offsets.remove(contractHash);
+            if (offset == null)
+                return;
+            drop(offset);
+            append(TYPE_REMOVE, contractHash, new byte[0]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (end > MIN_COMPACTION_SIZE && liveBytes * 2 < end - HEADER_SIZE)
+                compact();
+            else
+                channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            randomAccessFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(false);
+    }
+
+    // Rebuilds the offsets from the records in the file, truncating any incomplete or corrupt tail.
+    private void scan() throws IOException {
+        final long fileSize = channel.size();
+        long offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE + 4 <= fileSize) {
+            ByteBuffer header = read(offset, RECORD_HEADER_SIZE);
+            final byte type = header.get();
+            byte[] hashBytes = new byte[32];
+            header.get(hashBytes);
+            final int length = header.getInt();
+            if ((type != TYPE_PUT && type != TYPE_REMOVE) || length < 0 || length > MAX_RECORD_SIZE ||
+                    offset + RECORD_HEADER_SIZE + length + 4 > fileSize)
+                break;
+            ByteBuffer record = read(offset, RECORD_HEADER_SIZE + length + 4);
+            if (record.getInt(RECORD_HEADER_SIZE + length) != crc(record.array(), RECORD_HEADER_SIZE + length))
+                break;
+            final Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+            if (type == TYPE_PUT) {
+                drop(offsets.put(hash, offset));
+                liveBytes += RECORD_HEADER_SIZE + length + 4;
+            } else {
+                drop(offsets.remove(hash));
+            }
+            offset += RECORD_HEADER_SIZE + length + 4;
+        }
+        if (offset < fileSize) {
+            log.warn("Discarding {} bytes at the end of payment channel store {}", fileSize - offset, file);
+            channel.truncate(offset);
+        }
+        end = offset;
+    }
+
+    private long append(byte type, Sha256Hash hash, byte[] payload) throws IOException {
+        final long offset = end;
+        end += write(channel, offset, type, hash, payload);
+        return offset;
+    }
+
+    private static int write(FileChannel channel, long position, byte type, Sha256Hash hash, byte[] payload)
+            throws IOException {
+        final int length = RECORD_HEADER_SIZE + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(length + 4);
+        record.put(type).put(hash.getBytes()).putInt(payload.length).put(payload);
+        record.putInt(crc(record.array(), length));
+        record.flip();
+        while (record.hasRemaining())
+            position += channel.write(record, position);
+        return length + 4;
+    }
+
+    // Accounts for the record at the given offset no longer being live.
+    private void drop(Long offset) throws IOException {
+        if (offset != null)
+            liveBytes -= RECORD_HEADER_SIZE + read(offset + 1 + 32, 4).getInt() + 4;
+    }
+
+    // Writes the live records to a new file and swaps it in for the current one.
+    private void compact() throws IOException {
+        log.info("Compacting payment channel store {}: {} of {} bytes are live", file, liveBytes, end);
+        final File temp = new File(file.getPath() + ".tmp");
+        final Map<Sha256Hash, Long> newOffsets = new HashMap<Sha256Hash, Long>(offsets.size() * 2);
+        long newEnd = HEADER_SIZE;
+        RandomAccessFile tempFile = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel tempChannel = tempFile.getChannel();
+            tempChannel.truncate(0);
+            writeHeader(tempChannel);
+            for (Map.Entry<Sha256Hash, Long> entry : offsets.entrySet()) {
+                newOffsets.put(entry.getKey(), newEnd);
+                newEnd += write(tempChannel, newEnd, TYPE_PUT, entry.getKey(), readPayload(entry.getValue()));
+            }
+            tempChannel.force(false);
+        } finally {
+            tempFile.close();
+        }
+        randomAccessFile.close();
+        try {
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                if (canonical.exists() && !canonical.delete())
+                    throw new IOException("Failed to delete " + canonical + " for replacement with " + temp);
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } finally {
+            open();
+        }
+        // If the rename failed the old file is still in place and so are the old offsets.
+        offsets.clear();
+        offsets.putAll(newOffsets);
+        end = newEnd;
+        liveBytes = newEnd - HEADER_SIZE;
+    }
+
+    private byte[] readPayload(long offset) throws IOException {
+        final int length = read(offset + 1 + 32, 4).getInt();
+        ByteBuffer record = read(offset, RECORD_HEADER_SIZE + length + 4);
+        if (record.getInt(RECORD_HEADER_SIZE + length) != crc(record.array(), RECORD_HEADER_SIZE + length))
+            throw new IOException("Checksum mismatch in payment channel store " + file + " at " + offset);
+        byte[] payload = new byte[length];
+        record.position(RECORD_HEADER_SIZE);
+        record.get(payload);
+        return payload;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of payment channel store " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+}
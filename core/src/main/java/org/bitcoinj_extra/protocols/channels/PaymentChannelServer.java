@@ -22,6 +22,7 @@ import org.bitcoinj_extra.protocols.channels.PaymentChannelCloseException.CloseR
 import org.bitcoinj_extra.utils.Threading;
 import org.bitcoinj_extra.wallet.Wallet;
 
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -31,7 +32,10 @@ import org.bitcoin.paymentchannel.Protos;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -144,6 +148,15 @@ public class PaymentChannelServer {
     // The time this channel expires (ie the refund transaction's locktime)
     @GuardedBy("lock") private long expireTime;
 
+    // Checks payment signatures off the network thread if set.
+    @GuardedBy("lock") @Nullable private Executor paymentVerifier;
+    // Set whilst a payment is verified by the paymentVerifier. Messages that arrive in the meantime wait in the queue.
+    @GuardedBy("lock") private boolean paymentInFlight;
+    @GuardedBy("lock") private final Queue<Protos.TwoWayChannelMessage> queuedMessages =
+            new LinkedList<Protos.TwoWayChannelMessage>();
+    // How many messages a client may pipeline behind a payment that is being checked before it is disconnected.
+    private static final int MAX_QUEUED_MESSAGES = 100;
+
     public static final long DEFAULT_MAX_TIME_WINDOW = 7 * 24 * 60 * 60;
 
     /**
@@ -210,6 +223,22 @@ public class PaymentChannelServer {
         this.maxTimeWindow = maxTimeWindow;
     }
 
+    /**
+     * Sets the executor payment signatures are checked on, see
+     * {@link PaymentChannelServerState#incrementPayment(Coin, byte[], Executor)}. A server handling many channels on
+     * one network thread can then check the payments of many channels at once. Messages from the client that come in
+     * whilst a payment is checked are handled after it, in order. Null, the default, checks them on the thread that
+     * received them.
+     */
+    public void setPaymentVerifier(@Nullable Executor paymentVerifier) {
+        lock.lock();
+        try {
+            this.paymentVerifier = paymentVerifier;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the underlying {@link PaymentChannelServerState} object that is being manipulated. This object allows
      * you to learn how much money has been transferred, etc. May be null if the channel wasn't negotiated yet.
@@ -399,6 +428,68 @@ public class PaymentChannelServer {
         Coin lastBestPayment = state.getBestValueToMe();
         final Coin refundSize = Coin.valueOf(msg.getClientChangeValue());
         boolean stillUsable = state.incrementPayment(refundSize, msg.getSignature().toByteArray());
+        paymentIncremented(msg, sendAck, lastBestPayment, stillUsable);
+    }
+
+    // Like receiveUpdatePaymentMessage, but the signature is checked by the paymentVerifier.
+    @GuardedBy("lock")
+    private void receiveUpdatePaymentMessageAsync(final Protos.UpdatePayment msg) throws VerificationException, ValueOutOfRangeException, InsufficientMoneyException {
+        log.info("Got a payment update");
+
+        final Coin lastBestPayment = state.getBestValueToMe();
+        final Coin refundSize = Coin.valueOf(msg.getClientChangeValue());
+        // Set first, the future may complete on this thread.
+        paymentInFlight = true;
+        ListenableFuture<Boolean> future = null;
+        try {
+            future = state.incrementPayment(refundSize, msg.getSignature().toByteArray(), checkNotNull(paymentVerifier));
+        } finally {
+            if (future == null)
+                paymentInFlight = false;
+        }
+        Futures.addCallback(future, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean stillUsable) {
+                lock.lock();
+                try {
+                    paymentInFlight = false;
+                    if (!connectionOpen || channelSettling)
+                        return;
+                    try {
+                        paymentIncremented(msg, true, lastBestPayment, stillUsable);
+                    } catch (InsufficientMoneyException e) {
+                        log.error("Caught insufficient money exception handling message from client", e);
+                        error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+                        return;
+                    }
+                    processQueuedMessages();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                lock.lock();
+                try {
+                    paymentInFlight = false;
+                    queuedMessages.clear();
+                    if (!connectionOpen || channelSettling)
+                        return;
+                    log.error("Caught exception checking payment from client", t);
+                    if (t instanceof VerificationException || t instanceof ValueOutOfRangeException)
+                        error(t.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+                    else
+                        error("Failed processing payment update", Protos.Error.ErrorCode.OTHER, CloseReason.UPDATE_PAYMENT_FAILED);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    @GuardedBy("lock")
+    private void paymentIncremented(Protos.UpdatePayment msg, boolean sendAck, Coin lastBestPayment, boolean stillUsable) throws InsufficientMoneyException {
         Coin bestPaymentChange = state.getBestValueToMe().subtract(lastBestPayment);
 
         ListenableFuture<ByteString> ackInfoFuture = null;
@@ -410,23 +501,43 @@ public class PaymentChannelServer {
         if (sendAck) {
             final Protos.TwoWayChannelMessage.Builder ack = Protos.TwoWayChannelMessage.newBuilder();
             ack.setType(Protos.TwoWayChannelMessage.MessageType.PAYMENT_ACK);
-            if (ackInfoFuture == null) {
-                conn.sendToClient(ack.build());
-            } else {
-                Futures.addCallback(ackInfoFuture, new FutureCallback<ByteString>() {
-                    @Override
-                    public void onSuccess(@Nullable ByteString result) {
+            // The client considers the payment made once it is acknowledged, so wait until it has been committed too.
+            final ListenableFuture<ByteString> ackInfo = ackInfoFuture != null ? ackInfoFuture :
+                    Futures.<ByteString>immediateFuture(null);
+            ListenableFuture<ByteString> ackReady = Futures.transform(state.getLastUpdateCommitted(),
+                    new AsyncFunction<Void, ByteString>() {
+                        @Override
+                        public ListenableFuture<ByteString> apply(@Nullable Void input) {
+                            return ackInfo;
+                        }
+                    });
+            Futures.addCallback(ackReady, new FutureCallback<ByteString>() {
+                @Override
+                public void onSuccess(@Nullable ByteString result) {
+                    lock.lock();
+                    try {
+                        if (!connectionOpen)
+                            return;
                         if (result != null) ack.setPaymentAck(ack.getPaymentAckBuilder().setInfo(result));
                         conn.sendToClient(ack.build());
+                    } finally {
+                        lock.unlock();
                     }
+                }
 
-                    @Override
-                    public void onFailure(Throwable t) {
-                        log.info("Failed retrieving paymentIncrease info future");
+                @Override
+                public void onFailure(Throwable t) {
+                    lock.lock();
+                    try {
+                        if (!connectionOpen)
+                            return;
+                        log.info("Failed committing payment or retrieving paymentIncrease info future", t);
                         error("Failed processing payment update", Protos.Error.ErrorCode.OTHER, CloseReason.UPDATE_PAYMENT_FAILED);
+                    } finally {
+                        lock.unlock();
                     }
-                });
-            }
+                }
+            });
         }
 
         if (!stillUsable) {
@@ -443,54 +554,78 @@ public class PaymentChannelServer {
         lock.lock();
         try {
             checkState(connectionOpen);
-            if (channelSettling)
-                return;
-            try {
-                switch (msg.getType()) {
-                    case CLIENT_VERSION:
-                        receiveVersionMessage(msg);
-                        return;
-                    case PROVIDE_REFUND:
-                        receiveRefundMessage(msg);
-                        return;
-                    case PROVIDE_CONTRACT:
-                        receiveContractMessage(msg);
-                        return;
-                    case UPDATE_PAYMENT:
-                        checkState(step == InitStep.CHANNEL_OPEN && msg.hasUpdatePayment());
-                        receiveUpdatePaymentMessage(msg.getUpdatePayment(), true);
-                        return;
-                    case CLOSE:
-                        receiveCloseMessage();
-                        return;
-                    case ERROR:
-                        checkState(msg.hasError());
-                        log.error("Client sent ERROR {} with explanation {}", msg.getError().getCode().name(),
-                                msg.getError().hasExplanation() ? msg.getError().getExplanation() : "");
-                        conn.destroyConnection(CloseReason.REMOTE_SENT_ERROR);
-                        return;
-                    default:
-                        final String errorText = "Got unknown message type or type that doesn't apply to servers.";
-                        error(errorText, Protos.Error.ErrorCode.SYNTAX_ERROR, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
-                }
-            } catch (VerificationException e) {
-                log.error("Caught verification exception handling message from client", e);
-                error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
-            } catch (ValueOutOfRangeException e) {
-                log.error("Caught value out of range exception handling message from client", e);
-                error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
-            } catch (InsufficientMoneyException e) {
-                log.error("Caught insufficient money exception handling message from client", e);
-                error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
-            } catch (IllegalStateException e) {
-                log.error("Caught illegal state exception handling message from client", e);
-                error(e.getMessage(), Protos.Error.ErrorCode.SYNTAX_ERROR, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+            if (!paymentInFlight) {
+                processMessage(msg);
+            } else if (queuedMessages.size() < MAX_QUEUED_MESSAGES) {
+                queuedMessages.add(msg);
+            } else {
+                queuedMessages.clear();
+                error("Too many messages sent whilst a payment was being checked", Protos.Error.ErrorCode.OTHER,
+                        CloseReason.REMOTE_SENT_INVALID_MESSAGE);
             }
         } finally {
             lock.unlock();
         }
     }
 
+    // Handles the messages that came in whilst a payment was checked, until one of them is a payment again.
+    @GuardedBy("lock")
+    private void processQueuedMessages() {
+        Protos.TwoWayChannelMessage msg;
+        while (!paymentInFlight && connectionOpen && (msg = queuedMessages.poll()) != null)
+            processMessage(msg);
+    }
+
+    @GuardedBy("lock")
+    private void processMessage(Protos.TwoWayChannelMessage msg) {
+        if (channelSettling)
+            return;
+        try {
+            switch (msg.getType()) {
+                case CLIENT_VERSION:
+                    receiveVersionMessage(msg);
+                    return;
+                case PROVIDE_REFUND:
+                    receiveRefundMessage(msg);
+                    return;
+                case PROVIDE_CONTRACT:
+                    receiveContractMessage(msg);
+                    return;
+                case UPDATE_PAYMENT:
+                    checkState(step == InitStep.CHANNEL_OPEN && msg.hasUpdatePayment());
+                    if (paymentVerifier != null)
+                        receiveUpdatePaymentMessageAsync(msg.getUpdatePayment());
+                    else
+                        receiveUpdatePaymentMessage(msg.getUpdatePayment(), true);
+                    return;
+                case CLOSE:
+                    receiveCloseMessage();
+                    return;
+                case ERROR:
+                    checkState(msg.hasError());
+                    log.error("Client sent ERROR {} with explanation {}", msg.getError().getCode().name(),
+                            msg.getError().hasExplanation() ? msg.getError().getExplanation() : "");
+                    conn.destroyConnection(CloseReason.REMOTE_SENT_ERROR);
+                    return;
+                default:
+                    final String errorText = "Got unknown message type or type that doesn't apply to servers.";
+                    error(errorText, Protos.Error.ErrorCode.SYNTAX_ERROR, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+            }
+        } catch (VerificationException e) {
+            log.error("Caught verification exception handling message from client", e);
+            error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+        } catch (ValueOutOfRangeException e) {
+            log.error("Caught value out of range exception handling message from client", e);
+            error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+        } catch (InsufficientMoneyException e) {
+            log.error("Caught insufficient money exception handling message from client", e);
+            error(e.getMessage(), Protos.Error.ErrorCode.BAD_TRANSACTION, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+        } catch (IllegalStateException e) {
+            log.error("Caught illegal state exception handling message from client", e);
+            error(e.getMessage(), Protos.Error.ErrorCode.SYNTAX_ERROR, CloseReason.REMOTE_SENT_INVALID_MESSAGE);
+        }
+    }
+
     private void error(String message, Protos.Error.ErrorCode errorCode, CloseReason closeReason) {
         log.error(message);
         Protos.Error.Builder errorBuilder;
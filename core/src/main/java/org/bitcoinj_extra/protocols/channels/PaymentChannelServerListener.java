@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -54,6 +55,7 @@ public class PaymentChannelServerListener {
 
     private NioServer server;
     private final int timeoutSeconds;
+    @Nullable private volatile Executor paymentVerifier;
 
     /**
      * A factory which generates connection-specific event handlers.
@@ -89,6 +91,7 @@ public class PaymentChannelServerListener {
                     return eventHandler.paymentIncrease(by, to, info);
                 }
             });
+            paymentChannelManager.setPaymentVerifier(paymentVerifier);
 
             protobufHandlerListener = new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
                 @Override
@@ -176,6 +179,15 @@ public class PaymentChannelServerListener {
         this.timeoutSeconds = timeoutSeconds;
     }
 
+    /**
+     * Sets the executor that the payment signatures of connections accepted from now on are checked on, see
+     * {@link PaymentChannelServer#setPaymentVerifier(Executor)}. With many clients a thread pool takes the checks off
+     * the network thread, which otherwise checks the payments of all channels one after the other.
+     */
+    public void setPaymentVerifier(@Nullable Executor paymentVerifier) {
+        this.paymentVerifier = paymentVerifier;
+    }
+
     /**
      * <p>Closes all client connections currently connected gracefully.</p>
      *
@@ -34,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -110,10 +111,17 @@ public abstract class PaymentChannelServerState {
     protected long minExpireTime;
 
     protected StoredServerChannel storedServerChannel = null;
+    // The commit of the last update of storedServerChannel.
+    private ListenableFuture<Void> lastUpdateCommitted = Futures.immediateFuture(null);
 
     // The contract and the output script from it
     protected Transaction contract = null;
 
+    // Worked out from the contract when the first payment comes in.
+    private PaymentSighashTemplate sighashTemplate;
+    private Coin minRefund;
+    private Transaction walletContract;
+
     PaymentChannelServerState(StoredServerChannel storedServerChannel, Wallet wallet, TransactionBroadcaster broadcaster) throws VerificationException {
         synchronized (storedServerChannel) {
             this.stateMachine = new StateMachine<State>(State.UNINITIALISED, getStateTransitions());
@@ -226,7 +234,7 @@ public abstract class PaymentChannelServerState {
     }
 
     /**
-     * Called when the client provides us with a new signature and wishes to increment total payment by size.		+
+     * Called when the client provides us with a new signature and wishes to increment total payment by size.
      * Verifies the provided signature and only updates values if everything checks out.
      * If the new refundSize is not the lowest we have seen, it is simply ignored.
      *
@@ -235,7 +243,66 @@ public abstract class PaymentChannelServerState {
      * @throws VerificationException If the signature does not verify or size is out of range (incl being rejected by the network as dust).
      * @return true if there is more value left on the channel, false if it is now fully used up.
      */
-    public synchronized boolean incrementPayment(Coin refundSize, byte[] signatureBytes) throws VerificationException, ValueOutOfRangeException, InsufficientMoneyException {
+    public boolean incrementPayment(Coin refundSize, byte[] signatureBytes) throws VerificationException, ValueOutOfRangeException, InsufficientMoneyException {
+        Payment payment = checkPayment(refundSize, signatureBytes);
+        payment.verify();
+        return applyPayment(payment);
+    }
+
+    /**
+     * Like {@link #incrementPayment(Coin, byte[])}, but checks the signature on the given executor, so many channels
+     * can be paid at once. The checks that don't need the signature are done before this returns and throw straight
+     * away. Payments to the same channel may be verified at the same time; if a higher one gets in first, the lower
+     * one is superseded and leaves the channel as it is.
+     *
+     * @return a future that completes with the result of {@link #incrementPayment(Coin, byte[])}, or fails with a
+     *         {@link VerificationException} if the signature does not verify.
+     */
+    public ListenableFuture<Boolean> incrementPayment(Coin refundSize, byte[] signatureBytes, Executor verifier)
+            throws VerificationException, ValueOutOfRangeException, InsufficientMoneyException {
+        final Payment payment = checkPayment(refundSize, signatureBytes);
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        verifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    payment.verify();
+                    future.set(applyPayment(payment));
+                } catch (Throwable t) {
+                    future.setException(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    // A payment that passed the cheap checks, with the hash its signature has to be checked against.
+    private static class Payment {
+        final Coin newValueToMe;
+        final byte[] signatureBytes;
+        final TransactionSignature signature;
+        final Sha256Hash sighash;
+        final ECKey clientKey;
+        final boolean fullyUsedUp;
+
+        Payment(Coin newValueToMe, byte[] signatureBytes, TransactionSignature signature, Sha256Hash sighash,
+                ECKey clientKey, boolean fullyUsedUp) {
+            this.newValueToMe = newValueToMe;
+            this.signatureBytes = signatureBytes;
+            this.signature = signature;
+            this.sighash = sighash;
+            this.clientKey = clientKey;
+            this.fullyUsedUp = fullyUsedUp;
+        }
+
+        // The expensive part, which doesn't need the lock.
+        void verify() throws VerificationException {
+            if (!clientKey.verify(sighash, signature))
+                throw new VerificationException("Signature does not verify for payment of " + newValueToMe);
+        }
+    }
+
+    private synchronized Payment checkPayment(Coin refundSize, byte[] signatureBytes) throws VerificationException, ValueOutOfRangeException, InsufficientMoneyException {
         stateMachine.checkState(State.READY);
         checkNotNull(refundSize);
         checkNotNull(signatureBytes);
@@ -249,15 +316,22 @@ public abstract class PaymentChannelServerState {
         if (newValueToMe.compareTo(bestValueToMe) < 0)
             throw new ValueOutOfRangeException("Attempt to roll back payment on the channel.");
 
-        SendRequest req = makeUnsignedChannelContract(newValueToMe);
+        // The payment transactions only differ in the refund, so the parts that are the same for all of them are
+        // worked out once per channel.
+        if (sighashTemplate == null) {
+            SendRequest req = makeUnsignedChannelContract(Coin.ZERO);
+            sighashTemplate = new PaymentSighashTemplate(req.tx, getSignedScript());
+            minRefund = req.tx.getOutput(0).getMinNonDustValue();
+        }
 
-        if (!fullyUsedUp && refundSize.isLessThan(req.tx.getOutput(0).getMinNonDustValue()))
+        if (!fullyUsedUp && refundSize.isLessThan(minRefund))
             throw new ValueOutOfRangeException("Attempt to refund negative value or value too small to be accepted by the network");
 
         // Get the wallet's copy of the contract (ie with confidence information), if this is null, the wallet
         // was not connected to the peergroup when the contract was broadcast (which may cause issues down the road, and
         // disables our double-spend check next)
-        Transaction walletContract = wallet.getTransaction(contract.getHash());
+        if (walletContract == null)
+            walletContract = wallet.getTransaction(contract.getHash());
         checkNotNull(walletContract, "Wallet did not contain multisig contract {} after state was marked READY", contract.getHash());
 
         // Note that we check for DEAD state here, but this test is essentially useless in production because we will
@@ -279,17 +353,21 @@ public abstract class PaymentChannelServerState {
         if (signature.sigHashMode() != mode || !signature.anyoneCanPay())
             throw new VerificationException("New payment signature was not signed with the right SIGHASH flags.");
 
-        // Now check the signature is correct.
         // Note that the client must sign with SIGHASH_{SINGLE/NONE} | SIGHASH_ANYONECANPAY to allow us to add additional
         // inputs (in case we need to add significant fee, or something...) and any outputs we want to pay to.
-        Sha256Hash sighash = req.tx.hashForSignature(0, getSignedScript(), mode, true);
-
-        if (!getClientKey().verify(sighash, signature))
-            throw new VerificationException("Signature does not verify on tx\n" + req.tx);
-        bestValueToMe = newValueToMe;
-        bestValueSignature = signatureBytes;
-        updateChannelInWallet();
-        return !fullyUsedUp;
+        Sha256Hash sighash = sighashTemplate.hashForRefund(refundSize);
+        return new Payment(newValueToMe, signatureBytes, signature, sighash, getClientKey(), fullyUsedUp);
+    }
+
+    private synchronized boolean applyPayment(Payment payment) {
+        stateMachine.checkState(State.READY);
+        // Another payment may have been applied whilst this one was being verified.
+        if (payment.newValueToMe.compareTo(bestValueToMe) >= 0) {
+            bestValueToMe = payment.newValueToMe;
+            bestValueSignature = payment.signatureBytes;
+            updateChannelInWallet();
+        }
+        return !payment.fullyUsedUp;
     }
 
     /**
@@ -331,10 +409,19 @@ public abstract class PaymentChannelServerState {
             storedServerChannel.updateValueToMe(bestValueToMe, bestValueSignature);
             StoredPaymentChannelServerStates channels = (StoredPaymentChannelServerStates)
                     wallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
-            channels.updatedChannel(storedServerChannel);
+            lastUpdateCommitted = channels.updatedChannel(storedServerChannel);
         }
     }
 
+    /**
+     * Returns a future that completes once the best payment so far has been committed to the wallet or channel store,
+     * see {@link StoredPaymentChannelServerStates#setCommitDelay(long, java.util.concurrent.TimeUnit)}. Payments
+     * shouldn't be acknowledged before, or a crash could lose payments the client considers made.
+     */
+    public synchronized ListenableFuture<Void> getLastUpdateCommitted() {
+        return lastUpdateCommitted;
+    }
+
     /**
      * Stores this channel's state in the wallet as a part of a {@link StoredPaymentChannelServerStates} wallet
      * extension and keeps it up-to-date each time payment is incremented. This will be automatically removed when
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.protocols.channels;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * <p>Keeps the stored payment channels of a {@link StoredPaymentChannelServerStates} or
+ * {@link StoredPaymentChannelClientStates} outside of the wallet file. Each channel is a separate record, keyed by the
+ * hash of its contract, so an update to one channel writes that channel alone rather than the whole wallet.</p>
+ *
+ * <p>The records are the serialized {@code StoredServerPaymentChannel} or {@code StoredClientPaymentChannel}
+ * protobufs. A store holds the channels of one extension only.</p>
+ */
+public interface PaymentChannelStore extends Closeable {
+    /** Returns all records in the store, keyed by contract hash. */
+    Map<Sha256Hash, byte[]> load() throws IOException;
+
+    /** Writes the record of the channel with the given contract hash, replacing any earlier one. */
+    void put(Sha256Hash contractHash, byte[] record) throws IOException;
+
+    /** Removes the record of the channel with the given contract hash, if there is one. */
+    void remove(Sha256Hash contractHash) throws IOException;
+
+    /** Makes everything written so far durable. */
+    void flush() throws IOException;
+}
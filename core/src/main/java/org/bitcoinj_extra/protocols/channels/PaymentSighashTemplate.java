@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.protocols.channels;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.crypto.TransactionSignature;
+import org.bitcoinj_extra.script.Script;
+import org.bitcoinj_extra.script.ScriptOpCodes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes the signature hashes of the payment transactions of a channel without building them. The client signs
+ * payments with SIGHASH_SINGLE or SIGHASH_NONE together with SIGHASH_ANYONECANPAY, so the only input that is signed
+ * is the contract output and the only output is the refund to the client. Everything but the refund value is the
+ * same for every payment, so it is serialized once up front and each hash only fills in the value.</p>
+ *
+ * <p>The result is the same as that of {@link Transaction#hashForSignature(int, Script, Transaction.SigHash, boolean)}
+ * on the transaction built by {@link PaymentChannelServerState#makeUnsignedChannelContract(Coin)}.</p>
+ */
+class PaymentSighashTemplate {
+    private static final int SINGLE_ANYONECANPAY =
+            TransactionSignature.calcSigHashValue(Transaction.SigHash.SINGLE, true);
+    private static final int NONE_ANYONECANPAY =
+            TransactionSignature.calcSigHashValue(Transaction.SigHash.NONE, true);
+
+    // The version, the input count and the contract input with the signed script in place of its script.
+    private final byte[] prefix;
+    // The length and the bytes of the refund script.
+    private final byte[] refundScript;
+    private final long lockTime;
+
+    /**
+     * @param payment a payment transaction of the channel that refunds something to the client
+     * @param signedScript the script the client signs against, see {@link PaymentChannelServerState#getSignedScript()}
+     */
+    PaymentSighashTemplate(Transaction payment, Script signedScript) {
+        checkArgument(payment.getInputs().size() == 1 && payment.getOutputs().size() == 1);
+        NetworkParameters params = payment.getParams();
+        TransactionInput contractInput = payment.getInput(0);
+        byte[] scriptCode = Script.removeAllInstancesOfOp(signedScript.getProgram(), ScriptOpCodes.OP_CODESEPARATOR);
+        TransactionInput input = new TransactionInput(params, null, scriptCode, contractInput.getOutpoint());
+        input.setSequenceNumber(contractInput.getSequenceNumber());
+        byte[] inputBytes = input.bitcoinSerialize();
+        prefix = new byte[4 + 1 + inputBytes.length];
+        Utils.uint32ToByteArrayLE(payment.getVersion(), prefix, 0);
+        prefix[4] = 1;
+        System.arraycopy(inputBytes, 0, prefix, 5, inputBytes.length);
+        byte[] script = payment.getOutput(0).getScriptBytes();
+        byte[] scriptLength = new VarInt(script.length).encode();
+        refundScript = new byte[scriptLength.length + script.length];
+        System.arraycopy(scriptLength, 0, refundScript, 0, scriptLength.length);
+        System.arraycopy(script, 0, refundScript, scriptLength.length, script.length);
+        lockTime = payment.getLockTime();
+    }
+
+    /**
+     * Returns the hash the client signs for a payment that refunds the given value. A refund of zero means the
+     * payment has no outputs, which the client signs with SIGHASH_NONE, otherwise it is SIGHASH_SINGLE.
+     */
+    Sha256Hash hashForRefund(Coin refund) {
+        boolean none = refund.signum() == 0;
+        // The output count, then the value and the script of the refund if there is one.
+        int outputsLength = none ? 1 : 1 + 8 + refundScript.length;
+        byte[] preimage = new byte[prefix.length + outputsLength + 8];
+        System.arraycopy(prefix, 0, preimage, 0, prefix.length);
+        int offset = prefix.length;
+        if (none) {
+            preimage[offset++] = 0;
+        } else {
+            preimage[offset++] = 1;
+            Utils.uint64ToByteArrayLE(refund.value, preimage, offset);
+            offset += 8;
+            System.arraycopy(refundScript, 0, preimage, offset, refundScript.length);
+            offset += refundScript.length;
+        }
+        Utils.uint32ToByteArrayLE(lockTime, preimage, offset);
+        Utils.uint32ToByteArrayLE(none ? NONE_ANYONECANPAY : SINGLE_ANYONECANPAY, preimage, offset + 4);
+        return Sha256Hash.twiceOf(preimage);
+    }
+}
@@ -35,6 +35,23 @@ public final class ServerState {
      */
     org.bitcoinj_extra.protocols.channels.ServerState.StoredServerPaymentChannelOrBuilder getChannelsOrBuilder(
         int index);
+
+    /**
+     * <code>optional bool channelsInStore = 2;</code>
+     *
+     * <pre>
+     * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+     * </pre>
+     */
+    boolean hasChannelsInStore();
+    /**
+     * <code>optional bool channelsInStore = 2;</code>
+     *
+     * <pre>
+     * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+     * </pre>
+     */
+    boolean getChannelsInStore();
   }
   /**
    * Protobuf type {@code paymentchannels.StoredServerPaymentChannels}
@@ -100,6 +117,11 @@ public final class ServerState {
               channels_.add(input.readMessage(org.bitcoinj_extra.protocols.channels.ServerState.StoredServerPaymentChannel.PARSER, extensionRegistry));
               break;
             }
+            case 16: {
+              bitField0_ |= 0x00000001;
+              channelsInStore_ = input.readBool();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -142,6 +164,7 @@ public final class ServerState {
       return PARSER;
     }
 
+    private int bitField0_;
     public static final int CHANNELS_FIELD_NUMBER = 1;
     private java.util.List<org.bitcoinj_extra.protocols.channels.ServerState.StoredServerPaymentChannel> channels_;
     /**
@@ -177,8 +200,32 @@ public final class ServerState {
       return channels_.get(index);
     }
 
+    public static final int CHANNELSINSTORE_FIELD_NUMBER = 2;
+    private boolean channelsInStore_;
+    /**
+     * <code>optional bool channelsInStore = 2;</code>
+     *
+     * <pre>
+     * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+     * </pre>
+     */
+    public boolean hasChannelsInStore() {
+      return ((bitField0_ & 0x00000001) == 0x00000001);
+    }
+    /**
+     * <code>optional bool channelsInStore = 2;</code>
+     *
+     * <pre>
+     * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+     * </pre>
+     */
+    public boolean getChannelsInStore() {
+      return channelsInStore_;
+    }
+
     private void initFields() {
       channels_ = java.util.Collections.emptyList();
+      channelsInStore_ = false;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -202,6 +249,9 @@ public final class ServerState {
       for (int i = 0; i < channels_.size(); i++) {
         output.writeMessage(1, channels_.get(i));
       }
+      if (((bitField0_ & 0x00000001) == 0x00000001)) {
+        output.writeBool(2, channelsInStore_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -215,6 +265,10 @@ public final class ServerState {
         size += com.google.protobuf.CodedOutputStream
           .computeMessageSize(1, channels_.get(i));
       }
+      if (((bitField0_ & 0x00000001) == 0x00000001)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(2, channelsInStore_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -343,6 +397,8 @@ public final class ServerState {
         } else {
           channelsBuilder_.clear();
         }
+        channelsInStore_ = false;
+        bitField0_ = (bitField0_ & ~0x00000002);
         return this;
       }
 
@@ -370,6 +426,7 @@ public final class ServerState {
       public org.bitcoinj_extra.protocols.channels.ServerState.StoredServerPaymentChannels buildPartial() {
         org.bitcoinj_extra.protocols.channels.ServerState.StoredServerPaymentChannels result = new org.bitcoinj_extra.protocols.channels.ServerState.StoredServerPaymentChannels(this);
         int from_bitField0_ = bitField0_;
+        int to_bitField0_ = 0;
         if (channelsBuilder_ == null) {
           if (((bitField0_ & 0x00000001) == 0x00000001)) {
             channels_ = java.util.Collections.unmodifiableList(channels_);
@@ -379,6 +436,11 @@ public final class ServerState {
         } else {
           result.channels_ = channelsBuilder_.build();
         }
+        if (((from_bitField0_ & 0x00000002) == 0x00000002)) {
+          to_bitField0_ |= 0x00000001;
+        }
+        result.channelsInStore_ = channelsInStore_;
+        result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
       }
@@ -420,6 +482,9 @@ public final class ServerState {
             }
           }
         }
+        if (other.hasChannelsInStore()) {
+          setChannelsInStore(other.getChannelsInStore());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -693,6 +758,55 @@ public final class ServerState {
         return channelsBuilder_;
       }
 
+
+      private boolean channelsInStore_ ;
+      /**
+       * <code>optional bool channelsInStore = 2;</code>
+       *
+       * <pre>
+       * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+       * </pre>
+       */
+      public boolean hasChannelsInStore() {
+        return ((bitField0_ & 0x00000002) == 0x00000002);
+      }
+      /**
+       * <code>optional bool channelsInStore = 2;</code>
+       *
+       * <pre>
+       * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+       * </pre>
+       */
+      public boolean getChannelsInStore() {
+        return channelsInStore_;
+      }
+      /**
+       * <code>optional bool channelsInStore = 2;</code>
+       *
+       * <pre>
+       * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+       * </pre>
+       */
+      public Builder setChannelsInStore(boolean value) {
+        bitField0_ |= 0x00000002;
+        channelsInStore_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bool channelsInStore = 2;</code>
+       *
+       * <pre>
+       * Set when the channels are kept in a PaymentChannelStore instead of in this message, which is then empty.
+       * </pre>
+       */
+      public Builder clearChannelsInStore() {
+        bitField0_ = (bitField0_ & ~0x00000002);
+        channelsInStore_ = false;
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:paymentchannels.StoredServerPaymentChannels)
     }
 
@@ -1754,9 +1868,9 @@ public final class ServerState {
   static {
     java.lang.String[] descriptorData = {
       "\n storedserverpaymentchannel.proto\022\017paym" +
-      "entchannels\"\\\n\033StoredServerPaymentChanne" +
+      "entchannels\"u\n\033StoredServerPaymentChanne" +
       "ls\022=\n\010channels\030\001 \003(\0132+.paymentchannels.S" +
-      "toredServerPaymentChannel\"\346\001\n\032StoredServ" +
+      "toredServerPaymentChannel\022\027\n\017channelsInStore\030\002 \001(\010\"\346\001\n\032StoredServ" +
       "erPaymentChannel\022\025\n\rbestValueToMe\030\001 \002(\004\022" +
       "\032\n\022bestValueSignature\030\002 \001(\014\022\'\n\037refundTra" +
       "nsactionUnlockTimeSecs\030\003 \002(\004\022\033\n\023contract" +
@@ -1782,7 +1896,7 @@ public final class ServerState {
     internal_static_paymentchannels_StoredServerPaymentChannels_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessage.FieldAccessorTable(
         internal_static_paymentchannels_StoredServerPaymentChannels_descriptor,
-        new java.lang.String[] { "Channels", });
+        new java.lang.String[] { "Channels", "ChannelsInStore", });
     internal_static_paymentchannels_StoredServerPaymentChannel_descriptor =
       getDescriptor().getMessageTypes().get(1);
     internal_static_paymentchannels_StoredServerPaymentChannel_fieldAccessorTable = new
@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -58,6 +59,9 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
 
     protected final ReentrantLock lock = Threading.lock("StoredPaymentChannelClientStates");
 
+    // Holds the channels instead of the wallet if set.
+    @Nullable private volatile PaymentChannelStore store;
+
     /**
      * Creates a new StoredPaymentChannelClientStates and associates it with the given {@link Wallet} and
      * {@link TransactionBroadcaster} which are used to complete and announce contract and refund
@@ -87,6 +91,18 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
         this.announcePeerGroupFuture.set(checkNotNull(transactionBroadcaster));
     }
 
+    /**
+     * <p>Keeps the channels in the given store rather than in the wallet file, so that an update writes the updated
+     * channel only. The wallet extension is still saved, but without any channels. Must be set before the wallet is
+     * loaded, as the channels are read from the store when the extension is.</p>
+     *
+     * <p>Channels found in the wallet extension, as saved without a store, are moved into the store when the wallet is
+     * loaded. A channel that is already in the store is left as it is there.</p>
+     */
+    public void setChannelStore(@Nullable PaymentChannelStore store) {
+        this.store = store;
+    }
+
     /** Returns this extension from the given wallet, or null if no such extension was added. */
     @Nullable
     public static StoredPaymentChannelClientStates getFromWallet(Wallet wallet) {
@@ -199,7 +215,25 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      */
     void updatedChannel(final StoredClientChannel channel) {
         log.info("Stored client channel {} was updated", channel.hashCode());
-        containingWallet.addOrUpdateExtension(this);
+        final PaymentChannelStore store = this.store;
+        if (store == null) {
+            containingWallet.addOrUpdateExtension(this);
+            return;
+        }
+        final Sha256Hash hash = channel.contract.getHash();
+        // Under the lock so that removing a channel can't be overtaken by an update storing it again.
+        lock.lock();
+        try {
+            if (mapChannels.containsEntry(channel.id, channel))
+                store.put(hash, toProto(channel).toByteArray());
+            else
+                store.remove(hash);
+            store.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -279,80 +313,125 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
         return EXTENSION_ID;
     }
 
+    /**
+     * Returns true while the channels are kept in a {@link PaymentChannelStore}: a wallet saved that way holds no
+     * channels itself, so it must not be loaded without this extension and its store.
+     */
     @Override
     public boolean isWalletExtensionMandatory() {
-        return false;
+        return store != null;
     }
 
     @Override
     public byte[] serializeWalletExtension() {
         lock.lock();
         try {
-            final NetworkParameters params = getNetworkParameters();
-            // If we haven't attached to a wallet yet we can't check against network parameters
-            final boolean hasMaxMoney = params != null ? params.hasMaxMoney() : true;
-            final Coin networkMaxMoney = params != null ? params.getMaxMoney() : NetworkParameters.MAX_MONEY;
             ClientState.StoredClientPaymentChannels.Builder builder = ClientState.StoredClientPaymentChannels.newBuilder();
-            for (StoredClientChannel channel : mapChannels.values()) {
-                // First a few asserts to make sure things won't break
-                checkState(channel.valueToMe.signum() >= 0 &&
-                        (!hasMaxMoney || channel.valueToMe.compareTo(networkMaxMoney) <= 0));
-                checkState(channel.refundFees.signum() >= 0 &&
-                        (!hasMaxMoney || channel.refundFees.compareTo(networkMaxMoney) <= 0));
-                checkNotNull(channel.myKey.getPubKey());
-                checkState(channel.refund.getConfidence().getSource() == TransactionConfidence.Source.SELF);
-                checkNotNull(channel.myKey.getPubKey());
-                final ClientState.StoredClientPaymentChannel.Builder value = ClientState.StoredClientPaymentChannel.newBuilder()
-                        .setMajorVersion(channel.majorVersion)
-                        .setId(ByteString.copyFrom(channel.id.getBytes()))
-                        .setContractTransaction(ByteString.copyFrom(channel.contract.unsafeBitcoinSerialize()))
-                        .setRefundFees(channel.refundFees.value)
-                        .setRefundTransaction(ByteString.copyFrom(channel.refund.unsafeBitcoinSerialize()))
-                        .setMyKey(ByteString.copyFrom(new byte[0])) // Not  used, but protobuf message requires
-                        .setMyPublicKey(ByteString.copyFrom(channel.myKey.getPubKey()))
-                        .setServerKey(ByteString.copyFrom(channel.serverKey.getPubKey()))
-                        .setValueToMe(channel.valueToMe.value)
-                        .setExpiryTime(channel.expiryTime);
-                if (channel.close != null)
-                    value.setCloseTransactionHash(ByteString.copyFrom(channel.close.getHash().getBytes()));
-                builder.addChannels(value);
+            final PaymentChannelStore store = this.store;
+            if (store != null) {
+                // The channels are in the store, only the (empty) extension itself goes into the wallet.
+                try {
+                    store.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return builder.setChannelsInStore(true).build().toByteArray();
             }
+            for (StoredClientChannel channel : mapChannels.values())
+                builder.addChannels(toProto(channel));
             return builder.build().toByteArray();
         } finally {
             lock.unlock();
         }
     }
 
+    private ClientState.StoredClientPaymentChannel toProto(StoredClientChannel channel) {
+        final NetworkParameters params = getNetworkParameters();
+        // If we haven't attached to a wallet yet we can't check against network parameters
+        final boolean hasMaxMoney = params != null ? params.hasMaxMoney() : true;
+        final Coin networkMaxMoney = params != null ? params.getMaxMoney() : NetworkParameters.MAX_MONEY;
+        // First a few asserts to make sure things won't break
+        checkState(channel.valueToMe.signum() >= 0 &&
+                (!hasMaxMoney || channel.valueToMe.compareTo(networkMaxMoney) <= 0));
+        checkState(channel.refundFees.signum() >= 0 &&
+                (!hasMaxMoney || channel.refundFees.compareTo(networkMaxMoney) <= 0));
+        checkNotNull(channel.myKey.getPubKey());
+        checkState(channel.refund.getConfidence().getSource() == TransactionConfidence.Source.SELF);
+        checkNotNull(channel.myKey.getPubKey());
+        final ClientState.StoredClientPaymentChannel.Builder value = ClientState.StoredClientPaymentChannel.newBuilder()
+                .setMajorVersion(channel.majorVersion)
+                .setId(ByteString.copyFrom(channel.id.getBytes()))
+                .setContractTransaction(ByteString.copyFrom(channel.contract.unsafeBitcoinSerialize()))
+                .setRefundFees(channel.refundFees.value)
+                .setRefundTransaction(ByteString.copyFrom(channel.refund.unsafeBitcoinSerialize()))
+                .setMyKey(ByteString.copyFrom(new byte[0])) // Not  used, but protobuf message requires
+                .setMyPublicKey(ByteString.copyFrom(channel.myKey.getPubKey()))
+                .setServerKey(ByteString.copyFrom(channel.serverKey.getPubKey()))
+                .setValueToMe(channel.valueToMe.value)
+                .setExpiryTime(channel.expiryTime);
+        if (channel.close != null)
+            value.setCloseTransactionHash(ByteString.copyFrom(channel.close.getHash().getBytes()));
+        return value.build();
+    }
+
+    private StoredClientChannel fromProto(Wallet containingWallet, ClientState.StoredClientPaymentChannel storedState) {
+        NetworkParameters params = containingWallet.getParams();
+        Transaction refundTransaction = params.getDefaultSerializer().makeTransaction(storedState.getRefundTransaction().toByteArray());
+        refundTransaction.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        ECKey myKey = (storedState.getMyKey().isEmpty()) ?
+                containingWallet.findKeyFromPubKey(storedState.getMyPublicKey().toByteArray()) :
+                ECKey.fromPrivate(storedState.getMyKey().toByteArray());
+        ECKey serverKey = storedState.hasServerKey() ? ECKey.fromPublicOnly(storedState.getServerKey().toByteArray()) : null;
+        StoredClientChannel channel = new StoredClientChannel(storedState.getMajorVersion(),
+                Sha256Hash.wrap(storedState.getId().toByteArray()),
+                params.getDefaultSerializer().makeTransaction(storedState.getContractTransaction().toByteArray()),
+                refundTransaction,
+                myKey,
+                serverKey,
+                Coin.valueOf(storedState.getValueToMe()),
+                Coin.valueOf(storedState.getRefundFees()),
+                storedState.getExpiryTime(),
+                false);
+        if (storedState.hasCloseTransactionHash()) {
+            Sha256Hash closeTxHash = Sha256Hash.wrap(storedState.getCloseTransactionHash().toByteArray());
+            channel.close = containingWallet.getTransaction(closeTxHash);
+        }
+        return channel;
+    }
+
     @Override
     public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception {
         lock.lock();
         try {
             checkState(this.containingWallet == null || this.containingWallet == containingWallet);
             this.containingWallet = containingWallet;
-            NetworkParameters params = containingWallet.getParams();
             ClientState.StoredClientPaymentChannels states = ClientState.StoredClientPaymentChannels.parseFrom(data);
+            final PaymentChannelStore store = this.store;
+            if (store == null) {
+                if (states.getChannelsInStore())
+                    throw new IllegalStateException("The client channels of this wallet are kept in a channel store, " +
+                            "call setChannelStore before loading it");
+                for (ClientState.StoredClientPaymentChannel storedState : states.getChannelsList())
+                    putChannel(fromProto(containingWallet, storedState), false);
+                return;
+            }
+            Map<Sha256Hash, byte[]> records = store.load();
+            for (byte[] record : records.values())
+                putChannel(fromProto(containingWallet, ClientState.StoredClientPaymentChannel.parseFrom(record)), false);
+            int migrated = 0;
             for (ClientState.StoredClientPaymentChannel storedState : states.getChannelsList()) {
-                Transaction refundTransaction = params.getDefaultSerializer().makeTransaction(storedState.getRefundTransaction().toByteArray());
-                refundTransaction.getConfidence().setSource(TransactionConfidence.Source.SELF);
-                ECKey myKey = (storedState.getMyKey().isEmpty()) ?
-                        containingWallet.findKeyFromPubKey(storedState.getMyPublicKey().toByteArray()) :
-                        ECKey.fromPrivate(storedState.getMyKey().toByteArray());
-                ECKey serverKey = storedState.hasServerKey() ? ECKey.fromPublicOnly(storedState.getServerKey().toByteArray()) : null;
-                StoredClientChannel channel = new StoredClientChannel(storedState.getMajorVersion(),
-                        Sha256Hash.wrap(storedState.getId().toByteArray()),
-                        params.getDefaultSerializer().makeTransaction(storedState.getContractTransaction().toByteArray()),
-                        refundTransaction,
-                        myKey,
-                        serverKey,
-                        Coin.valueOf(storedState.getValueToMe()),
-                        Coin.valueOf(storedState.getRefundFees()),
-                        storedState.getExpiryTime(),
-                        false);
-                if (storedState.hasCloseTransactionHash()) {
-                    Sha256Hash closeTxHash = Sha256Hash.wrap(storedState.getCloseTransactionHash().toByteArray());
-                    channel.close = containingWallet.getTransaction(closeTxHash);
-                }
+                StoredClientChannel channel = fromProto(containingWallet, storedState);
+                if (records.containsKey(channel.contract.getHash()))
+                    continue;
                 putChannel(channel, false);
+                store.put(channel.contract.getHash(), storedState.toByteArray());
+                migrated++;
+            }
+            if (!states.getChannelsList().isEmpty()) {
+                log.info("Moved {} client channels from the wallet into the channel store", migrated);
+                store.flush();
+                // Save the wallet without them, so that removed channels don't come back from the old data.
+                containingWallet.addOrUpdateExtension(this);
             }
         } finally {
             lock.unlock();
@@ -23,16 +23,20 @@ import org.bitcoinj_extra.wallet.Wallet;
 import org.bitcoinj_extra.wallet.WalletExtension;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
-import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -47,7 +51,8 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
     static final String EXTENSION_ID = StoredPaymentChannelServerStates.class.getName();
     static final int MAX_SECONDS_TO_WAIT_FOR_BROADCASTER_TO_BE_SET = 10;
 
-    @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<Sha256Hash, StoredServerChannel>();
+    // Written under the lock, read without it by the payments of many channels at once.
+    @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new ConcurrentHashMap<Sha256Hash, StoredServerChannel>();
     private Wallet wallet;
     private final SettableFuture<TransactionBroadcaster> broadcasterFuture = SettableFuture.create();
 
@@ -55,6 +60,14 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
+    // How long updates are collected before the wallet is told about them, zero to tell it about each one.
+    private volatile long commitDelayMillis = DEFAULT_COMMIT_DELAY_MILLIS;
+    // Set whilst a commit of collected updates is scheduled, completes when it is done.
+    private final AtomicReference<SettableFuture<Void>> scheduledCommit = new AtomicReference<SettableFuture<Void>>();
+
+    // Holds the channels instead of the wallet if set.
+    @Nullable private volatile PaymentChannelStore store;
+
     /**
      * The offset between the refund transaction's lock time and the time channels will be automatically closed.
      * This defines a window during which we must get the last payment transaction verified, ie it should allow time for
@@ -64,6 +77,12 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      */
     public static final long CHANNEL_EXPIRE_OFFSET = -2*60*60;
 
+    /**
+     * The default for {@link #setCommitDelay(long, TimeUnit)}. Short enough to add little to the time a client waits for
+     * its payment to be acknowledged, long enough for a busy server to save the wallet once for many payments.
+     */
+    public static final long DEFAULT_COMMIT_DELAY_MILLIS = 100;
+
     /**
      * Creates a new PaymentChannelServerStateManager and associates it with the given {@link Wallet} and
      * {@link TransactionBroadcaster} which are used to complete and announce payment transactions.
@@ -92,6 +111,18 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
         this.broadcasterFuture.set(checkNotNull(broadcaster));
     }
 
+    /**
+     * <p>Keeps the channels in the given store rather than in the wallet file, so that an update writes the updated
+     * channel only. The wallet extension is still saved, but without any channels. Must be set before the wallet is
+     * loaded, as the channels are read from the store when the extension is.</p>
+     *
+     * <p>Channels found in the wallet extension, as saved without a store, are moved into the store when the wallet is
+     * loaded. A channel that is already in the store is left as it is there.</p>
+     */
+    public void setChannelStore(@Nullable PaymentChannelStore store) {
+        this.store = store;
+    }
+
     /** Returns this extension from the given wallet, or null if no such extension was added. */
     @Nullable
     public static StoredPaymentChannelServerStates getFromWallet(Wallet wallet) {
@@ -151,12 +182,7 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
      */
     public StoredServerChannel getChannel(Sha256Hash id) {
-        lock.lock();
-        try {
-            return mapChannels.get(id);
-        } finally {
-            lock.unlock();
-        }
+        return mapChannels.get(id);
     }
 
     /**
@@ -173,11 +199,103 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     /**
      * Notifies the set of stored states that a channel has been updated. Use to notify the wallet of an update to this
-     * wallet extension.
+     * wallet extension. If a commit delay is set, the wallet is told about all updates within the delay at once, see
+     * {@link #setCommitDelay(long, TimeUnit)}.
+     *
+     * @return a future that completes once the commit that includes this update is done, or fails if it failed.
+     */
+    public ListenableFuture<Void> updatedChannel(final StoredServerChannel channel) {
+        log.debug("Stored server channel {} was updated", channel.hashCode());
+        final PaymentChannelStore store = this.store;
+        if (store != null)
+            storeChannel(store, channel);
+        long delay = commitDelayMillis;
+        if (delay == 0) {
+            persist();
+            return Futures.immediateFuture(null);
+        }
+        // A commit that is scheduled but hasn't started yet includes this update, as it persists after taking the
+        // future out.
+        while (true) {
+            SettableFuture<Void> commit = scheduledCommit.get();
+            if (commit != null)
+                return commit;
+            commit = SettableFuture.create();
+            if (scheduledCommit.compareAndSet(null, commit)) {
+                channelTimeoutHandler.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            commit();
+                        } catch (Exception e) {
+                            // Catch here or else we take down the whole Timer.
+                            log.error("Committing channel updates failed", e);
+                        }
+                    }
+                }, delay);
+                return commit;
+            }
+        }
+    }
+
+    /**
+     * <p>Collects channel updates for the given time before the wallet is told about them, so that a wallet with
+     * autosave enabled is saved once for all the payments in that time rather than once per payment. This is what
+     * makes thousands of payments per second affordable. {@link PaymentChannelServer} only acknowledges a payment
+     * once the commit that includes it is done, so the delay is added to the time a client waits for the
+     * acknowledgement. The default is {@link #DEFAULT_COMMIT_DELAY_MILLIS}, zero tells the wallet about every update.
+     * With a {@link PaymentChannelStore} the delay applies to flushing the store instead.</p>
+     *
+     * <p>Call {@link #commit()} before shutting down so nothing collected is lost.</p>
      */
-    public void updatedChannel(final StoredServerChannel channel) {
-        log.info("Stored server channel {} was updated", channel.hashCode());
-        wallet.addOrUpdateExtension(this);
+    public void setCommitDelay(long delay, TimeUnit unit) {
+        checkArgument(delay >= 0);
+        commitDelayMillis = unit.toMillis(delay);
+        if (commitDelayMillis == 0)
+            commit();
+    }
+
+    /** Tells the wallet about the channel updates collected since the last commit, if there are any. */
+    public void commit() {
+        final SettableFuture<Void> commit = scheduledCommit.getAndSet(null);
+        if (commit == null)
+            return;
+        try {
+            persist();
+        } catch (RuntimeException e) {
+            commit.setException(e);
+            throw e;
+        }
+        commit.set(null);
+    }
+
+    private void persist() {
+        final PaymentChannelStore store = this.store;
+        if (store == null) {
+            wallet.addOrUpdateExtension(this);
+            return;
+        }
+        try {
+            store.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Writes the channel to the store, or removes it from there if it has been closed.
+    private void storeChannel(PaymentChannelStore store, StoredServerChannel channel) {
+        final Sha256Hash hash = channel.contract.getHash();
+        // Under the channel lock so that closing a channel can't be overtaken by a payment storing it again.
+        synchronized (channel) {
+            try {
+                if (mapChannels.get(hash) == channel)
+                    store.put(hash, toProto(channel).toByteArray());
+                else
+                    store.remove(hash);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     /**
@@ -188,6 +306,11 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
+        putChannel(channel, true);
+    }
+
+    // Adds this channel and optionally writes it out (not for channels that were just read from the store).
+    private void putChannel(final StoredServerChannel channel, boolean update) {
         lock.lock();
         try {
             checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
@@ -211,7 +334,8 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
         } finally {
             lock.unlock();
         }
-        updatedChannel(channel);
+        if (update)
+            updatedChannel(channel);
     }
 
     @Override
@@ -219,48 +343,84 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
         return EXTENSION_ID;
     }
 
+    /**
+     * Returns true while the channels are kept in a {@link PaymentChannelStore}: a wallet saved that way holds no
+     * channels itself, so it must not be loaded without this extension and its store.
+     */
     @Override
     public boolean isWalletExtensionMandatory() {
-        return false;
+        return store != null;
     }
 
     @Override
     public byte[] serializeWalletExtension() {
         lock.lock();
         try {
-            final NetworkParameters params = getNetworkParameters();
-            // If we haven't attached to a wallet yet we can't check against network parameters
-            final boolean hasMaxMoney = params != null ? params.hasMaxMoney() : true;
-            final Coin networkMaxMoney = params != null ? params.getMaxMoney() : NetworkParameters.MAX_MONEY;
             ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
-            for (StoredServerChannel channel : mapChannels.values()) {
-                // First a few asserts to make sure things won't break
-                // TODO: Pull MAX_MONEY from network parameters
-                checkState(channel.bestValueToMe.signum() >= 0 && 
-                        (!hasMaxMoney || channel.bestValueToMe.compareTo(networkMaxMoney) <= 0));
-                checkState(channel.refundTransactionUnlockTimeSecs > 0);
-                checkNotNull(channel.myKey.getPrivKeyBytes());
-                ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
-                        .setMajorVersion(channel.majorVersion)
-                        .setBestValueToMe(channel.bestValueToMe.value)
-                        .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
-                        .setContractTransaction(ByteString.copyFrom(channel.contract.unsafeBitcoinSerialize()))
-                        .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
-                if (channel.majorVersion == 1) {
-                    channelBuilder.setClientOutput(ByteString.copyFrom(channel.clientOutput.unsafeBitcoinSerialize()));
-                } else {
-                    channelBuilder.setClientKey(ByteString.copyFrom(channel.clientKey.getPubKey()));
+            final PaymentChannelStore store = this.store;
+            if (store != null) {
+                // The channels are in the store, only the (empty) extension itself goes into the wallet.
+                try {
+                    store.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
-                if (channel.bestValueSignature != null)
-                    channelBuilder.setBestValueSignature(ByteString.copyFrom(channel.bestValueSignature));
-                builder.addChannels(channelBuilder);
+                return builder.setChannelsInStore(true).build().toByteArray();
             }
+            for (StoredServerChannel channel : mapChannels.values())
+                builder.addChannels(toProto(channel));
             return builder.build().toByteArray();
         } finally {
             lock.unlock();
         }
     }
 
+    private ServerState.StoredServerPaymentChannel toProto(StoredServerChannel channel) {
+        final NetworkParameters params = getNetworkParameters();
+        // If we haven't attached to a wallet yet we can't check against network parameters
+        final boolean hasMaxMoney = params != null ? params.hasMaxMoney() : true;
+        final Coin networkMaxMoney = params != null ? params.getMaxMoney() : NetworkParameters.MAX_MONEY;
+        // First a few asserts to make sure things won't break
+        checkState(channel.bestValueToMe.signum() >= 0 &&
+                (!hasMaxMoney || channel.bestValueToMe.compareTo(networkMaxMoney) <= 0));
+        checkState(channel.refundTransactionUnlockTimeSecs > 0);
+        checkNotNull(channel.myKey.getPrivKeyBytes());
+        ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
+                .setMajorVersion(channel.majorVersion)
+                .setBestValueToMe(channel.bestValueToMe.value)
+                .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
+                .setContractTransaction(ByteString.copyFrom(channel.contract.unsafeBitcoinSerialize()))
+                .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
+        if (channel.majorVersion == 1) {
+            channelBuilder.setClientOutput(ByteString.copyFrom(channel.clientOutput.unsafeBitcoinSerialize()));
+        } else {
+            channelBuilder.setClientKey(ByteString.copyFrom(channel.clientKey.getPubKey()));
+        }
+        if (channel.bestValueSignature != null)
+            channelBuilder.setBestValueSignature(ByteString.copyFrom(channel.bestValueSignature));
+        return channelBuilder.build();
+    }
+
+    private static StoredServerChannel fromProto(NetworkParameters params, ServerState.StoredServerPaymentChannel storedState) {
+        final int majorVersion = storedState.getMajorVersion();
+        TransactionOutput clientOutput = null;
+        ECKey clientKey = null;
+        if (majorVersion == 1) {
+            clientOutput = new TransactionOutput(params, null, storedState.getClientOutput().toByteArray(), 0);
+        } else {
+            clientKey = ECKey.fromPublicOnly(storedState.getClientKey().toByteArray());
+        }
+        return new StoredServerChannel(null,
+                majorVersion,
+                params.getDefaultSerializer().makeTransaction(storedState.getContractTransaction().toByteArray()),
+                clientOutput,
+                storedState.getRefundTransactionUnlockTimeSecs(),
+                ECKey.fromPrivate(storedState.getMyKey().toByteArray()),
+                clientKey,
+                Coin.valueOf(storedState.getBestValueToMe()),
+                storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
+    }
+
     @Override
     public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception {
         lock.lock();
@@ -268,25 +428,30 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
             this.wallet = containingWallet;
             ServerState.StoredServerPaymentChannels states = ServerState.StoredServerPaymentChannels.parseFrom(data);
             NetworkParameters params = containingWallet.getParams();
+            final PaymentChannelStore store = this.store;
+            if (store == null) {
+                if (states.getChannelsInStore())
+                    throw new IllegalStateException("The server channels of this wallet are kept in a channel store, " +
+                            "call setChannelStore before loading it");
+                for (ServerState.StoredServerPaymentChannel storedState : states.getChannelsList())
+                    putChannel(fromProto(params, storedState));
+                return;
+            }
+            Map<Sha256Hash, byte[]> records = store.load();
+            for (byte[] record : records.values())
+                putChannel(fromProto(params, ServerState.StoredServerPaymentChannel.parseFrom(record)), false);
+            int migrated = 0;
             for (ServerState.StoredServerPaymentChannel storedState : states.getChannelsList()) {
-                final int majorVersion = storedState.getMajorVersion();
-                TransactionOutput clientOutput = null;
-                ECKey clientKey = null;
-                if (majorVersion == 1) {
-                    clientOutput = new TransactionOutput(params, null, storedState.getClientOutput().toByteArray(), 0);
-                } else {
-                    clientKey = ECKey.fromPublicOnly(storedState.getClientKey().toByteArray());
-                }
-                StoredServerChannel channel = new StoredServerChannel(null,
-                        majorVersion,
-                        params.getDefaultSerializer().makeTransaction(storedState.getContractTransaction().toByteArray()),
-                        clientOutput,
-                        storedState.getRefundTransactionUnlockTimeSecs(),
-                        ECKey.fromPrivate(storedState.getMyKey().toByteArray()),
-                        clientKey,
-                        Coin.valueOf(storedState.getBestValueToMe()),
-                        storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
+                StoredServerChannel channel = fromProto(params, storedState);
+                if (records.containsKey(channel.contract.getHash()))
+                    continue;
                 putChannel(channel);
+                migrated++;
+            }
+            if (!states.getChannelsList().isEmpty()) {
+                log.info("Moved {} server channels from the wallet into the channel store", migrated);
+                // Save the wallet without them, so that closed channels don't come back from the old data.
+                containingWallet.addOrUpdateExtension(this);
             }
         } finally {
             lock.unlock();
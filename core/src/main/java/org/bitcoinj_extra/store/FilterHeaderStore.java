@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.store;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>Keeps the filter headers of compact block filters (BIP 157), along with the hashes of their blocks, by height. A
+ * filter header commits to the filter of its block and to all filter headers before it, so a client that has the
+ * header of a block can check a filter it downloads later, see
+ * {@link org.bitcoinj_extra.core.CompactBlockFilter#calculateHeader(Sha256Hash, Sha256Hash)}.</p>
+ *
+ * <p>A store holds one unbroken run of heights. It usually starts where the chain was first synced with compact
+ * filters, as blocks before the fast catchup time are never filtered.</p>
+ *
+ * <p>FilterHeaderStores are thread safe.</p>
+ */
+public interface FilterHeaderStore {
+    /**
+     * Saves the filter header of the block at the given height. Headers above that height are forgotten, as they
+     * belonged to a chain that was re-organized away. If the height doesn't follow on from the stored ones, the store
+     * starts over at the given height.
+     */
+    void put(int height, Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException;
+
+    /** Returns the filter header of the block at the given height, or null if it isn't in the store. */
+    @Nullable
+    Sha256Hash getFilterHeader(int height) throws BlockStoreException;
+
+    /** Returns the hash of the block at the given height, or null if it isn't in the store. */
+    @Nullable
+    Sha256Hash getBlockHash(int height) throws BlockStoreException;
+
+    /** Returns the height of the highest stored header, or -1 if the store is empty. */
+    int getHeight() throws BlockStoreException;
+
+    /** Closes the store. */
+    void close() throws BlockStoreException;
+}
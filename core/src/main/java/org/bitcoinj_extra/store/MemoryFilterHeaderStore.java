@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.store;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+import org.bitcoinj_extra.utils.Threading;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps filter headers in memory. Used primarily for unit testing.
+ */
+public class MemoryFilterHeaderStore implements FilterHeaderStore {
+    private final ReentrantLock lock = Threading.lock("MemoryFilterHeaderStore");
+    @GuardedBy("lock") private int startHeight;
+    // Pairs of block hash and filter header, from the start height on.
+    @GuardedBy("lock") private final List<Sha256Hash[]> entries = new ArrayList<Sha256Hash[]>();
+
+    @Override
+    public void put(int height, Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (entries.isEmpty() || height < startHeight || height > startHeight + entries.size()) {
+                entries.clear();
+                startHeight = height;
+            }
+            entries.subList(height - startHeight, entries.size()).clear();
+            entries.add(new Sha256Hash[] { blockHash, filterHeader });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getFilterHeader(int height) throws BlockStoreException {
+        Sha256Hash[] entry = get(height);
+        return entry == null ? null : entry[1];
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        Sha256Hash[] entry = get(height);
+        return entry == null ? null : entry[0];
+    }
+
+    @Nullable
+    private Sha256Hash[] get(int height) {
+        lock.lock();
+        try {
+            if (height < startHeight || height >= startHeight + entries.size())
+                return null;
+            return entries.get(height - startHeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getHeight() throws BlockStoreException {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? -1 : startHeight + entries.size() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        // Nothing to do.
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.store;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps filter headers in a file, next to the {@link SPVBlockStore} of the chain. The file starts with a magic
+ * value and the height of the first header, followed by a record of the block hash and filter header for each height.
+ * Unlike the block store it isn't a ring buffer: the file grows by 64 bytes per block, about 3.5 megabytes a year.</p>
+ */
+public class SPVFilterHeaderStore implements FilterHeaderStore {
+    private static final Logger log = LoggerFactory.getLogger(SPVFilterHeaderStore.class);
+
+    public static final String HEADER_MAGIC = "SPVF";
+    private static final int PROLOGUE_BYTES = 8;
+    private static final int RECORD_SIZE = 64;
+
+    private final ReentrantLock lock = Threading.lock("SPVFilterHeaderStore");
+    @GuardedBy("lock") @Nullable private RandomAccessFile randomAccessFile;
+    // Used to stop other applications/processes from opening the store.
+    @GuardedBy("lock") private FileLock fileLock;
+    @GuardedBy("lock") private int startHeight;
+    @GuardedBy("lock") private int numRecords;
+
+    /** Opens the store in the given file, creating it if it is missing. */
+    public SPVFilterHeaderStore(File file) throws BlockStoreException {
+        checkNotNull(file);
+        try {
+            boolean exists = file.exists();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            fileLock = randomAccessFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            if (exists) {
+                byte[] header = new byte[4];
+                randomAccessFile.readFully(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                startHeight = randomAccessFile.readInt();
+                // A record cut short by a crash is dropped.
+                numRecords = (int) ((randomAccessFile.length() - PROLOGUE_BYTES) / RECORD_SIZE);
+            } else {
+                log.info("Creating new filter header file {}", file);
+                randomAccessFile.write(HEADER_MAGIC.getBytes("US-ASCII"));
+                randomAccessFile.writeInt(0);
+            }
+        } catch (Exception e) {
+            try {
+                if (randomAccessFile != null) randomAccessFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void put(int height, Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException {
+        lock.lock();
+        try {
+            RandomAccessFile file = checkOpen();
+            if (numRecords == 0 || height < startHeight || height > startHeight + numRecords) {
+                startHeight = height;
+                numRecords = 0;
+                file.seek(4);
+                file.writeInt(startHeight);
+            }
+            numRecords = height - startHeight;
+            long position = PROLOGUE_BYTES + (long) numRecords * RECORD_SIZE;
+            file.setLength(position);
+            file.seek(position);
+            file.write(blockHash.getBytes());
+            file.write(filterHeader.getBytes());
+            numRecords++;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getFilterHeader(int height) throws BlockStoreException {
+        return read(height, 32);
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        return read(height, 0);
+    }
+
+    @Nullable
+    private Sha256Hash read(int height, int offset) throws BlockStoreException {
+        lock.lock();
+        try {
+            RandomAccessFile file = checkOpen();
+            if (height < startHeight || height >= startHeight + numRecords)
+                return null;
+            file.seek(PROLOGUE_BYTES + (long) (height - startHeight) * RECORD_SIZE + offset);
+            byte[] hash = new byte[32];
+            file.readFully(hash);
+            return Sha256Hash.wrap(hash);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getHeight() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return numRecords == 0 ? -1 : startHeight + numRecords - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (randomAccessFile == null)
+                return;
+            // Releases the file lock, too.
+            randomAccessFile.close();
+            randomAccessFile = null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private RandomAccessFile checkOpen() throws BlockStoreException {
+        if (randomAccessFile == null)
+            throw new BlockStoreException("Store closed");
+        return randomAccessFile;
+    }
+}
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.lang.reflect.Method;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -198,4 +199,49 @@ public class Threading {
                 }
             })
     );
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Virtual threads.
+    //
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Thread.ofVirtual() and the methods of Thread.Builder, looked up reflectively as they only exist on Java 21+.
+    @Nullable private static final Method OF_VIRTUAL, BUILDER_NAME, BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null, builderName = null, builderFactory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderFactory = builder.getMethod("factory");
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    /** Returns true if the JVM can run virtual threads, which is the case from Java 21 on. */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns a factory for virtual threads with the given name, or null if the JVM doesn't support them. Virtual threads
+     * are cheap to create and to block, which suits code that spends most of its time waiting on a socket.
+     */
+    @Nullable
+    public static ThreadFactory virtualThreadFactory(String name) {
+        if (OF_VIRTUAL == null)
+            return null;
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        } catch (Exception e) {
+            throw new RuntimeException(e);  // Can't happen if the methods were found.
+        }
+    }
 }
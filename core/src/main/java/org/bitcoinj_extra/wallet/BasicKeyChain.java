@@ -24,11 +24,13 @@ import org.bitcoinj_extra.utils.Threading;
 import org.bitcoinj_extra.wallet.listeners.KeyChainEventListener;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
+import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -44,11 +46,19 @@ import static com.google.common.base.Preconditions.*;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
-    // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    // Table used to let us quickly look up a key given data we find in transcations or the block chain.
+    private final KeyLookupTable keyTable;
+    // Bumped whenever a key is imported or removed, lets the wallet journal notice changes without serializing keys.
+    private int modificationCount;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
+    // The last filter handed out and how many keys it holds. As keys are only ever appended to the table, the filter
+    // can be brought up to date by inserting the keys after that point, until a key is removed.
+    @Nullable private BloomFilter cachedFilter;
+    private int cachedFilterSize;
+    private double cachedFilterFalsePositiveRate;
+    private long cachedFilterTweak;
+    private int cachedFilterKeys;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
@@ -58,8 +68,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<ByteString, ECKey>();
-        pubkeyToKeys = new LinkedHashMap<ByteString, ECKey>();
+        keyTable = new KeyLookupTable();
         listeners = new CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>>();
     }
 
@@ -79,13 +88,13 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey getKey(@Nullable KeyPurpose ignored) {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty()) {
+            if (keyTable.isEmpty()) {
                 checkState(keyCrypter == null);   // We will refuse to encrypt an empty key chain.
                 final ECKey key = new ECKey();
                 importKeyLocked(key);
                 queueOnKeysAdded(ImmutableList.of(key));
             }
-            return hashToKeys.values().iterator().next();
+            return keyTable.first();
         } finally {
             lock.unlock();
         }
@@ -96,11 +105,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
         checkArgument(numberOfKeys > 0);
         lock.lock();
         try {
-            if (hashToKeys.size() < numberOfKeys) {
+            if (keyTable.size() < numberOfKeys) {
                 checkState(keyCrypter == null);
 
                 List<ECKey> keys = new ArrayList<ECKey>();
-                for (int i = 0; i < numberOfKeys - hashToKeys.size(); i++) {
+                for (int i = 0; i < numberOfKeys - keyTable.size(); i++) {
                     keys.add(new ECKey());
                 }
 
@@ -111,8 +120,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
             List<ECKey> keysToReturn = new ArrayList<ECKey>();
             int count = 0;
-            while (hashToKeys.values().iterator().hasNext() && numberOfKeys != count) {
-                keysToReturn.add(hashToKeys.values().iterator().next());
+            while (!keyTable.isEmpty() && numberOfKeys != count) {
+                keysToReturn.add(keyTable.first());
                 count++;
             }
             return keysToReturn;
@@ -125,7 +134,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public List<ECKey> getKeys() {
         lock.lock();
         try {
-            return new ArrayList<ECKey>(hashToKeys.values());
+            return keyTable.toList();
         } finally {
             lock.unlock();
         }
@@ -169,7 +178,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     private void importKeyLocked(ECKey key) {
-        if (hashToKeys.isEmpty()) {
+        if (keyTable.isEmpty()) {
             isWatching = key.isWatching();
         } else {
             if (key.isWatching() && !isWatching)
@@ -177,9 +186,9 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (!key.isWatching() && isWatching)
                 throw new IllegalArgumentException("Key is not watching but chain is");
         }
-        ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        ECKey previousKey = keyTable.add(key);
         checkState(previousKey == null);
+        modificationCount++;
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -206,7 +215,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubkeyHash));
+            return keyTable.findKeyFromPubHash(pubkeyHash);
         } finally {
             lock.unlock();
         }
@@ -215,7 +224,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubkey));
+            return keyTable.findKeyFromPubKey(pubkey);
         } finally {
             lock.unlock();
         }
@@ -228,7 +237,16 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     @Override
     public int numKeys() {
-        return pubkeyToKeys.size();
+        return keyTable.size();
+    }
+
+    /* package */ int getModificationCount() {
+        lock.lock();
+        try {
+            return modificationCount;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /** Whether this basic key chain is empty, full of regular (usable for signing) keys, or full of watching keys. */
@@ -245,7 +263,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public State isWatching() {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty())
+            if (keyTable.isEmpty())
                 return State.EMPTY;
             return isWatching ? State.WATCHING : State.REGULAR;
         } finally {
@@ -261,10 +279,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
-            checkState(a == b);   // Should be in both maps or neither.
-            return a;
+            if (!keyTable.remove(key))
+                return false;
+            modificationCount++;
+            cachedFilter = null;
+            return true;
         } finally {
             lock.unlock();
         }
@@ -275,7 +294,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             long time = Long.MAX_VALUE;
-            for (ECKey key : hashToKeys.values())
+            for (ECKey key : keyTable)
                 time = Math.min(key.getCreationTimeSeconds(), time);
             return time;
         } finally {
@@ -295,7 +314,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     Map<ECKey, Protos.Key.Builder> serializeToEditableProtobufs() {
         Map<ECKey, Protos.Key.Builder> result = new LinkedHashMap<ECKey, Protos.Key.Builder>();
-        for (ECKey ecKey : hashToKeys.values()) {
+        for (ECKey ecKey : keyTable) {
             Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
             protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
             result.put(ecKey, protoKey);
@@ -361,7 +380,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private void deserializeFromProtobuf(List<Protos.Key> keys) throws UnreadableWalletException {
         lock.lock();
         try {
-            checkState(hashToKeys.isEmpty(), "Tried to deserialize into a non-empty chain");
+            checkState(keyTable.isEmpty(), "Tried to deserialize into a non-empty chain");
             for (Protos.Key key : keys) {
                 if (key.getType() != Protos.Key.Type.ORIGINAL && key.getType() != Protos.Key.Type.ENCRYPTED_SCRYPT_AES)
                     continue;
@@ -380,10 +399,9 @@ public class BasicKeyChain implements EncryptableKeyChain {
                             proto.getEncryptedPrivateKey().toByteArray());
                     ecKey = ECKey.fromEncrypted(e, keyCrypter, pub);
                 } else {
-                    if (priv != null)
-                        ecKey = ECKey.fromPrivateAndPrecalculatedPublic(priv, pub);
-                    else
-                        ecKey = ECKey.fromPublicOnly(pub);
+                    // Keys from the wallet file are trusted, so defer decoding the public point until it's needed.
+                    ecKey = ECKey.fromPrivateAndPrecalculatedPublic(priv != null ? new BigInteger(1, priv) : null,
+                            new LazyECPoint(ECKey.CURVE.getCurve(), pub));
                 }
                 ecKey.setCreationTimeSeconds(key.getCreationTimestamp() / 1000);
                 importKeyLocked(ecKey);
@@ -463,7 +481,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable) {
                 ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
                 // Check that the encrypted key can be successfully decrypted.
                 // This is done as it is a critical failure if the private key cannot be decrypted successfully
@@ -496,7 +514,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable) {
                 decrypted.importKeyLocked(key.decrypt(aesKey));
             }
             return decrypted;
@@ -526,12 +544,12 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             // If no keys then cannot decrypt.
-            if (hashToKeys.isEmpty()) return false;
+            if (keyTable.isEmpty()) return false;
             checkState(keyCrypter != null, "Key chain is not encrypted");
 
             // Find the first encrypted key in the wallet.
             ECKey first = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable) {
                 if (key.isEncrypted()) {
                     first = key;
                     break;
@@ -562,9 +580,20 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
         lock.lock();
         try {
+            if (cachedFilter == null || cachedFilterSize != size || cachedFilterFalsePositiveRate != falsePositiveRate
+                    || cachedFilterTweak != tweak) {
+                cachedFilter = new BloomFilter(size, falsePositiveRate, tweak);
+                cachedFilterSize = size;
+                cachedFilterFalsePositiveRate = falsePositiveRate;
+                cachedFilterTweak = tweak;
+                cachedFilterKeys = 0;
+            }
+            for (ECKey key : Iterables.skip(keyTable, cachedFilterKeys))
+                cachedFilter.insert(key);
+            cachedFilterKeys = keyTable.size();
+            // Hand out a copy, callers are free to insert their own elements.
             BloomFilter filter = new BloomFilter(size, falsePositiveRate, tweak);
-            for (ECKey key : hashToKeys.values())
-                filter.insert(key);
+            filter.merge(cachedFilter);
             return filter;
         } finally {
             lock.unlock();
@@ -589,7 +618,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             ECKey oldest = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime > timeSecs) {
                     if (oldest == null || oldest.getCreationTimeSeconds() > keyTime)
@@ -607,7 +636,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             List<ECKey> results = Lists.newLinkedList();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime < timeSecs) {
                     results.add(key);
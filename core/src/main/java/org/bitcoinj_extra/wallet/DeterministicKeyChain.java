@@ -146,6 +146,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // filter has been calculated. This field isn't persisted to the wallet as it's only relevant within a network
     // session.
     private int keyLookaheadEpoch;
+    // Incremented whenever state that is persisted to the wallet changes without a key being added to or removed from
+    // basicKeyChain, such as the issued key counters or the lookahead settings. The counter itself isn't persisted.
+    private int modificationCount;
 
     // We simplify by wrapping a basic key chain and that way we get some functionality like key lookup and event
     // listeners "for free". All keys in the key tree appear here, even if they aren't meant to be used for receiving
@@ -463,12 +466,14 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
                 case RECEIVE_FUNDS:
                 case REFUND:
                     issuedExternalKeys += numberOfKeys;
+                    modificationCount++;
                     index = issuedExternalKeys;
                     parentKey = externalParentKey;
                     break;
                 case AUTHENTICATION:
                 case CHANGE:
                     issuedInternalKeys += numberOfKeys;
+                    modificationCount++;
                     index = issuedInternalKeys;
                     parentKey = internalParentKey;
                     break;
@@ -529,11 +534,13 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         if (k.getParent() == internalParentKey) {
             if (issuedInternalKeys < numChildren) {
                 issuedInternalKeys = numChildren;
+                markModified();
                 maybeLookAhead();
             }
         } else if (k.getParent() == externalParentKey) {
             if (issuedExternalKeys < numChildren) {
                 issuedExternalKeys = numChildren;
+                markModified();
                 maybeLookAhead();
             }
         }
@@ -636,6 +643,28 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return getWatchingKey().isWatching();
     }
 
+    /**
+     * Returns a counter that increases whenever anything about this chain that is persisted to the wallet changes.
+     * Used by {@link KeyChainGroup#getModificationCount()}.
+     */
+    /* package */ int getModificationCount() {
+        lock.lock();
+        try {
+            return modificationCount + basicKeyChain.getModificationCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* package */ void markModified() {
+        lock.lock();
+        try {
+            modificationCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int numKeys() {
         // We need to return here the total number of keys including the lookahead zone, not the number of keys we
@@ -1081,6 +1110,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             this.lookaheadSize = lookaheadSize;
             if (readjustThreshold)
                 this.lookaheadThreshold = calcDefaultLookaheadThreshold();
+            modificationCount++;
         } finally {
             lock.unlock();
         }
@@ -1097,6 +1127,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             if (num >= lookaheadSize)
                 throw new IllegalArgumentException("Threshold larger or equal to the lookaheadSize");
             this.lookaheadThreshold = num;
+            modificationCount++;
         } finally {
             lock.unlock();
         }
@@ -1344,6 +1375,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     /** The number of signatures required to spend coins received by this keychain. */
     public void setSigsRequiredToSpend(int sigsRequiredToSpend) {
         this.sigsRequiredToSpend = sigsRequiredToSpend;
+        markModified();
     }
 
     /**
@@ -31,6 +31,7 @@ import javax.annotation.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -73,6 +74,20 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    // Bumped by every mutator of the group itself. Together with the modification counters of the chains it tells the
+    // wallet journal whether the keys have to be written out again, see getModificationCount().
+    private long modificationCount;
+
+    // Index over the keys of the basic chain and all HD chains, so that a lookup is a single probe rather than one
+    // per chain. It is kept up to date by a listener that runs on the thread adding keys to a chain.
+    private final ReentrantLock keyIndexLock = Threading.lock("keychaingroup-index");
+    private final KeyLookupTable keyIndex = new KeyLookupTable();
+    private final KeyChainEventListener keyIndexListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            indexKeys(keys);
+        }
+    };
 
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
@@ -103,6 +118,7 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<KeyChain.KeyPurpose, Address>(KeyChain.KeyPurpose.class);
+        rebuildKeyIndex();
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -134,12 +150,51 @@ public class KeyChainGroup implements KeyBag {
     public void addAndActivateHDChain(DeterministicKeyChain chain) {
         log.info("Creating and activating a new HD chain: {}", chain);
         for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners())
-            chain.addEventListener(registration.listener, registration.executor);
+            if (registration.listener != keyIndexListener)
+                chain.addEventListener(registration.listener, registration.executor);
         if (lookaheadSize >= 0)
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        indexChain(chain);
+        modificationCount++;
+    }
+
+    private void indexKeys(List<ECKey> keys) {
+        keyIndexLock.lock();
+        try {
+            for (ECKey key : keys)
+                keyIndex.add(key);
+        } finally {
+            keyIndexLock.unlock();
+        }
+    }
+
+    // Registers the index listener before copying the existing keys, so no key added concurrently can be missed.
+    private void indexChain(DeterministicKeyChain chain) {
+        chain.addEventListener(keyIndexListener, Threading.SAME_THREAD);
+        indexKeys(chain.getKeys(true));
+    }
+
+    private void unregisterKeyIndexListener() {
+        basic.removeEventListener(keyIndexListener);
+        for (DeterministicKeyChain chain : chains)
+            chain.removeEventListener(keyIndexListener);
+    }
+
+    // Must be called whenever the basic chain or the HD chains are replaced, e.g. on encryption.
+    private void rebuildKeyIndex() {
+        keyIndexLock.lock();
+        try {
+            keyIndex.clear();
+        } finally {
+            keyIndexLock.unlock();
+        }
+        basic.addEventListener(keyIndexListener, Threading.SAME_THREAD);
+        indexKeys(basic.getKeys());
+        for (DeterministicKeyChain chain : chains)
+            indexChain(chain);
     }
 
     /**
@@ -263,6 +318,7 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains) {
             chain.setLookaheadSize(lookaheadSize);
         }
+        modificationCount++;
     }
 
     /**
@@ -286,6 +342,7 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains) {
             chain.setLookaheadThreshold(num);
         }
+        modificationCount++;
     }
 
     /**
@@ -302,6 +359,7 @@ public class KeyChainGroup implements KeyBag {
 
     /** Imports the given keys into the basic chain, creating it if necessary. */
     public int importKeys(List<ECKey> keys) {
+        modificationCount++;
         return basic.importKeys(keys);
     }
 
@@ -366,14 +424,12 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
+        keyIndexLock.lock();
+        try {
+            return keyIndex.findKeyFromPubHash(pubkeyHash);
+        } finally {
+            keyIndexLock.unlock();
         }
-        return null;
     }
 
     /**
@@ -416,25 +472,18 @@ public class KeyChainGroup implements KeyBag {
     }
 
     public boolean hasKey(ECKey key) {
-        if (basic.hasKey(key))
-            return true;
-        for (DeterministicKeyChain chain : chains)
-            if (chain.hasKey(key))
-                return true;
-        return false;
+        return findKeyFromPubKey(key.getPubKey()) != null;
     }
 
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
+        keyIndexLock.lock();
+        try {
+            return keyIndex.findKeyFromPubKey(pubkey);
+        } finally {
+            keyIndexLock.unlock();
         }
-        return null;
     }
 
     /**
@@ -451,6 +500,28 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    /**
+     * Returns a counter that increases whenever anything about the keys that is written to the wallet changes: keys
+     * being added, removed, issued or encrypted, chains being added or married, and the lookahead settings. Used by
+     * {@link WalletJournal} to decide whether the keys must be written out again, without having to serialize them.
+     */
+    /* package */ long getModificationCount() {
+        long count = modificationCount + basic.getModificationCount();
+        for (DeterministicKeyChain chain : chains)
+            count += chain.getModificationCount();
+        return count;
+    }
+
+    /*
+     * Called before the basic chain and the HD chains are replaced. Folds their counters into the group's own, so
+     * that getModificationCount() still increases even though the replacements start counting from zero.
+     */
+    private void retireChains() {
+        modificationCount += 1 + basic.getModificationCount();
+        for (DeterministicKeyChain chain : chains)
+            modificationCount += chain.getModificationCount();
+    }
+
     /** Returns the number of keys managed by this group, including the lookahead buffers. */
     public int numKeys() {
         int result = basic.numKeys();
@@ -466,7 +537,24 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        if (!basic.removeKey(key))
+            return false;
+        modificationCount++;
+        keyIndexLock.lock();
+        try {
+            keyIndex.remove(key);
+        } finally {
+            keyIndexLock.unlock();
+        }
+        // The same public key may also belong to an HD chain, in which case it must stay findable.
+        for (DeterministicKeyChain chain : chains) {
+            ECKey remaining = chain.findKeyFromPubKey(key.getPubKey());
+            if (remaining != null) {
+                indexKeys(ImmutableList.of(remaining));
+                break;
+            }
+        }
+        return true;
     }
 
     /**
@@ -500,9 +588,12 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toEncrypted(keyCrypter, aesKey));
         this.keyCrypter = keyCrypter;
+        unregisterKeyIndexListener();
+        retireChains();
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        rebuildKeyIndex();
     }
 
     /**
@@ -520,9 +611,12 @@ public class KeyChainGroup implements KeyBag {
             newChains.add(chain.toDecrypted(aesKey));
 
         this.keyCrypter = null;
+        unregisterKeyIndexListener();
+        retireChains();
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        rebuildKeyIndex();
     }
 
     /** Returns true if the group is encrypted. */
@@ -594,6 +688,32 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    /**
+     * Returns the output scripts that can pay to this group, lookahead keys included: pay to pubkey hash and pay to
+     * pubkey scripts of every key, or pay to script hash scripts of married chains. Compact block filters are matched
+     * against these, see {@link Wallet#getFilterScripts()}.
+     */
+    public List<Script> getFilterScripts() {
+        List<Script> scripts = new ArrayList<Script>();
+        for (ECKey key : basic.getKeys()) {
+            scripts.add(ScriptBuilder.createOutputScript(key));
+            scripts.add(ScriptBuilder.createOutputScript(key.toAddress(params)));
+        }
+        for (DeterministicKeyChain chain : chains) {
+            chain.maybeLookAhead();
+            if (chain.isMarried()) {
+                for (DeterministicKey key : chain.getLeafKeys())
+                    scripts.add(makeP2SHOutputScript(key, chain));
+            } else {
+                for (ECKey key : chain.getKeys(true)) {
+                    scripts.add(ScriptBuilder.createOutputScript(key));
+                    scripts.add(ScriptBuilder.createOutputScript(key.toAddress(params)));
+                }
+            }
+        }
+        return scripts;
+    }
+
     /** {@inheritDoc} */
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
@@ -735,6 +855,8 @@ public class KeyChainGroup implements KeyBag {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
         chains.add(chain);
+        indexChain(chain);
+        modificationCount++;
         return chain;
     }
 
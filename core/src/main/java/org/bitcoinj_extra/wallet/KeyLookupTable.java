@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.wallet;
+
+import org.bitcoinj_extra.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * <p>A compact, insertion ordered set of {@link ECKey}s that can be looked up by pubkey hash or by public key.</p>
+ *
+ * <p>Instead of wrapping every hash and public key into a map key object, both indexes are open addressed hash
+ * tables made of primitive arrays: each slot holds a 64 bit tag (the first 8 bytes of the hash160, or the 8 bytes
+ * following the prefix byte of the public key) and an index into an array of keys. A tag match is always verified
+ * against the full hash or public key of the candidate, so collisions between tags are harmless. This costs a few
+ * dozen bytes per key rather than the hundreds a pair of {@link LinkedHashMap}s needs, which matters for watching
+ * wallets with millions of keys.</p>
+ *
+ * <p>This class is not thread safe, callers are expected to hold their own lock.</p>
+ */
+class KeyLookupTable implements Iterable<ECKey> {
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Keys in insertion order. Removed keys leave a null hole that is compacted away on the next resize.
+    private ECKey[] keys;
+    private int end;
+    private int size;
+
+    // Slots hold (index into keys + 1), EMPTY or DELETED. Tables are always twice the length of the keys array, so
+    // the load factor including tombstones never exceeds one half.
+    private long[] hashTags;
+    private int[] hashSlots;
+    private long[] pubKeyTags;
+    private int[] pubKeySlots;
+
+    KeyLookupTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    KeyLookupTable(int expectedSize) {
+        allocate(tableSizeFor(Math.max(expectedSize, INITIAL_CAPACITY)));
+    }
+
+    private void allocate(int capacity) {
+        keys = new ECKey[capacity];
+        hashTags = new long[capacity * 2];
+        hashSlots = new int[capacity * 2];
+        pubKeyTags = new long[capacity * 2];
+        pubKeySlots = new int[capacity * 2];
+        end = 0;
+        size = 0;
+    }
+
+    /** Returns the number of keys in the table. */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the key to the table, unless a key with the same public key is already present.
+     * @return the key already present with the same public key, or null if the key was added.
+     */
+    @Nullable
+    ECKey add(ECKey key) {
+        final byte[] pubKey = key.getPubKey();
+        final int existing = find(pubKeyTags, pubKeySlots, pubKey, 1, false);
+        if (existing >= 0)
+            return keys[existing];
+        if (end == keys.length)
+            resize();
+        final int index = end++;
+        keys[index] = key;
+        size++;
+        insert(hashTags, hashSlots, tag(key.getPubKeyHash(), 0), index);
+        insert(pubKeyTags, pubKeySlots, tag(pubKey, 1), index);
+        return null;
+    }
+
+    /** Returns the key with the given pubkey hash, or null if there is none. */
+    @Nullable
+    ECKey findKeyFromPubHash(byte[] pubKeyHash) {
+        final int index = find(hashTags, hashSlots, pubKeyHash, 0, true);
+        return index >= 0 ? keys[index] : null;
+    }
+
+    /** Returns the key with the given public key, or null if there is none. */
+    @Nullable
+    ECKey findKeyFromPubKey(byte[] pubKey) {
+        final int index = find(pubKeyTags, pubKeySlots, pubKey, 1, false);
+        return index >= 0 ? keys[index] : null;
+    }
+
+    /**
+     * Removes the key with the same public key as the given key.
+     * @return whether a key was removed.
+     */
+    boolean remove(ECKey key) {
+        final byte[] pubKey = key.getPubKey();
+        final int pubKeyPos = findSlot(pubKeyTags, pubKeySlots, pubKey, 1, false);
+        if (pubKeyPos < 0)
+            return false;
+        final int index = pubKeySlots[pubKeyPos] - 1;
+        final ECKey stored = keys[index];
+        final int hashPos = findSlot(hashTags, hashSlots, stored.getPubKeyHash(), 0, true);
+        pubKeySlots[pubKeyPos] = DELETED;
+        if (hashPos >= 0)
+            hashSlots[hashPos] = DELETED;
+        keys[index] = null;
+        size--;
+        return true;
+    }
+
+    /** Returns the oldest key in the table, or null if it is empty. */
+    @Nullable
+    ECKey first() {
+        for (int i = 0; i < end; i++)
+            if (keys[i] != null)
+                return keys[i];
+        return null;
+    }
+
+    /** Returns a copy of all keys in insertion order. */
+    List<ECKey> toList() {
+        List<ECKey> result = new ArrayList<ECKey>(size);
+        for (int i = 0; i < end; i++)
+            if (keys[i] != null)
+                result.add(keys[i]);
+        return result;
+    }
+
+    /** Removes all keys, releasing the memory held by the tables. */
+    void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Iterates over the keys in insertion order. The table must not be modified while iterating. */
+    @Override
+    public Iterator<ECKey> iterator() {
+        return new Iterator<ECKey>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < end && keys[from] == null)
+                    from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public ECKey next() {
+                if (next >= end)
+                    throw new NoSuchElementException();
+                ECKey key = keys[next];
+                next = advance(next + 1);
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Grows the key array if it is mostly live keys, otherwise just squeezes out the holes left by removals.
+    private void resize() {
+        final ECKey[] oldKeys = keys;
+        final int oldEnd = end;
+        final int capacity = size >= oldKeys.length / 2 ? oldKeys.length * 2 : oldKeys.length;
+        allocate(capacity);
+        for (int i = 0; i < oldEnd; i++) {
+            ECKey key = oldKeys[i];
+            if (key == null)
+                continue;
+            final int index = end++;
+            keys[index] = key;
+            size++;
+            insert(hashTags, hashSlots, tag(key.getPubKeyHash(), 0), index);
+            insert(pubKeyTags, pubKeySlots, tag(key.getPubKey(), 1), index);
+        }
+    }
+
+    private static void insert(long[] tags, int[] slots, long tag, int index) {
+        final int mask = slots.length - 1;
+        int pos = spread(tag) & mask;
+        while (slots[pos] != EMPTY && slots[pos] != DELETED)
+            pos = (pos + 1) & mask;
+        tags[pos] = tag;
+        slots[pos] = index + 1;
+    }
+
+    private int find(long[] tags, int[] slots, byte[] bytes, int offset, boolean byHash) {
+        final int pos = findSlot(tags, slots, bytes, offset, byHash);
+        return pos >= 0 ? slots[pos] - 1 : -1;
+    }
+
+    private int findSlot(long[] tags, int[] slots, byte[] bytes, int offset, boolean byHash) {
+        final long tag = tag(bytes, offset);
+        final int mask = slots.length - 1;
+        int pos = spread(tag) & mask;
+        int slot;
+        while ((slot = slots[pos]) != EMPTY) {
+            if (slot != DELETED && tags[pos] == tag) {
+                final ECKey candidate = keys[slot - 1];
+                if (Arrays.equals(byHash ? candidate.getPubKeyHash() : candidate.getPubKey(), bytes))
+                    return pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Reads up to 8 bytes starting at offset into a long. Hashes and curve points are uniformly distributed, so
+    // these bytes make a good tag on their own.
+    private static long tag(byte[] bytes, int offset) {
+        long tag = 0;
+        final int limit = Math.min(bytes.length, offset + 8);
+        for (int i = offset; i < limit; i++)
+            tag = (tag << 8) | (bytes[i] & 0xFFL);
+        return tag;
+    }
+
+    private static int spread(long tag) {
+        final int h = (int) (tag ^ (tag >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = Integer.highestOneBit(n);
+        return size == n ? size : size << 1;
+    }
+}
@@ -60,6 +60,7 @@ public class MarriedKeyChain extends DeterministicKeyChain {
     private LinkedHashMap<ByteString, RedeemData> marriedKeysRedeemData = new LinkedHashMap<ByteString, RedeemData>();
 
     private List<DeterministicKeyChain> followingKeyChains;
+    private int retiredModificationCount;
 
     /** Builds a {@link MarriedKeyChain} */
     public static class Builder<T extends Builder<T>> extends DeterministicKeyChain.Builder<T> {
@@ -141,7 +142,25 @@ public class MarriedKeyChain extends DeterministicKeyChain {
 
     void setFollowingKeyChains(List<DeterministicKeyChain> followingKeyChains) {
         checkArgument(!followingKeyChains.isEmpty());
+        retireFollowingKeyChains();
         this.followingKeyChains = followingKeyChains;
+        markModified();
+    }
+
+    // Keeps getModificationCount() increasing when the following chains are replaced by new ones.
+    private void retireFollowingKeyChains() {
+        if (followingKeyChains != null)
+            for (DeterministicKeyChain chain : followingKeyChains)
+                retiredModificationCount += chain.getModificationCount();
+    }
+
+    @Override
+    /* package */ int getModificationCount() {
+        int count = super.getModificationCount() + retiredModificationCount;
+        if (followingKeyChains != null)
+            for (DeterministicKeyChain chain : followingKeyChains)
+                count += chain.getModificationCount();
+        return count;
     }
 
     @Override
@@ -200,7 +219,9 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         }
 
         this.sigsRequiredToSpend = sigsRequiredToSpend;
+        retireFollowingKeyChains();
         this.followingKeyChains = followingKeyChains;
+        markModified();
     }
 
     @Override
@@ -28,6 +28,7 @@ import org.bitcoinj_extra.core.Address;
 import org.bitcoinj_extra.core.Coin;
 import org.bitcoinj_extra.core.Context;
 import org.bitcoinj_extra.core.ECKey;
+import org.bitcoinj_extra.core.FeeEstimator;
 import org.bitcoinj_extra.core.NetworkParameters;
 import org.bitcoinj_extra.core.Transaction;
 import org.bitcoinj_extra.core.TransactionOutput;
@@ -102,6 +103,19 @@ public class SendRequest {
      */
     public boolean ensureMinRequiredFee = Context.get().isEnsureMinRequiredFee();
 
+    /**
+     * If not null, {@link #feePerKb} is replaced during completion by the fee the estimator expects to get the
+     * transaction confirmed within {@link #confirmationTarget} blocks. If the estimator can't tell yet, feePerKb is
+     * used as it is.
+     */
+    public FeeEstimator feeEstimator = null;
+
+    /**
+     * Within how many blocks the transaction should confirm, if a {@link #feeEstimator} is set. Must be between 1 and
+     * {@link FeeEstimator#MAX_TARGET}.
+     */
+    public int confirmationTarget = 6;
+
     /**
      * If true (the default), the inputs will be signed.
      */
@@ -258,6 +272,9 @@ public class SendRequest {
         helper.add("changeAddress", changeAddress);
         helper.add("feePerKb", feePerKb);
         helper.add("ensureMinRequiredFee", ensureMinRequiredFee);
+        helper.add("feeEstimator", feeEstimator);
+        if (feeEstimator != null)
+            helper.add("confirmationTarget", confirmationTarget);
         helper.add("signInputs", signInputs);
         helper.add("aesKey", aesKey != null ? "set" : null); // careful to not leak the key
         helper.add("coinSelector", coinSelector);
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.wallet;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+import org.bitcoinj_extra.core.Utils;
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>An on-disk store for wallet transactions that are so deeply buried and fully spent that they are unlikely to ever
+ * be needed again. A {@link Wallet} given an archive with {@link Wallet#setTransactionArchive(TransactionArchive, int)}
+ * moves such transactions out of the heap and into the archive, and reads them back when they are looked up or a
+ * re-org reaches them.</p>
+ *
+ * <p>The file is a header followed by append-only records, each holding a transaction hash, the height of the block
+ * the transaction appeared in and the serialized transaction as the wallet would store it. Only a compact hash index
+ * of tags, file offsets and heights, a few dozen bytes per transaction, is kept in memory. It is rebuilt by scanning
+ * the file when the archive is opened. A record that is written again supersedes the previous one, and a record with
+ * a height of -1 and no transaction marks a transaction that was taken out of the archive again. Once superseded and
+ * removed records take up more than half of the file it is rewritten without them. An incomplete record at the end
+ * of the file, left over from a crash, is discarded.</p>
+ *
+ * <p>The archive must be kept together with the wallet file: transactions in it are no longer saved in the wallet
+ * itself.</p>
+ */
+public class TransactionArchive implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TransactionArchive.class);
+
+    private static final int MAGIC = 0x54584152; // "TXAR"
+    // Version 2 added removal records, version 3 extended the CRC over the record header.
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+    // Hash, height, length, then the payload and a CRC32 of all of these.
+    private static final int RECORD_HEADER_SIZE = 32 + 4 + 4;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int REMOVED_HEIGHT = -1;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final ReentrantLock lock = Threading.lock("txarchive");
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long end;
+    // Bytes taken up by records that were superseded or removed, and by the removal records themselves.
+    private long garbage;
+
+    // Open addressed index from the first 8 bytes of a hash to the offset of its latest record. Offsets are never
+    // zero as the header comes first, so zero marks a free slot.
+    private long[] tags;
+    private long[] offsets;
+    private int[] heights;
+    private int size;
+
+    /** Opens the archive in the given file, creating it if it doesn't exist yet. */
+    public TransactionArchive(File file) throws IOException {
+        this.file = checkNotNull(file);
+        open();
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        allocate(INITIAL_CAPACITY);
+        garbage = 0;
+        try {
+            if (channel.size() == 0) {
+                writeHeader();
+            } else {
+                ByteBuffer header = read(0, HEADER_SIZE);
+                if (header.getInt() != MAGIC)
+                    throw new IOException("Not a transaction archive: " + file);
+                final int version = header.getInt();
+                if (version > VERSION)
+                    throw new IOException("Transaction archive is from a newer version: " + file);
+                scan(version);
+                // Recompute the checksums of older files, which also keeps older versions from opening them and
+                // mistaking a removal record for a transaction.
+                if (version < VERSION)
+                    rewrite(version);
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /** Returns the file the archive is kept in. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the number of distinct transactions in the archive. */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the archive holds the transaction with the given hash. */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return findSlot(hash) >= 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the block the given transaction appeared in, or -1 if it isn't archived. */
+    public int getHeight(Sha256Hash hash) {
+        lock.lock();
+        try {
+            final int slot = findSlot(hash);
+            return slot >= 0 ? heights[slot] : -1;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the hashes of all archived transactions that appeared above the given height. */
+    public List<Sha256Hash> getHashesAbove(int height) {
+        lock.lock();
+        try {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < offsets.length; i++)
+                if (offsets[i] != 0 && heights[i] > height)
+                    hashes.add(readHash(offsets[i]));
+            return hashes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the serialized transaction with the given hash, or null if it isn't archived. */
+    @Nullable
+    /* package */ byte[] get(Sha256Hash hash) throws IOException {
+        lock.lock();
+        try {
+            final int slot = findSlot(hash);
+            if (slot < 0)
+                return null;
+            ByteBuffer record = read(offsets[slot], (int) recordSize(offsets[slot]));
+            if (record.getInt(record.limit() - 4) != checksum(record, VERSION))
+                throw new IOException("Checksum mismatch in transaction archive for " + hash);
+            byte[] data = new byte[record.limit() - RECORD_HEADER_SIZE - 4];
+            record.position(RECORD_HEADER_SIZE);
+            record.get(data);
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Appends a record for the given transaction. Call {@link #flush()} to make it durable. */
+    /* package */ void put(Sha256Hash hash, int height, byte[] data) throws IOException {
+        checkArgument(data.length <= MAX_RECORD_SIZE);
+        lock.lock();
+        try {
+            checkArgument(height != REMOVED_HEIGHT);
+            final int slot = findSlot(hash);
+            if (slot >= 0)
+                garbage += recordSize(offsets[slot]);
+            final long offset = append(hash, height, data);
+            index(hash, offset, height);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record taking the given transaction out of the archive, for when the wallet holds it in memory again.
+     * Does nothing if the transaction isn't archived. Call {@link #flush()} to make it durable.
+     */
+    /* package */ void remove(Sha256Hash hash) throws IOException {
+        lock.lock();
+        try {
+            final int slot = findSlot(hash);
+            if (slot < 0)
+                return;
+            garbage += recordSize(offsets[slot]);
+            final long offset = append(hash, REMOVED_HEIGHT, new byte[0]);
+            garbage += end - offset;
+            unindex(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the archive without superseded and removed records if they take up more than half of the file. The
+     * new file is made durable before it replaces the old one.
+     */
+    /* package */ void compactIfNeeded() throws IOException {
+        lock.lock();
+        try {
+            if (garbage < MIN_COMPACTION_SIZE || garbage * 2 < end)
+                return;
+            final long oldSize = end;
+            rewrite(VERSION);
+            log.info("Compacted transaction archive {} from {} to {} bytes", file, oldSize, end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes the latest record of every archived transaction to a new file, with the checksums of the current version,
+    // and replaces the archive with it once it is durable. The records are checked against the given file version.
+    private void rewrite(int version) throws IOException {
+        lock.lock();
+        try {
+            final File temp = new File(file.getPath() + ".tmp");
+            final FileChannel output = new RandomAccessFile(temp, "rw").getChannel();
+            try {
+                output.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                long position = 0;
+                while (header.hasRemaining())
+                    position += output.write(header, position);
+                for (int i = 0; i < offsets.length; i++) {
+                    if (offsets[i] == 0)
+                        continue;
+                    ByteBuffer record = read(offsets[i], (int) recordSize(offsets[i]));
+                    if (record.getInt(record.limit() - 4) != checksum(record, version))
+                        throw new IOException("Checksum mismatch in transaction archive for " + readHash(offsets[i]));
+                    record.putInt(record.limit() - 4, checksum(record, VERSION));
+                    while (record.hasRemaining())
+                        position += output.write(record, position);
+                }
+                output.force(false);
+            } finally {
+                output.close();
+            }
+            randomAccessFile.close();
+            if (Utils.isWindows() && !file.delete())
+                throw new IOException("Failed to delete " + file + " for replacement with compacted archive");
+            if (!temp.renameTo(file))
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            open();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forces everything written so far to disk. */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes all transactions from the archive. */
+    public void clear() throws IOException {
+        lock.lock();
+        try {
+            channel.truncate(0);
+            writeHeader();
+            allocate(INITIAL_CAPACITY);
+            garbage = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            randomAccessFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        writeHeader(HEADER_SIZE);
+    }
+
+    private void writeHeader(long end) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        channel.write(header, 0);
+        this.end = end;
+        channel.force(false);
+    }
+
+    // Appends a record to the end of the file and returns its offset.
+    private long append(Sha256Hash hash, int height, byte[] data) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length + 4);
+        record.put(hash.getBytes()).putInt(height).putInt(data.length).put(data).putInt(0);
+        record.putInt(record.limit() - 4, checksum(record, VERSION));
+        record.flip();
+        final long offset = end;
+        while (record.hasRemaining())
+            end += channel.write(record, end);
+        return offset;
+    }
+
+    private long recordSize(long offset) throws IOException {
+        return RECORD_HEADER_SIZE + read(offset + 32 + 4, 4).getInt() + 4;
+    }
+
+    // Rebuilds the index from the records in the file, truncating any incomplete or corrupt tail.
+    private void scan(int version) throws IOException {
+        final long fileSize = channel.size();
+        long offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE + 4 <= fileSize) {
+            ByteBuffer header = read(offset, RECORD_HEADER_SIZE);
+            byte[] hashBytes = new byte[32];
+            header.get(hashBytes);
+            final int height = header.getInt();
+            final int length = header.getInt();
+            if (length < 0 || length > MAX_RECORD_SIZE || offset + RECORD_HEADER_SIZE + length + 4 > fileSize)
+                break;
+            ByteBuffer record = read(offset, RECORD_HEADER_SIZE + length + 4);
+            if (record.getInt(RECORD_HEADER_SIZE + length) != checksum(record, version))
+                break;
+            final Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+            final int slot = findSlot(hash);
+            if (slot >= 0)
+                garbage += recordSize(offsets[slot]);
+            if (height == REMOVED_HEIGHT) {
+                garbage += RECORD_HEADER_SIZE + length + 4;
+                if (slot >= 0)
+                    unindex(slot);
+            } else {
+                index(hash, offset, height);
+            }
+            offset += RECORD_HEADER_SIZE + length + 4;
+        }
+        if (offset < fileSize) {
+            log.warn("Discarding {} bytes at the end of transaction archive {}", fileSize - offset, file);
+            channel.truncate(offset);
+        }
+        end = offset;
+    }
+
+    private void allocate(int capacity) {
+        tags = new long[capacity];
+        offsets = new long[capacity];
+        heights = new int[capacity];
+        size = 0;
+    }
+
+    private void index(Sha256Hash hash, long offset, int height) throws IOException {
+        int slot = findSlot(hash);
+        if (slot < 0) {
+            if ((size + 1) * 2 > offsets.length)
+                grow();
+            slot = freeSlot(tag(hash));
+            size++;
+        }
+        tags[slot] = tag(hash);
+        offsets[slot] = offset;
+        heights[slot] = height;
+    }
+
+    // Frees the given slot, moving later entries of the same probe sequence back so that lookups still find them.
+    private void unindex(int slot) {
+        final int mask = offsets.length - 1;
+        int free = slot;
+        int pos = (slot + 1) & mask;
+        while (offsets[pos] != 0) {
+            final int home = spread(tags[pos]) & mask;
+            // Move the entry unless its home lies cyclically in (free, pos].
+            if (((pos - home) & mask) >= ((pos - free) & mask)) {
+                tags[free] = tags[pos];
+                offsets[free] = offsets[pos];
+                heights[free] = heights[pos];
+                free = pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+        offsets[free] = 0;
+        size--;
+    }
+
+    private void grow() {
+        final long[] oldTags = tags;
+        final long[] oldOffsets = offsets;
+        final int[] oldHeights = heights;
+        final int oldSize = size;
+        allocate(oldOffsets.length * 2);
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] == 0)
+                continue;
+            final int slot = freeSlot(oldTags[i]);
+            tags[slot] = oldTags[i];
+            offsets[slot] = oldOffsets[i];
+            heights[slot] = oldHeights[i];
+        }
+        size = oldSize;
+    }
+
+    private int freeSlot(long tag) {
+        final int mask = offsets.length - 1;
+        int pos = spread(tag) & mask;
+        while (offsets[pos] != 0)
+            pos = (pos + 1) & mask;
+        return pos;
+    }
+
+    // Tags are only a hint, a match is confirmed by reading the hash back from the file.
+    private int findSlot(Sha256Hash hash) throws IOException {
+        final long tag = tag(hash);
+        final int mask = offsets.length - 1;
+        int pos = spread(tag) & mask;
+        while (offsets[pos] != 0) {
+            if (tags[pos] == tag && readHash(offsets[pos]).equals(hash))
+                return pos;
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    private Sha256Hash readHash(long offset) throws IOException {
+        ByteBuffer buffer = read(offset, 32);
+        byte[] bytes = new byte[32];
+        buffer.get(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of transaction archive " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long tag(Sha256Hash hash) {
+        final byte[] bytes = hash.getBytes();
+        long tag = 0;
+        for (int i = 0; i < 8; i++)
+            tag = (tag << 8) | (bytes[i] & 0xFFL);
+        return tag;
+    }
+
+    private static int spread(long tag) {
+        final int h = (int) (tag ^ (tag >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    // The checksum the given record should end with. Files before version 3 only have the payload covered by it.
+    private static int checksum(ByteBuffer record, int version) {
+        final int from = version < 3 ? RECORD_HEADER_SIZE : 0;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), from, record.limit() - 4 - from);
+        return (int) crc.getValue();
+    }
+}
@@ -50,6 +50,7 @@ import org.bitcoinj_extra.core.TransactionConfidence;
 import org.bitcoinj_extra.core.TransactionInput;
 import org.bitcoinj_extra.core.TransactionOutPoint;
 import org.bitcoinj_extra.core.TransactionOutput;
+import org.bitcoinj_extra.core.TxConfidenceTable;
 import org.bitcoinj_extra.core.UTXO;
 import org.bitcoinj_extra.core.UTXOProvider;
 import org.bitcoinj_extra.core.UTXOProviderException;
@@ -141,8 +142,8 @@ public class Wallet extends BaseTaggableObject
     //           entire transaction in memory even though for spending purposes we only really need the outputs, the
     //           reason being that this simplifies handling of re-orgs. It would be worth fixing this in future.
     // Spent:    Transactions that appeared in the best chain but don't have any spendable outputs. They're stored here
-    //           for history browsing/auditing reasons only and in future will probably be flushed out to some other
-    //           kind of cold storage or just removed.
+    //           for history browsing/auditing reasons only. If a TransactionArchive is set, those that are buried deep
+    //           enough are moved out to it.
     // Dead:     Transactions that we believe will never confirm get moved here, out of pending. Note that Bitcoin
     //           Core has no notion of dead-ness: the assumption is that double spends won't happen so there's no
     //           need to notify the user about them. We take a more pessimistic approach and try to track the fact that
@@ -248,6 +249,13 @@ public class Wallet extends BaseTaggableObject
     // If this is set then the wallet selects spendable candidate outputs from a UTXO provider.
     @Nullable private volatile UTXOProvider vUTXOProvider;
 
+    // If this is set then spent transactions at least archiveDepth blocks deep are moved out of memory into it.
+    @GuardedBy("lock") @Nullable private TransactionArchive archive;
+    @GuardedBy("lock") private int archiveDepth;
+    // Transactions brought back from the archive since the wallet was loaded. The archive keeps its copies until the
+    // wallet was saved with them, see removeRestoredFromArchive().
+    @GuardedBy("lock") private final Set<Sha256Hash> restoredFromArchive = new HashSet<Sha256Hash>();
+
     /**
      * Creates a new, empty wallet with a randomly chosen seed and no transactions. Make sure to provide for sufficient
      * backup! Any keys will be derived from the seed. If you want to restore a wallet from disk instead, see
@@ -598,6 +606,22 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the output scripts that pay to this wallet: those of its keys, lookahead included, and the watched
+     * scripts. A block whose compact filter matches none of them holds no transactions relevant to the wallet, as the
+     * filter has the spent output scripts of inputs as well.
+     */
+    public List<Script> getFilterScripts() {
+        keyChainGroupLock.lock();
+        try {
+            List<Script> scripts = keyChainGroup.getFilterScripts();
+            scripts.addAll(watchedScripts);
+            return scripts;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * Removes the given key from the basicKeyChain. Be very careful with this - losing a private key <b>destroys the
      * money associated with it</b>.
@@ -624,6 +648,16 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** See {@link KeyChainGroup#getModificationCount()}. */
+    /* package */ long getKeyChainGroupModificationCount() {
+        keyChainGroupLock.lock();
+        try {
+            return keyChainGroup.getModificationCount();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     @VisibleForTesting
     public int getKeyChainGroupCombinedKeyLookaheadEpochs() {
         keyChainGroupLock.lock();
@@ -894,6 +928,7 @@ public class Wallet extends BaseTaggableObject
                 if (script.getCreationTimeSeconds() == 0)
                     log.warn("Adding a script to the wallet with a creation time of zero, this will disable the checkpointing optimization!    {}", script);
                 watchedScripts.add(script);
+                pendingLiveBloomScripts.add(script);
                 added++;
             }
         } finally {
@@ -944,6 +979,8 @@ public class Wallet extends BaseTaggableObject
                     continue;
 
                 watchedScripts.remove(script);
+                // The scripts are no longer of interest, so don't keep advertising them.
+                liveBloomFilter = null;
             }
 
             queueOnScriptsChanged(scripts, false);
@@ -1306,12 +1343,15 @@ public class Wallet extends BaseTaggableObject
                 File canonical = destFile.getCanonicalFile();
                 if (canonical.exists() && !canonical.delete())
                     throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            // A journal kept next to the file belongs to the snapshot that was just replaced.
+            WalletFiles files = vFileManager;
+            if (files != null)
+                files.onFileReplaced(destFile);
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1504,6 +1544,13 @@ public class Wallet extends BaseTaggableObject
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists()) {
+            Wallet wallet = WalletJournal.loadFromFile(file, walletExtensions);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
+        }
         try {
             FileInputStream stream = null;
             try {
@@ -1640,6 +1687,10 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             Transaction tx = transactions.get(txHash);
+            if (tx == null && archive != null && archive.contains(txHash)) {
+                restoreArchivedTransactions(ImmutableList.of(txHash));
+                tx = transactions.get(txHash);
+            }
             if (tx == null) {
                 tx = riskDropped.get(txHash);
                 if (tx != null) {
@@ -1684,6 +1735,10 @@ public class Wallet extends BaseTaggableObject
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return;
             }
+            if (archive != null && archive.contains(tx.getHash())) {
+                log.debug("Received tx we already archived: " + tx.getHashAsString());
+                return;
+            }
             // Repeat the check of relevancy here, even though the caller may have already done so - this is to avoid
             // race conditions where receivePending may be being called in parallel.
             if (!overrideIsRelevant && !isPendingTransactionRelevant(tx))
@@ -1770,6 +1825,10 @@ public class Wallet extends BaseTaggableObject
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return false;
             }
+            if (archive != null && archive.contains(tx.getHash())) {
+                log.debug("Received tx we already archived: " + tx.getHashAsString());
+                return false;
+            }
             // We only care about transactions that:
             //   - Send us coins
             //   - Spend our coins
@@ -1919,6 +1978,8 @@ public class Wallet extends BaseTaggableObject
         // If this transaction is already in the wallet we may need to move it into a different pool. At the very
         // least we need to ensure we're manipulating the canonical object rather than a duplicate.
         {
+            if (archive != null && !transactions.containsKey(tx.getHash()) && archive.contains(tx.getHash()))
+                restoreArchivedTransactions(ImmutableList.of(tx.getHash()));
             Transaction tmp = transactions.get(tx.getHash());
             if (tmp != null)
                 tx = tmp;
@@ -1939,6 +2000,7 @@ public class Wallet extends BaseTaggableObject
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
                         checkState(myUnspents.add(output));
+                        queueLiveBloomOutput(output);
                         spentBy.disconnect();
                     }
                 }
@@ -2139,6 +2201,8 @@ public class Wallet extends BaseTaggableObject
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
+            if (!insideReorg)
+                archiveTransactions();
 
             if (hardSaveOnNextBlock) {
                 saveNow();
@@ -2330,6 +2394,7 @@ public class Wallet extends BaseTaggableObject
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
                     checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    queueLiveBloomOutput(deadInput.getConnectedOutput());
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getHash());
                 }
                 deadInput.disconnect();
@@ -2889,6 +2954,10 @@ public class Wallet extends BaseTaggableObject
                     myUnspents.add(output);
             }
         }
+        if (pool != Pool.DEAD) {
+            for (TransactionOutput output : tx.getOutputs())
+                queueLiveBloomOutput(output);
+        }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
@@ -2933,13 +3002,18 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise. If the transaction
+     * was moved to the {@link TransactionArchive}, a copy is read back from disk. That copy has its confidence set up
+     * but isn't connected to any other transaction in the wallet.
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
-            return transactions.get(hash);
+            Transaction tx = transactions.get(hash);
+            if (tx == null && archive != null)
+                tx = readArchivedTransaction(hash);
+            return tx;
         } finally {
             lock.unlock();
         }
@@ -2967,6 +3041,236 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Moves transactions that are fully spent and at least {@code minDepth} blocks deep out of memory and into the
+     * given archive. Long lived wallets otherwise keep their entire history on the heap, although almost none of it
+     * is ever looked at again. Archived transactions are no longer returned by {@link #getTransactions(boolean)} or
+     * saved in the wallet file. {@link #getTransaction(Sha256Hash)} still finds them, and a re-org that reaches them
+     * brings them back into the wallet. The archive keeps its copies of those until the wallet is loaded again, from a
+     * file saved after they came back.</p>
+     *
+     * <p>A transaction is only archived together with all the wallet transactions it spends from or is spent by, so
+     * nothing that stays in memory refers to an archived transaction. The archive must be set again every time the
+     * wallet is loaded. Passing null stops archiving, but leaves already archived transactions where they are.</p>
+     */
+    public void setTransactionArchive(@Nullable TransactionArchive archive, int minDepth) {
+        checkArgument(minDepth > 0, "minDepth must be positive");
+        lock.lock();
+        try {
+            this.archive = archive;
+            this.archiveDepth = minDepth;
+            removeRestoredFromArchive();
+            if (archiveTransactions() > 0)
+                saveLater();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the archive set with {@link #setTransactionArchive(TransactionArchive, int)}, or null. */
+    @Nullable
+    public TransactionArchive getTransactionArchive() {
+        lock.lock();
+        try {
+            return archive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves deep, fully spent transactions into the archive. Returns the number of transactions moved.
+    private int archiveTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        if (archive == null)
+            return 0;
+        final Set<Transaction> candidates = new HashSet<Transaction>();
+        for (Transaction tx : spent.values()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= archiveDepth)
+                candidates.add(tx);
+        }
+        if (candidates.isEmpty())
+            return 0;
+        // Pending and dead transactions find the outputs they spend by hash, keep those in memory.
+        for (Transaction tx : Iterables.concat(pending.values(), dead.values())) {
+            for (TransactionInput input : tx.getInputs()) {
+                Transaction connected = transactions.get(input.getOutpoint().getHash());
+                if (connected != null)
+                    candidates.remove(connected);
+            }
+        }
+        // A candidate connected to anything that stays in memory has to stay too, which may in turn keep its other
+        // neighbours in memory.
+        LinkedList<Transaction> work = new LinkedList<Transaction>(candidates);
+        while (!work.isEmpty()) {
+            Transaction tx = work.poll();
+            if (!candidates.contains(tx))
+                continue;
+            List<Transaction> neighbours = getConnectedWalletTransactions(tx);
+            for (Transaction neighbour : neighbours) {
+                if (!candidates.contains(neighbour)) {
+                    candidates.remove(tx);
+                    work.addAll(neighbours);
+                    break;
+                }
+            }
+        }
+        if (candidates.isEmpty())
+            return 0;
+        try {
+            for (Transaction tx : candidates) {
+                Protos.Transaction proto = WalletProtobufSerializer.makeTxProto(new WalletTransaction(Pool.SPENT, tx));
+                archive.put(tx.getHash(), tx.getConfidence().getAppearedAtChainHeight(), proto.toByteArray());
+            }
+            archive.flush();
+        } catch (IOException e) {
+            log.error("Failed to archive transactions, keeping them in memory", e);
+            return 0;
+        }
+        try {
+            archive.compactIfNeeded();
+        } catch (IOException e) {
+            log.error("Failed to compact transaction archive", e);
+        }
+        for (Transaction tx : candidates) {
+            spent.remove(tx.getHash());
+            transactions.remove(tx.getHash());
+            restoredFromArchive.remove(tx.getHash());
+            tx.getConfidence().removeEventListener(txConfidenceListener);
+        }
+        log.info("Archived {} transactions", candidates.size());
+        return candidates.size();
+    }
+
+    // Returns the wallet transactions the given one spends outputs of, or has outputs spent by.
+    private List<Transaction> getConnectedWalletTransactions(Transaction tx) {
+        List<Transaction> result = new ArrayList<Transaction>();
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput output = input.getConnectedOutput();
+            Transaction parent = output != null ? output.getParentTransaction() : null;
+            if (parent != null && transactions.get(parent.getHash()) == parent)
+                result.add(parent);
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput input = output.getSpentBy();
+            Transaction child = input != null ? input.getParentTransaction() : null;
+            if (child != null && transactions.get(child.getHash()) == child)
+                result.add(child);
+        }
+        return result;
+    }
+
+    @Nullable
+    private Protos.Transaction readArchivedProto(Sha256Hash hash) {
+        try {
+            byte[] data = archive.get(hash);
+            return data != null ? Protos.Transaction.parseFrom(data) : null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Reads an archived transaction into a fresh object that isn't connected to anything in the wallet. Its confidence
+    // is detached too, so that a lookup doesn't change the confidence other code sees for the hash.
+    @Nullable
+    private Transaction readArchivedTransaction(Sha256Hash hash) {
+        Protos.Transaction proto = readArchivedProto(hash);
+        return proto != null ? materializeArchivedTransaction(proto, new TxConfidenceTable(1)) : null;
+    }
+
+    private Transaction materializeArchivedTransaction(Protos.Transaction proto, TxConfidenceTable confidenceTable) {
+        final Transaction tx;
+        try {
+            tx = new WalletProtobufSerializer().readStandaloneTransaction(params, proto, confidenceTable);
+        } catch (UnreadableWalletException e) {
+            throw new RuntimeException(e);
+        }
+        // Only the height is kept up to date, work out the depth from it.
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+            confidence.setDepthInBlocks(lastBlockSeenHeight - confidence.getAppearedAtChainHeight() + 1);
+        return tx;
+    }
+
+    // Brings the given archived transactions back into the wallet, together with every archived transaction they are
+    // connected to so the pools stay consistent. Transactions that aren't archived are ignored.
+    private void restoreArchivedTransactions(Collection<Sha256Hash> hashes) {
+        checkState(lock.isHeldByCurrentThread());
+        if (archive == null)
+            return;
+        Map<Sha256Hash, Protos.Transaction> protos = new LinkedHashMap<Sha256Hash, Protos.Transaction>();
+        LinkedList<Sha256Hash> work = new LinkedList<Sha256Hash>(hashes);
+        while (!work.isEmpty()) {
+            Sha256Hash hash = work.poll();
+            if (protos.containsKey(hash) || transactions.containsKey(hash))
+                continue;
+            Protos.Transaction proto = readArchivedProto(hash);
+            if (proto == null)
+                continue;
+            protos.put(hash, proto);
+            for (Protos.TransactionInput input : proto.getTransactionInputList())
+                work.add(WalletProtobufSerializer.byteStringToHash(input.getTransactionOutPointHash()));
+            for (Protos.TransactionOutput output : proto.getTransactionOutputList())
+                if (output.hasSpentByTransactionHash())
+                    work.add(WalletProtobufSerializer.byteStringToHash(output.getSpentByTransactionHash()));
+        }
+        if (protos.isEmpty())
+            return;
+        Map<Sha256Hash, Transaction> restored = new HashMap<Sha256Hash, Transaction>();
+        for (Map.Entry<Sha256Hash, Protos.Transaction> entry : protos.entrySet())
+            restored.put(entry.getKey(), materializeArchivedTransaction(entry.getValue(), context.getConfidenceTable()));
+        for (Map.Entry<Sha256Hash, Protos.Transaction> entry : protos.entrySet()) {
+            Transaction tx = restored.get(entry.getKey());
+            List<Protos.TransactionOutput> outputs = entry.getValue().getTransactionOutputList();
+            for (int i = 0; i < outputs.size(); i++) {
+                if (!outputs.get(i).hasSpentByTransactionHash())
+                    continue;
+                Sha256Hash spenderHash = WalletProtobufSerializer.byteStringToHash(outputs.get(i).getSpentByTransactionHash());
+                Transaction spender = restored.get(spenderHash);
+                if (spender == null)
+                    spender = transactions.get(spenderHash);
+                TransactionOutput output = tx.getOutput(i);
+                if (spender != null && output.isAvailableForSpending())
+                    spender.getInput(outputs.get(i).getSpentByTransactionIndex()).connect(output);
+            }
+        }
+        for (Transaction tx : restored.values()) {
+            boolean isSpent = true;
+            for (TransactionOutput output : tx.getOutputs())
+                if (output.isAvailableForSpending() && output.isMineOrWatched(this))
+                    isSpent = false;
+            addWalletTransaction(isSpent ? Pool.SPENT : Pool.UNSPENT, tx);
+        }
+        // The wallet holds them again and looks in memory first. The archive copies are only removed once the wallet
+        // file has them, so that a crash before the next save doesn't lose them.
+        restoredFromArchive.addAll(restored.keySet());
+        log.info("Restored {} transactions from the archive", restored.size());
+    }
+
+    // Removes the archive copies of transactions the wallet holds itself, which happens if the wallet was saved after
+    // restoring them or crashed after archiving them. Those restored since the wallet was loaded may not have been
+    // saved yet and stay in the archive.
+    private void removeRestoredFromArchive() {
+        checkState(lock.isHeldByCurrentThread());
+        if (archive == null)
+            return;
+        int removed = 0;
+        try {
+            for (Sha256Hash hash : transactions.keySet()) {
+                if (!restoredFromArchive.contains(hash) && archive.contains(hash)) {
+                    archive.remove(hash);
+                    removed++;
+                }
+            }
+            if (removed > 0)
+                archive.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (removed > 0)
+            log.info("Removed {} transactions from the archive that are in the wallet again", removed);
+    }
+
     /**
      * Prepares the wallet for a blockchain replay. Removes all transactions (as they would get in the way of the
      * replay) and makes the wallet think it has never seen a block. {@link WalletEventListener#onWalletChanged} will
@@ -3012,6 +3316,14 @@ public class Wallet extends BaseTaggableObject
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        restoredFromArchive.clear();
+        if (archive != null) {
+            try {
+                archive.clear();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     /**
@@ -3061,8 +3373,10 @@ public class Wallet extends BaseTaggableObject
                         for (TransactionInput input : tx.getInputs()) {
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
-                            if (output.isMineOrWatched(this))
+                            if (output.isMineOrWatched(this)) {
                                 checkState(myUnspents.add(output));
+                                queueLiveBloomOutput(output);
+                            }
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
@@ -3921,6 +4235,14 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             checkArgument(!req.completed, "Given SendRequest has already been completed.");
+            if (req.feeEstimator != null) {
+                Coin estimate = req.feeEstimator.estimateFee(req.confirmationTarget);
+                if (estimate != null) {
+                    log.info("Using estimated fee of {}/kB to confirm within {} blocks", estimate.toFriendlyString(),
+                            req.confirmationTarget);
+                    req.feePerKb = estimate;
+                }
+            }
             // Calculate the amount of value we need to import.
             Coin value = Coin.ZERO;
             for (TransactionOutput output : req.tx.getOutputs()) {
@@ -4413,6 +4735,10 @@ public class Wallet extends BaseTaggableObject
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
+            // Archived transactions in the blocks being replaced have to take part like any other.
+            if (archive != null)
+                restoreArchivedTransactions(archive.getHashesAbove(splitPoint.getHeight()));
+
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
@@ -4459,8 +4785,10 @@ public class Wallet extends BaseTaggableObject
                         for (TransactionOutput output : tx.getOutputs()) {
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
-                                if (output.isMineOrWatched(this))
+                                if (output.isMineOrWatched(this)) {
                                     checkState(myUnspents.add(output));
+                                    queueLiveBloomOutput(output);
+                                }
                                 input.disconnect();
                             }
                         }
@@ -4558,6 +4886,24 @@ public class Wallet extends BaseTaggableObject
     // Used to track whether we must automatically begin/end a filter calculation and calc outpoints/take the locks.
     private final AtomicInteger bloomFilterGuard = new AtomicInteger(0);
 
+    // Once the estimated false positive rate of the live filter is this many times worse than requested because of
+    // outpoints that are no longer relevant, it is rebuilt from scratch.
+    private static final double MAX_BLOOM_FILTER_FP_RATE_DRIFT = 2.0;
+
+    // A filter of the watched scripts and outpoints that is kept up to date by inserting new elements as they appear,
+    // instead of rehashing everything on every calculation. Outpoints can't be taken out of a Bloom filter again, so
+    // spent ones stay in until the filter is rebuilt. Keys are cached by the key chains themselves.
+    @GuardedBy("lock") @Nullable private BloomFilter liveBloomFilter;
+    @GuardedBy("lock") private int liveBloomFilterSize;
+    @GuardedBy("lock") private double liveBloomFilterFPRate;
+    @GuardedBy("lock") private long liveBloomFilterTweak;
+    @GuardedBy("lock") private int liveBloomFilterElements;
+    @GuardedBy("lock") private final Set<Script> liveBloomScripts = new HashSet<Script>();
+    @GuardedBy("lock") private final Set<TransactionOutPoint> liveBloomOutPoints = new HashSet<TransactionOutPoint>();
+    // Outputs and scripts that may have become relevant since the live filter was last brought up to date.
+    @GuardedBy("lock") private final List<TransactionOutput> pendingLiveBloomOutputs = new ArrayList<TransactionOutput>();
+    @GuardedBy("keyChainGroupLock") private final List<Script> pendingLiveBloomScripts = new ArrayList<Script>();
+
     @Override
     public void beginBloomFilterCalculation() {
         if (bloomFilterGuard.incrementAndGet() > 1)
@@ -4662,24 +5008,100 @@ public class Wallet extends BaseTaggableObject
         beginBloomFilterCalculation();
         try {
             BloomFilter filter = keyChainGroup.getBloomFilter(size, falsePositiveRate, nTweak);
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
-            for (TransactionOutPoint point : bloomOutPoints)
-                filter.insert(point.unsafeBitcoinSerialize());
+            updateLiveBloomFilter(size, falsePositiveRate, nTweak, keyChainGroup.getBloomFilterElementCount());
+            filter.merge(liveBloomFilter);
             return filter;
         } finally {
             endBloomFilterCalculation();
         }
     }
 
+    // Brings the live filter up to date with the watched scripts and bloomOutPoints, starting over if the parameters
+    // changed or the filter has collected too many stale outpoints.
+    private void updateLiveBloomFilter(int size, double falsePositiveRate, long nTweak, int keyElements) {
+        checkState(lock.isHeldByCurrentThread());
+        boolean rebuild = liveBloomFilter == null || liveBloomFilterSize != size
+                || liveBloomFilterFPRate != falsePositiveRate || liveBloomFilterTweak != nTweak;
+        if (!rebuild) {
+            insertPendingIntoLiveBloomFilter();
+            // Only stale outpoints make the filter worse than a fresh one, so there's no point rebuilding without.
+            final double rate = liveBloomFilter.getFalsePositiveRate(keyElements + liveBloomFilterElements);
+            rebuild = liveBloomOutPoints.size() > bloomOutPoints.size()
+                    && rate > falsePositiveRate * MAX_BLOOM_FILTER_FP_RATE_DRIFT;
+            if (rebuild)
+                log.info("Rebuilding Bloom filter, estimated false positive rate is {}", rate);
+        }
+        if (rebuild) {
+            liveBloomFilter = new BloomFilter(size, falsePositiveRate, nTweak);
+            liveBloomFilterSize = size;
+            liveBloomFilterFPRate = falsePositiveRate;
+            liveBloomFilterTweak = nTweak;
+            liveBloomFilterElements = 0;
+            liveBloomScripts.clear();
+            liveBloomOutPoints.clear();
+            pendingLiveBloomOutputs.clear();
+            pendingLiveBloomScripts.clear();
+            for (Script script : watchedScripts)
+                insertIntoLiveBloomFilter(script);
+            for (TransactionOutPoint point : bloomOutPoints)
+                insertIntoLiveBloomFilter(point);
+        }
+    }
+
+    // Inserts only what was queued since the last update, rather than walking every script and outpoint again.
+    private void insertPendingIntoLiveBloomFilter() {
+        if (!pendingLiveBloomScripts.isEmpty()) {
+            for (Script script : pendingLiveBloomScripts)
+                insertIntoLiveBloomFilter(script);
+            pendingLiveBloomScripts.clear();
+            // Outputs the wallet already had can become relevant by being watched, so take one pass over them.
+            for (TransactionOutPoint point : bloomOutPoints)
+                insertIntoLiveBloomFilter(point);
+        }
+        for (TransactionOutput output : pendingLiveBloomOutputs) {
+            Transaction tx = output.getParentTransaction();
+            if (tx == null || !(unspent.containsKey(tx.getHash()) || spent.containsKey(tx.getHash())
+                    || pending.containsKey(tx.getHash())))
+                continue;
+            try {
+                if (isTxOutputBloomFilterable(output))
+                    insertIntoLiveBloomFilter(output.getOutPointFor());
+            } catch (ScriptException e) {
+                // If it is ours, we parsed the script correctly, so this shouldn't happen.
+                throw new RuntimeException(e);
+            }
+        }
+        pendingLiveBloomOutputs.clear();
+    }
+
+    private void insertIntoLiveBloomFilter(Script script) {
+        if (!liveBloomScripts.add(script))
+            return;
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                liveBloomFilter.insert(chunk.data);
+                liveBloomFilterElements++;
+            }
+        }
+    }
+
+    private void insertIntoLiveBloomFilter(TransactionOutPoint point) {
+        if (liveBloomOutPoints.add(point)) {
+            liveBloomFilter.insert(point.unsafeBitcoinSerialize());
+            liveBloomFilterElements++;
+        }
+    }
+
+    // Remembers an output that may have become relevant, so the live filter can pick it up on the next calculation.
+    private void queueLiveBloomOutput(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (liveBloomFilter != null)
+            pendingLiveBloomOutputs.add(output);
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
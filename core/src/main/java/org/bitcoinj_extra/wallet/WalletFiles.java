@@ -47,8 +47,11 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -100,6 +103,43 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                WalletJournal journal = vJournal;
+                if (journal != null) {
+                    log.info("Compacting wallet journal into a new snapshot");
+                    writeSnapshot(journal);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * <p>Switches between rewriting the whole wallet file on every save, and appending only what changed to a
+     * {@link WalletJournal} kept next to it. With the journal enabled the first save still writes the full wallet,
+     * later saves append to the journal, and once the journal grows past a fraction of the wallet file size a fresh
+     * snapshot is written on the auto-save thread. {@link Wallet#loadFromFile(File, WalletExtension...)} replays the
+     * journal automatically.</p>
+     *
+     * <p>Disabling the journal makes the next save a full one, after which the journal file is deleted.</p>
+     */
+    public void setJournalEnabled(boolean enabled) throws IOException {
+        WalletJournal journal = vJournal;
+        if (enabled && journal == null) {
+            vJournal = new WalletJournal(file);
+        } else if (!enabled && journal != null) {
+            vJournal = null;
+            journal.close();
+        }
+    }
+
+    /** Returns whether saves are appended to a {@link WalletJournal}. */
+    public boolean isJournalEnabled() {
+        return vJournal != null;
     }
 
     /**
@@ -121,6 +161,11 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        final WalletJournal journal = vJournal;
+        if (journal != null) {
+            saveToJournal(journal);
+            return;
+        }
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -130,10 +175,49 @@ public class WalletFiles {
         wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
+        // Any journal left behind is stale now, it would be ignored on load anyway.
+        File journalFile = WalletJournal.getJournalFile(file);
+        if (journalFile.exists() && !journalFile.delete())
+            log.warn("Failed to delete stale wallet journal {}", journalFile);
         watch.stop();
         log.info("Save completed in {}", watch);
     }
 
+    private void saveToJournal(WalletJournal journal) throws IOException {
+        if (journal.needsSnapshot()) {
+            writeSnapshot(journal);
+            return;
+        }
+        final Stopwatch watch = Stopwatch.createStarted();
+        if (!journal.append(wallet)) {
+            // The wallet file was replaced since needsSnapshot() was asked.
+            writeSnapshot(journal);
+            return;
+        }
+        watch.stop();
+        log.info("Journal append completed in {}", watch);
+        if (journal.shouldCompact() && !compactionPending.getAndSet(true))
+            executor.submit(compactor);
+    }
+
+    private void writeSnapshot(WalletJournal journal) throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        journal.writeSnapshot(wallet, vListener);
+        watch.stop();
+        log.info("Snapshot completed in {}", watch);
+    }
+
+    /**
+     * Called by {@link Wallet#saveToFile(File, File)} after it replaced the given file with a full save. If that is
+     * the file kept up to date here, a journal kept next to it no longer matches it, so the next save starts over
+     * with a snapshot.
+     */
+    void onFileReplaced(File replaced) throws IOException {
+        WalletJournal journal = vJournal;
+        if (journal != null && replaced.getAbsoluteFile().equals(file.getAbsoluteFile()))
+            journal.snapshotReplaced();
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
         if (savePending.getAndSet(true))
@@ -149,5 +233,13 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Failed to close wallet journal", e);
+            }
+        }
     }
 }
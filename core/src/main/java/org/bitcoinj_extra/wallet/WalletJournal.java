@@ -0,0 +1,541 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.wallet;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.utils.ExchangeRate;
+import org.bitcoinj_extra.utils.Threading;
+import org.slf4j.*;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.*;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>An append-only log of wallet changes kept next to a protobuf wallet file (the snapshot), see
+ * {@link WalletFiles#setJournalEnabled(boolean)}. Rather than serializing every key and transaction on each save, only
+ * the transactions that changed since the last save are written, as {@link Protos.Transaction} records, together with
+ * the key chains if they changed and the small remainder of the wallet (last seen block, extensions, scripts and so
+ * on). Changes are found by comparing a cheap in-memory fingerprint of each transaction's mutable state, so nothing
+ * is serialized for transactions that did not change.</p>
+ *
+ * <p>Each save is written as a batch of records terminated by a commit record, and every record carries a CRC32. A
+ * batch torn by a crash is ignored on load. The journal starts with the SHA-256 of the snapshot it applies to, so a
+ * journal left over from an older snapshot is never replayed on top of a newer one.</p>
+ *
+ * <p>When the journal grows past a fraction of the snapshot size, {@link WalletFiles} compacts it by writing a fresh
+ * snapshot on its background thread and starting a new, empty journal. {@link Wallet#loadFromFile(File,
+ * WalletExtension...)} replays the journal on top of the snapshot transparently.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final int MAGIC = 0x574a524e; // "WJRN"
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 512 * 1024 * 1024;
+
+    private static final int RECORD_SETTINGS = 1;
+    private static final int RECORD_KEYS = 2;
+    private static final int RECORD_TRANSACTION = 3;
+    private static final int RECORD_REMOVED = 4;
+    private static final int RECORD_COMMIT = 5;
+
+    /** Compaction happens when the journal reaches this fraction of the snapshot size. */
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+    // Below this size the journal is never worth compacting.
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    // Always taken after the wallet lock, never before, and held across file IO with the wallet lock released.
+    private final ReentrantLock lock = Threading.lock("walletjournal");
+    private final File walletFile;
+    private final File journalFile;
+    private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    // What was last written, either into the snapshot or the journal. Null until the first snapshot is written.
+    @Nullable private Map<Sha256Hash, Long> txFingerprints;
+    private long keyModificationCount;
+    @Nullable private ByteString settings;
+    private long snapshotSize;
+    private long snapshotLastModified;
+
+    @Nullable private FileOutputStream fileOutput;
+    @Nullable private DataOutputStream output;
+
+    /** Creates a journal for the given wallet file. Nothing is written until the first snapshot. */
+    public WalletJournal(File walletFile) {
+        this.walletFile = checkNotNull(walletFile);
+        this.journalFile = getJournalFile(walletFile);
+    }
+
+    /** Returns the file the journal for the given wallet file is kept in. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /** Sets the fraction of the snapshot size the journal may grow to before {@link #shouldCompact()} is true. */
+    public void setCompactionRatio(double compactionRatio) {
+        checkArgument(compactionRatio > 0);
+        lock.lock();
+        try {
+            this.compactionRatio = compactionRatio;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a full snapshot must be written before changes can be appended. That is the case until the first
+     * snapshot, and again once the wallet file was replaced by anything other than this journal, as changes appended
+     * after that would be ignored on load.
+     */
+    public boolean needsSnapshot() {
+        lock.lock();
+        try {
+            return txFingerprints == null || walletFile.length() != snapshotSize
+                    || walletFile.lastModified() != snapshotLastModified;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells the journal that the wallet file was replaced by a full save that did not go through it, so that the next
+     * save writes a new snapshot and journal header instead of appending to the old ones.
+     */
+    /* package */ void snapshotReplaced() throws IOException {
+        lock.lock();
+        try {
+            closeOutput();
+            txFingerprints = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Whether the journal has grown large enough that a fresh snapshot should be written. */
+    public boolean shouldCompact() {
+        lock.lock();
+        try {
+            long size = journalFile.length();
+            return size > MIN_COMPACTION_SIZE && size > snapshotSize * compactionRatio;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the whole wallet to the wallet file, using a temp file and an atomic rename, then starts a new empty
+     * journal for it. The wallet is only locked while it is converted to protobuf form.
+     */
+    public void writeSnapshot(Wallet wallet, @Nullable WalletFiles.Listener listener) throws IOException {
+        final Protos.Wallet proto;
+        final Map<Sha256Hash, Long> fingerprints = new HashMap<Sha256Hash, Long>();
+        final long keyModifications;
+        wallet.lock.lock();
+        try {
+            lock.lock();
+            proto = new WalletProtobufSerializer().walletToProto(wallet);
+            for (WalletTransaction wtx : wallet.getWalletTransactions())
+                fingerprints.put(wtx.getTransaction().getHash(), fingerprint(wtx));
+            keyModifications = wallet.getKeyChainGroupModificationCount();
+        } catch (RuntimeException e) {
+            lock.unlock();
+            throw e;
+        } finally {
+            wallet.lock.unlock();
+        }
+        try {
+            writeSnapshotLocked(proto, fingerprints, keyModifications, listener);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeSnapshotLocked(Protos.Wallet proto, Map<Sha256Hash, Long> fingerprints, long keyModifications,
+                                     @Nullable WalletFiles.Listener listener) throws IOException {
+        closeOutput();
+        File directory = walletFile.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        MessageDigest digest = Sha256Hash.newDigest();
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            OutputStream digesting = new DigestOutputStream(new BufferedOutputStream(stream), digest);
+            proto.writeTo(digesting);
+            digesting.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        replaceFile(temp, walletFile);
+        if (listener != null)
+            listener.onAfterAutoSave(walletFile);
+
+        // A crash from here on leaves a journal that doesn't match the new snapshot, which is then ignored.
+        fileOutput = new FileOutputStream(journalFile, false);
+        output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.write(digest.digest());
+        sync();
+
+        txFingerprints = fingerprints;
+        keyModificationCount = keyModifications;
+        settings = settingsOf(proto);
+        snapshotSize = walletFile.length();
+        snapshotLastModified = walletFile.lastModified();
+    }
+
+    /**
+     * Appends the changes made to the wallet since the last snapshot or append as a single batch, and forces it to
+     * disk. Writes nothing if the wallet is unchanged. Returns false without writing anything if a snapshot must be
+     * written first, see {@link #needsSnapshot()}.
+     */
+    public boolean append(Wallet wallet) throws IOException {
+        final Map<Sha256Hash, Long> fingerprints = new HashMap<Sha256Hash, Long>();
+        final List<Protos.Transaction> changed = new ArrayList<Protos.Transaction>();
+        final List<Sha256Hash> removed = new ArrayList<Sha256Hash>();
+        final long keyModifications;
+        @Nullable Protos.Wallet keys = null;
+        final Protos.Wallet settingsProto;
+        wallet.lock.lock();
+        try {
+            lock.lock();
+            if (txFingerprints == null || output == null) {
+                lock.unlock();
+                return false;
+            }
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Sha256Hash hash = wtx.getTransaction().getHash();
+                long fingerprint = fingerprint(wtx);
+                fingerprints.put(hash, fingerprint);
+                Long previous = txFingerprints.get(hash);
+                if (previous == null || previous != fingerprint)
+                    changed.add(WalletProtobufSerializer.makeTxProto(wtx));
+            }
+            for (Sha256Hash hash : txFingerprints.keySet())
+                if (!fingerprints.containsKey(hash))
+                    removed.add(hash);
+            keyModifications = wallet.getKeyChainGroupModificationCount();
+            if (keyModifications != keyModificationCount) {
+                keys = Protos.Wallet.newBuilder()
+                        .setNetworkIdentifier(wallet.getNetworkParameters().getId())
+                        .addAllKey(wallet.serializeKeyChainGroupToProtobuf())
+                        .build();
+            }
+            settingsProto = new WalletProtobufSerializer().walletToProto(wallet, false);
+        } catch (RuntimeException e) {
+            lock.unlock();
+            throw e;
+        } finally {
+            wallet.lock.unlock();
+        }
+        try {
+            appendLocked(fingerprints, changed, removed, keyModifications, keys, settingsProto);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private void appendLocked(Map<Sha256Hash, Long> fingerprints, List<Protos.Transaction> changed,
+                              List<Sha256Hash> removed, long keyModifications, @Nullable Protos.Wallet keys,
+                              Protos.Wallet settingsProto) throws IOException {
+        final ByteString newSettings = settingsProto.toByteString();
+        final boolean settingsChanged = !newSettings.equals(settings);
+        if (changed.isEmpty() && removed.isEmpty() && keys == null && !settingsChanged)
+            return;
+        if (settingsChanged)
+            writeRecord(RECORD_SETTINGS, newSettings.toByteArray());
+        if (keys != null)
+            writeRecord(RECORD_KEYS, keys.toByteArray());
+        for (Protos.Transaction tx : changed)
+            writeRecord(RECORD_TRANSACTION, tx.toByteArray());
+        for (Sha256Hash hash : removed)
+            writeRecord(RECORD_REMOVED, hash.getBytes());
+        writeRecord(RECORD_COMMIT, new byte[0]);
+        sync();
+        log.info("Journalled {} changed and {} removed transactions{}", changed.size(), removed.size(),
+                keys != null ? " and keys" : "");
+
+        txFingerprints = fingerprints;
+        keyModificationCount = keyModifications;
+        settings = newSettings;
+    }
+
+    /** Closes the journal file. A snapshot must be written before the journal can be appended to again. */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closeOutput();
+            txFingerprints = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeOutput() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+            fileOutput = null;
+        }
+    }
+
+    private void writeRecord(int type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        output.writeByte(type);
+        output.writeInt(payload.length);
+        output.write(payload);
+        output.writeInt((int) crc.getValue());
+    }
+
+    private void sync() throws IOException {
+        output.flush();
+        fileOutput.getFD().sync();
+    }
+
+    private static ByteString settingsOf(Protos.Wallet proto) {
+        return proto.toBuilder().clearTransaction().clearKey().build().toByteString();
+    }
+
+    // A hash of everything about a wallet transaction that can change after it entered the wallet, i.e. everything
+    // makeTxProto writes out except the immutable transaction itself. Only compared within this process, so identity
+    // hash codes are fine. Depth is left out as it changes with every block; it is recomputed on load instead.
+    private static long fingerprint(WalletTransaction wtx) {
+        final Transaction tx = wtx.getTransaction();
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(wtx.getPool().ordinal());
+        hasher.putLong(tx.getUpdateTime().getTime());
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            hasher.putInt(spentBy != null ? System.identityHashCode(spentBy) : 0);
+        }
+        Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        if (appearsInHashes != null) {
+            for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet())
+                hasher.putBytes(entry.getKey().getBytes()).putInt(entry.getValue());
+        }
+        if (tx.hasConfidence()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            synchronized (confidence) {
+                TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+                hasher.putInt(type.ordinal()).putInt(confidence.getSource().ordinal());
+                if (type == TransactionConfidence.ConfidenceType.BUILDING)
+                    hasher.putInt(confidence.getAppearedAtChainHeight());
+                if (type == TransactionConfidence.ConfidenceType.DEAD) {
+                    Transaction overriding = confidence.getOverridingTransaction();
+                    hasher.putInt(overriding != null ? System.identityHashCode(overriding) : 0);
+                }
+            }
+            hasher.putInt(confidence.numBroadcastPeers());
+            Date lastBroadcastedAt = confidence.getLastBroadcastedAt();
+            hasher.putLong(lastBroadcastedAt != null ? lastBroadcastedAt.getTime() : 0);
+        }
+        hasher.putInt(tx.getPurpose().ordinal());
+        String memo = tx.getMemo();
+        hasher.putInt(memo != null ? memo.hashCode() : 0);
+        ExchangeRate exchangeRate = tx.getExchangeRate();
+        hasher.putInt(exchangeRate != null ? exchangeRate.hashCode() : 0);
+        return hasher.hash().asLong();
+    }
+
+    private static void replaceFile(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Loading
+    //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the given wallet file and replays its journal, if there is one, on top of it. You normally want
+     * {@link Wallet#loadFromFile(File, WalletExtension...)}, which calls this when a journal exists.
+     */
+    public static Wallet loadFromFile(File walletFile, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            MessageDigest digest = Sha256Hash.newDigest();
+            Protos.Wallet snapshot;
+            InputStream input = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)), digest);
+            try {
+                snapshot = WalletProtobufSerializer.parseToProto(input);
+                // Make sure the digest covers the whole file.
+                byte[] buffer = new byte[4096];
+                while (input.read(buffer) >= 0);
+            } finally {
+                input.close();
+            }
+            Protos.Wallet proto = replay(snapshot, digest.digest(), getJournalFile(walletFile));
+            NetworkParameters params = NetworkParameters.fromID(proto.getNetworkIdentifier());
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + proto.getNetworkIdentifier());
+            return new WalletProtobufSerializer().readWallet(params, walletExtensions, proto);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        }
+    }
+
+    /**
+     * Applies all complete batches of the journal to the snapshot. Returns the snapshot unchanged if the journal is
+     * missing, empty or belongs to a different snapshot.
+     */
+    /* package */ static Protos.Wallet replay(Protos.Wallet snapshot, byte[] snapshotDigest, File journalFile)
+            throws IOException {
+        if (!journalFile.exists())
+            return snapshot;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] digest = new byte[32];
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    log.warn("Unrecognised wallet journal {}, ignoring", journalFile);
+                    return snapshot;
+                }
+                input.readFully(digest);
+            } catch (EOFException e) {
+                return snapshot;
+            }
+            if (!Arrays.equals(digest, snapshotDigest)) {
+                log.info("Wallet journal {} does not belong to the current snapshot, ignoring", journalFile);
+                return snapshot;
+            }
+
+            Protos.Wallet settings = null;
+            List<Protos.Key> keys = null;
+            Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+            for (Protos.Transaction tx : snapshot.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+
+            // Records of the batch being read, only applied once its commit record has been seen.
+            Protos.Wallet batchSettings = null;
+            List<Protos.Key> batchKeys = null;
+            List<Protos.Transaction> batchTransactions = new ArrayList<Protos.Transaction>();
+            List<ByteString> batchRemoved = new ArrayList<ByteString>();
+            int batches = 0;
+            int type;
+            while ((type = input.read()) >= 0) {
+                byte[] payload = readRecordPayload(input, type);
+                if (payload == null) {
+                    log.warn("Wallet journal {} ends with an incomplete batch, ignoring it", journalFile);
+                    break;
+                }
+                switch (type) {
+                    case RECORD_SETTINGS:
+                        batchSettings = Protos.Wallet.parseFrom(payload);
+                        break;
+                    case RECORD_KEYS:
+                        batchKeys = Protos.Wallet.parseFrom(payload).getKeyList();
+                        break;
+                    case RECORD_TRANSACTION:
+                        batchTransactions.add(Protos.Transaction.parseFrom(payload));
+                        break;
+                    case RECORD_REMOVED:
+                        batchRemoved.add(ByteString.copyFrom(payload));
+                        break;
+                    case RECORD_COMMIT:
+                        if (batchSettings != null)
+                            settings = batchSettings;
+                        if (batchKeys != null)
+                            keys = batchKeys;
+                        for (Protos.Transaction tx : batchTransactions)
+                            transactions.put(tx.getHash(), tx);
+                        for (ByteString hash : batchRemoved)
+                            transactions.remove(hash);
+                        batchSettings = null;
+                        batchKeys = null;
+                        batchTransactions.clear();
+                        batchRemoved.clear();
+                        batches++;
+                        break;
+                    default:
+                        throw new IOException("Unknown wallet journal record type " + type);
+                }
+            }
+            if (batches == 0)
+                return snapshot;
+            log.info("Replayed {} batches from wallet journal {}", batches, journalFile);
+
+            Protos.Wallet.Builder builder = (settings != null ? settings : snapshot).toBuilder();
+            builder.clearTransaction().clearKey();
+            builder.addAllKey(keys != null ? keys : snapshot.getKeyList());
+            boolean haveHeight = builder.hasLastSeenBlockHeight();
+            for (Protos.Transaction tx : transactions.values())
+                builder.addTransaction(haveHeight ? withDepth(tx, builder.getLastSeenBlockHeight()) : tx);
+            return builder.build();
+        } finally {
+            input.close();
+        }
+    }
+
+    // Returns null if the record is truncated or fails its checksum.
+    @Nullable
+    private static byte[] readRecordPayload(DataInputStream input, int type) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE)
+                return null;
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            int checksum = input.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Depth isn't journalled for transactions that did not otherwise change, so derive it from the best height.
+    private static Protos.Transaction withDepth(Protos.Transaction tx, int bestHeight) {
+        if (!tx.hasConfidence())
+            return tx;
+        Protos.TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+            return tx;
+        int depth = bestHeight - confidence.getAppearedAtHeight() + 1;
+        if (depth < 1 || depth == confidence.getDepth())
+            return tx;
+        return tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+    }
+}
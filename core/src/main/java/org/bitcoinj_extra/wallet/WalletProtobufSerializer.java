@@ -24,10 +24,12 @@ import org.bitcoinj_extra.crypto.KeyCrypterScrypt;
 import org.bitcoinj_extra.script.Script;
 import org.bitcoinj_extra.signers.LocalTransactionSigner;
 import org.bitcoinj_extra.signers.TransactionSigner;
+import org.bitcoinj_extra.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj_extra.utils.ExchangeRate;
 import org.bitcoinj_extra.utils.Fiat;
 import org.bitcoinj_extra.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
@@ -45,7 +47,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -74,10 +82,16 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // Wallets with fewer transactions than this are read on the calling thread, as starting threads would cost more
+    // than it saves.
+    private static final int PARALLEL_LOAD_THRESHOLD = 1000;
+    // Transactions are handed out to loader threads in chunks of at least this many.
+    private static final int MIN_CHUNK_SIZE = 256;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -114,6 +128,16 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * Sets the number of threads used to read large wallets. Transactions are then deserialized and connected in
+     * parallel, while the key chains are rebuilt concurrently on one of the threads. A value of one reads everything on
+     * the calling thread, as small wallets always are. Defaults to the number of available processors.
+     */
+    public void setLoadThreads(int loadThreads) {
+        checkArgument(loadThreads > 0, "loadThreads must be positive");
+        this.loadThreads = loadThreads;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -141,18 +165,28 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /**
+     * Converts the given wallet to protocol buffer form, optionally leaving out the transactions and keys. Without
+     * them the result is small and cheap to build, which is what {@link WalletJournal} records.
+     */
+    /* package */ Protos.Wallet walletToProto(Wallet wallet, boolean includeTransactionsAndKeys) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
+        if (includeTransactionsAndKeys) {
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
 
-        walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+            walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        }
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -228,7 +262,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    /* package */ static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -456,21 +490,42 @@ public class WalletProtobufSerializer {
      *
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
-    public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
-                             Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+    public Wallet readWallet(final NetworkParameters params, @Nullable WalletExtension[] extensions,
+                             final Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        ExecutorService executor = null;
+        if (!forceReset && loadThreads > 1 && walletProto.getTransactionCount() >= PARALLEL_LOAD_THRESHOLD)
+            executor = Executors.newFixedThreadPool(loadThreads, new ContextPropagatingThreadFactory("wallet loader"));
+        try {
+            return readWallet(params, extensions, walletProto, forceReset, executor);
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    private Wallet readWallet(final NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              final Protos.Wallet walletProto, boolean forceReset,
+                              @Nullable ExecutorService executor) throws UnreadableWalletException {
+        // Keys don't depend on transactions, so rebuild the key chains in the background whilst the transactions are
+        // being parsed.
         KeyChainGroup keyChainGroup;
-        if (walletProto.hasEncryptionParameters()) {
-            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        Transaction[] txs = null;
+        if (executor != null) {
+            Future<KeyChainGroup> keyChainGroupFuture = executor.submit(new Callable<KeyChainGroup>() {
+                @Override
+                public KeyChainGroup call() throws Exception {
+                    return readKeyChainGroup(params, walletProto);
+                }
+            });
+            txs = readTransactions(params, walletProto.getTransactionList(), executor);
+            keyChainGroup = getLoadResult(keyChainGroupFuture);
         } else {
-            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+            keyChainGroup = readKeyChainGroup(params, walletProto);
         }
         Wallet wallet = factory.create(params, keyChainGroup);
 
@@ -499,15 +554,29 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
             // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            final List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+            if (txs == null)
+                txs = readTransactions(params, txProtos, null);
+            for (int i = 0; i < txs.length; i++) {
+                ByteString hash = txProtos.get(i).getHash();
+                if (txMap.containsKey(hash))
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+                txMap.put(hash, txs[i]);
             }
 
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            // Update transaction outputs to point to inputs that spend them. Every output belongs to exactly one
+            // transaction and is spent by at most one input, so transactions can be connected independently of each
+            // other. Only adding them to the wallet has to happen in order.
+            final WalletTransaction[] wtxs = new WalletTransaction[txs.length];
+            forEachChunk(executor, txs.length, new ChunkTask() {
+                @Override
+                public void run(int from, int to) throws UnreadableWalletException {
+                    for (int i = from; i < to; i++)
+                        wtxs[i] = connectTransactionOutputs(params, txProtos.get(i));
+                }
+            });
+            for (WalletTransaction wtx : wtxs)
                 wallet.addWalletTransaction(wtx);
-            }
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -556,6 +625,72 @@ public class WalletProtobufSerializer {
         return wallet;
     }
 
+    private KeyChainGroup readKeyChainGroup(NetworkParameters params, Protos.Wallet walletProto) throws UnreadableWalletException {
+        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        if (walletProto.hasEncryptionParameters()) {
+            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
+            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
+            return KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        } else {
+            return KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+        }
+    }
+
+    private Transaction[] readTransactions(final NetworkParameters params, final List<Protos.Transaction> txProtos,
+                                           @Nullable ExecutorService executor) throws UnreadableWalletException {
+        final Transaction[] txs = new Transaction[txProtos.size()];
+        forEachChunk(executor, txs.length, new ChunkTask() {
+            @Override
+            public void run(int from, int to) throws UnreadableWalletException {
+                for (int i = from; i < to; i++)
+                    txs[i] = readTransaction(txProtos.get(i), params);
+            }
+        });
+        return txs;
+    }
+
+    private interface ChunkTask {
+        void run(int from, int to) throws UnreadableWalletException;
+    }
+
+    // Splits [0, count) into chunks and runs the task over them, on the executor if there is one. Returns once all
+    // chunks are done, rethrowing the first failure.
+    private void forEachChunk(@Nullable ExecutorService executor, int count, final ChunkTask task) throws UnreadableWalletException {
+        if (executor == null) {
+            task.run(0, count);
+            return;
+        }
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, (count + loadThreads * 4 - 1) / (loadThreads * 4));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int from = 0; from < count; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(count, from + chunkSize);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.run(start, end);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures)
+            getLoadResult(future);
+    }
+
+    private static <T> T getLoadResult(Future<T> future) throws UnreadableWalletException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new UnreadableWalletException("Interrupted whilst reading wallet", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UnreadableWalletException)
+                throw (UnreadableWalletException) cause;
+            Throwables.propagateIfPossible(cause);
+            throw new UnreadableWalletException("Could not read wallet", cause);
+        }
+    }
+
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
         final Map<String, WalletExtension> extensions = new HashMap<String, WalletExtension>();
         for (WalletExtension e : extensionsList)
@@ -598,7 +733,19 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /**
+     * Reads a single transaction and its confidence without connecting it to any other transaction. Used to bring
+     * transactions back from a {@link TransactionArchive}. The confidence object is taken from the given table.
+     */
+    /* package */ Transaction readStandaloneTransaction(NetworkParameters params, Protos.Transaction txProto,
+                                                       TxConfidenceTable confidenceTable) throws UnreadableWalletException {
+        Transaction tx = readTransaction(txProto, params);
+        if (txProto.hasConfidence())
+            readConfidence(params, tx, txProto.getConfidence(), tx.getConfidence(confidenceTable));
+        return tx;
+    }
+
+    private Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -665,9 +812,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
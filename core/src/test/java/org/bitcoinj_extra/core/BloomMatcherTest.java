@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.primitives.Ints;
+import org.bitcoinj_extra.core.BloomFilter.BloomUpdate;
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.script.ScriptBuilder;
+import org.bitcoinj_extra.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj_extra.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class BloomMatcherTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private List<ECKey> keys;
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        // Transactions paying to raw keys and to addresses, and one spending an earlier one in the same block.
+        keys = new ArrayList<ECKey>();
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 20; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            Transaction tx = new Transaction(PARAMS);
+            byte[] scriptSig = new ScriptBuilder().data(new byte[72]).data(new ECKey().getPubKey()).build().getProgram();
+            tx.addInput(new TransactionInput(PARAMS, tx, scriptSig,
+                    new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(Ints.toByteArray(i)))));
+            if (i % 2 == 0)
+                tx.addOutput(COIN, key);
+            else
+                tx.addOutput(COIN, key.toAddress(PARAMS));
+            txns.add(tx);
+        }
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(txns.get(0).getOutput(0));
+        spend.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        txns.add(spend);
+        block = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock(), (Address) null,
+                txns.toArray(new Transaction[txns.size()]));
+    }
+
+    @Test
+    public void preparedObjectHashes() throws Exception {
+        Random random = new Random(1);
+        byte[] data = new byte[1000];
+        for (int length = 0; length < 40; length++) {
+            byte[] object = new byte[length];
+            random.nextBytes(object);
+            BloomFilter.PreparedObject prepared = new BloomFilter.PreparedObject(object);
+            long nTweak = random.nextInt() & 0xFFFFFFFFL;
+            for (int hashNum = 0; hashNum < 10; hashNum++)
+                assertEquals(BloomFilter.murmurHash3(data, nTweak, hashNum, object),
+                        prepared.hash(nTweak, hashNum, data.length * 8));
+        }
+    }
+
+    @Test
+    public void sameAsTransactionByTransaction() throws Exception {
+        List<BloomFilter> filters = new ArrayList<BloomFilter>();
+        for (BloomUpdate flag : BloomUpdate.values()) {
+            // The first key pays to a raw key and is spent in the block, the second pays to an address.
+            filters.add(filter(flag, keys.get(0)));
+            filters.add(filter(flag, keys.get(1)));
+            filters.add(filter(flag, keys.get(5), keys.get(6), keys.get(19)));
+            filters.add(filter(flag));
+        }
+        BloomFilter all = filter(BloomUpdate.UPDATE_NONE);
+        all.setMatchAll();
+        filters.add(all);
+
+        List<BloomFilter> copies = new ArrayList<BloomFilter>();
+        for (BloomFilter filter : filters)
+            copies.add(new BloomFilter(PARAMS, filter.bitcoinSerialize()));
+        List<FilteredBlock> filteredBlocks = new BloomMatcher(block).applyAndUpdate(filters);
+        assertEquals(filters.size(), filteredBlocks.size());
+        for (int i = 0; i < filters.size(); i++) {
+            List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+            for (Transaction tx : block.getTransactions())
+                if (copies.get(i).applyAndUpdate(tx))
+                    expected.add(tx.getHash());
+            // Checks the partial merkle tree against the header, too.
+            assertEquals(expected, filteredBlocks.get(i).getTransactionHashes());
+            assertEquals(expected.size(), filteredBlocks.get(i).getAssociatedTransactions().size());
+            assertEquals(copies.get(i), filters.get(i));
+        }
+
+        // Spends of the raw key output match only if the filter was updated with it.
+        Sha256Hash spend = block.getTransactions().get(21).getHash();
+        assertFalse(filteredBlocks.get(0).getTransactionHashes().contains(spend));
+        assertTrue(filteredBlocks.get(4).getTransactionHashes().contains(spend));
+        assertTrue(filteredBlocks.get(8).getTransactionHashes().contains(spend));
+        assertEquals(block.getTransactions().size(), filteredBlocks.get(filters.size() - 1).getTransactionHashes().size());
+        assertEquals(0, filteredBlocks.get(3).getTransactionHashes().size());
+    }
+
+    @Test
+    public void merkleLevels() throws Exception {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Transaction tx : block.getTransactions())
+            hashes.add(tx.getHash());
+        List<List<Sha256Hash>> levels = PartialMerkleTree.buildLevels(hashes);
+        // 22 transactions, then 11, 6, 3, 2 and the root.
+        assertEquals(6, levels.size());
+        assertEquals(1, levels.get(5).size());
+        assertEquals(block.getMerkleRoot(), levels.get(5).get(0));
+    }
+
+    private static BloomFilter filter(BloomUpdate flag, ECKey... keys) {
+        BloomFilter filter = new BloomFilter(10, 0.000001, 1234, flag);
+        for (ECKey key : keys)
+            filter.insert(key);
+        return filter;
+    }
+}
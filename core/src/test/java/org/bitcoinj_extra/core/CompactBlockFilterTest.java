@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.params.TestNet3Params;
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.script.ScriptBuilder;
+import org.bitcoinj_extra.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj_extra.core.Coin.COIN;
+import static org.bitcoinj_extra.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class CompactBlockFilterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private List<ECKey> keys;
+    private byte[] spentScript;
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        keys = new ArrayList<ECKey>();
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 10; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            txns.add(FakeTxBuilder.createFakeTx(PARAMS, COIN, key.toAddress(PARAMS)));
+        }
+        // Data carrier outputs are left out of the filter.
+        Transaction opReturn = new Transaction(PARAMS);
+        opReturn.addInput(txns.get(0).getOutput(0));
+        opReturn.addOutput(Coin.ZERO, ScriptBuilder.createOpReturnScript(new byte[] { 1, 2, 3 }));
+        txns.add(opReturn);
+        block = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock(), (Address) null,
+                txns.toArray(new Transaction[txns.size()]));
+        spentScript = ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)).getProgram();
+    }
+
+    @Test
+    public void genesisBlockOfTestNet() throws Exception {
+        // From the test vectors of BIP 158.
+        Block genesis = TestNet3Params.get().getGenesisBlock();
+        CompactBlockFilter filter = CompactBlockFilter.build(genesis, Collections.<byte[]>emptyList());
+        assertEquals("019dfca8", HEX.encode(filter.getFilterBytes()));
+        assertEquals("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750",
+                CompactBlockFilter.calculateHeader(filter.getFilterHash(), Sha256Hash.ZERO_HASH).toString());
+        assertTrue(filter.match(genesis.getTransactions().get(0).getOutput(0).getScriptBytes()));
+    }
+
+    @Test
+    public void buildAndMatch() throws Exception {
+        CompactBlockFilter filter = CompactBlockFilter.build(block, Arrays.asList(spentScript, spentScript));
+        // Two outputs of each fake transaction, the coinbase output and the spent script once.
+        assertEquals(22, filter.getSize());
+        CompactBlockFilter parsed = new CompactBlockFilter(block.getHash(), filter.getFilterBytes());
+        assertEquals(filter, parsed);
+        for (ECKey key : keys)
+            assertTrue(parsed.match(ScriptBuilder.createOutputScript(key.toAddress(PARAMS)).getProgram()));
+        assertTrue(parsed.match(spentScript));
+        assertFalse(parsed.match(block.getTransactions().get(11).getOutput(0).getScriptBytes()));
+
+        // Other scripts only match with a probability of 1 in M.
+        Random random = new Random(1);
+        List<byte[]> others = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] script = new byte[25];
+            random.nextBytes(script);
+            others.add(script);
+        }
+        assertFalse(parsed.matchAny(others));
+        others.add(500, spentScript);
+        assertTrue(parsed.matchAny(others));
+        // The filter is keyed by the block hash.
+        CompactBlockFilter other = new CompactBlockFilter(PARAMS.getGenesisBlock().getHash(), filter.getFilterBytes());
+        assertFalse(other.match(spentScript) && other.match(keys.get(0).getPubKeyHash()));
+    }
+
+    @Test
+    public void emptySet() throws Exception {
+        GolombCodedSet set = GolombCodedSet.build(CompactBlockFilter.BASIC_P, CompactBlockFilter.BASIC_M, new byte[16],
+                Collections.<byte[]>emptyList());
+        assertEquals(0, set.getN());
+        assertEquals(0, set.getData().length);
+        assertFalse(set.match(new byte[] { 1 }));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedFilter() throws Exception {
+        byte[] bytes = CompactBlockFilter.build(block, Collections.<byte[]>emptyList()).getFilterBytes();
+        new CompactBlockFilter(block.getHash(), Arrays.copyOf(bytes, bytes.length / 2)).match(spentScript);
+    }
+
+    @Test
+    public void filterHeaders() throws Exception {
+        Sha256Hash previous = Sha256Hash.of(new byte[] { 1 });
+        List<Sha256Hash> filterHashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 3; i++)
+            filterHashes.add(Sha256Hash.of(new byte[] { 2, (byte) i }));
+        CFHeadersMessage message = new CFHeadersMessage(PARAMS, CompactBlockFilter.BASIC, block.getHash(), previous,
+                filterHashes);
+        List<Sha256Hash> headers = message.getFilterHeaders();
+        assertEquals(3, headers.size());
+        assertEquals(CompactBlockFilter.calculateHeader(filterHashes.get(0), previous), headers.get(0));
+        assertEquals(CompactBlockFilter.calculateHeader(filterHashes.get(2), headers.get(1)), headers.get(2));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        CompactBlockFilter filter = CompactBlockFilter.build(block, Collections.singletonList(spentScript));
+        CFilterMessage cfilter = new CFilterMessage(PARAMS, filter);
+        CFilterMessage parsedFilter = (CFilterMessage) roundTrip(cfilter);
+        assertEquals(cfilter, parsedFilter);
+        assertEquals(filter, parsedFilter.getFilter());
+
+        GetCFiltersMessage getCFilters = new GetCFiltersMessage(PARAMS, CompactBlockFilter.BASIC, 1000, block.getHash());
+        assertEquals(getCFilters, roundTrip(getCFilters));
+        GetCFHeadersMessage getCFHeaders = new GetCFHeadersMessage(PARAMS, CompactBlockFilter.BASIC, 4000000000L,
+                block.getHash());
+        assertEquals(getCFHeaders, roundTrip(getCFHeaders));
+        CFHeadersMessage cfheaders = new CFHeadersMessage(PARAMS, CompactBlockFilter.BASIC, block.getHash(),
+                Sha256Hash.ZERO_HASH, Arrays.asList(filter.getFilterHash(), Sha256Hash.of(new byte[] { 1 })));
+        assertEquals(cfheaders, roundTrip(cfheaders));
+    }
+
+    private Message roundTrip(Message message) throws Exception {
+        MessageSerializer serializer = PARAMS.getDefaultSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(message, out);
+        return serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+    }
+}
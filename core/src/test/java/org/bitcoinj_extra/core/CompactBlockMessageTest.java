@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.bitcoinj_extra.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class CompactBlockMessageTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private Block block;
+    private List<Transaction> transactions;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        Address to = new ECKey().toAddress(PARAMS);
+        Transaction[] txns = new Transaction[5];
+        for (int i = 0; i < txns.length; i++)
+            txns[i] = FakeTxBuilder.createFakeTx(PARAMS, COIN.add(Coin.valueOf(i)), to);
+        block = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock(), txns);
+        transactions = block.getTransactions();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        CompactBlockMessage message = new CompactBlockMessage(PARAMS, block, 1234);
+        CompactBlockMessage parsed = (CompactBlockMessage) roundTrip(message);
+        assertEquals(block.getHash(), parsed.getHeader().getHash());
+        assertEquals(1234, parsed.getNonce());
+        assertEquals(transactions.size(), parsed.getTransactionCount());
+        assertArrayEquals(message.getShortIds(), parsed.getShortIds());
+        assertEquals(transactions.get(0), parsed.getPrefilledTransactions().get(0).tx);
+        assertEquals(message.getShortId(transactions.get(1).getHash()), parsed.getShortId(transactions.get(1).getHash()));
+        // Short ids are 6 bytes and depend on the nonce.
+        assertEquals(0, message.getShortIds()[0] >>> 48);
+        assertNotEquals(message.getShortIds()[0],
+                new CompactBlockMessage(PARAMS, block, 1235).getShortIds()[0]);
+
+        GetBlockTxnMessage getBlockTxn = new GetBlockTxnMessage(PARAMS, block.getHash(), Arrays.asList(1, 2, 5, 300));
+        assertEquals(getBlockTxn, roundTrip(getBlockTxn));
+
+        BlockTxnMessage blockTxn = new BlockTxnMessage(PARAMS, block.getHash(), transactions.subList(1, 3));
+        BlockTxnMessage parsedBlockTxn = (BlockTxnMessage) roundTrip(blockTxn);
+        assertEquals(block.getHash(), parsedBlockTxn.getBlockHash());
+        assertEquals(transactions.subList(1, 3), parsedBlockTxn.getTransactions());
+
+        SendCompactBlocksMessage sendCmpct = new SendCompactBlocksMessage(PARAMS, true, SendCompactBlocksMessage.VERSION_1);
+        assertEquals(sendCmpct, roundTrip(sendCmpct));
+    }
+
+    @Test
+    public void reconstruct() throws Exception {
+        CompactBlockMessage message = (CompactBlockMessage) roundTrip(new CompactBlockMessage(PARAMS, block, 42));
+        // We know about two of the transactions and one that isn't in the block.
+        List<Transaction> known = new ArrayList<Transaction>();
+        known.add(transactions.get(2));
+        known.add(transactions.get(4));
+        known.add(FakeTxBuilder.createFakeTx(PARAMS, CENT, new ECKey().toAddress(PARAMS)));
+        PartiallyDownloadedBlock partial = new PartiallyDownloadedBlock(PARAMS, message, known);
+        assertFalse(partial.isComplete());
+        // The coinbase was sent in full.
+        List<Integer> missing = new ArrayList<Integer>();
+        List<Transaction> missingTransactions = new ArrayList<Transaction>();
+        for (int i = 1; i < transactions.size(); i++) {
+            if (i != 2 && i != 4) {
+                missing.add(i);
+                missingTransactions.add(transactions.get(i));
+            }
+        }
+        assertEquals(missing, partial.getMissingIndexes());
+
+        partial.fill(new BlockTxnMessage(PARAMS, block.getHash(), missingTransactions));
+        Block rebuilt = partial.build();
+        assertNotNull(rebuilt);
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertEquals(transactions, rebuilt.getTransactions());
+        rebuilt.verify(Block.BLOCK_HEIGHT_GENESIS + 1, EnumSet.noneOf(Block.VerifyFlag.class));
+    }
+
+    @Test
+    public void reconstructFromWrongTransactions() throws Exception {
+        CompactBlockMessage message = new CompactBlockMessage(PARAMS, block, 42);
+        PartiallyDownloadedBlock partial = new PartiallyDownloadedBlock(PARAMS, message, new ArrayList<Transaction>());
+        assertEquals(transactions.size() - 1, partial.getMissingIndexes().size());
+        try {
+            partial.fill(new BlockTxnMessage(PARAMS, block.getHash(), transactions.subList(1, 3)));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+
+        // The right number of transactions, but not the right ones.
+        partial = new PartiallyDownloadedBlock(PARAMS, message, new ArrayList<Transaction>());
+        List<Transaction> wrong = new ArrayList<Transaction>(transactions.subList(1, transactions.size()));
+        wrong.set(0, FakeTxBuilder.createFakeTx(PARAMS, CENT, new ECKey().toAddress(PARAMS)));
+        partial.fill(new BlockTxnMessage(PARAMS, block.getHash(), wrong));
+        assertNull(partial.build());
+    }
+
+    @Test
+    public void prefilledIndexOutOfRange() throws Exception {
+        byte[] bytes = new CompactBlockMessage(PARAMS, block, 42).bitcoinSerialize();
+        // The coinbase is prefilled, its differential follows the short ids and the prefilled count.
+        final int differentialOffset = Block.HEADER_SIZE + 8 + 1 + (transactions.size() - 1) * 6 + 1;
+        assertEquals(0, bytes[differentialOffset]);
+
+        // One past the last transaction.
+        byte[] pastEnd = bytes.clone();
+        pastEnd[differentialOffset] = (byte) transactions.size();
+        assertMalformed(pastEnd);
+
+        // A differential of -1 would otherwise make the index wrap around to -1.
+        ByteArrayOutputStream negative = new ByteArrayOutputStream();
+        negative.write(bytes, 0, differentialOffset);
+        negative.write(new VarInt(-1).encode());
+        negative.write(bytes, differentialOffset + 1, bytes.length - differentialOffset - 1);
+        assertMalformed(negative.toByteArray());
+    }
+
+    private void assertMalformed(byte[] payload) {
+        try {
+            new CompactBlockMessage(PARAMS, payload);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    private Message roundTrip(Message message) throws Exception {
+        MessageSerializer serializer = PARAMS.getDefaultSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(message, out);
+        return serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+    }
+}
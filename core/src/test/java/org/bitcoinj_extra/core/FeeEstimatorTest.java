@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.primitives.Ints;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FeeEstimatorTest {
+    private static final Coin HIGH = Coin.valueOf(50000);
+    private static final Coin LOW = Coin.valueOf(2000);
+
+    private FeeEstimator estimator;
+    private int nextHash;
+
+    @Before
+    public void setUp() throws Exception {
+        estimator = new FeeEstimator();
+    }
+
+    @Test
+    public void estimates() throws Exception {
+        assertNull(estimator.estimateFee(1));
+        // Nothing is counted until the height is known.
+        seenAndConfirmed(HIGH, 1, 10);
+        assertEquals(0, estimator.getNumTracked());
+        assertNull(estimator.estimateFee(1));
+
+        // High fees confirm in the next block, low fees take five.
+        estimator.newBestBlock(100);
+        seenAndConfirmed(HIGH, 101, 20);
+        seenAndConfirmed(LOW, 105, 20);
+        Coin fast = estimator.estimateFee(1);
+        assertTrue(fast.isGreaterThan(HIGH));
+        assertTrue(fast.isLessThan(HIGH.multiply(11).divide(10)));
+        assertEquals(fast, estimator.estimateFee(4));
+        Coin slow = estimator.estimateFee(5);
+        assertTrue(slow.isGreaterThan(LOW));
+        assertTrue(slow.isLessThan(LOW.multiply(11).divide(10)));
+        assertEquals(slow, estimator.estimateFee(FeeEstimator.MAX_TARGET));
+    }
+
+    @Test
+    public void lateTransactions() throws Exception {
+        estimator.newBestBlock(100);
+        seenAndConfirmed(HIGH, 101, 20);
+        for (int i = 0; i < 20; i++)
+            estimator.seen(nextHash(), LOW);
+        assertEquals(20, estimator.getNumTracked());
+        // The low fee transactions never confirm.
+        estimator.newBestBlock(100 + FeeEstimator.MAX_TARGET);
+        assertEquals(0, estimator.getNumTracked());
+        assertEquals(estimator.estimateFee(1), estimator.estimateFee(FeeEstimator.MAX_TARGET));
+        assertTrue(estimator.estimateFee(FeeEstimator.MAX_TARGET).isGreaterThan(HIGH));
+
+        // Transactions that leave the pool are not counted at all.
+        Sha256Hash hash = nextHash();
+        estimator.seen(hash, LOW);
+        estimator.removed(hash);
+        assertEquals(0, estimator.getNumTracked());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        estimator.newBestBlock(100);
+        seenAndConfirmed(HIGH, 101, 20);
+        seenAndConfirmed(LOW, 103, 20);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        estimator.writeTo(output);
+        FeeEstimator read = FeeEstimator.readFrom(new ByteArrayInputStream(output.toByteArray()));
+        for (int target = 1; target <= FeeEstimator.MAX_TARGET; target++)
+            assertEquals(estimator.estimateFee(target), read.estimateFee(target));
+
+        File file = File.createTempFile("fee_estimator", null);
+        file.deleteOnExit();
+        estimator.saveToFile(file);
+        FeeEstimator loaded = FeeEstimator.loadFromFile(file);
+        assertEquals(estimator.estimateFee(3), loaded.estimateFee(3));
+    }
+
+    private void seenAndConfirmed(Coin feePerKb, int height, int count) {
+        for (int i = 0; i < count; i++) {
+            Sha256Hash hash = nextHash();
+            estimator.seen(hash, feePerKb);
+            estimator.confirmed(hash, height);
+        }
+    }
+
+    private Sha256Hash nextHash() {
+        return Sha256Hash.of(Ints.toByteArray(nextHash++));
+    }
+}
@@ -23,6 +23,7 @@ import com.google.common.net.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj_extra.core.listeners.*;
 import org.bitcoinj_extra.net.discovery.*;
+import org.bitcoinj_extra.store.MemoryFilterHeaderStore;
 import org.bitcoinj_extra.testing.*;
 import org.bitcoinj_extra.utils.*;
 import org.bitcoinj_extra.wallet.Wallet;
@@ -856,6 +857,365 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeChain(20);
+        InboundMessageQueuer downloadPeer = startParallelDownload(blocks, p1, p2);
+        InboundMessageQueuer otherPeer = downloadPeer == p1 ? p2 : p1;
+
+        // The first peer gets as many requests as it can take, the second the rest.
+        GetDataMessage getdata1 = nextGetData(downloadPeer);
+        GetDataMessage getdata2 = nextGetData(otherPeer);
+        assertEquals(BlockFetcher.MAX_BLOCKS_IN_FLIGHT_PER_PEER, getdata1.getItems().size());
+        assertEquals(blocks.size() - BlockFetcher.MAX_BLOCKS_IN_FLIGHT_PER_PEER, getdata2.getItems().size());
+
+        // Blocks arriving ahead of the chain are held back until the ones before them are in.
+        answer(otherPeer, getdata2, blocks);
+        pingAndWait(otherPeer);
+        assertEquals(PARAMS.getGenesisBlock().getHash(), blockChain.getChainHead().getHeader().getHash());
+        answer(downloadPeer, getdata1, blocks);
+        pingAndWait(downloadPeer);
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // Once caught up, the download peer carries on as usual.
+        assertNextMessageSkippingPings(downloadPeer, GetBlocksMessage.class);
+        assertNull(peerGroup.getBlockFetcher());
+    }
+
+    @Test
+    public void parallelBlockDownloadStall() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeChain(20);
+        InboundMessageQueuer downloadPeer = startParallelDownload(blocks, p1, p2);
+        InboundMessageQueuer otherPeer = downloadPeer == p1 ? p2 : p1;
+        GetDataMessage getdata1 = nextGetData(downloadPeer);
+        GetDataMessage getdata2 = nextGetData(otherPeer);
+        answer(otherPeer, getdata2, blocks);
+        pingAndWait(otherPeer);
+
+        // The download peer never answers, so its requests go to the other peer.
+        Utils.rollMockClockMillis(BlockFetcher.DEFAULT_STALL_TIMEOUT_MILLIS + 1000);
+        peerGroup.getBlockFetcher().checkForStalls();
+        GetDataMessage reassigned = nextGetData(otherPeer);
+        assertEquals(getdata1.getItems(), reassigned.getItems());
+        answer(otherPeer, reassigned, blocks);
+        pingAndWait(otherPeer);
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void inventoryScheduling() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setInventoryScheduling(true);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        Address someone = new ECKey().toAddress(PARAMS);
+        Transaction t1 = FakeTxBuilder.createFakeTx(PARAMS, COIN, someone);
+        Transaction t2 = FakeTxBuilder.createFakeTx(PARAMS, CENT, someone);
+
+        // Every transaction is requested once, from the first peer that announced it.
+        InventoryMessage inv1 = new InventoryMessage(PARAMS);
+        inv1.addTransaction(t1);
+        InventoryMessage inv12 = new InventoryMessage(PARAMS);
+        inv12.addTransaction(t1);
+        inv12.addTransaction(t2);
+        inbound(p1, inv1);
+        pingAndWait(p1);
+        inbound(p2, inv12);
+        pingAndWait(p2);
+        inbound(p3, inv1);
+        pingAndWait(p3);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Transaction, t1.getHash())),
+                nextGetData(p1).getItems());
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Transaction, t2.getHash())),
+                nextGetData(p2).getItems());
+        assertNull(outbound(p3));
+        assertEquals(2, peerGroup.getInventoryScheduler().numPendingRequests());
+
+        // The first peer doesn't have it after all, so the next one is asked.
+        inbound(p1, new NotFoundMessage(PARAMS, ImmutableList.of(new InventoryItem(InventoryItem.Type.Transaction,
+                t1.getHash()))));
+        pingAndWait(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Transaction, t1.getHash())),
+                nextGetData(p2).getItems());
+
+        // That one never answers, so the last one is asked. Nobody else announced t2, so it is given up on.
+        Utils.rollMockClockMillis(InventoryScheduler.BATCH_DELAY_MILLIS + InventoryScheduler.REQUEST_TIMEOUT_MILLIS + 1);
+        peerGroup.getInventoryScheduler().checkForTimeouts();
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Transaction, t1.getHash())),
+                nextGetData(p3).getItems());
+        assertEquals(1, peerGroup.getInventoryScheduler().numPendingRequests());
+
+        // Once received, further announcements are ignored.
+        inbound(p3, t1);
+        pingAndWait(p3);
+        assertEquals(0, peerGroup.getInventoryScheduler().numPendingRequests());
+        inbound(p1, inv1);
+        pingAndWait(p1);
+        Thread.sleep(InventoryScheduler.BATCH_DELAY_MILLIS * 2);
+        assertNull(outbound(p1));
+    }
+
+    @Test
+    public void txMemoryPool() throws Exception {
+        TxMemoryPool pool = new TxMemoryPool(PARAMS);
+        peerGroup.setTxMemoryPool(pool);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        Address someone = new ECKey().toAddress(PARAMS);
+        Transaction t1 = FakeTxBuilder.createFakeTx(PARAMS, COIN, someone);
+        Transaction t2 = FakeTxBuilder.createFakeTx(PARAMS, CENT, someone);
+
+        // Relayed transactions go into the pool.
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addTransaction(t1);
+        inbound(p1, inv);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Transaction, t1.getHash())),
+                nextGetData(p1).getItems());
+        inbound(p1, t1);
+        pingAndWait(p1);
+        assertTrue(pool.contains(t1.getHash()));
+
+        // Transactions already in the pool aren't downloaded again.
+        pool.add(t2);
+        inv = new InventoryMessage(PARAMS);
+        inv.addTransaction(t2);
+        inbound(p1, inv);
+        pingAndWait(p1);
+        assertNull(outbound(p1));
+
+        // Once confirmed, the transaction leaves the pool.
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), (Address) null, t1);
+        assertTrue(blockChain.add(b1));
+        assertFalse(pool.contains(t1.getHash()));
+        assertTrue(pool.contains(t2.getHash()));
+
+        peerGroup.setTxMemoryPool(null);
+        assertNull(peerGroup.getTxMemoryPool());
+    }
+
+    @Test
+    public void compactBlockRelay() throws Exception {
+        peerGroup.setCompactBlockRelay(true);
+        peerGroup.start();
+        VersionMessage ver = remoteVersionMessage.duplicate();
+        ver.clientVersion = PARAMS.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS);
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        SendCompactBlocksMessage sendCmpct = assertNextMessageSkippingPings(p1, SendCompactBlocksMessage.class);
+        assertTrue(sendCmpct.isHighBandwidth());
+        // Compact blocks are only used for full blocks.
+        peerOf(p1).setDownloadParameters(0, false);
+
+        // Two transactions are relayed to us, then a block with them and one more is announced.
+        Address someone = new ECKey().toAddress(PARAMS);
+        Transaction t1 = FakeTxBuilder.createFakeTx(PARAMS, COIN, someone);
+        Transaction t2 = FakeTxBuilder.createFakeTx(PARAMS, CENT, someone);
+        Transaction t3 = FakeTxBuilder.createFakeTx(PARAMS, SATOSHI, someone);
+        inbound(p1, t1);
+        inbound(p1, t2);
+        Block block = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader(), (Address) null, t1, t3, t2);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(block);
+        inbound(p1, inv);
+        GetDataMessage getdata = nextGetData(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.CompactBlock, block.getHash())),
+                getdata.getItems());
+
+        // Only the transaction we haven't seen is downloaded.
+        inbound(p1, new CompactBlockMessage(PARAMS, block, 7));
+        GetBlockTxnMessage getBlockTxn = assertNextMessageSkippingPings(p1, GetBlockTxnMessage.class);
+        assertEquals(block.getHash(), getBlockTxn.getBlockHash());
+        final int index = block.getTransactions().indexOf(t3);
+        assertEquals(ImmutableList.of(index), getBlockTxn.getIndexes());
+        inbound(p1, new BlockTxnMessage(PARAMS, block.getHash(), ImmutableList.of(t3)));
+        pingAndWait(p1);
+        assertEquals(block.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void compactFilterSync() throws Exception {
+        MemoryFilterHeaderStore filterHeaderStore = new MemoryFilterHeaderStore();
+        peerGroup.setCompactFilterSync(filterHeaderStore);
+        // A key as old as the chain, so every block is filtered.
+        ECKey key = new ECKey();
+        key.setCreationTimeSeconds(PARAMS.getGenesisBlock().getTimeSeconds());
+        wallet.importKey(key);
+        peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).get();
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        VersionMessage ver = remoteVersionMessage.duplicate();
+        ver.localServices |= VersionMessage.NODE_COMPACT_FILTERS;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+
+        // Three blocks, only the second pays to the wallet.
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, key.toAddress(PARAMS));
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1, tx);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        List<Block> blocks = ImmutableList.of(b1, b2, b3);
+
+        peerGroup.startBlockChainDownload(null);
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        List<Block> headers = new ArrayList<Block>();
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        inbound(p1, new HeadersMessage(PARAMS, headers));
+        GetCFHeadersMessage getCFHeaders = assertNextMessageIs(p1, GetCFHeadersMessage.class);
+        assertEquals(1, getCFHeaders.getStartHeight());
+        assertEquals(b3.getHash(), getCFHeaders.getStopHash());
+        GetCFiltersMessage getCFilters = assertNextMessageIs(p1, GetCFiltersMessage.class);
+        assertEquals(1, getCFilters.getStartHeight());
+        assertEquals(b3.getHash(), getCFilters.getStopHash());
+
+        List<CompactBlockFilter> filters = new ArrayList<CompactBlockFilter>();
+        List<Sha256Hash> filterHashes = new ArrayList<Sha256Hash>();
+        for (Block block : blocks) {
+            CompactBlockFilter filter = CompactBlockFilter.build(block, Collections.<byte[]>emptyList());
+            filters.add(filter);
+            filterHashes.add(filter.getFilterHash());
+        }
+        // The filter headers must follow on from the one of the genesis block.
+        Sha256Hash genesisFilterHeader = CompactBlockFilter.calculateHeader(CompactBlockFilter.build(
+                PARAMS.getGenesisBlock(), Collections.<byte[]>emptyList()).getFilterHash(), Sha256Hash.ZERO_HASH);
+        CFHeadersMessage cfheaders = new CFHeadersMessage(PARAMS, CompactBlockFilter.BASIC, b3.getHash(),
+                genesisFilterHeader, filterHashes);
+        inbound(p1, cfheaders);
+        for (CompactBlockFilter filter : filters)
+            inbound(p1, new CFilterMessage(PARAMS, filter));
+
+        // Only the matching block is downloaded, the one before it goes into the chain as a header.
+        GetDataMessage getdata = nextGetData(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b2.getHash())), getdata.getItems());
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+        inbound(p1, b2);
+        pingAndWait(p1);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(3, filterHeaderStore.getHeight());
+        assertEquals(cfheaders.getFilterHeaders().get(2), filterHeaderStore.getFilterHeader(3));
+
+        // A filter that doesn't match its header gets the peer disconnected.
+        Block b4 = FakeTxBuilder.makeSolvedTestBlock(b3);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b4);
+        inbound(p1, inv);
+        assertNextMessageSkippingPings(p1, GetHeadersMessage.class);
+        inbound(p1, new HeadersMessage(PARAMS, b4.cloneAsHeader()));
+        assertNextMessageIs(p1, GetCFHeadersMessage.class);
+        assertNextMessageIs(p1, GetCFiltersMessage.class);
+        CompactBlockFilter filter = CompactBlockFilter.build(b4, Collections.<byte[]>emptyList());
+        inbound(p1, new CFHeadersMessage(PARAMS, CompactBlockFilter.BASIC, b4.getHash(),
+                cfheaders.getFilterHeaders().get(2), ImmutableList.of(filter.getFilterHash())));
+        Peer peer = peerOf(p1);
+        inbound(p1, new CFilterMessage(PARAMS, CompactBlockFilter.build(b4, Collections.singletonList(new byte[] { 1 }))));
+        assertEquals(peer, disconnectedPeers.take());
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(3, filterHeaderStore.getHeight());
+    }
+
+    @Test
+    public void compactFilterSyncForkAndStall() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setCompactFilterSync(new MemoryFilterHeaderStore());
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        VersionMessage ver = remoteVersionMessage.duplicate();
+        ver.localServices |= VersionMessage.NODE_COMPACT_FILTERS;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        peerGroup.startBlockChainDownload(null);
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        inbound(p1, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        assertEquals(b3.getHash(), assertNextMessageIs(p1, GetCFHeadersMessage.class).getStopHash());
+        assertNextMessageIs(p1, GetCFiltersMessage.class);
+
+        // Before the filters arrive the peer switches to a longer branch that forks off after b1. The queued headers
+        // after the fork are dropped and the filters are requested again for the new branch.
+        Block c2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block c3 = FakeTxBuilder.makeSolvedTestBlock(c2);
+        Block c4 = FakeTxBuilder.makeSolvedTestBlock(c3);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(c4);
+        inbound(p1, inv);
+        assertNextMessageSkippingPings(p1, GetHeadersMessage.class);
+        inbound(p1, new HeadersMessage(PARAMS, c2.cloneAsHeader(), c3.cloneAsHeader(), c4.cloneAsHeader()));
+        GetCFHeadersMessage getCFHeaders = assertNextMessageIs(p1, GetCFHeadersMessage.class);
+        assertEquals(1, getCFHeaders.getStartHeight());
+        assertEquals(c4.getHash(), getCFHeaders.getStopHash());
+        assertNextMessageIs(p1, GetCFiltersMessage.class);
+
+        // The peer never answers, so it is dropped.
+        Peer peer = peerOf(p1);
+        Utils.rollMockClockMillis(CompactFilterSync.STALL_TIMEOUT_MILLIS + 1000);
+        peerGroup.getCompactFilterSync().checkForStalls();
+        assertEquals(peer, disconnectedPeers.take());
+    }
+
+    private List<Block> makeChain(int length) throws Exception {
+        List<Block> blocks = new ArrayList<Block>(length);
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 1; i <= length; i++) {
+            Block next = FakeTxBuilder.makeSolvedTestBlock(prev);
+            if (i % PARAMS.getInterval() == 0) {
+                // The blocks come in quick succession, so the difficulty goes up as far as it can.
+                next.setDifficultyTarget(Utils.encodeCompactBits(prev.getDifficultyTargetAsInteger().shiftRight(2)));
+                next.solve();
+            }
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    // Starts the download and answers the headers request, returns the peer that was asked.
+    private InboundMessageQueuer startParallelDownload(List<Block> blocks, InboundMessageQueuer... peers) throws Exception {
+        peerGroup.startBlockChainDownload(null);
+        InboundMessageQueuer downloadPeer = null;
+        for (InboundMessageQueuer peer : peers)
+            if (peerOf(peer) == peerGroup.getDownloadPeer())
+                downloadPeer = peer;
+        GetHeadersMessage getheaders = assertNextMessageIs(downloadPeer, GetHeadersMessage.class);
+        assertEquals(PARAMS.getGenesisBlock().getHash(), getheaders.getLocator().get(0));
+        List<Block> headers = new ArrayList<Block>(blocks.size());
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        inbound(downloadPeer, new HeadersMessage(PARAMS, headers));
+        return downloadPeer;
+    }
+
+    private GetDataMessage nextGetData(InboundMessageQueuer q) throws Exception {
+        return assertNextMessageSkippingPings(q, GetDataMessage.class);
+    }
+
+    // Filtered block requests and pingAndWait leave pings behind.
+    private <T extends Message> T assertNextMessageSkippingPings(InboundMessageQueuer q, Class<T> klass) throws Exception {
+        Message message;
+        do {
+            message = waitForOutbound(q);
+        } while (message instanceof Ping);
+        assertEquals(klass, message.getClass());
+        return klass.cast(message);
+    }
+
+    private void answer(InboundMessageQueuer q, GetDataMessage getdata, List<Block> blocks) {
+        for (InventoryItem item : getdata.getItems())
+            for (Block block : blocks)
+                if (block.getHash().equals(item.hash))
+                    inbound(q, block);
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
@@ -22,6 +22,8 @@ import org.bitcoinj_extra.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.bitcoinj_extra.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +101,49 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void sizeIsBounded() throws Exception {
+        TxConfidenceTable small = new TxConfidenceTable(10);
+        List<TransactionConfidence> pinned = new ArrayList<TransactionConfidence>();
+        for (int i = 0; i < 100; i++)
+            pinned.add(small.seen(Sha256Hash.of(new byte[] { (byte) i }), address1));
+        assertEquals(10, small.size());
+        // A table this small isn't split into segments, so the most recently seen transactions are the ones that are
+        // kept. In larger tables that only holds within each segment.
+        assertEquals(1, small.numBroadcastPeers(Sha256Hash.of(new byte[] { 99 })));
+        assertNull(small.get(Sha256Hash.of(new byte[] { 0 })));
+    }
+
+    @Test
+    public void concurrentlySeen() throws Exception {
+        final int numPeers = 20;
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 50; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i }));
+        final List<TransactionConfidence> pinned = new ArrayList<TransactionConfidence>();
+        for (Sha256Hash hash : hashes)
+            pinned.add(table.getOrCreate(hash));
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numPeers);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < numPeers; i++) {
+            final PeerAddress peer = new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }));
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (Sha256Hash hash : hashes)
+                        table.seen(hash, peer);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        for (Sha256Hash hash : hashes)
+            assertEquals(numPeers, table.numBroadcastPeers(hash));
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.core;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj_extra.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import static org.bitcoinj_extra.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class TxMemoryPoolTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private Address address;
+    private Transaction funding;
+    private StoredBlock fundingBlock;
+    private TxMemoryPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        address = new ECKey().toAddress(PARAMS);
+        // A confirmed transaction with ten outputs of a coin each, so that the pool knows what spending them pays.
+        funding = spend(COIN.multiply(10), outPoint(Sha256Hash.of(new byte[] { 1 }), 0));
+        funding.clearOutputs();
+        for (int i = 0; i < 10; i++)
+            funding.addOutput(COIN, address);
+        fundingBlock = storedBlock(PARAMS.getGenesisBlock(), 1);
+        pool = new TxMemoryPool(PARAMS);
+        pool.receiveFromBlock(funding, fundingBlock, NewBlockType.BEST_CHAIN, 0);
+    }
+
+    @Test
+    public void feesAndOrdering() throws Exception {
+        Transaction a = spend(COIN.subtract(SATOSHI.multiply(1000)), outPoint(funding, 0));
+        Transaction b = spend(COIN.subtract(SATOSHI.multiply(5000)), outPoint(funding, 1));
+        // c pays a lot for itself and for its parent a.
+        Transaction c = spend(COIN.subtract(SATOSHI.multiply(21000)), outPoint(a, 0));
+        Transaction unknown = spend(COIN, outPoint(Sha256Hash.of(new byte[] { 2 }), 0));
+        assertTrue(pool.add(unknown));
+        assertTrue(pool.add(a));
+        assertTrue(pool.add(b));
+        assertTrue(pool.add(c));
+        assertFalse(pool.add(b));
+
+        assertEquals(SATOSHI.multiply(1000), pool.getFee(a.getHash()));
+        assertEquals(SATOSHI.multiply(20000), pool.getFee(c.getHash()));
+        assertNull(pool.getFee(unknown.getHash()));
+        assertNull(pool.getAncestorFeePerKb(unknown.getHash()));
+        int sizeA = a.unsafeBitcoinSerialize().length, sizeC = c.unsafeBitcoinSerialize().length;
+        assertEquals(Coin.valueOf(21000 * 1000 / (sizeA + sizeC)), pool.getAncestorFeePerKb(c.getHash()));
+        assertEquals(ImmutableList.of(c, b, a, unknown), pool.getTransactionsByFeeRate());
+        assertEquals(c, pool.getSpender(outPoint(a, 0)));
+        assertEquals(4, pool.size());
+    }
+
+    @Test
+    public void evictsLowestFeeRate() throws Exception {
+        Transaction a = spend(COIN.subtract(SATOSHI.multiply(1000)), outPoint(funding, 0));
+        Transaction b = spend(COIN.subtract(SATOSHI.multiply(5000)), outPoint(funding, 1));
+        Transaction c = spend(COIN.subtract(SATOSHI.multiply(21000)), outPoint(a, 0));
+        Transaction unknown = spend(COIN, outPoint(Sha256Hash.of(new byte[] { 2 }), 0));
+        pool.add(a);
+        pool.add(b);
+        pool.add(c);
+        long usage = pool.getMemoryUsage();
+
+        // The transaction of unknown fee goes first.
+        pool = new TxMemoryPool(PARAMS, usage);
+        pool.receiveFromBlock(funding, fundingBlock, NewBlockType.BEST_CHAIN, 0);
+        assertTrue(pool.add(a));
+        assertTrue(pool.add(b));
+        assertTrue(pool.add(c));
+        assertFalse(pool.add(unknown));
+        assertEquals(3, pool.size());
+
+        // a pays little, but its child c makes up for it, so b goes.
+        pool = new TxMemoryPool(PARAMS, usage - 1);
+        pool.receiveFromBlock(funding, fundingBlock, NewBlockType.BEST_CHAIN, 0);
+        pool.add(a);
+        pool.add(b);
+        pool.add(c);
+        assertEquals(ImmutableList.of(c, a), pool.getTransactionsByFeeRate());
+        assertTrue(pool.getMemoryUsage() <= usage - 1);
+    }
+
+    @Test
+    public void childBeforeParent() throws Exception {
+        Transaction a = spend(COIN.subtract(SATOSHI.multiply(1000)), outPoint(funding, 0));
+        Transaction c = spend(COIN.subtract(SATOSHI.multiply(3000)), outPoint(a, 0));
+        assertTrue(pool.add(c));
+        assertNull(pool.getFee(c.getHash()));
+        assertTrue(pool.add(a));
+        assertEquals(SATOSHI.multiply(2000), pool.getFee(c.getHash()));
+        assertNotNull(pool.getAncestorFeePerKb(c.getHash()));
+        assertEquals(ImmutableList.of(c, a), pool.getTransactionsByFeeRate());
+    }
+
+    @Test
+    public void doubleSpendsAndConfirmation() throws Exception {
+        Transaction a = spend(COIN.subtract(SATOSHI.multiply(1000)), outPoint(funding, 0));
+        Transaction c = spend(COIN.subtract(SATOSHI.multiply(3000)), outPoint(a, 0));
+        Transaction doubleSpend = spend(COIN.subtract(SATOSHI.multiply(9000)), outPoint(funding, 0));
+        pool.add(a);
+        pool.add(c);
+        assertFalse(pool.add(doubleSpend));
+        assertEquals(Collections.singletonList(a), pool.getConflicts(doubleSpend));
+
+        // The double spend confirms, a and its child go.
+        StoredBlock block = storedBlock(fundingBlock.getHeader(), 2);
+        pool.receiveFromBlock(doubleSpend, block, NewBlockType.BEST_CHAIN, 1);
+        assertEquals(0, pool.size());
+        assertNull(pool.getSpender(outPoint(funding, 0)));
+
+        // a confirms instead, its child stays.
+        pool.add(a);
+        pool.add(c);
+        pool.receiveFromBlock(a, storedBlock(fundingBlock.getHeader(), 2), NewBlockType.BEST_CHAIN, 1);
+        assertEquals(ImmutableList.of(c), pool.getTransactionsByFeeRate());
+        assertEquals(SATOSHI.multiply(2000), pool.getFee(c.getHash()));
+        assertEquals(Coin.valueOf(2000 * 1000 / c.unsafeBitcoinSerialize().length), pool.getAncestorFeePerKb(c.getHash()));
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        Transaction a = spend(COIN.subtract(SATOSHI.multiply(1000)), outPoint(funding, 0));
+        Transaction c = spend(COIN.subtract(SATOSHI.multiply(3000)), outPoint(a, 0));
+        pool.add(a);
+        pool.add(c);
+        StoredBlock oldBlock = storedBlock(fundingBlock.getHeader(), 2);
+        pool.receiveFromBlock(a, oldBlock, NewBlockType.BEST_CHAIN, 1);
+        pool.receiveFromBlock(c, oldBlock, NewBlockType.BEST_CHAIN, 2);
+        assertEquals(0, pool.size());
+
+        // A side chain confirms c only, which can't happen, but the pool doesn't check.
+        StoredBlock newBlock = storedBlock(fundingBlock.getHeader(), 2);
+        pool.receiveFromBlock(c, newBlock, NewBlockType.SIDE_CHAIN, 1);
+        assertEquals(0, pool.size());
+        pool.reorganize(fundingBlock, ImmutableList.of(oldBlock), ImmutableList.of(newBlock));
+        assertEquals(ImmutableList.of(a), pool.getTransactionsByFeeRate());
+        assertEquals(SATOSHI.multiply(1000), pool.getFee(a.getHash()));
+    }
+
+    @Test
+    public void feeEstimator() throws Exception {
+        FeeEstimator estimator = new FeeEstimator();
+        pool.setFeeEstimator(estimator);
+        pool.notifyNewBestBlock(fundingBlock);
+        for (int i = 0; i < 10; i++)
+            pool.add(spend(COIN.subtract(SATOSHI.multiply(5000)), outPoint(funding, i)));
+        Transaction unknown = spend(COIN, outPoint(Sha256Hash.of(new byte[] { 2 }), 0));
+        pool.add(unknown);
+        assertEquals(10, estimator.getNumTracked());
+
+        StoredBlock block = storedBlock(fundingBlock.getHeader(), 2);
+        for (Transaction tx : pool.getTransactionsByFeeRate())
+            pool.receiveFromBlock(tx, block, NewBlockType.BEST_CHAIN, 1);
+        assertEquals(0, estimator.getNumTracked());
+        int size = unknown.unsafeBitcoinSerialize().length;
+        Coin estimate = estimator.estimateFee(1);
+        assertTrue(estimate.isGreaterThan(Coin.valueOf(5000 * 1000 / size)));
+    }
+
+    private Transaction spend(Coin value, TransactionOutPoint outpoint) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 }, outpoint));
+        tx.addOutput(value, address);
+        return tx;
+    }
+
+    private static TransactionOutPoint outPoint(Transaction tx, int index) {
+        return new TransactionOutPoint(PARAMS, index, tx.getHash());
+    }
+
+    private static TransactionOutPoint outPoint(Sha256Hash hash, int index) {
+        return new TransactionOutPoint(PARAMS, index, hash);
+    }
+
+    private StoredBlock storedBlock(Block prev, int height) throws Exception {
+        Block block = FakeTxBuilder.makeSolvedTestBlock(prev, address);
+        return new StoredBlock(block.cloneAsHeader(), BigInteger.valueOf(height), height);
+    }
+}
@@ -32,13 +32,21 @@ import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -49,7 +57,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4},
+                new Integer[]{5});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +69,22 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(2, 2);
+            channels.startAsync();
+        } else if (clientType == 5) {
+            BlockingClientManager manager = new BlockingClientManager();
+            manager.setUseVirtualThreads(true);  // Falls back to platform threads before Java 21.
+            channels = manager;
+            channels.startAsync();
         } else
             channels = null;
+        if (channels != null)
+            channels.awaitRunning();
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufConnection<TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4 || clientType == 5) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -260,6 +279,148 @@ public class NetworkAbstractionTests {
         assertFalse(server.isRunning());
     }
 
+    @Test
+    public void batchedWriteTest() throws Exception {
+        // Tests that messages written together in one batch arrive as separate messages, in order
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final BlockingQueue<Protos.TwoWayChannelMessage> clientMessages = new LinkedBlockingQueue<Protos.TwoWayChannelMessage>();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return new ProtobufConnection<TwoWayChannelMessage>(new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.writeAll(Arrays.asList(msg, msg));
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        ProtobufConnection<TwoWayChannelMessage> clientHandler = new ProtobufConnection<TwoWayChannelMessage>(
+                new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        clientMessages.add(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+
+        MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+
+        List<Protos.TwoWayChannelMessage> msgs = new ArrayList<Protos.TwoWayChannelMessage>();
+        for (int i = 0; i < 20; i++)
+            msgs.add(Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+                    .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(i))
+                    .build());
+        clientHandler.writeAll(msgs);
+        for (Protos.TwoWayChannelMessage msg : msgs) {
+            assertEquals(msg, clientMessages.poll(10, TimeUnit.SECONDS));
+            assertEquals(msg, clientMessages.poll(10, TimeUnit.SECONDS));
+        }
+
+        client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void multiThreadedServerTest() throws Exception {
+        // Tests that messages from several connections, spread over several selector and worker threads, are each
+        // echoed back in the order they were sent
+        final int connections = 5;
+        final int messages = 50;
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return new ProtobufConnection<TwoWayChannelMessage>(new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), 3, 2);
+        server.startAsync();
+        server.awaitRunning();
+
+        final CountDownLatch received = new CountDownLatch(connections * messages);
+        List<ProtobufConnection<TwoWayChannelMessage>> clientHandlers = new ArrayList<ProtobufConnection<TwoWayChannelMessage>>();
+        List<MessageWriteTarget> clients = new ArrayList<MessageWriteTarget>();
+        final List<List<Integer>> echoes = new ArrayList<List<Integer>>();
+        for (int i = 0; i < connections; i++) {
+            final List<Integer> echo = Collections.synchronizedList(new ArrayList<Integer>());
+            echoes.add(echo);
+            final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+            ProtobufConnection<TwoWayChannelMessage> clientHandler = new ProtobufConnection<TwoWayChannelMessage>(
+                    new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                            echo.add(msg.getClientVersion().getMajor());
+                            received.countDown();
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                            clientConnectionOpen.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            clients.add(openConnection(new InetSocketAddress("localhost", 4243), clientHandler));
+            clientConnectionOpen.get();
+            clientHandlers.add(clientHandler);
+        }
+
+        for (int j = 0; j < messages; j++) {
+            for (ProtobufConnection<TwoWayChannelMessage> clientHandler : clientHandlers) {
+                clientHandler.write(Protos.TwoWayChannelMessage.newBuilder()
+                        .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+                        .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(j)).build());
+            }
+        }
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        for (List<Integer> echo : echoes) {
+            for (int j = 0; j < messages; j++)
+                assertEquals(j, (int) echo.get(j));
+        }
+
+        for (MessageWriteTarget client : clients)
+            client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+        assertFalse(server.isRunning());
+    }
+
     @Test
     public void basicTimeoutTest() throws Exception {
         // Tests various timeout scenarios
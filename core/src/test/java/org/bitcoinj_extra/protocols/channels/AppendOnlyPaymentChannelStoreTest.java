@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.protocols.channels;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.bitcoinj_extra.core.Coin.*;
+import static org.bitcoinj_extra.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class AppendOnlyPaymentChannelStoreTest extends TestWithWallet {
+    private File file;
+    private AppendOnlyPaymentChannelStore store;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj_extra-unit-test", null);
+        file.delete();
+        store = new AppendOnlyPaymentChannelStore(file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void putRemoveAndReopen() throws Exception {
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash b = Sha256Hash.of(new byte[] { 2 });
+        store.put(a, new byte[] { 1 });
+        store.put(b, new byte[] { 2 });
+        store.put(a, new byte[] { 3, 4 });
+        store.remove(b);
+        store.flush();
+        store.close();
+
+        store = new AppendOnlyPaymentChannelStore(file);
+        Map<Sha256Hash, byte[]> records = store.load();
+        assertEquals(1, records.size());
+        assertArrayEquals(new byte[] { 3, 4 }, records.get(a));
+    }
+
+    @Test
+    public void incompleteTailIsDiscarded() throws Exception {
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        store.put(a, new byte[] { 1 });
+        store.put(a, new byte[] { 2 });
+        store.close();
+        // Cut the last record short, as a crash would.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        store = new AppendOnlyPaymentChannelStore(file);
+        assertArrayEquals(new byte[] { 1 }, store.load().get(a));
+        store.put(a, new byte[] { 3 });
+        store.close();
+        store = new AppendOnlyPaymentChannelStore(file);
+        assertArrayEquals(new byte[] { 3 }, store.load().get(a));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash b = Sha256Hash.of(new byte[] { 2 });
+        byte[] record = new byte[10000];
+        store.put(b, new byte[] { 2 });
+        for (int i = 0; i < 200; i++) {
+            Arrays.fill(record, (byte) i);
+            store.put(a, record);
+        }
+        assertTrue(file.length() > 2000000);
+        store.flush();
+        assertTrue(file.length() < 20000);
+        assertArrayEquals(record, store.load().get(a));
+        store.put(b, new byte[] { 3 });
+        store.close();
+
+        store = new AppendOnlyPaymentChannelStore(file);
+        Map<Sha256Hash, byte[]> records = store.load();
+        assertArrayEquals(record, records.get(a));
+        assertArrayEquals(new byte[] { 3 }, records.get(b));
+    }
+
+    @Test
+    public void migrateFromWalletExtension() throws Exception {
+        // Channels saved in the wallet extension move into the store, which then holds them alone.
+        StoredPaymentChannelServerStates inWallet = new StoredPaymentChannelServerStates(wallet);
+        Transaction contract = createFakeTx(PARAMS, COIN, myAddress);
+        StoredServerChannel channel = new StoredServerChannel(null, 2, contract, null,
+                Utils.currentTimeSeconds() + 24 * 60 * 60, new ECKey(), new ECKey(), CENT, null);
+        inWallet.putChannel(channel);
+        byte[] data = inWallet.serializeWalletExtension();
+
+        StoredPaymentChannelServerStates migrated = new StoredPaymentChannelServerStates(null);
+        migrated.setChannelStore(store);
+        migrated.deserializeWalletExtension(wallet, data);
+        assertEquals(CENT, migrated.getChannel(contract.getHash()).bestValueToMe);
+        assertTrue(store.load().containsKey(contract.getHash()));
+        assertEquals(0, ServerState.StoredServerPaymentChannels.parseFrom(migrated.serializeWalletExtension())
+                .getChannelsCount());
+
+        // Updates go to the store, and the store is where the channels are loaded from.
+        StoredServerChannel stored = migrated.getChannel(contract.getHash());
+        stored.bestValueToMe = COIN;
+        migrated.updatedChannel(stored);
+        byte[] pointer = migrated.serializeWalletExtension();
+        store.close();
+        store = new AppendOnlyPaymentChannelStore(file);
+        StoredPaymentChannelServerStates reloaded = new StoredPaymentChannelServerStates(null);
+        reloaded.setChannelStore(store);
+        reloaded.deserializeWalletExtension(wallet, pointer);
+        assertEquals(COIN, reloaded.getChannel(contract.getHash()).bestValueToMe);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void storedExtensionNeedsItsStore() throws Exception {
+        // An extension saved with a store holds no channels, so loading it without the store must not look empty.
+        StoredPaymentChannelServerStates withStore = new StoredPaymentChannelServerStates(null);
+        withStore.setChannelStore(store);
+        assertTrue(withStore.isWalletExtensionMandatory());
+        byte[] data = withStore.serializeWalletExtension();
+        new StoredPaymentChannelServerStates(null).deserializeWalletExtension(wallet, data);
+    }
+}
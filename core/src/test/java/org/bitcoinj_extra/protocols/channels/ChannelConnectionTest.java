@@ -46,6 +46,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.bitcoinj_extra.core.Coin.*;
 import static org.bitcoinj_extra.protocols.channels.PaymentChannelCloseException.CloseReason;
@@ -152,7 +153,57 @@ public class ChannelConnectionTest extends TestWithWallet {
 
     @Test
     public void testSimpleChannel() throws Exception {
-        exectuteSimpleChannelTest(null);
+        exectuteSimpleChannelTest(null, null);
+    }
+
+    @Test
+    public void testPaymentVerifier() throws Exception {
+        // Payments are checked on another thread and acknowledged from there.
+        ExecutorService verifier = Executors.newFixedThreadPool(2);
+        try {
+            exectuteSimpleChannelTest(null, verifier);
+        } finally {
+            verifier.shutdown();
+        }
+    }
+
+    @Test
+    public void testCommitDelay() throws Exception {
+        // Updates within the commit delay save the wallet once.
+        final AtomicInteger saves = new AtomicInteger();
+        File tempFile = File.createTempFile("channel_connection_test", ".wallet");
+        tempFile.deleteOnExit();
+        serverWallet.autosaveToFile(tempFile, 0, TimeUnit.SECONDS, new WalletFiles.Listener() {
+            @Override
+            public void onBeforeAutoSave(File tempFile) {
+                saves.incrementAndGet();
+            }
+
+            @Override
+            public void onAfterAutoSave(File newlySavedFile) {
+            }
+        });
+        StoredPaymentChannelServerStates channels = StoredPaymentChannelServerStates.getFromWallet(serverWallet);
+        channels.setCommitDelay(1, TimeUnit.HOURS);
+        StoredServerChannel channel = new StoredServerChannel(null, 2, new Transaction(PARAMS), null,
+                Utils.currentTimeSeconds(), new ECKey(), new ECKey(), COIN, null);
+        ListenableFuture<Void> committed = channels.updatedChannel(channel);
+        for (int i = 0; i < 9; i++)
+            assertSame(committed, channels.updatedChannel(channel));
+        assertEquals(0, saves.get());
+        // Payments must not be acknowledged before the commit is done.
+        assertFalse(committed.isDone());
+        channels.commit();
+        assertEquals(1, saves.get());
+        assertTrue(committed.isDone());
+        channels.commit();
+        assertEquals(1, saves.get());
+        channels.updatedChannel(channel);
+        channels.setCommitDelay(0, TimeUnit.SECONDS);
+        assertEquals(2, saves.get());
+        channels.updatedChannel(channel);
+        assertEquals(3, saves.get());
+        serverWallet.shutdownAutosaveAndWait();
     }
 
     @Test
@@ -162,10 +213,10 @@ public class ChannelConnectionTest extends TestWithWallet {
         wallet.encrypt(mySecretPw);
 
         KeyParameter userKeySetup = wallet.getKeyCrypter().deriveKey(mySecretPw);
-        exectuteSimpleChannelTest(userKeySetup);
+        exectuteSimpleChannelTest(userKeySetup, null);
     }
 
-    private void exectuteSimpleChannelTest(KeyParameter userKeySetup) throws Exception {
+    private void exectuteSimpleChannelTest(KeyParameter userKeySetup, @Nullable Executor paymentVerifier) throws Exception {
         // Test with network code and without any issues. We'll broadcast two txns: multisig contract and settle transaction.
         final SettableFuture<ListenableFuture<PaymentChannelV1ServerState>> serverCloseFuture = SettableFuture.create();
         final SettableFuture<Sha256Hash> channelOpenFuture = SettableFuture.create();
@@ -194,6 +245,7 @@ public class ChannelConnectionTest extends TestWithWallet {
                         };
                     }
                 });
+        server.setPaymentVerifier(paymentVerifier);
         server.bindAndStart(4243);
 
         PaymentChannelClientConnection client = new PaymentChannelClientConnection(
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.protocols.channels;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.script.Script;
+import org.bitcoinj_extra.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.bitcoinj_extra.core.Coin.*;
+import static org.junit.Assert.assertEquals;
+
+public class PaymentSighashTemplateTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private ECKey clientKey;
+    private Transaction contract;
+
+    @Before
+    public void setUp() throws Exception {
+        clientKey = new ECKey();
+        contract = new Transaction(PARAMS);
+        contract.addInput(new TransactionInput(PARAMS, contract, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+    }
+
+    @Test
+    public void multisig() throws Exception {
+        Script script = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(clientKey, new ECKey()));
+        contract.addOutput(COIN, script);
+        checkTemplate(script);
+    }
+
+    @Test
+    public void cltv() throws Exception {
+        Script redeemScript = ScriptBuilder.createCLTVPaymentChannelOutput(BigInteger.valueOf(1000000000),
+                clientKey, new ECKey());
+        contract.addOutput(COIN, ScriptBuilder.createP2SHOutputScript(redeemScript));
+        checkTemplate(redeemScript);
+    }
+
+    // The template gives the same hashes as the payment transactions themselves.
+    private void checkTemplate(Script signedScript) {
+        PaymentSighashTemplate template = new PaymentSighashTemplate(payment(COIN), signedScript);
+        for (Coin refund : ImmutableList.of(CENT, COIN.subtract(SATOSHI), COIN)) {
+            Transaction payment = payment(refund);
+            assertEquals(payment.hashForSignature(0, signedScript, Transaction.SigHash.SINGLE, true),
+                    template.hashForRefund(refund));
+        }
+        assertEquals(payment(ZERO).hashForSignature(0, signedScript, Transaction.SigHash.NONE, true),
+                template.hashForRefund(ZERO));
+    }
+
+    // Like PaymentChannelServerState.makeUnsignedChannelContract().
+    private Transaction payment(Coin refund) {
+        Transaction tx = new Transaction(PARAMS);
+        if (refund.signum() > 0)
+            tx.addOutput(refund, clientKey.toAddress(PARAMS));
+        tx.addInput(contract.getOutput(0));
+        return tx;
+    }
+}
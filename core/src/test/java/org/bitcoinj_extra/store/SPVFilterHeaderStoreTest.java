@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.store;
+
+import org.bitcoinj_extra.core.Sha256Hash;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SPVFilterHeaderStoreTest {
+
+    @Test
+    public void basics() throws Exception {
+        File f = File.createTempFile("spvfilterheaderstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVFilterHeaderStore store = new SPVFilterHeaderStore(f);
+        checkStore(store);
+        store.close();
+
+        // Check we can get them back out again if we rebuild the store object.
+        store = new SPVFilterHeaderStore(f);
+        assertEquals(102, store.getHeight());
+        assertEquals(header(102), store.getFilterHeader(102));
+        assertEquals(block(100), store.getBlockHash(100));
+        assertNull(store.getBlockHash(99));
+        store.close();
+    }
+
+    @Test
+    public void memory() throws Exception {
+        checkStore(new MemoryFilterHeaderStore());
+    }
+
+    @Test
+    public void startsOver() throws Exception {
+        File f = File.createTempFile("spvfilterheaderstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVFilterHeaderStore fileStore = new SPVFilterHeaderStore(f);
+        for (FilterHeaderStore store : new FilterHeaderStore[] { fileStore, new MemoryFilterHeaderStore() }) {
+            // Headers that don't follow on from the stored ones start the store over.
+            store.put(10, block(10), header(10));
+            store.put(20, block(20), header(20));
+            assertEquals(20, store.getHeight());
+            assertNull(store.getFilterHeader(10));
+            assertEquals(header(20), store.getFilterHeader(20));
+        }
+        fileStore.close();
+    }
+
+    private void checkStore(FilterHeaderStore store) throws Exception {
+        assertEquals(-1, store.getHeight());
+        assertNull(store.getFilterHeader(0));
+        for (int height = 100; height < 105; height++)
+            store.put(height, block(height), header(height));
+        assertEquals(104, store.getHeight());
+        assertEquals(header(100), store.getFilterHeader(100));
+        assertEquals(block(103), store.getBlockHash(103));
+        assertNull(store.getFilterHeader(99));
+        assertNull(store.getFilterHeader(105));
+
+        // A re-org replaces the headers from the fork on.
+        store.put(103, block(1003), header(1003));
+        assertEquals(103, store.getHeight());
+        assertEquals(header(1003), store.getFilterHeader(103));
+        assertNull(store.getFilterHeader(104));
+        store.put(101, block(101), header(101));
+        store.put(102, block(102), header(102));
+        assertEquals(102, store.getHeight());
+        assertEquals(header(100), store.getFilterHeader(100));
+    }
+
+    private static Sha256Hash block(int height) {
+        return Sha256Hash.of(new byte[] { 1, (byte) height, (byte) (height >> 8) });
+    }
+
+    private static Sha256Hash header(int height) {
+        return Sha256Hash.of(new byte[] { 2, (byte) height, (byte) (height >> 8) });
+    }
+}
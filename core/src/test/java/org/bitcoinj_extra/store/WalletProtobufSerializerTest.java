@@ -38,6 +38,7 @@ import org.bitcoinj_extra.wallet.UnreadableWalletException;
 import org.bitcoinj_extra.wallet.Wallet;
 import org.bitcoinj_extra.wallet.WalletExtension;
 import org.bitcoinj_extra.wallet.WalletProtobufSerializer;
+import org.bitcoinj_extra.wallet.WalletTransaction;
 import org.bitcoinj_extra.wallet.listeners.WalletCoinsReceivedEventListener;
 import org.junit.Before;
 import org.junit.Test;
@@ -50,6 +51,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import static org.bitcoinj_extra.core.Coin.*;
@@ -170,6 +172,42 @@ public class WalletProtobufSerializerTest {
         // assertEquals(doubleSpends.t2, t1.getConfidence().getOverridingTransaction());
     }
     
+    @Test
+    public void parallelLoad() throws Exception {
+        // Enough transactions for the loader to split them over several threads. Adding them to the pools directly
+        // is much quicker than going through receivePending.
+        List<Transaction> received = new ArrayList<Transaction>();
+        for (int i = 0; i < 1500; i++) {
+            Transaction tx = createFakeTx(PARAMS, COIN, myAddress);
+            myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+            received.add(tx);
+        }
+        Transaction spend = new Transaction(PARAMS);
+        for (Transaction tx : received.subList(0, 200))
+            spend.addInput(tx.getOutput(0)).connect(tx.getOutput(0));
+        spend.addOutput(valueOf(199, 0), new ECKey().toAddress(PARAMS));
+        myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, spend));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadThreads(1);
+        Wallet serial = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        serializer.setLoadThreads(4);
+        Wallet parallel = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(myWallet.getTransactions(true).size(), parallel.getTransactions(true).size());
+        assertEquals(serial.getBalance(Wallet.BalanceType.ESTIMATED), parallel.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertArrayEquals(myKey.getPrivKeyBytes(),
+                parallel.findKeyFromPubHash(myKey.getPubKeyHash()).getPrivKeyBytes());
+        assertEquals(serial.currentReceiveKey(), parallel.currentReceiveKey());
+        for (Transaction tx : received.subList(0, 200)) {
+            TransactionInput spentBy = parallel.getTransaction(tx.getHash()).getOutput(0).getSpentBy();
+            assertEquals(spend.getHash(), checkNotNull(spentBy).getParentTransaction().getHash());
+        }
+        assertNull(parallel.getTransaction(received.get(200).getHash()).getOutput(0).getSpentBy());
+    }
+
     @Test
     public void testKeys() throws Exception {
         for (int i = 0 ; i < 20 ; i++) {
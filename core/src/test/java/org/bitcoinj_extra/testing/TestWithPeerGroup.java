@@ -153,7 +153,8 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
     private void stepThroughInit(VersionMessage versionMessage, InboundMessageQueuer writeTarget) throws InterruptedException {
         checkState(writeTarget.nextMessageBlocking() instanceof VersionMessage);
         checkState(writeTarget.nextMessageBlocking() instanceof VersionAck);
-        if (versionMessage.isBloomFilteringSupported()) {
+        // Peers of a compact filter sync don't get a Bloom filter.
+        if (versionMessage.isBloomFilteringSupported() && !peerGroup.isCompactFilterSync()) {
             checkState(writeTarget.nextMessageBlocking() instanceof BloomFilter);
             checkState(writeTarget.nextMessageBlocking() instanceof MemoryPoolMessage);
         }
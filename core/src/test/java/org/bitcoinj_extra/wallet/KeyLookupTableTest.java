@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.wallet;
+
+import org.bitcoinj_extra.core.ECKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyLookupTableTest {
+    private KeyLookupTable table;
+
+    @Before
+    public void setup() {
+        table = new KeyLookupTable();
+    }
+
+    @Test
+    public void addAndFind() {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        assertNull(table.add(key1));
+        assertNull(table.add(key2));
+        assertEquals(2, table.size());
+        assertSame(key1, table.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertSame(key2, table.findKeyFromPubKey(key2.getPubKey()));
+        assertNull(table.findKeyFromPubHash(new ECKey().getPubKeyHash()));
+        assertNull(table.findKeyFromPubKey(new byte[] { 2 }));
+        // Adding the same public key again is refused.
+        assertSame(key1, table.add(ECKey.fromPublicOnly(key1.getPubKey())));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void growsAndKeepsInsertionOrder() {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 200; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            table.add(key);
+        }
+        assertEquals(keys, table.toList());
+        assertSame(keys.get(0), table.first());
+        for (ECKey key : keys)
+            assertSame(key, table.findKeyFromPubHash(key.getPubKeyHash()));
+    }
+
+    @Test
+    public void removeAndCompact() {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 16; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            table.add(key);
+        }
+        for (int i = 0; i < 12; i++)
+            assertTrue(table.remove(keys.get(i)));
+        assertFalse(table.remove(keys.get(0)));
+        assertNull(table.findKeyFromPubHash(keys.get(0).getPubKeyHash()));
+        assertSame(keys.get(12), table.first());
+        // Filling the array again squeezes out the removed keys rather than growing.
+        for (int i = 0; i < 4; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            table.add(key);
+        }
+        assertEquals(keys.subList(12, 20), table.toList());
+        for (ECKey key : keys.subList(12, 20))
+            assertSame(key, table.findKeyFromPubKey(key.getPubKey()));
+    }
+
+    @Test
+    public void matchingTagsAreVerified() {
+        // Same leading bytes, so the tags collide and only the full comparison can tell them apart.
+        byte[] pub1 = new ECKey().getPubKey();
+        byte[] pub2 = pub1.clone();
+        ECKey key1 = ECKey.fromPublicOnly(pub1);
+        ECKey key2 = null;
+        for (int i = 1; key2 == null; i++) {
+            pub2[pub2.length - 1] = (byte) (pub1[pub1.length - 1] ^ i);
+            try {
+                key2 = ECKey.fromPublicOnly(pub2);
+            } catch (IllegalArgumentException e) {
+                // Not a point on the curve, try the next one.
+            }
+        }
+        table.add(key1);
+        table.add(key2);
+        assertSame(key1, table.findKeyFromPubKey(pub1));
+        assertSame(key2, table.findKeyFromPubKey(pub2));
+        assertTrue(table.remove(key1));
+        assertSame(key2, table.findKeyFromPubKey(pub2));
+    }
+}
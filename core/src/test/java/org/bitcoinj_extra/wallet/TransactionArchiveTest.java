@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.wallet;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj_extra.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.CRC32;
+
+import static org.bitcoinj_extra.core.Coin.*;
+import static org.bitcoinj_extra.testing.FakeTxBuilder.createFakeTx;
+import static org.bitcoinj_extra.testing.FakeTxBuilder.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+public class TransactionArchiveTest extends TestWithWallet {
+    private File file;
+    private TransactionArchive archive;
+    private Address someOtherGuy;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj_extra-unit-test", null);
+        file.delete();
+        archive = new TransactionArchive(file);
+        wallet.setTransactionArchive(archive, 2);
+        someOtherGuy = new ECKey().toAddress(PARAMS);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        archive.close();
+        file.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void archiveLookupAndReorg() throws Exception {
+        // t1 pays us and t2 spends all of it, then both get buried.
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        Block b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock(), t1);
+        assertTrue(chain.add(b1));
+        Transaction t2 = wallet.sendCoinsOffline(SendRequest.emptyWallet(someOtherGuy));
+        Block b2 = makeSolvedTestBlock(b1, t2);
+        assertTrue(chain.add(b2));
+        assertEquals(2, wallet.getTransactions(true).size());
+        Block b3 = makeSolvedTestBlock(b2);
+        assertTrue(chain.add(b3));
+        Block b4 = makeSolvedTestBlock(b3);
+        assertTrue(chain.add(b4));
+
+        assertEquals(2, archive.size());
+        assertTrue(wallet.getTransactions(true).isEmpty());
+        assertTrue(wallet.isConsistent());
+        Transaction archived = wallet.getTransaction(t2.getHash());
+        assertEquals(t2, archived);
+        assertEquals(ConfidenceType.BUILDING, archived.getConfidence().getConfidenceType());
+        assertEquals(3, archived.getConfidence().getDepthInBlocks());
+        assertEquals(2, archive.getHeight(t2.getHash()));
+
+        // A longer chain without t2 brings both transactions back, with t2 pending again.
+        Block b5 = makeSolvedTestBlock(b1);
+        Block b6 = makeSolvedTestBlock(b5);
+        Block b7 = makeSolvedTestBlock(b6);
+        Block b8 = makeSolvedTestBlock(b7);
+        assertTrue(chain.add(b5));
+        assertTrue(chain.add(b6));
+        assertTrue(chain.add(b7));
+        assertTrue(chain.add(b8));
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(ConfidenceType.PENDING, wallet.getTransaction(t2.getHash()).getConfidence().getConfidenceType());
+        assertEquals(5, wallet.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        assertSame(wallet.getTransaction(t2.getHash()).getInput(0),
+                wallet.getTransaction(t1.getHash()).getOutput(0).getSpentBy());
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+        // The archive keeps its copies until the wallet was saved with them.
+        assertEquals(2, archive.size());
+
+        // t1 stays in memory as long as the pending t2 spends it.
+        Block b9 = makeSolvedTestBlock(b8);
+        assertTrue(chain.add(b9));
+        assertEquals(2, wallet.getTransactions(true).size());
+
+        // Loading the saved wallet takes them out of the archive.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        Wallet loaded = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        loaded.setTransactionArchive(archive, 2);
+        assertEquals(0, archive.size());
+        assertEquals(-1, archive.getHeight(t2.getHash()));
+        assertEquals(2, loaded.getTransactions(true).size());
+    }
+
+    @Test
+    public void archivedTransactionsSurviveReload() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        Block b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock(), t1);
+        assertTrue(chain.add(b1));
+        Transaction t2 = wallet.sendCoinsOffline(SendRequest.emptyWallet(someOtherGuy));
+        Block b2 = makeSolvedTestBlock(b1, t2);
+        assertTrue(chain.add(b2));
+        assertTrue(chain.add(makeSolvedTestBlock(b2)));
+        assertTrue(chain.add(makeSolvedTestBlock(chain.getChainHead().getHeader())));
+        assertEquals(2, archive.size());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        archive.close();
+        // A crash half way through appending leaves a partial record behind.
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(new byte[] { 1, 2, 3 });
+        stream.close();
+
+        archive = new TransactionArchive(file);
+        assertEquals(2, archive.size());
+        Wallet loaded = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        loaded.setTransactionArchive(archive, 2);
+        assertTrue(loaded.getTransactions(true).isEmpty());
+        assertEquals(t1, loaded.getTransaction(t1.getHash()));
+        assertEquals(4, loaded.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        assertNull(loaded.getTransaction(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void removedTransactionsStayRemoved() throws Exception {
+        Sha256Hash h1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash h2 = Sha256Hash.of(new byte[] { 2 });
+        archive.put(h1, 10, new byte[] { 1, 2, 3 });
+        archive.put(h2, 11, new byte[] { 4, 5, 6 });
+        archive.remove(h1);
+        assertFalse(archive.contains(h1));
+        assertNull(archive.get(h1));
+        assertArrayEquals(new byte[] { 4, 5, 6 }, archive.get(h2));
+        archive.flush();
+        archive.close();
+
+        archive = new TransactionArchive(file);
+        assertEquals(1, archive.size());
+        assertFalse(archive.contains(h1));
+        assertEquals(11, archive.getHeight(h2));
+        // Archiving it again after it was restored brings it back.
+        archive.put(h1, 12, new byte[] { 7 });
+        assertEquals(2, archive.size());
+        assertArrayEquals(new byte[] { 7 }, archive.get(h1));
+    }
+
+    @Test
+    public void olderArchivesAreUpgraded() throws Exception {
+        // A version 2 file, where the checksum only covers the payload.
+        archive.close();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        byte[] data = { 1, 2, 3 };
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        DataOutputStream stream = new DataOutputStream(new FileOutputStream(file));
+        stream.writeInt(0x54584152);
+        stream.writeInt(2);
+        stream.write(hash.getBytes());
+        stream.writeInt(10);
+        stream.writeInt(data.length);
+        stream.write(data);
+        stream.writeInt((int) crc.getValue());
+        stream.close();
+
+        archive = new TransactionArchive(file);
+        assertArrayEquals(data, archive.get(hash));
+        archive.close();
+        archive = new TransactionArchive(file);
+        assertEquals(10, archive.getHeight(hash));
+        assertArrayEquals(data, archive.get(hash));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.wallet;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj_extra.core.Coin.*;
+import static org.bitcoinj_extra.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private File journalFile;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj_extra-unit-test", null);
+        journalFile = WalletJournal.getJournalFile(file);
+        WalletFiles files = wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null);
+        files.setJournalEnabled(true);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        file.delete();
+        journalFile.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void changesAreAppendedAndReplayed() throws Exception {
+        // The first save writes a full snapshot.
+        ECKey key = wallet.freshReceiveKey();
+        Sha256Hash snapshotHash = Sha256Hash.of(file);
+        long journalLength = journalFile.length();
+
+        Transaction t1 = createFakeTx(PARAMS, valueOf(5, 0), key);
+        wallet.receivePending(t1, null);
+        assertTrue(journalFile.length() > journalLength);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t1);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0));
+        // Only the journal was written to.
+        assertEquals(snapshotHash, Sha256Hash.of(file));
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.currentReceiveKey(), loaded.currentReceiveKey());
+        assertEquals(wallet.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks(),
+                loaded.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void incompleteBatchIsIgnored() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        Transaction t1 = createFakeTx(PARAMS, valueOf(5, 0), key);
+        wallet.receivePending(t1, null);
+        // Simulate a crash half way through writing a batch.
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        stream.write(new byte[] { 3, 0, 0, 1, 0, 42 });
+        stream.close();
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(t1.getHash()));
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void staleJournalIsIgnored() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        wallet.receivePending(createFakeTx(PARAMS, valueOf(5, 0), key), null);
+        assertTrue(journalFile.exists());
+        // A full save by other means makes the journal obsolete.
+        wallet.shutdownAutosaveAndWait();
+        Transaction t2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0));
+        wallet.saveToFile(file);
+        wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(t2.getHash()));
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+    }
+
+    @Test
+    public void fullSaveOutsideTheJournalRestartsIt() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        wallet.receivePending(createFakeTx(PARAMS, valueOf(5, 0), key), null);
+        // A full save straight to the file while the journal is on, then more changes.
+        wallet.saveToFile(file);
+        Transaction t2 = createFakeTx(PARAMS, valueOf(1, 0), key);
+        wallet.receivePending(t2, null);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(t2.getHash()));
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+}
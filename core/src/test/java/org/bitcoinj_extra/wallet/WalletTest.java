@@ -1686,6 +1686,45 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.unsafeBitcoinSerialize()));
     }
 
+    @Test
+    public void bloomFilterIsUpdatedIncrementally() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        Transaction t1 = createFakeTx(PARAMS, CENT, key);
+        for (int i = 1; i < 100; i++)
+            t1.addOutput(new TransactionOutput(PARAMS, t1, CENT, key));
+        final int size = wallet.getBloomFilterElementCount() + t1.getOutputs().size() + 2;
+        final long tweak = 42;
+        // Note that this has a 1e-12 chance of failing this unit test due to a false positive
+        assertFalse(wallet.getBloomFilter(size, 1e-12, tweak).contains(outPoint(t1, 0)));
+
+        ECKey imported = new ECKey();
+        wallet.importKey(imported);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t1);
+        BloomFilter filter = wallet.getBloomFilter(size, 1e-12, tweak);
+        assertTrue(filter.contains(imported.getPubKeyHash()));
+        assertTrue(filter.contains(outPoint(t1, 0)));
+        assertTrue(filter.contains(outPoint(t1, 99)));
+
+        // Spent outpoints stay in the filter for now, they only make it a bit less accurate.
+        Transaction t2 = wallet.sendCoinsOffline(SendRequest.emptyWallet(OTHER_ADDRESS));
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t2);
+        assertTrue(wallet.getBloomFilter(size, 1e-12, tweak).contains(outPoint(t1, 0)));
+
+        // Once there are enough of them to push the false positive rate past its target, the filter is rebuilt.
+        Transaction t3 = createFakeTx(PARAMS, CENT, key);
+        for (int i = 1; i < 100; i++)
+            t3.addOutput(new TransactionOutput(PARAMS, t3, CENT, key));
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t3);
+        filter = wallet.getBloomFilter(size, 1e-12, tweak);
+        assertTrue(filter.contains(outPoint(t3, 0)));
+        assertFalse(filter.contains(outPoint(t1, 0)));
+        assertTrue(filter.contains(imported.getPubKeyHash()));
+    }
+
+    private static byte[] outPoint(Transaction tx, int index) {
+        return new TransactionOutPoint(PARAMS, index, tx).unsafeBitcoinSerialize();
+    }
+
     @Test
     public void getWatchedAddresses() throws Exception {
         Address watchedAddress = new ECKey().toAddress(PARAMS);
@@ -2771,6 +2810,33 @@ public class WalletTest extends TestWithWallet {
         wallet.commitTx(emptyReq.tx);
     }
 
+    @Test
+    public void estimatedFee() throws Exception {
+        FeeEstimator estimator = new FeeEstimator();
+        estimator.newBestBlock(1);
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            estimator.seen(hash, Transaction.DEFAULT_TX_FEE.multiply(5));
+            estimator.confirmed(hash, 2);
+        }
+        Coin estimate = estimator.estimateFee(1);
+        assertNotNull(estimate);
+        receiveATransactionAmount(wallet, myAddress, Coin.COIN);
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, Coin.CENT);
+        req.feeEstimator = estimator;
+        req.confirmationTarget = 1;
+        wallet.completeTx(req);
+        assertEquals(estimate, req.feePerKb);
+        assertTrue(req.tx.getFee().isGreaterThan(Coin.valueOf(11350).multiply(5)));
+
+        // Without enough data the fee per kB given is used.
+        req = SendRequest.to(OTHER_ADDRESS, Coin.CENT);
+        req.feeEstimator = new FeeEstimator();
+        req.feePerKb = Transaction.DEFAULT_TX_FEE;
+        wallet.completeTx(req);
+        assertEquals(Transaction.DEFAULT_TX_FEE, req.feePerKb);
+    }
+
     @Test
     public void testCompleteTxWithExistingInputs() throws Exception {
         // Tests calling completeTx with a SendRequest that already has a few inputs in it
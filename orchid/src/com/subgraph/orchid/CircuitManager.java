@@ -48,4 +48,20 @@ public interface CircuitManager {
 	ExitCircuit openExitCircuitTo(List<Router> path) throws OpenFailedException;
 	InternalCircuit openInternalCircuitTo(List<Router> path) throws OpenFailedException;
 	DirectoryCircuit openDirectoryCircuitTo(List<Router> path) throws OpenFailedException;
+
+	/**
+	 * Keep <code>count</code> clean exit circuits open to exit routers which accept connections
+	 * to <code>port</code>, so that new streams to the port can be opened without waiting for
+	 * a circuit to be built.  A circuit which has carried a stream is replaced by a new one.
+	 * 
+	 * @param port The port to keep exit circuits open for.
+	 * @param count The number of clean circuits to keep open, or 0 to stop keeping circuits open for this port.
+	 */
+	void setWarmExitCircuitCount(int port, int count);
+
+	/**
+	 * Returns counters describing exit circuit build times and how often exit streams are
+	 * opened on circuits which are already open.
+	 */
+	CircuitPoolStatistics getCircuitPoolStatistics();
 }
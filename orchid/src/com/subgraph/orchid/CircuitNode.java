@@ -63,6 +63,16 @@ public interface CircuitNode {
 	 */
 	void waitForSendWindowAndDecrement();
 
+	/**
+	 * Wait like {@link #waitForSendWindowAndDecrement()} until the packaging window for this
+	 * node is open, then decrement it by as much of <code>maximum</code> as it allows.
+	 * 
+	 * @param maximum The number of cells the caller would like to send.
+	 * @return The number of cells the packaging window was decremented by, at least 1 and
+	 *         at most <code>maximum</code>.
+	 */
+	int waitForSendWindowAndDecrement(int maximum);
+
 	/**
 	 * This method is called to signal that a RELAY_SENDME cell has been received from this
 	 * node and the packaging window should be incremented.  This will also wake up any threads
@@ -0,0 +1,46 @@
+package com.subgraph.orchid;
+
+/**
+ * Counters describing how well the warm exit circuits kept open by the circuit manager
+ * serve exit stream requests.
+ */
+public interface CircuitPoolStatistics {
+	/**
+	 * Returns the number of exit circuits which have been built successfully.
+	 */
+	int getCircuitBuildCount();
+
+	/**
+	 * Returns the number of exit circuits which failed to build.
+	 */
+	int getCircuitBuildFailureCount();
+
+	/**
+	 * Returns the average time taken to build an exit circuit in milliseconds, or 0 if
+	 * no circuit has been built yet.
+	 */
+	long getAverageBuildMilliseconds();
+
+	/**
+	 * Returns the time taken to build the most recent exit circuit in milliseconds.
+	 */
+	long getLastBuildMilliseconds();
+
+	/**
+	 * Returns the number of exit streams which were assigned to a circuit that was already
+	 * open.
+	 */
+	int getPoolHitCount();
+
+	/**
+	 * Returns the number of exit streams which were assigned to a circuit as soon as it
+	 * finished building, because no open circuit could handle them.
+	 */
+	int getPoolMissCount();
+
+	/**
+	 * Returns the fraction of exit streams which were assigned to a circuit that was already
+	 * open, or 0 if no exit stream has been assigned yet.
+	 */
+	double getPoolHitRate();
+}
@@ -1,5 +1,6 @@
 package com.subgraph.orchid;
 
+import java.util.List;
 
 /**
  * A network connection to a Tor onion router.   
@@ -26,6 +27,16 @@ public interface Connection {
 	 *                                   or if an error occured while sending the cell data.
 	 */
 	void sendCell(Cell cell) throws ConnectionIOException;
+
+	/**
+	 * Send several protocol {@link Cell}s on this connection, in order, with as few writes to the
+	 * socket as possible.  Cells sent by other threads are never interleaved with them.
+	 * 
+	 * @param cells The fixed length {@link Cell}s to transfer.
+	 * @throws ConnectionIOException If the cells could not be send because the connection is not connected
+	 *                                   or if an error occured while sending the cell data.
+	 */
+	void sendCells(List<? extends Cell> cells) throws ConnectionIOException;
 	
 	/**
 	 * Remove a Circuit which has been bound to this Connection by a previous call to {@link #bindCircuit(Circuit) bindCircuit}.  
@@ -12,7 +12,8 @@ public interface DirectoryStore {
 		MICRODESCRIPTOR_JOURNAL("cached-microdescs.new"),
 		DESCRIPTOR_CACHE("cached-descriptors"),
 		DESCRIPTOR_JOURNAL("cached-descriptors.new"),
-		STATE("state");
+		STATE("state"),
+		SNAPSHOT("cached-snapshot");
 
 		final private String filename;
 
@@ -55,6 +55,13 @@ public class Threading {
 		return Executors.newCachedThreadPool(factory);
 	}
 
+	public static ExecutorService newFixedPool(final String name, int threads) {
+		ThreadFactory factory = new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(name + "-%d").build();
+		return Executors.newFixedThreadPool(threads, factory);
+	}
+
 	public static ScheduledExecutorService newSingleThreadScheduledPool(final String name) {
 		ThreadFactory factory = new ThreadFactoryBuilder()
 				.setDaemon(true)
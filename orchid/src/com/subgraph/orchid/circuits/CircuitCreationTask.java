@@ -1,8 +1,11 @@
 package com.subgraph.orchid.circuits;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
@@ -42,6 +45,7 @@ public class CircuitCreationTask implements Runnable {
 	private int notEnoughDirectoryInformationWarningCounter = 0;
 	
 	private final CircuitPredictor predictor;
+	private final CircuitPoolStatisticsImpl statistics;
 	
 	private final AtomicLong lastNewCircuit;
 
@@ -56,6 +60,7 @@ public class CircuitCreationTask implements Runnable {
 		this.buildHandler = createCircuitBuildHandler();
 		this.internalBuildHandler = createInternalCircuitBuildHandler();
 		this.predictor = new CircuitPredictor();
+		this.statistics = new CircuitPoolStatisticsImpl();
 		this.lastNewCircuit = new AtomicLong();
 	}
 
@@ -63,6 +68,10 @@ public class CircuitCreationTask implements Runnable {
 		return predictor;
 	}
 
+	CircuitPoolStatisticsImpl getStatistics() {
+		return statistics;
+	}
+
 	public void run() {
 		expireOldCircuits();
 		assignPendingStreamsToActiveCircuits();
@@ -74,29 +83,41 @@ public class CircuitCreationTask implements Runnable {
 		predictor.addExitPortRequest(port);
 	}
 
-	private void assignPendingStreamsToActiveCircuits() {
+	/*
+	 * Each pending stream is assigned to the open circuit able to handle it which is carrying
+	 * the fewest streams, so that streams are spread across the circuits rather than piling
+	 * onto whichever circuit comes first.  Circuits carrying the same number of streams are
+	 * chosen from in random order.
+	 */
+	void assignPendingStreamsToActiveCircuits() {
 		final List<StreamExitRequest> pendingExitStreams = circuitManager.getPendingExitStreams();
 		if(pendingExitStreams.isEmpty())
 			return;
 
-		for(ExitCircuit c: circuitManager.getRandomlyOrderedListOfExitCircuits()) {
-			final Iterator<StreamExitRequest> it = pendingExitStreams.iterator();
-			while(it.hasNext()) {
-				if(attemptHandleStreamRequest(c, it.next()))
-					it.remove();
+		final List<ExitCircuit> circuits = circuitManager.getRandomlyOrderedListOfExitCircuits();
+		final Map<ExitCircuit, Integer> loads = new HashMap<ExitCircuit, Integer>();
+		for(ExitCircuit c: circuits) {
+			loads.put(c, c.getActiveStreams().size());
+		}
+		for(StreamExitRequest request: pendingExitStreams) {
+			final ExitCircuit c = chooseLeastLoadedCircuit(circuits, loads, request);
+			// request may be reserved meaning another circuit is already trying to handle it
+			if(c != null && request.reserveRequest()) {
+				statistics.recordPoolHit();
+				loads.put(c, loads.get(c) + 1);
+				launchExitStreamTask(c, request);
 			}
 		}
 	}
 
-	private boolean attemptHandleStreamRequest(ExitCircuit c, StreamExitRequest request) {
-		if(c.canHandleExitTo(request)) {
-			if(request.reserveRequest()) {
-				launchExitStreamTask(c, request);
+	private ExitCircuit chooseLeastLoadedCircuit(List<ExitCircuit> circuits, Map<ExitCircuit, Integer> loads, StreamExitRequest request) {
+		ExitCircuit best = null;
+		for(ExitCircuit c: circuits) {
+			if(c.canHandleExitTo(request) && (best == null || loads.get(c) < loads.get(best))) {
+				best = c;
 			}
-			// else request is reserved meaning another circuit is already trying to handle it
-			return true;
 		}
-		return false;
+		return best;
 	}
 
 	private void launchExitStreamTask(ExitCircuit circuit, StreamExitRequest exitRequest) {
@@ -138,6 +159,7 @@ public class CircuitCreationTask implements Runnable {
 		}
 		
 		buildCircuitIfNeeded();
+		buildWarmCircuitsIfNeeded();
 		maybeBuildInternalCircuit();
 	}
 
@@ -163,6 +185,31 @@ public class CircuitCreationTask implements Runnable {
 		buildCircuitToHandleExitTargets(exitTargets);
 	}
 
+	/*
+	 * Keeps the requested number of clean exit circuits open or building for each warm port.
+	 * Once a stream is opened on one of them the circuit is no longer clean, and another one
+	 * is built to take its place.
+	 */
+	private void buildWarmCircuitsIfNeeded() {
+		final Map<Integer, Integer> warmCounts = predictor.getWarmCircuitCounts();
+		if(warmCounts.isEmpty() || connectionCache.isClosed()) {
+			return;
+		}
+		int available = MAX_PENDING_CIRCUITS - circuitManager.getPendingCircuitCount();
+		for(Entry<Integer, Integer> e: warmCounts.entrySet()) {
+			final PredictedPortTarget target = new PredictedPortTarget(e.getKey());
+			int needed = e.getValue() - countCircuitsSupportingTarget(target, true);
+			while(needed > 0 && available > 0) {
+				if(logger.isLoggable(Level.FINE)) {
+					logger.fine("Building new warm circuit for port "+ e.getKey());
+				}
+				launchBuildTaskForTargets(Collections.<ExitTarget>singletonList(target));
+				needed -= 1;
+				available -= 1;
+			}
+		}
+	}
+
 	private void maybeBuildInternalCircuit() {
 		final int needed = circuitManager.getNeededCleanCircuitCount(predictor.isInternalPredicted());
 		
@@ -229,12 +276,14 @@ public class CircuitCreationTask implements Runnable {
 
 			public void circuitBuildCompleted(Circuit circuit) {
 				logger.fine("Circuit completed to: "+ circuit);
+				statistics.recordCircuitBuild(((CircuitImpl) circuit).getMillisecondsElapsedSinceCreated());
 				circuitOpenedHandler(circuit);
 				lastNewCircuit.set(System.currentTimeMillis());
 			}
 
 			public void circuitBuildFailed(String reason) {
 				logger.fine("Circuit build failed: "+ reason);
+				statistics.recordCircuitBuildFailure();
 				buildCircuitIfNeeded();
 			}
 
@@ -244,6 +293,7 @@ public class CircuitCreationTask implements Runnable {
 
 			public void connectionFailed(String reason) {
 				logger.fine("Circuit connection failed: "+ reason);
+				statistics.recordCircuitBuildFailure();
 				buildCircuitIfNeeded();
 			}
 
@@ -261,6 +311,7 @@ public class CircuitCreationTask implements Runnable {
 		final List<StreamExitRequest> pendingExitStreams = circuitManager.getPendingExitStreams();
 		for(StreamExitRequest req: pendingExitStreams) {
 			if(ec.canHandleExitTo(req) && req.reserveRequest()) {
+				statistics.recordPoolMiss();
 				launchExitStreamTask(ec, req);
 			}
 		}
@@ -109,7 +109,7 @@ public class CircuitIO implements DashboardRenderable {
 	}
 
 	/*
-	 * This is called by the cell reading thread in ConnectionImpl to deliver control cells 
+	 * This is called on the cell processing pool of ConnectionImpl to deliver control cells 
 	 * associated with this circuit (CREATED, CREATED_FAST, or DESTROY).
 	 */
 	void deliverControlCell(Cell cell) {
@@ -125,7 +125,7 @@ public class CircuitIO implements DashboardRenderable {
 		destroyCircuit();
 	}
 
-	/* This is called by the cell reading thread in ConnectionImpl to deliver RELAY cells. */
+	/* This is called on the cell processing pool of ConnectionImpl, in order, to deliver RELAY cells. */
 	void deliverRelayCell(Cell cell) {
 		circuit.getStatus().updateDirtyTimestamp();
 		final RelayCell relayCell = decryptRelayCell(cell);
@@ -162,7 +162,7 @@ public class CircuitIO implements DashboardRenderable {
 		}
 	}
 
-	/* Runs in the context of the connection cell reading thread */
+	/* Runs on the cell processing pool, one cell of this circuit at a time */
 	private void processRelayDataCell(RelayCell cell) {
 		if(cell.getRelayCommand() == RelayCell.RELAY_DATA) {
 			cell.getCircuitNode().decrementDeliverWindow();
@@ -211,6 +211,35 @@ public class CircuitIO implements DashboardRenderable {
 	}
 	
 	
+	/*
+	 * Sends RELAY_DATA cells for a stream, taking as much of the circuit package window as is
+	 * open at once and writing the cells to the connection together.  The window is waited for
+	 * before taking relaySendLock, so a full window doesn't also hold up the RELAY_SENDME cells
+	 * sent by the cell processing pool.
+	 */
+	void sendRelayDataCellsTo(List<RelayCell> cells, CircuitNode targetNode) {
+		int start = 0;
+		while(start < cells.size()) {
+			final int n = targetNode.waitForSendWindowAndDecrement(cells.size() - start);
+			final List<RelayCell> batch = cells.subList(start, start + n);
+			relaySendLock.lock();
+			try {
+				for(RelayCell cell: batch) {
+					logRelayCell("Sending:     ", cell);
+					cell.setLength();
+					targetNode.updateForwardDigest(cell);
+					cell.setDigest(targetNode.getForwardDigestBytes());
+					for(CircuitNode node = targetNode; node != null; node = node.getPreviousNode())
+						node.encryptForwardCell(cell);
+				}
+				sendCells(batch);
+			} finally {
+				relaySendLock.unlock();
+			}
+			start += n;
+		}
+	}
+
 	private void logRelayCell(String message, RelayCell cell) {
 		final Level level = getLogLevelForCell(cell);
 		if(!logger.isLoggable(level)) {
@@ -241,6 +270,18 @@ public class CircuitIO implements DashboardRenderable {
 		}
 	}
 
+	private void sendCells(List<RelayCell> cells) {
+		final CircuitStatus status = circuit.getStatus();
+		if(!(status.isConnected() || status.isBuilding()))
+			return;
+		try {
+			status.updateDirtyTimestamp();
+			connection.sendCells(cells);
+		} catch (ConnectionIOException e) {
+			destroyCircuit();
+		}
+	}
+
 	void markForClose() {
 		boolean shouldClose;
 		streamLock.lock();
@@ -128,6 +128,11 @@ public abstract class CircuitImpl implements Circuit, DashboardRenderable {
 		return (int) (status.getMillisecondsDirty() / 1000);
 	}
 
+	/* While the circuit is being built, this is the time since the build started */
+	long getMillisecondsElapsedSinceCreated() {
+		return status.getMillisecondsElapsedSinceCreated();
+	}
+
 	void notifyCircuitBuildStart() {
 		if(!status.isUnconnected()) {
 			throw new IllegalStateException("Can only connect UNCONNECTED circuits");
@@ -169,6 +174,10 @@ public abstract class CircuitImpl implements Circuit, DashboardRenderable {
 		io.sendRelayCellTo(cell, getFinalCircuitNode());
 	}
 
+	void sendRelayDataCells(List<RelayCell> cells, CircuitNode targetNode) {
+		io.sendRelayDataCellsTo(cells, targetNode);
+	}
+
 	public void appendNode(CircuitNode node) {
 		nodeList.add(node);
 	}
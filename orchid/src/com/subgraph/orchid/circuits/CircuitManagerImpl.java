@@ -10,6 +10,7 @@ import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -19,6 +20,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import com.subgraph.orchid.Circuit;
 import com.subgraph.orchid.CircuitBuildHandler;
 import com.subgraph.orchid.CircuitManager;
+import com.subgraph.orchid.CircuitPoolStatistics;
 import com.subgraph.orchid.CircuitNode;
 import com.subgraph.orchid.Connection;
 import com.subgraph.orchid.ConnectionCache;
@@ -77,8 +79,8 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		if(config.getUseEntryGuards() || config.getUseBridges()) {
 			this.pathChooser.enableEntryGuards(new EntryGuards(config, connectionCache, directoryDownloader, directory));
 		}
-		this.pendingExitStreams = new PendingExitStreams(config);
 		this.circuitCreationTask = new CircuitCreationTask(config, directory, connectionCache, pathChooser, this, initializationTracker);
+		this.pendingExitStreams = new PendingExitStreams(config, createStreamAssignmentTask());
 		this.activeCircuits = new HashSet<CircuitImpl>();
 		this.cleanInternalCircuits = new LinkedList<InternalCircuit>();
 		this.random = new TorRandom();
@@ -119,6 +121,35 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		}
 	}
 
+	/*
+	 * Runs when a stream request is added, so that a request which can be handled by an open
+	 * circuit doesn't wait for the next run of the circuit creation task.
+	 */
+	private Runnable createStreamAssignmentTask() {
+		final Runnable assignStreams = new Runnable() {
+			public void run() {
+				circuitCreationTask.assignPendingStreamsToActiveCircuits();
+			}
+		};
+		return new Runnable() {
+			public void run() {
+				try {
+					scheduledExecutor.execute(assignStreams);
+				} catch (RejectedExecutionException e) {
+					// Circuit building has been stopped
+				}
+			}
+		};
+	}
+
+	public void setWarmExitCircuitCount(int port, int count) {
+		circuitCreationTask.getCircuitPredictor().setWarmCircuitCount(port, count);
+	}
+
+	public CircuitPoolStatistics getCircuitPoolStatistics() {
+		return circuitCreationTask.getStatistics();
+	}
+
 	public ExitCircuit createNewExitCircuit(Router exitRouter) {
 		return CircuitImpl.createExitCircuit(this, exitRouter);
 	}
@@ -338,6 +369,7 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		}
 		renderer.renderComponent(writer, flags, connectionCache);
 		renderer.renderComponent(writer, flags, circuitCreationTask.getCircuitPredictor());
+		renderer.renderComponent(writer, flags, circuitCreationTask.getStatistics());
 		writer.println("[Circuit Manager]");
 		writer.println();
 		for(Circuit c: getCircuitsByFilter(null)) {
@@ -97,20 +97,33 @@ public class CircuitNodeImpl implements CircuitNode {
 		waitForSendWindow(true);
 	}
 
+	public int waitForSendWindowAndDecrement(int maximum) {
+		synchronized(windowLock) {
+			waitForOpenSendWindow();
+			final int n = Math.min(maximum, packageWindow);
+			packageWindow -= n;
+			return n;
+		}
+	}
+
 	private void waitForSendWindow(boolean decrement) {
 		synchronized(windowLock) {
-			while(packageWindow == 0) {
-				try {
-					windowLock.wait();
-				} catch (InterruptedException e) {
-					throw new TorException("Thread interrupted while waiting for circuit send window");
-				}
-			}
+			waitForOpenSendWindow();
 			if(decrement)
 				packageWindow--;
 		}
 	}
 
+	private void waitForOpenSendWindow() {
+		while(packageWindow == 0) {
+			try {
+				windowLock.wait();
+			} catch (InterruptedException e) {
+				throw new TorException("Thread interrupted while waiting for circuit send window");
+			}
+		}
+	}
+
 	public void incrementSendWindow() {
 		synchronized(windowLock) {
 			packageWindow += CIRCWINDOW_INCREMENT;
@@ -0,0 +1,78 @@
+package com.subgraph.orchid.circuits;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import com.subgraph.orchid.CircuitPoolStatistics;
+import com.subgraph.orchid.dashboard.DashboardRenderable;
+import com.subgraph.orchid.dashboard.DashboardRenderer;
+import com.subgraph.orchid.misc.GuardedBy;
+
+public class CircuitPoolStatisticsImpl implements CircuitPoolStatistics, DashboardRenderable {
+
+	@GuardedBy("this") private int buildCount;
+	@GuardedBy("this") private int buildFailureCount;
+	@GuardedBy("this") private long totalBuildMilliseconds;
+	@GuardedBy("this") private long lastBuildMilliseconds;
+	@GuardedBy("this") private int poolHitCount;
+	@GuardedBy("this") private int poolMissCount;
+
+	synchronized void recordCircuitBuild(long milliseconds) {
+		buildCount += 1;
+		totalBuildMilliseconds += milliseconds;
+		lastBuildMilliseconds = milliseconds;
+	}
+
+	synchronized void recordCircuitBuildFailure() {
+		buildFailureCount += 1;
+	}
+
+	synchronized void recordPoolHit() {
+		poolHitCount += 1;
+	}
+
+	synchronized void recordPoolMiss() {
+		poolMissCount += 1;
+	}
+
+	public synchronized int getCircuitBuildCount() {
+		return buildCount;
+	}
+
+	public synchronized int getCircuitBuildFailureCount() {
+		return buildFailureCount;
+	}
+
+	public synchronized long getAverageBuildMilliseconds() {
+		return (buildCount == 0) ? 0 : (totalBuildMilliseconds / buildCount);
+	}
+
+	public synchronized long getLastBuildMilliseconds() {
+		return lastBuildMilliseconds;
+	}
+
+	public synchronized int getPoolHitCount() {
+		return poolHitCount;
+	}
+
+	public synchronized int getPoolMissCount() {
+		return poolMissCount;
+	}
+
+	public synchronized double getPoolHitRate() {
+		final int total = poolHitCount + poolMissCount;
+		return (total == 0) ? 0.0 : ((double) poolHitCount / total);
+	}
+
+	public void dashboardRender(DashboardRenderer renderer, PrintWriter writer, int flags) throws IOException {
+		if((flags & DASHBOARD_CIRCUITS) == 0) {
+			return;
+		}
+		writer.println("[Circuit Pool]");
+		writer.println(" Exit circuits built: "+ getCircuitBuildCount() +" (failed: "+ getCircuitBuildFailureCount() +")");
+		writer.println(" Build time: average "+ getAverageBuildMilliseconds() +" ms, last "+ getLastBuildMilliseconds() +" ms");
+		writer.println(" Streams: "+ getPoolHitCount() +" on open circuits, "+ getPoolMissCount() +" waited for a new circuit"
+				+ String.format(" (hit rate %.1f%%)", getPoolHitRate() * 100));
+		writer.println();
+	}
+}
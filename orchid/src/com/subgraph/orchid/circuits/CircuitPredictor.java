@@ -21,9 +21,12 @@ public class CircuitPredictor implements DashboardRenderable {
 	private final static long TIMEOUT_MS = 60 * 60 * 1000; // One hour
 	
 	private final Map<Integer, Long> portsSeen;
+	/* Ports for which a number of clean exit circuits are always kept open, with that number */
+	private final Map<Integer, Integer> warmPorts;
 		
 	public CircuitPredictor() {
 		portsSeen = new HashMap<Integer,Long>();
+		warmPorts = new HashMap<Integer,Integer>();
 		addExitPortRequest(80);
 		addInternalRequest();
 	}
@@ -69,6 +72,22 @@ public class CircuitPredictor implements DashboardRenderable {
 		}
 	}
 
+	void setWarmCircuitCount(int port, int count) {
+		synchronized (warmPorts) {
+			if(count > 0) {
+				warmPorts.put(port, count);
+			} else {
+				warmPorts.remove(port);
+			}
+		}
+	}
+
+	Map<Integer, Integer> getWarmCircuitCounts() {
+		synchronized (warmPorts) {
+			return new HashMap<Integer, Integer>(warmPorts);
+		}
+	}
+
 	List<PredictedPortTarget> getPredictedPortTargets() {
 		final List<PredictedPortTarget> targets = new ArrayList<PredictedPortTarget>();
 		for(int p: getPredictedPorts()) {
@@ -94,6 +113,9 @@ public class CircuitPredictor implements DashboardRenderable {
 			}
 			writer.println();
 		}
+		for(Entry<Integer, Integer> e: getWarmCircuitCounts().entrySet()) {
+			writer.println(" "+ e.getKey() +" (keeping "+ e.getValue() +" warm circuits)");
+		}
 		writer.println();
 	}
 }
@@ -17,9 +17,11 @@ public class PendingExitStreams {
 	private final Set<StreamExitRequest> pendingRequests;
 	private final Object lock = new Object();
 	private final TorConfig config;
+	private final Runnable requestAddedTask;
 
-	PendingExitStreams(TorConfig config) {
+	PendingExitStreams(TorConfig config, Runnable requestAddedTask) {
 		this.config = config;
+		this.requestAddedTask = requestAddedTask;
 		pendingRequests = new HashSet<StreamExitRequest>();
 	}
 	
@@ -40,6 +42,7 @@ public class PendingExitStreams {
 		
 		synchronized(lock) {
 			pendingRequests.add(request);
+			requestAddedTask.run();
 			try {
 				return handleRequest(request);
 			} finally {
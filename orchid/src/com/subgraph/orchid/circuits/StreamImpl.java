@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
@@ -87,17 +88,25 @@ public class StreamImpl implements Stream, DashboardRenderable {
 		}
 	}
 
+	/*
+	 * Called by the input stream when the reader has taken cells off its queue.  Without this
+	 * the window would only reopen when another cell arrives, and a reader which fell behind
+	 * could leave the exit waiting on a window that nothing reopens.
+	 */
+	void inputCellsConsumed() {
+		if(isClosed)
+			return;
+		considerSendingSendme();
+	}
+
 	private void considerSendingSendme() {
 		synchronized(windowLock) {
-			if(deliverWindow > (STREAMWINDOW_START - STREAMWINDOW_INCREMENT))
-				return;
-
-			if(inputStream.unflushedCellCount() >= STREAMWINDOW_MAX_UNFLUSHED)
-				return;
-
-			final RelayCell sendme = circuit.createRelayCell(RelayCell.RELAY_SENDME, streamId, targetNode);
-			circuit.sendRelayCell(sendme);
-			deliverWindow += STREAMWINDOW_INCREMENT;
+			while(deliverWindow <= (STREAMWINDOW_START - STREAMWINDOW_INCREMENT) &&
+					inputStream.unflushedCellCount() < STREAMWINDOW_MAX_UNFLUSHED) {
+				final RelayCell sendme = circuit.createRelayCell(RelayCell.RELAY_SENDME, streamId, targetNode);
+				circuit.sendRelayCell(sendme);
+				deliverWindow += STREAMWINDOW_INCREMENT;
+			}
 		}
 	}
 
@@ -188,19 +197,43 @@ public class StreamImpl implements Stream, DashboardRenderable {
 
 	public void waitForSendWindow(boolean decrement) {
 		synchronized(windowLock) {
-			while(packageWindow == 0) {
-				try {
-					windowLock.wait();
-				} catch (InterruptedException e) {
-					throw new TorException("Thread interrupted while waiting for stream package window");
-				}
-			}
+			waitForOpenSendWindow();
 			if(decrement)
 				packageWindow--;
 		}
 		targetNode.waitForSendWindow();
 	}
 
+	/*
+	 * Waits until the stream and circuit package windows are open, then takes as much of the
+	 * stream window as it allows, up to maximum cells.  Returns the number of cells taken.
+	 */
+	int waitForSendWindowAndDecrement(int maximum) {
+		final int n;
+		synchronized(windowLock) {
+			waitForOpenSendWindow();
+			n = Math.min(maximum, packageWindow);
+			packageWindow -= n;
+		}
+		targetNode.waitForSendWindow();
+		return n;
+	}
+
+	private void waitForOpenSendWindow() {
+		while(packageWindow == 0) {
+			try {
+				windowLock.wait();
+			} catch (InterruptedException e) {
+				throw new TorException("Thread interrupted while waiting for stream package window");
+			}
+		}
+	}
+
+	/* Sends RELAY_DATA cells which have already been counted against the stream package window. */
+	void sendDataCells(List<RelayCell> cells) {
+		circuit.sendRelayDataCells(cells, targetNode);
+	}
+
 	public String toString() {
 		return "[Stream stream_id="+ streamId + " circuit="+ circuit +" target="+ streamTarget +"]";
 	}
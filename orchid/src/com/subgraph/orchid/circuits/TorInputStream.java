@@ -3,7 +3,7 @@ package com.subgraph.orchid.circuits;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Queue;
 
 import com.subgraph.orchid.RelayCell;
@@ -20,6 +20,9 @@ public class TorInputStream extends InputStream {
 	
 	private final Stream stream;
 	
+	/** Told when cells are taken off the queue so that it can reopen the deliver window, or null */
+	private final StreamImpl flowControl;
+	
 	private final Object lock = new Object();
 	
 	/** Queue of RelayCells that have been received on this stream */
@@ -40,9 +43,21 @@ public class TorInputStream extends InputStream {
 	/** Set when close() is called on this stream */
 	@GuardedBy("lock") private boolean isClosed;
 	
+	/** Set when a RELAY_DATA cell has been taken off the queue since flowControl was last told */
+	@GuardedBy("lock") private boolean cellsConsumed;
+	
+	TorInputStream(StreamImpl stream) {
+		this(stream, stream);
+	}
+	
 	TorInputStream(Stream stream) {
+		this(stream, null);
+	}
+	
+	private TorInputStream(Stream stream, StreamImpl flowControl) {
 		this.stream = stream;
-		this.incomingCells = new LinkedList<RelayCell>();
+		this.flowControl = flowControl;
+		this.incomingCells = new ArrayDeque<RelayCell>();
 		this.currentBuffer = EMPTY_BUFFER;
 	}
 
@@ -54,16 +69,20 @@ public class TorInputStream extends InputStream {
 
 	@Override
 	public int read() throws IOException {
-		synchronized (lock) {
-			if(isClosed) {
-				throw new IOException("Stream closed");
-			}
-			refillBufferIfNeeded();
-			if(isEOF) {
-				return -1;
+		try {
+			synchronized (lock) {
+				if(isClosed) {
+					throw new IOException("Stream closed");
+				}
+				refillBufferIfNeeded();
+				if(isEOF) {
+					return -1;
+				}
+				availableBytes -= 1;
+				return currentBuffer.get() & 0xFF;
 			}
-			availableBytes -= 1;
-			return currentBuffer.get() & 0xFF;
+		} finally {
+			notifyCellsConsumed();
 		}
 	}
 
@@ -73,6 +92,15 @@ public class TorInputStream extends InputStream {
 	}
 
 	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		try {
+			return readBuffer(b, off, len);
+		} finally {
+			notifyCellsConsumed();
+		}
+	}
+
+	/* Reads across as many queued cells as it takes to fill the buffer, blocking only for the first byte. */
+	private int readBuffer(byte[] b, int off, int len) throws IOException {
 		synchronized (lock) {
 			if(isClosed) {
 				throw new IOException("Stream closed");
@@ -112,6 +140,23 @@ public class TorInputStream extends InputStream {
 		return readLength;
 	}
 
+	/*
+	 * Called with lock not held, because the stream takes its window lock before asking
+	 * this input stream for the number of queued cells.
+	 */
+	private void notifyCellsConsumed() {
+		if(flowControl == null) {
+			return;
+		}
+		synchronized (lock) {
+			if(!cellsConsumed) {
+				return;
+			}
+			cellsConsumed = false;
+		}
+		flowControl.inputCellsConsumed();
+	}
+
 	private void checkReadArguments(byte[] b, int off, int len) {
 		if(b == null) {
 			throw new NullPointerException();
@@ -193,6 +238,7 @@ public class TorInputStream extends InputStream {
 		switch(nextCell.getRelayCommand()) {
 		case RelayCell.RELAY_DATA:
 			currentBuffer = nextCell.getPayloadBuffer();
+			cellsConsumed = true;
 			break;
 		case RelayCell.RELAY_END:
 			currentBuffer = EMPTY_BUFFER;
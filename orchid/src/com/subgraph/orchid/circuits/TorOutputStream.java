@@ -2,33 +2,71 @@ package com.subgraph.orchid.circuits;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.subgraph.orchid.RelayCell;
 import com.subgraph.orchid.circuits.cells.RelayCellImpl;
 
+/**
+ * Packs the data written to a stream into RELAY_DATA cells.  The full cells from one call to
+ * write() are sent together, taking as much of the package windows as is open at once rather
+ * than one cell at a time, and cells are kept to be filled again once they have been sent.
+ */
 public class TorOutputStream extends OutputStream {
+	private final static int MAX_CELLS_PER_BATCH = 32;
 
 	private final StreamImpl stream;
-	private RelayCell currentOutputCell;
+	private final List<RelayCell> pendingCells;
+	private final List<RelayCellImpl> spareCells;
+	private RelayCellImpl currentOutputCell;
 	private volatile boolean isClosed;
 	private long bytesSent;
 
 	TorOutputStream(StreamImpl stream) {
 		this.stream = stream;
+		this.pendingCells = new ArrayList<RelayCell>(MAX_CELLS_PER_BATCH);
+		this.spareCells = new ArrayList<RelayCellImpl>(MAX_CELLS_PER_BATCH);
 		this.bytesSent = 0;
 	}
 
-	private void flushCurrentOutputCell() {
-		if(currentOutputCell != null && currentOutputCell.cellBytesConsumed() > RelayCell.HEADER_SIZE) {
-			stream.waitForSendWindowAndDecrement();
-			stream.getCircuit().sendRelayCell(currentOutputCell);
-			bytesSent += (currentOutputCell.cellBytesConsumed() - RelayCell.HEADER_SIZE);
+	private RelayCellImpl nextOutputCell() {
+		if(!spareCells.isEmpty()) {
+			return spareCells.remove(spareCells.size() - 1);
 		}
-
-		currentOutputCell = new RelayCellImpl(stream.getTargetNode(), stream.getCircuit().getCircuitId(),
+		return new RelayCellImpl(stream.getTargetNode(), stream.getCircuit().getCircuitId(),
 				stream.getStreamId(), RelayCell.RELAY_DATA);
 	}
 
+	private void queueCurrentOutputCell() {
+		pendingCells.add(currentOutputCell);
+		currentOutputCell = null;
+	}
+
+	private void sendPendingCells() {
+		try {
+			int start = 0;
+			while(start < pendingCells.size()) {
+				final int n = stream.waitForSendWindowAndDecrement(pendingCells.size() - start);
+				final List<RelayCell> batch = pendingCells.subList(start, start + n);
+				for(RelayCell cell: batch) {
+					bytesSent += (cell.cellBytesConsumed() - RelayCell.HEADER_SIZE);
+				}
+				stream.sendDataCells(batch);
+				start += n;
+			}
+			for(RelayCell cell: pendingCells) {
+				if(spareCells.size() < MAX_CELLS_PER_BATCH) {
+					final RelayCellImpl spare = (RelayCellImpl) cell;
+					spare.resetOutgoing();
+					spareCells.add(spare);
+				}
+			}
+		} finally {
+			pendingCells.clear();
+		}
+	}
+
 	long getBytesSent() {
 		return bytesSent;
 	}
@@ -36,27 +74,31 @@ public class TorOutputStream extends OutputStream {
 	@Override
 	public synchronized void write(int b) throws IOException {
 		checkOpen();
-		if(currentOutputCell == null || currentOutputCell.cellBytesRemaining() == 0)
-			flushCurrentOutputCell();
-		currentOutputCell.putByte(b);		
+		if(currentOutputCell == null)
+			currentOutputCell = nextOutputCell();
+		currentOutputCell.putByte(b);
+		if(currentOutputCell.cellBytesRemaining() == 0) {
+			queueCurrentOutputCell();
+			sendPendingCells();
+		}
 	}
 
 	public synchronized void write(byte[] data, int offset, int length) throws IOException {
 		checkOpen();
-		if(currentOutputCell == null || currentOutputCell.cellBytesRemaining() == 0)
-			flushCurrentOutputCell();
-
 		while(length > 0) {
-			if(length < currentOutputCell.cellBytesRemaining()) {
-				currentOutputCell.putByteArray(data, offset, length);
-				return;
-			}
-			final int writeCount = currentOutputCell.cellBytesRemaining();
+			if(currentOutputCell == null)
+				currentOutputCell = nextOutputCell();
+			final int writeCount = Math.min(length, currentOutputCell.cellBytesRemaining());
 			currentOutputCell.putByteArray(data, offset, writeCount);
-			flushCurrentOutputCell();
 			offset += writeCount;
 			length -= writeCount;
+			if(currentOutputCell.cellBytesRemaining() == 0) {
+				queueCurrentOutputCell();
+				if(pendingCells.size() == MAX_CELLS_PER_BATCH)
+					sendPendingCells();
+			}
 		}
+		sendPendingCells();
 	}
 
 	private void checkOpen() throws IOException {
@@ -67,7 +109,9 @@ public class TorOutputStream extends OutputStream {
 	public synchronized void flush() {
 		if(isClosed)
 			return;
-		flushCurrentOutputCell();
+		if(currentOutputCell != null && currentOutputCell.cellBytesConsumed() > RelayCell.HEADER_SIZE)
+			queueCurrentOutputCell();
+		sendPendingCells();
 	}
 
 	public synchronized void close() {
@@ -76,6 +120,7 @@ public class TorOutputStream extends OutputStream {
 		flush();
 		isClosed = true;
 		currentOutputCell = null;
+		spareCells.clear();
 		stream.close();
 	}
 
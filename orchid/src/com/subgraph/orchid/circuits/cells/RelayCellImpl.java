@@ -1,6 +1,7 @@
 package com.subgraph.orchid.circuits.cells;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.subgraph.orchid.Cell;
 import com.subgraph.orchid.CircuitNode;
@@ -47,6 +48,23 @@ public class RelayCellImpl extends CellImpl implements RelayCell {
 		putShort(0);			// Length	
 	}
 
+	/**
+	 * Returns an outgoing cell which has been sent to the state it was created in, so that
+	 * its buffer can be filled and sent again.  The whole payload is rewritten, since it was
+	 * encrypted in place when the cell was sent.
+	 */
+	public void resetOutgoing() {
+		if(!isOutgoing)
+			throw new TorException("Attempted to reset an incoming RelayCell");
+		resetToPayload();
+		Arrays.fill(cellBuffer.array(), cellBuffer.position(), cellBuffer.capacity(), (byte) 0);
+		putByte(relayCommand);
+		putShort(0);
+		putShort(streamId);
+		putInt(0);
+		putShort(0);
+	}
+
 	private RelayCellImpl(CircuitNode node, byte[] rawCell) {
 		super(rawCell);
 		this.circuitNode = node;
@@ -1,7 +1,9 @@
 package com.subgraph.orchid.circuits.path;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.ConsensusDocument;
@@ -9,16 +11,27 @@ import com.subgraph.orchid.Directory;
 import com.subgraph.orchid.Router;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.crypto.TorRandom;
+import com.subgraph.orchid.misc.GuardedBy;
 
 public class CircuitNodeChooser {
 	private final static Logger logger = Logger.getLogger(CircuitNodeChooser.class.getName());
 	
 	public enum WeightRule { WEIGHT_FOR_DIR, WEIGHT_FOR_EXIT, WEIGHT_FOR_MID, WEIGHT_FOR_GUARD, NO_WEIGHTING};
+
+	/* Routers drawn from a weight table before falling back to filtering the router list */
+	private final static int MAX_REJECTED_CHOICES = 100;
+
 	private final Directory directory;
 	private final TorRandom random = new TorRandom();
 	
 	private final TorConfigNodeFilter configNodeFilter;
 
+	/* Weight tables for each rule, built from weightTableConsensus when first needed. */
+	@GuardedBy("this")
+	private final Map<WeightRule, RouterAliasTable> weightTables = new EnumMap<WeightRule, RouterAliasTable>(WeightRule.class);
+	@GuardedBy("this")
+	private ConsensusDocument weightTableConsensus;
+
 	
 	public CircuitNodeChooser(TorConfig config, Directory directory) {
 		this.directory = directory;
@@ -41,8 +54,11 @@ public class CircuitNodeChooser {
 				return router.getDirectoryPort() != 0;
 			}
 		};
-		final List<Router> candidates = getFilteredRouters(filter, false);
-		final Router choice = chooseByBandwidth(candidates, WeightRule.WEIGHT_FOR_DIR);
+		Router choice = chooseFromWeightTable(WeightRule.WEIGHT_FOR_DIR, filter, false);
+		if(choice == null) {
+			final List<Router> candidates = getFilteredRouters(filter, false);
+			choice = chooseByBandwidth(candidates, WeightRule.WEIGHT_FOR_DIR);
+		}
 		if(choice == null) {
 			return directory.getRandomDirectoryAuthority();
 		} else {
@@ -57,6 +73,10 @@ public class CircuitNodeChooser {
 	 * @return The chosen router or 'null' if no suitable router is available.
 	 */
 	public Router chooseRandomNode(WeightRule rule, RouterFilter routerFilter) {
+		final Router tableChoice = chooseFromWeightTable(rule, routerFilter, true);
+		if(tableChoice != null) {
+			return tableChoice;
+		}
 		final List<Router> candidates = getFilteredRouters(routerFilter, true);
 		final Router choice = chooseByBandwidth(candidates, rule);
 		if(choice == null) {
@@ -65,6 +85,64 @@ public class CircuitNodeChooser {
 		}
 		return choice;
 	}
+
+	/**
+	 * Draws routers from the weight table for the current consensus until one is usable and
+	 * passes the filter.  Rejecting the routers which don't pass gives each one which does the
+	 * same chance of being chosen as a table built from the filtered routers alone would.
+	 * 
+	 * @return The chosen router or 'null' if there is no weight table or no suitable router was drawn.
+	 */
+	private Router chooseFromWeightTable(WeightRule rule, RouterFilter routerFilter, boolean needDescriptor) {
+		final RouterAliasTable table = getWeightTable(rule);
+		if(table == null) {
+			return null;
+		}
+		for(int i = 0; i < MAX_REJECTED_CHOICES; i++) {
+			final Router r = table.chooseRandomRouter(random);
+			if(isUsable(r, needDescriptor) && routerFilter.filter(r)) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	private synchronized RouterAliasTable getWeightTable(WeightRule rule) {
+		final ConsensusDocument consensus = directory.getCurrentConsensusDocument();
+		if(consensus == null) {
+			return null;
+		}
+		if(consensus != weightTableConsensus) {
+			weightTables.clear();
+			weightTableConsensus = consensus;
+		}
+		if(!weightTables.containsKey(rule)) {
+			weightTables.put(rule, createWeightTable(consensus, rule));
+		}
+		return weightTables.get(rule);
+	}
+
+	/*
+	 * The table holds every running and valid router, since hibernation and descriptors
+	 * change between consensuses and are checked when a router is drawn instead.
+	 */
+	private RouterAliasTable createWeightTable(ConsensusDocument consensus, WeightRule rule) {
+		final CircuitNodeChooserWeightParameters wp = CircuitNodeChooserWeightParameters.create(consensus, rule);
+		if(!wp.isValid()) {
+			return null;
+		}
+		final List<Router> routers = new ArrayList<Router>();
+		for(Router r: directory.getAllRouters()) {
+			if(r.isRunning() && r.isValid()) {
+				routers.add(r);
+			}
+		}
+		final double[] weights = new double[routers.size()];
+		for(int i = 0; i < weights.length; i++) {
+			weights[i] = wp.calculateWeightedBandwidth(routers.get(i));
+		}
+		return RouterAliasTable.create(routers, weights);
+	}
 	
 	private List<Router> getFilteredRouters(RouterFilter rf, boolean needDescriptor) {
 		final List<Router> routers = new ArrayList<Router>();
@@ -79,11 +157,7 @@ public class CircuitNodeChooser {
 	List<Router> getUsableRouters(boolean needDescriptor) {
 		final List<Router> routers = new ArrayList<Router>();
 		for(Router r: directory.getAllRouters()) {
-			if(r.isRunning() && 
-					r.isValid() && 
-					!r.isHibernating() && 
-					!(needDescriptor && r.getCurrentDescriptor() == null)) {
-				
+			if(isUsable(r, needDescriptor)) {
 				routers.add(r);
 			}
 		}
@@ -91,6 +165,13 @@ public class CircuitNodeChooser {
 		return routers;
 	}
 
+	private boolean isUsable(Router r, boolean needDescriptor) {
+		return r.isRunning() && 
+				r.isValid() && 
+				!r.isHibernating() && 
+				!(needDescriptor && r.getCurrentDescriptor() == null);
+	}
+
 	private Router chooseByBandwidth(List<Router> candidates, WeightRule rule) {
 		final Router choice = chooseNodeByBandwidthWeights(candidates, rule);
 		if(choice != null) {
@@ -0,0 +1,103 @@
+package com.subgraph.orchid.circuits.path;
+
+import java.util.List;
+
+import com.subgraph.orchid.Router;
+import com.subgraph.orchid.crypto.TorRandom;
+
+/**
+ * Chooses routers at random in proportion to a weight in constant time, using Walker's
+ * alias method.  Each slot of the table holds one router, a threshold and an alias.  A
+ * choice picks a slot uniformly and then picks either the slot's router or its alias,
+ * depending on whether a second random value falls below the threshold.
+ *
+ * Building the table takes time linear in the number of routers, so a table is built
+ * once for a set of weights and then shared by every choice made with them.
+ */
+class RouterAliasTable {
+	/* Thresholds are stored as fractions of this value, which is the precision of a double */
+	private final static long SCALE = 1L << 53;
+	private final static double EPSILON = 0.1;
+
+	/**
+	 * Returns a table for choosing from routers with the given weights, or null if the
+	 * weights add up to zero.
+	 *
+	 * @param routers The routers to choose from.
+	 * @param weights The weight of each router, in the same order as routers.
+	 */
+	static RouterAliasTable create(List<Router> routers, double[] weights) {
+		final int n = routers.size();
+		double total = 0.0;
+		for(int i = 0; i < n; i++) {
+			total += weights[i];
+		}
+		if(total < EPSILON) {
+			return null;
+		}
+
+		final double[] probability = new double[n];
+		final int[] small = new int[n];
+		final int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+		for(int i = 0; i < n; i++) {
+			probability[i] = weights[i] * n / total;
+			if(probability[i] < 1.0) {
+				small[smallCount++] = i;
+			} else {
+				large[largeCount++] = i;
+			}
+		}
+
+		final long[] thresholds = new long[n];
+		final int[] aliases = new int[n];
+		while(smallCount > 0 && largeCount > 0) {
+			final int s = small[--smallCount];
+			final int l = large[--largeCount];
+			thresholds[s] = (long) (probability[s] * SCALE);
+			aliases[s] = l;
+			probability[l] -= (1.0 - probability[s]);
+			if(probability[l] < 1.0) {
+				small[smallCount++] = l;
+			} else {
+				large[largeCount++] = l;
+			}
+		}
+		/* Whatever is left over differs from 1.0 only by rounding error */
+		while(largeCount > 0) {
+			final int l = large[--largeCount];
+			thresholds[l] = SCALE;
+			aliases[l] = l;
+		}
+		while(smallCount > 0) {
+			final int s = small[--smallCount];
+			thresholds[s] = SCALE;
+			aliases[s] = s;
+		}
+		return new RouterAliasTable(routers.toArray(new Router[n]), thresholds, aliases);
+	}
+
+	private final Router[] routers;
+	private final long[] thresholds;
+	private final int[] aliases;
+
+	private RouterAliasTable(Router[] routers, long[] thresholds, int[] aliases) {
+		this.routers = routers;
+		this.thresholds = thresholds;
+		this.aliases = aliases;
+	}
+
+	int getRouterCount() {
+		return routers.length;
+	}
+
+	Router chooseRandomRouter(TorRandom random) {
+		final int slot = random.nextInt(routers.length);
+		if(random.nextLong(SCALE) < thresholds[slot]) {
+			return routers[slot];
+		} else {
+			return routers[aliases[slot]];
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.subgraph.orchid.connections;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.Circuit;
+import com.subgraph.orchid.TorException;
+
+/**
+ * Hands the incoming cells of one circuit from the connection reading thread to a
+ * shared pool, where they are decrypted and dispatched to the circuit's streams. The
+ * cells of a circuit are processed one at a time and in the order they arrived, but
+ * different circuits on the same connection are processed in parallel.
+ *
+ * The queue is bounded. A circuit that falls too far behind is destroyed and its cells
+ * dropped. Waiting for it instead would block the reading thread, and with it every
+ * other circuit on the connection.
+ */
+class CircuitCellQueue implements Runnable {
+	private final static Logger logger = Logger.getLogger(CircuitCellQueue.class.getName());
+	// More than a full circuit window (1000 cells), so flow control keeps a well behaved
+	// circuit from ever reaching it. Only a relay ignoring flow control or a pool that
+	// can't keep up does.
+	private final static int MAX_PENDING_CELLS = 2048;
+	// Cells processed per turn before giving other circuits a go at the pool.
+	private final static int CELLS_PER_TURN = 64;
+
+	private final Circuit circuit;
+	private final Executor executor;
+	private final Queue<Cell> cells = new ConcurrentLinkedQueue<Cell>();
+	// Cells added but not yet processed. The queue is scheduled on the pool while non-zero.
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile boolean isClosed;
+
+	CircuitCellQueue(Circuit circuit, Executor executor) {
+		this.circuit = circuit;
+		this.executor = executor;
+	}
+
+	Circuit getCircuit() {
+		return circuit;
+	}
+
+	/* Called by the connection reading thread only. */
+	void add(Cell cell) {
+		if(isClosed) {
+			return;
+		}
+		if(pending.get() >= MAX_PENDING_CELLS) {
+			overrun();
+			return;
+		}
+		cells.add(cell);
+		if(pending.getAndIncrement() == 0) {
+			executor.execute(this);
+		}
+	}
+
+	/*
+	 * Drops this and all later cells of the circuit. The circuit is destroyed on the pool,
+	 * as that waits for the locks of its streams.
+	 */
+	private void overrun() {
+		logger.warning("Circuit "+ circuit +" fell "+ MAX_PENDING_CELLS +" cells behind, destroying it");
+		isClosed = true;
+		executor.execute(new Runnable() {
+			public void run() {
+				circuit.destroyCircuit();
+			}
+		});
+	}
+
+	/* Drops the cells still waiting, once the circuit has been removed from the connection. */
+	void close() {
+		isClosed = true;
+	}
+
+	public void run() {
+		for(int processed = 1; ; processed++) {
+			final Cell cell = cells.poll();
+			if(!isClosed) {
+				process(cell);
+			}
+			final int remaining = pending.decrementAndGet();
+			if(remaining == 0) {
+				return;
+			}
+			if(processed == CELLS_PER_TURN) {
+				executor.execute(this);
+				return;
+			}
+		}
+	}
+
+	private void process(Cell cell) {
+		try {
+			if(cell.getCommand() == Cell.RELAY) {
+				circuit.deliverRelayCell(cell);
+			} else {
+				circuit.deliverControlCell(cell);
+			}
+		} catch(TorException e) {
+			logger.log(Level.WARNING, "Unhandled Tor exception processing cells: "+ e.getMessage(), e);
+		} catch(RuntimeException e) {
+			logger.log(Level.WARNING, "Unhandled exception processing cells on circuit "+ circuit, e);
+		}
+	}
+}
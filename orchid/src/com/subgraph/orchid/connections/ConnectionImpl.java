@@ -10,8 +10,10 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
@@ -37,24 +39,33 @@ import com.subgraph.orchid.circuits.cells.CellImpl;
 import com.subgraph.orchid.crypto.TorRandom;
 import com.subgraph.orchid.dashboard.DashboardRenderable;
 import com.subgraph.orchid.dashboard.DashboardRenderer;
+import com.subgraph.orchid.misc.GuardedBy;
 
 /**
  * This class represents a transport link between two onion routers or
  * between an onion proxy and an entry router.
  *
+ * A single thread reads the cells from the socket. Cells which belong to a circuit
+ * are decrypted and dispatched on a pool shared by all connections, one circuit at
+ * a time per circuit and in order, so that many busy circuits on one link don't all
+ * wait on the reading thread.
  */
 public class ConnectionImpl implements Connection, DashboardRenderable {
 	private final static Logger logger = Logger.getLogger(ConnectionImpl.class.getName());
 	private final static int CONNECTION_IDLE_TIMEOUT = 5 * 60 * 1000; // 5 minutes
 	private final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	// Cells copied into one buffer by sendCells() for each write to the socket.
+	private final static int MAX_CELLS_PER_WRITE = 32;
 	private final static Cell connectionClosedSentinel = CellImpl.createCell(0, 0);
+	private final static ExecutorService cellProcessingPool =
+			Threading.newFixedPool("cell-processing", Runtime.getRuntime().availableProcessors());
 
 	private final TorConfig config;
 	private final SSLSocket socket;
 	private InputStream input;
 	private OutputStream output;
 	private final Router router;
-	private final Map<Integer, Circuit> circuitMap;
+	private final Map<Integer, CircuitCellQueue> circuitMap;
 	private final BlockingQueue<Cell> connectionControlCells;
 	private final TorInitializationTracker initializationTracker;
 	private final boolean isDirectoryConnection;
@@ -67,13 +78,14 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	private final ReentrantLock circuitsLock = Threading.lock("circuits");
 	private final ReentrantLock outputLock = Threading.lock("output");
 	private final AtomicLong lastActivity = new AtomicLong();
+	@GuardedBy("outputLock") private byte[] writeBuffer;
 
 
 	public ConnectionImpl(TorConfig config, SSLSocket socket, Router router, TorInitializationTracker tracker, boolean isDirectoryConnection) {
 		this.config = config;
 		this.socket = socket;
 		this.router = router;
-		this.circuitMap = new HashMap<Integer, Circuit>();
+		this.circuitMap = new HashMap<Integer, CircuitCellQueue>();
 		this.readCellsThread = new Thread(createReadCellsRunnable());
 		this.readCellsThread.setDaemon(true);
 		this.connectionControlCells = new LinkedBlockingQueue<Cell>();
@@ -102,7 +114,7 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 				incrementNextId();
 			final int id = currentId;
 			incrementNextId();
-			circuitMap.put(id, circuit);
+			circuitMap.put(id, new CircuitCellQueue(circuit, cellProcessingPool));
 			return id;
 		} finally {
 			circuitsLock.unlock();
@@ -195,6 +207,42 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 		}
 	}
 
+	public void sendCells(List<? extends Cell> cells) throws ConnectionIOException {
+		if(!socket.isConnected()) {
+			throw new ConnectionIOException("Cannot send cell because connection is not connected");
+		}
+		updateLastActivity();
+		outputLock.lock();
+		try {
+			if(writeBuffer == null) {
+				writeBuffer = new byte[MAX_CELLS_PER_WRITE * Cell.CELL_LEN];
+			}
+			int offset = 0;
+			for(Cell cell: cells) {
+				if(offset == writeBuffer.length) {
+					writeOutput(writeBuffer, offset);
+					offset = 0;
+				}
+				System.arraycopy(cell.getCellBytes(), 0, writeBuffer, offset, Cell.CELL_LEN);
+				offset += Cell.CELL_LEN;
+			}
+			writeOutput(writeBuffer, offset);
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	@GuardedBy("outputLock")
+	private void writeOutput(byte[] buffer, int length) throws ConnectionIOException {
+		try {
+			output.write(buffer, 0, length);
+		} catch (IOException e) {
+			logger.fine("IOException writing cells to connection "+ e.getMessage());
+			closeSocket();
+			throw new ConnectionIOException(e.getClass().getName() + " : "+ e.getMessage());
+		}
+	}
+
 	private Cell recvCell() throws ConnectionIOException {
 		try {
 			return CellImpl.readFromInputStream(input);
@@ -280,6 +328,7 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 		case Cell.CREATED:
 		case Cell.CREATED_FAST:
 		case Cell.DESTROY:
+			// Through the circuit's queue too, so that a DESTROY can't overtake relay cells
 			processControlCell(cell);
 			break;
 		default:
@@ -289,11 +338,11 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	private void processRelayCell(Cell cell) {
-		Circuit circuit;
+		CircuitCellQueue queue;
 		circuitsLock.lock();
 		try {
-			circuit = circuitMap.get(cell.getCircuitId());
-			if(circuit == null) {
+			queue = circuitMap.get(cell.getCircuitId());
+			if(queue == null) {
 				logger.warning("Could not deliver relay cell for circuit id = "+ cell.getCircuitId() +" on connection "+ this +". Circuit not found");
 				return;
 			}
@@ -301,20 +350,20 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 			circuitsLock.unlock();
 		}
 
-		circuit.deliverRelayCell(cell);
+		queue.add(cell);
 	}
 
 	private void processControlCell(Cell cell) {
-		Circuit circuit;
+		CircuitCellQueue queue;
 		circuitsLock.lock();
 		try {
-			circuit = circuitMap.get(cell.getCircuitId());
+			queue = circuitMap.get(cell.getCircuitId());
 		} finally {
 			circuitsLock.unlock();
 		}
 
-		if(circuit != null) {
-			circuit.deliverControlCell(cell);
+		if(queue != null) {
+			queue.add(cell);
 		}
 	}
 
@@ -343,12 +392,16 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	public void removeCircuit(Circuit circuit) {
+		CircuitCellQueue queue;
 		circuitsLock.lock();
 		try {
-			circuitMap.remove(circuit.getCircuitId());
+			queue = circuitMap.remove(circuit.getCircuitId());
 		} finally {
 			circuitsLock.unlock();
 		}
+		if(queue != null) {
+			queue.close();
+		}
 	}
 
 	public String toString() {
@@ -53,6 +53,14 @@ public class TorPublicKey {
 		return key;
 	}
 
+	/**
+	 * Returns the PEM buffer this key was created from, or null if it was created from an
+	 * RSAPublicKey.
+	 */
+	public String getPEMBuffer() {
+		return pemBuffer;
+	}
+
 	public synchronized byte[] getRawBytes() {
 		if(rawKeyBytes == null) {
 			final RSAKeyEncoder encoder = new RSAKeyEncoder();
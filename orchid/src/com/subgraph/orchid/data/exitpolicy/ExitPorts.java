@@ -22,6 +22,7 @@ public class ExitPorts {
 	
 	private final List<PortRange> ranges = new ArrayList<PortRange>();
 	private final boolean areAcceptPorts;
+	private String portList;
 	
 	private ExitPorts(boolean acceptPorts) {
 		this.areAcceptPorts = acceptPorts;
@@ -31,6 +32,14 @@ public class ExitPorts {
 		return areAcceptPorts;
 	}
 	
+	/**
+	 * Returns the port list this object was created from, in the form accepted by
+	 * {@link #createAcceptExitPorts(String)} and {@link #createRejectExitPorts(String)}.
+	 */
+	public String getPortList() {
+		return portList;
+	}
+	
 	public boolean acceptsPort(int port) {
 		if(areAcceptPorts) 
 			return contains(port);
@@ -45,6 +54,7 @@ public class ExitPorts {
 	}
 	
 	private void parsePortRanges(String portRanges) {
+		this.portList = portRanges;
 		final String[] args = portRanges.split(",");
 		for(String arg: args)
 			ranges.add(PortRange.createFromString(arg));
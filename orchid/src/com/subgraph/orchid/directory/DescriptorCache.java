@@ -19,6 +19,26 @@ import com.subgraph.orchid.misc.GuardedBy;
 
 public abstract class DescriptorCache <T extends Descriptor> {
 	private final static Logger logger = Logger.getLogger(DescriptorCache.class.getName());
+
+	/**
+	 * The descriptors held by a cache, together with digests of the cache file and of the
+	 * part of the journal file they were loaded from.  The journal is only ever appended to,
+	 * so descriptors appended after the snapshot was taken can be parsed from the end of the
+	 * journal file while the rest are taken from the snapshot.
+	 */
+	static class Snapshot <T extends Descriptor> {
+		final HexDigest cacheDigest;
+		final int journalLength;
+		final HexDigest journalDigest;
+		final List<T> descriptors;
+
+		Snapshot(HexDigest cacheDigest, int journalLength, HexDigest journalDigest, List<T> descriptors) {
+			this.cacheDigest = cacheDigest;
+			this.journalLength = journalLength;
+			this.journalDigest = journalDigest;
+			this.descriptors = descriptors;
+		}
+	}
 	
 	private final DescriptorCacheData<T> data;
 
@@ -55,7 +75,45 @@ public abstract class DescriptorCache <T extends Descriptor> {
 		}
 		reloadCache();
 	}
-	
+
+	/**
+	 * Loads the cache from a snapshot if the snapshot still matches the cache files, and
+	 * otherwise parses the cache files as {@link #initialLoad()} does.
+	 *
+	 * @return true if the descriptors were loaded from the snapshot.
+	 */
+	public synchronized boolean initialLoad(Snapshot<T> snapshot) {
+		if(initiallyLoaded) {
+			return false;
+		}
+		if(snapshot != null && loadSnapshot(snapshot)) {
+			return true;
+		}
+		reloadCache();
+		return false;
+	}
+
+	/**
+	 * Returns a snapshot of the descriptors in the cache, or null if the cache has not
+	 * been loaded yet.
+	 */
+	public Snapshot<T> createSnapshot() {
+		final ByteBuffer[] buffers;
+		final List<T> descriptors;
+		synchronized(this) {
+			if(!initiallyLoaded) {
+				return null;
+			}
+			buffers = loadCacheBuffers();
+			descriptors = data.getAllDescriptors();
+		}
+		return new Snapshot<T>(
+				SnapshotEncoding.digestBuffer(buffers[0]),
+				buffers[1].limit(),
+				SnapshotEncoding.digestBuffer(buffers[1]),
+				descriptors);
+	}
+
 	public void shutdown() {
 		rebuildExecutor.shutdownNow();
 	}
@@ -109,6 +167,35 @@ public abstract class DescriptorCache <T extends Descriptor> {
 		}
 	}
 
+	private boolean loadSnapshot(Snapshot<T> snapshot) {
+		final ByteBuffer[] buffers = loadCacheBuffers();
+		final ByteBuffer journal = buffers[1];
+		if(journal.limit() < snapshot.journalLength) {
+			return false;
+		}
+		final ByteBuffer journalPrefix = journal.duplicate();
+		journalPrefix.limit(snapshot.journalLength);
+		if(!snapshot.cacheDigest.equals(SnapshotEncoding.digestBuffer(buffers[0])) ||
+				!snapshot.journalDigest.equals(SnapshotEncoding.digestBuffer(journalPrefix))) {
+			return false;
+		}
+
+		clearMemoryCache();
+		for(T d: snapshot.descriptors) {
+			if(d.getCacheLocation() == Descriptor.CacheLocation.NOT_CACHED) {
+				d.setCacheLocation(Descriptor.CacheLocation.CACHED_JOURNAL);
+			}
+			data.addDescriptor(d);
+		}
+		cacheLength = buffers[0].limit();
+		journal.position(snapshot.journalLength);
+		loadJournalFileBuffer(journal.slice());
+		journalLength = journal.limit();
+		logger.fine("Loaded "+ snapshot.descriptors.size() +" descriptors from snapshot");
+		initiallyLoaded = true;
+		return true;
+	}
+
 	private ByteBuffer[] loadCacheBuffers() {
 		synchronized (store) {
 			final ByteBuffer[] buffers = new ByteBuffer[2];
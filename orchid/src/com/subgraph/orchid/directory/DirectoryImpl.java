@@ -1,5 +1,6 @@
 package com.subgraph.orchid.directory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -31,6 +32,7 @@ import com.subgraph.orchid.TorException;
 import com.subgraph.orchid.crypto.TorRandom;
 import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.data.RandomSet;
+import com.subgraph.orchid.directory.consensus.ConsensusDocumentImpl;
 import com.subgraph.orchid.directory.parsing.DocumentParser;
 import com.subgraph.orchid.directory.parsing.DocumentParserFactory;
 import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
@@ -42,6 +44,7 @@ public class DirectoryImpl implements Directory {
 	private final static Logger logger = Logger.getLogger(DirectoryImpl.class.getName());
 
 	private final Object loadLock = new Object();
+	private final Object snapshotLock = new Object();
 	private boolean isLoaded = false;
 	
 	private final DirectoryStore store;
@@ -62,6 +65,8 @@ public class DirectoryImpl implements Directory {
 	
 	private ConsensusDocument currentConsensus;
 	private ConsensusDocument consensusWaitingForCertificates;
+	/* Digest of the cache file currentConsensus was loaded from or stored to */
+	private HexDigest currentConsensusFileDigest;
 
 	public DirectoryImpl(TorConfig config, DirectoryStore customDirectoryStore) {
 		store = (customDirectoryStore == null) ? (new DirectoryStoreImpl(config)) : (customDirectoryStore);
@@ -133,16 +138,20 @@ public class DirectoryImpl implements Directory {
 			loadCertificates(store.loadCacheFile(CacheFile.CERTIFICATES));
 			logElapsed();
 			
+			final DirectorySnapshot snapshot = DirectorySnapshot.read(store.loadCacheFile(CacheFile.SNAPSHOT));
 			logger.info("Loading consensus");
-			loadConsensus(store.loadCacheFile(useMicrodescriptors ? CacheFile.CONSENSUS_MICRODESC : CacheFile.CONSENSUS));
+			final ByteBuffer consensusBuffer = store.loadCacheFile(useMicrodescriptors ? CacheFile.CONSENSUS_MICRODESC : CacheFile.CONSENSUS);
+			final boolean consensusFromSnapshot = loadConsensus(consensusBuffer, snapshot);
 			logElapsed();
 			
+			boolean snapshotIsCurrent = false;
 			if(!useMicrodescriptors) {
 				logger.info("Loading descriptors");
 				basicDescriptorCache.initialLoad();
 			} else {
 				logger.info("Loading microdescriptor cache");
-				microdescriptorCache.initialLoad();
+				final boolean descriptorsFromSnapshot = microdescriptorCache.initialLoad((snapshot == null) ? null : snapshot.getMicrodescriptors());
+				snapshotIsCurrent = consensusFromSnapshot && descriptorsFromSnapshot;
 			}
 			needRecalculateMinimumRouterInfo = true;
 			logElapsed();
@@ -153,12 +162,58 @@ public class DirectoryImpl implements Directory {
 			
 			isLoaded = true;
 			loadLock.notifyAll();
+
+			if(useMicrodescriptors && !snapshotIsCurrent) {
+				storeSnapshot();
+			}
 		}
 	}
 
 	public void close() {
 		basicDescriptorCache.shutdown();
 		microdescriptorCache.shutdown();
+		storeSnapshot();
+	}
+
+	/**
+	 * Writes a snapshot of the current consensus and the microdescriptor cache, so that the
+	 * next startup can load them without parsing the cache files.  Only a verified consensus
+	 * ever becomes the current consensus, which is what allows a consensus read back from the
+	 * snapshot to skip signature verification.
+	 *
+	 * Only capturing the current consensus holds the directory lock, the hashing, encoding
+	 * and writing is done outside of it.  Snapshots are written one at a time so that an
+	 * older one can't overwrite a newer one.
+	 */
+	private void storeSnapshot() {
+		synchronized(snapshotLock) {
+			final ConsensusDocumentImpl consensus;
+			HexDigest consensusFileDigest;
+			synchronized(this) {
+				if(!isLoaded || config.getUseMicrodescriptors() == AutoBoolValue.FALSE) {
+					return;
+				}
+				consensus = (currentConsensus instanceof ConsensusDocumentImpl) ? ((ConsensusDocumentImpl) currentConsensus) : null;
+				consensusFileDigest = currentConsensusFileDigest;
+			}
+			if(consensus != null && consensusFileDigest == null) {
+				consensusFileDigest = SnapshotEncoding.digestBuffer(consensus.getRawDocumentBytes());
+				synchronized(this) {
+					if(currentConsensus == consensus) {
+						currentConsensusFileDigest = consensusFileDigest;
+					}
+				}
+			}
+			writeSnapshot(consensus, consensusFileDigest);
+		}
+	}
+
+	private void writeSnapshot(ConsensusDocumentImpl consensus, HexDigest consensusFileDigest) {
+		try {
+			store.writeData(CacheFile.SNAPSHOT, DirectorySnapshot.create(consensus, consensusFileDigest, microdescriptorCache.createSnapshot()));
+		} catch (IOException e) {
+			logger.warning("Failed to write directory snapshot: "+ e.getMessage());
+		}
 	}
 
 	private long last = 0;
@@ -179,12 +234,24 @@ public class DirectoryImpl implements Directory {
 		}
 	}
 	
-	private void loadConsensus(ByteBuffer buffer) {
-		final DocumentParser<ConsensusDocument> parser = parserFactory.createConsensusDocumentParser(buffer);
-		final DocumentParsingResult<ConsensusDocument> result = parser.parse();
-		if(testResult(result, "consensus")) {
-			addConsensusDocument(result.getDocument(), true);
+	/* Returns true if the consensus was taken from the snapshot rather than parsed */
+	private boolean loadConsensus(ByteBuffer buffer, DirectorySnapshot snapshot) {
+		final ConsensusDocument snapshotConsensus = (snapshot == null) ? null : snapshot.getConsensus(buffer);
+		if(snapshotConsensus != null) {
+			addConsensusDocument(snapshotConsensus, true);
+		} else {
+			final DocumentParser<ConsensusDocument> parser = parserFactory.createConsensusDocumentParser(buffer);
+			final DocumentParsingResult<ConsensusDocument> result = parser.parse();
+			if(testResult(result, "consensus")) {
+				addConsensusDocument(result.getDocument(), true);
+			}
+		}
+		synchronized(this) {
+			if(currentConsensus != null) {
+				currentConsensusFileDigest = SnapshotEncoding.digestBuffer(buffer);
+			}
 		}
+		return snapshotConsensus != null;
 	}
 
 	private boolean testResult(DocumentParsingResult<?> result, String type) {
@@ -283,25 +350,32 @@ public class DirectoryImpl implements Directory {
 		needRecalculateMinimumRouterInfo = true;
 	}
 
-	public synchronized void addConsensusDocument(ConsensusDocument consensus, boolean fromCache) {
+	public void addConsensusDocument(ConsensusDocument consensus, boolean fromCache) {
+		if(setCurrentConsensus(consensus, fromCache) && !fromCache) {
+			storeSnapshot();
+		}
+	}
+
+	/* Returns true if the consensus became the current consensus */
+	private synchronized boolean setCurrentConsensus(ConsensusDocument consensus, boolean fromCache) {
 		if(consensus.equals(currentConsensus))
-			return;
+			return false;
 
 		if(currentConsensus != null && consensus.getValidAfterTime().isBefore(currentConsensus.getValidAfterTime())) {
 			logger.warning("New consensus document is older than current consensus document");
-			return;
+			return false;
 		}
 
 		synchronized(TrustedAuthorities.getInstance()) {
 			switch(consensus.verifySignatures()) {
 			case STATUS_FAILED:
 				logger.warning("Unable to verify signatures on consensus document, discarding...");
-				return;
+				return false;
 				
 			case STATUS_NEED_CERTS:
 				consensusWaitingForCertificates = consensus;
 				requiredCertificates.addAll(consensus.getRequiredCertificates());
-				return;
+				return false;
 
 			case STATUS_VERIFIED:
 				break;
@@ -332,6 +406,7 @@ public class DirectoryImpl implements Directory {
 			storeCurrentConsensus();
 		}
 		consensusChangedManager.fireEvent(new Event() {});
+		return true;
 	}
 
 	private void storeCurrentConsensus() {
@@ -341,6 +416,8 @@ public class DirectoryImpl implements Directory {
 			} else {
 				store.writeDocument(CacheFile.CONSENSUS, currentConsensus);
 			}
+			// Worked out when the snapshot is stored, outside of the directory lock
+			currentConsensusFileDigest = null;
 		}
 	}
 
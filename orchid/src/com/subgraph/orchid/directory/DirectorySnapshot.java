@@ -0,0 +1,240 @@
+package com.subgraph.orchid.directory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.RouterMicrodescriptor;
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.data.HexDigest;
+import com.subgraph.orchid.directory.consensus.ConsensusDocumentImpl;
+import com.subgraph.orchid.directory.router.RouterMicrodescriptorImpl;
+
+/**
+ * A binary snapshot of the parsed consensus and microdescriptor cache, which is mapped
+ * into memory at startup so that the text documents in the other cache files don't have
+ * to be parsed again.  Each part of the snapshot records a digest of the cache files it
+ * was built from, and is only used if those files have not changed since.
+ *
+ * The file begins with a header holding a magic number, a format version, a CRC32 of
+ * everything that follows the header and a table of sections.  Each entry in the table
+ * gives the id, offset and length of one section, so a section can be found without
+ * decoding the ones before it.
+ */
+class DirectorySnapshot {
+	private final static Logger logger = Logger.getLogger(DirectorySnapshot.class.getName());
+
+	private final static int MAGIC = 0x4f52534e; // "ORSN"
+	private final static int VERSION = 1;
+
+	private final static int SECTION_CONSENSUS = 1;
+	private final static int SECTION_MICRODESCRIPTORS = 2;
+
+	private final static int HEADER_LENGTH = 4 + 4 + 8 + 4;
+	private final static int SECTION_ENTRY_LENGTH = 4 + 4 + 4;
+
+	/**
+	 * Returns the snapshot stored in the buffer, or null if the buffer is empty or does not
+	 * hold a valid snapshot.
+	 */
+	static DirectorySnapshot read(ByteBuffer buffer) {
+		if(buffer.limit() == 0) {
+			return null;
+		}
+		try {
+			return readSnapshot(buffer.duplicate());
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Error reading directory snapshot, ignoring it", e);
+			return null;
+		}
+	}
+
+	private static DirectorySnapshot readSnapshot(ByteBuffer buffer) {
+		if(buffer.limit() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+			logger.warning("Directory snapshot has an invalid header, ignoring it");
+			return null;
+		}
+		if(buffer.getInt() != VERSION) {
+			logger.info("Directory snapshot was written in an older format, ignoring it");
+			return null;
+		}
+		final long crc = buffer.getLong();
+		if(crc != calculateCRC(buffer.duplicate())) {
+			logger.warning("Directory snapshot has an invalid checksum, ignoring it");
+			return null;
+		}
+		final int sectionCount = buffer.getInt();
+		final Map<Integer, ByteBuffer> sections = new HashMap<Integer, ByteBuffer>();
+		for(int i = 0; i < sectionCount; i++) {
+			final int id = buffer.getInt();
+			final int offset = buffer.getInt();
+			final int length = buffer.getInt();
+			final ByteBuffer section = buffer.duplicate();
+			section.limit(offset + length);
+			section.position(offset);
+			sections.put(id, section.slice());
+		}
+		return new DirectorySnapshot(sections);
+	}
+
+	private static long calculateCRC(ByteBuffer buffer) {
+		final CRC32 crc = new CRC32();
+		final byte[] chunk = new byte[64 * 1024];
+		while(buffer.hasRemaining()) {
+			final int n = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Encodes a snapshot of a consensus and a microdescriptor cache.  Either may be null,
+	 * in which case the section is left out.
+	 *
+	 * @param consensus A verified consensus document.
+	 * @param consensusFileDigest The digest of the cache file the consensus is stored in.
+	 * @param microdescriptors A snapshot of the microdescriptor cache.
+	 * @return The encoded snapshot.
+	 * @throws IOException If a document can't be encoded.
+	 */
+	static ByteBuffer create(ConsensusDocumentImpl consensus, HexDigest consensusFileDigest,
+			DescriptorCache.Snapshot<RouterMicrodescriptor> microdescriptors) throws IOException {
+		final List<Integer> ids = new ArrayList<Integer>();
+		final List<byte[]> sections = new ArrayList<byte[]>();
+		if(consensus != null && consensusFileDigest != null) {
+			ids.add(SECTION_CONSENSUS);
+			sections.add(encodeConsensus(consensus, consensusFileDigest));
+		}
+		if(microdescriptors != null) {
+			ids.add(SECTION_MICRODESCRIPTORS);
+			sections.add(encodeMicrodescriptors(microdescriptors));
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(sections.size());
+		int offset = HEADER_LENGTH + sections.size() * SECTION_ENTRY_LENGTH;
+		for(int i = 0; i < sections.size(); i++) {
+			out.writeInt(ids.get(i));
+			out.writeInt(offset);
+			out.writeInt(sections.get(i).length);
+			offset += sections.get(i).length;
+		}
+		for(byte[] section: sections) {
+			out.write(section);
+		}
+		out.close();
+
+		final byte[] body = bytes.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH - 4 + body.length);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(crc.getValue());
+		buffer.put(body);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] encodeConsensus(ConsensusDocumentImpl consensus, HexDigest consensusFileDigest) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		SnapshotEncoding.putDigest(out, consensusFileDigest);
+		consensus.writeSnapshot(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeMicrodescriptors(DescriptorCache.Snapshot<RouterMicrodescriptor> snapshot) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		SnapshotEncoding.putDigest(out, snapshot.cacheDigest);
+		out.writeInt(snapshot.journalLength);
+		SnapshotEncoding.putDigest(out, snapshot.journalDigest);
+		final List<RouterMicrodescriptorImpl> descriptors = new ArrayList<RouterMicrodescriptorImpl>();
+		for(RouterMicrodescriptor md: snapshot.descriptors) {
+			if(md instanceof RouterMicrodescriptorImpl) {
+				descriptors.add((RouterMicrodescriptorImpl) md);
+			}
+		}
+		out.writeInt(descriptors.size());
+		for(RouterMicrodescriptorImpl md: descriptors) {
+			md.writeSnapshot(out);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private final Map<Integer, ByteBuffer> sections;
+
+	private DirectorySnapshot(Map<Integer, ByteBuffer> sections) {
+		this.sections = sections;
+	}
+
+	/**
+	 * Returns the consensus stored in the snapshot if it was read from a consensus cache
+	 * file with the same contents as consensusFile, and otherwise null.
+	 */
+	ConsensusDocument getConsensus(ByteBuffer consensusFile) {
+		final ByteBuffer in = getSection(SECTION_CONSENSUS);
+		if(in == null || consensusFile.limit() == 0) {
+			return null;
+		}
+		final HexDigest digest = SnapshotEncoding.getDigest(in);
+		if(!digest.equals(SnapshotEncoding.digestBuffer(consensusFile))) {
+			return null;
+		}
+		try {
+			return ConsensusDocumentImpl.readSnapshot(in, decodeDocumentData(consensusFile));
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Error reading consensus from directory snapshot", e);
+			return null;
+		}
+	}
+
+	private static String decodeDocumentData(ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.limit()];
+		buffer.duplicate().get(bytes);
+		return new String(bytes, Tor.getDefaultCharset());
+	}
+
+	/**
+	 * Returns the microdescriptor cache stored in the snapshot, or null if there is none.
+	 */
+	DescriptorCache.Snapshot<RouterMicrodescriptor> getMicrodescriptors() {
+		final ByteBuffer in = getSection(SECTION_MICRODESCRIPTORS);
+		if(in == null) {
+			return null;
+		}
+		try {
+			final HexDigest cacheDigest = SnapshotEncoding.getDigest(in);
+			final int journalLength = in.getInt();
+			final HexDigest journalDigest = SnapshotEncoding.getDigest(in);
+			final int count = in.getInt();
+			final List<RouterMicrodescriptor> descriptors = new ArrayList<RouterMicrodescriptor>(count);
+			for(int i = 0; i < count; i++) {
+				descriptors.add(RouterMicrodescriptorImpl.readSnapshot(in));
+			}
+			return new DescriptorCache.Snapshot<RouterMicrodescriptor>(cacheDigest, journalLength, journalDigest, descriptors);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Error reading microdescriptors from directory snapshot", e);
+			return null;
+		}
+	}
+
+	private ByteBuffer getSection(int id) {
+		final ByteBuffer section = sections.get(id);
+		return (section == null) ? null : section.duplicate();
+	}
+}
@@ -110,6 +110,31 @@ public class DirectoryStoreFile {
 		}
 	}
 	
+	/**
+	 * Returns the contents of the file mapped into memory rather than read, so that only the
+	 * pages which are used are read from disk.  On Windows a mapped file can't be replaced
+	 * until the mapping is garbage collected, so the file is read as with loadContents() instead.
+	 */
+	public ByteBuffer mapContents() {
+		if(isWindows()) {
+			return loadContents();
+		}
+		if(!(fileExists() && ensureOpened())) {
+			return EMPTY_BUFFER;
+		}
+		try {
+			final FileChannel channel = openFile.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			logger.warning("I/O error mapping cache file "+ cacheFilename + " : "+ e);
+			return EMPTY_BUFFER;
+		}
+	}
+
+	private static boolean isWindows() {
+		return System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+	}
+
 	private ByteBuffer readAllFromChannel(FileChannel channel) throws IOException {
 		channel.position(0);
 		final ByteBuffer buffer = createBufferForChannel(channel);
@@ -20,6 +20,9 @@ public class DirectoryStoreImpl implements DirectoryStore {
 	}
 
 	public synchronized ByteBuffer loadCacheFile(CacheFile cacheFile) {
+		if(cacheFile == CacheFile.SNAPSHOT) {
+			return getStoreFile(cacheFile).mapContents();
+		}
 		return getStoreFile(cacheFile).loadContents();
 	}
 	
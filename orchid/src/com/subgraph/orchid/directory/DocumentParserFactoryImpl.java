@@ -1,36 +1,66 @@
 package com.subgraph.orchid.directory;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
 import com.subgraph.orchid.ConsensusDocument;
 import com.subgraph.orchid.KeyCertificate;
 import com.subgraph.orchid.RouterDescriptor;
 import com.subgraph.orchid.RouterMicrodescriptor;
+import com.subgraph.orchid.Threading;
 import com.subgraph.orchid.directory.certificate.KeyCertificateParser;
 import com.subgraph.orchid.directory.consensus.ConsensusDocumentParser;
+import com.subgraph.orchid.directory.consensus.ParallelConsensusDocumentParser;
 import com.subgraph.orchid.directory.parsing.DocumentFieldParser;
 import com.subgraph.orchid.directory.parsing.DocumentParser;
 import com.subgraph.orchid.directory.parsing.DocumentParserFactory;
+import com.subgraph.orchid.directory.parsing.ParallelDocumentParser;
 import com.subgraph.orchid.directory.router.RouterDescriptorParser;
 import com.subgraph.orchid.directory.router.RouterMicrodescriptorParser;
 
 public class DocumentParserFactoryImpl implements DocumentParserFactory {
-	
+	// Buffers smaller than this are parsed on the calling thread.
+	private final static int PARALLEL_PARSING_THRESHOLD = 256 * 1024;
+	private final static int PARSING_THREADS = Runtime.getRuntime().availableProcessors();
+	private final static ExecutorService parsingPool =
+			Threading.newFixedPool("directory-parsing", PARSING_THREADS);
+
 	public DocumentParser<KeyCertificate> createKeyCertificateParser(ByteBuffer buffer) {
 		return new KeyCertificateParser(new DocumentFieldParserImpl(buffer));
 	}
 
-	public DocumentParser<RouterDescriptor> createRouterDescriptorParser(ByteBuffer buffer, boolean verifySignatures) {
-		return new RouterDescriptorParser(new DocumentFieldParserImpl(buffer), verifySignatures);
+	public DocumentParser<RouterDescriptor> createRouterDescriptorParser(ByteBuffer buffer, final boolean verifySignatures) {
+		if(!isParallel(buffer)) {
+			return new RouterDescriptorParser(new DocumentFieldParserImpl(buffer), verifySignatures);
+		}
+		return new ParallelDocumentParser<RouterDescriptor>(buffer, "router", PARSING_THREADS, parsingPool) {
+			protected DocumentParser<RouterDescriptor> createChunkParser(ByteBuffer chunk) {
+				return new RouterDescriptorParser(new DocumentFieldParserImpl(chunk), verifySignatures);
+			}
+		};
 	}
 
 	public DocumentParser<RouterMicrodescriptor> createRouterMicrodescriptorParser(ByteBuffer buffer) {
 		buffer.rewind();
-		DocumentFieldParser dfp = new DocumentFieldParserImpl(buffer);
-		return new RouterMicrodescriptorParser(dfp);
+		if(!isParallel(buffer)) {
+			DocumentFieldParser dfp = new DocumentFieldParserImpl(buffer);
+			return new RouterMicrodescriptorParser(dfp);
+		}
+		return new ParallelDocumentParser<RouterMicrodescriptor>(buffer, "onion-key", PARSING_THREADS, parsingPool) {
+			protected DocumentParser<RouterMicrodescriptor> createChunkParser(ByteBuffer chunk) {
+				return new RouterMicrodescriptorParser(new DocumentFieldParserImpl(chunk));
+			}
+		};
 	}
 
 	public DocumentParser<ConsensusDocument> createConsensusDocumentParser(ByteBuffer buffer) {
-		return new ConsensusDocumentParser(new DocumentFieldParserImpl(buffer));
+		if(!isParallel(buffer)) {
+			return new ConsensusDocumentParser(new DocumentFieldParserImpl(buffer));
+		}
+		return new ParallelConsensusDocumentParser(buffer, PARSING_THREADS, parsingPool);
+	}
+
+	private static boolean isParallel(ByteBuffer buffer) {
+		return PARSING_THREADS > 1 && buffer.limit() >= PARALLEL_PARSING_THRESHOLD;
 	}
 }
@@ -0,0 +1,109 @@
+package com.subgraph.orchid.directory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.crypto.TorMessageDigest;
+import com.subgraph.orchid.data.HexDigest;
+import com.subgraph.orchid.data.Timestamp;
+
+/**
+ * Encodes the values stored in a {@link DirectorySnapshot}.  Values are written with a
+ * DataOutputStream and read back from a ByteBuffer, which is usually a mapped file.  Strings
+ * are stored in the same charset as directory documents, so that raw document data comes
+ * back exactly as it was parsed.
+ */
+public class SnapshotEncoding {
+	private final static int NULL_LENGTH = -1;
+	private final static long NULL_TIMESTAMP = Long.MIN_VALUE;
+
+	public static void putString(DataOutputStream out, String s) throws IOException {
+		putBytes(out, (s == null) ? null : s.getBytes(Tor.getDefaultCharset()));
+	}
+
+	public static String getString(ByteBuffer in) {
+		final byte[] bytes = getBytes(in);
+		return (bytes == null) ? null : new String(bytes, Tor.getDefaultCharset());
+	}
+
+	public static void putBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if(bytes == null) {
+			out.writeInt(NULL_LENGTH);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static byte[] getBytes(ByteBuffer in) {
+		final int length = in.getInt();
+		if(length == NULL_LENGTH) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	public static void putDigest(DataOutputStream out, HexDigest digest) throws IOException {
+		if(digest == null) {
+			out.writeByte(0);
+		} else {
+			final byte[] bytes = digest.getRawBytes();
+			out.writeByte(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static HexDigest getDigest(ByteBuffer in) {
+		final int length = in.get() & 0xFF;
+		if(length == 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return HexDigest.createFromDigestBytes(bytes);
+	}
+
+	public static void putTimestamp(DataOutputStream out, Timestamp timestamp) throws IOException {
+		out.writeLong((timestamp == null) ? NULL_TIMESTAMP : timestamp.getTime());
+	}
+
+	public static Timestamp getTimestamp(ByteBuffer in) {
+		final long time = in.getLong();
+		return (time == NULL_TIMESTAMP) ? null : new Timestamp(new java.util.Date(time));
+	}
+
+	public static void putStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for(String s: strings) {
+			putString(out, s);
+		}
+	}
+
+	public static void getStrings(ByteBuffer in, Collection<String> strings) {
+		final int count = in.getInt();
+		for(int i = 0; i < count; i++) {
+			strings.add(getString(in));
+		}
+	}
+
+	/**
+	 * Returns the SHA-256 digest of the bytes remaining in the buffer, without changing
+	 * its position.
+	 */
+	public static HexDigest digestBuffer(ByteBuffer buffer) {
+		final TorMessageDigest digest = new TorMessageDigest(true);
+		final ByteBuffer in = buffer.duplicate();
+		final byte[] chunk = new byte[64 * 1024];
+		while(in.hasRemaining()) {
+			final int n = Math.min(chunk.length, in.remaining());
+			in.get(chunk, 0, n);
+			digest.update(chunk, 0, n);
+		}
+		return digest.getHexDigest();
+	}
+}
@@ -1,5 +1,7 @@
 package com.subgraph.orchid.directory.consensus;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -8,6 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.ConsensusDocument;
@@ -20,6 +23,7 @@ import com.subgraph.orchid.crypto.TorPublicKey;
 import com.subgraph.orchid.crypto.TorSignature.DigestAlgorithm;
 import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.data.Timestamp;
+import com.subgraph.orchid.directory.SnapshotEncoding;
 import com.subgraph.orchid.directory.TrustedAuthorities;
 
 public class ConsensusDocumentImpl implements ConsensusDocument {
@@ -61,6 +65,7 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 	private Map<String, Integer> parameters;
 	private int signatureCount;
 	private boolean isFirstCallToVerifySignatures = true;
+	private boolean isReadFromSnapshot;
 	private String rawDocumentData;
 	
 	void setConsensusFlavor(ConsensusFlavor flavor) { this.flavor = flavor; }
@@ -119,6 +124,10 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 	void addRouterStatusEntry(RouterStatusImpl entry) {
 		routerStatusEntries.add(entry);
 	}
+
+	void addRouterStatusEntries(ConsensusDocumentImpl part) {
+		routerStatusEntries.addAll(part.routerStatusEntries);
+	}
 	
 	public ConsensusFlavor getFlavor() {
 		return flavor;
@@ -195,6 +204,9 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 	}
 	
 	public synchronized SignatureStatus verifySignatures() {
+		if(isReadFromSnapshot) {
+			return SignatureStatus.STATUS_VERIFIED;
+		}
 		boolean firstCall = isFirstCallToVerifySignatures;
 		isFirstCallToVerifySignatures = false;
 		requiredCertificates.clear();
@@ -341,4 +353,96 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 	public boolean getUseNTorHandshake() {
 		return getBooleanParameterValue(USE_NTOR_HANDSHAKE_PARAM, false);
 	}
+
+	/**
+	 * Writes the parsed contents of this document to a directory snapshot.  Only documents
+	 * which have been verified are written, so the authority section and the signatures are
+	 * left out and a document read back with {@link #readSnapshot(ByteBuffer, String)} is
+	 * treated as verified.
+	 */
+	public void writeSnapshot(DataOutputStream out) throws IOException {
+		out.writeInt(consensusMethod);
+		out.writeByte(flavor.ordinal());
+		SnapshotEncoding.putTimestamp(out, validAfter);
+		SnapshotEncoding.putTimestamp(out, freshUntil);
+		SnapshotEncoding.putTimestamp(out, validUntil);
+		out.writeInt(distDelaySeconds);
+		out.writeInt(voteDelaySeconds);
+		SnapshotEncoding.putStrings(out, clientVersions);
+		SnapshotEncoding.putStrings(out, serverVersions);
+		SnapshotEncoding.putStrings(out, knownFlags);
+		SnapshotEncoding.putDigest(out, signingHash);
+		SnapshotEncoding.putDigest(out, signingHash256);
+		out.writeInt(signatureCount);
+		writeIntegerMap(out, bandwidthWeights);
+		writeIntegerMap(out, parameters);
+
+		final List<String> flagNames = getAllFlagNames();
+		if(flagNames.size() > 256) {
+			throw new IOException("Too many router status flags to write snapshot: "+ flagNames.size());
+		}
+		final Map<String, Integer> flagIndexes = new HashMap<String, Integer>();
+		for(String flag: flagNames) {
+			flagIndexes.put(flag, flagIndexes.size());
+		}
+		SnapshotEncoding.putStrings(out, flagNames);
+		out.writeInt(routerStatusEntries.size());
+		for(RouterStatus status: routerStatusEntries) {
+			((RouterStatusImpl) status).writeSnapshot(out, flagIndexes);
+		}
+	}
+
+	/* Router status entries may carry flags that are not listed in known-flags. */
+	private List<String> getAllFlagNames() {
+		final Set<String> names = new TreeSet<String>(knownFlags);
+		for(RouterStatus status: routerStatusEntries) {
+			names.addAll(((RouterStatusImpl) status).getFlags());
+		}
+		return new ArrayList<String>(names);
+	}
+
+	private static void writeIntegerMap(DataOutputStream out, Map<String, Integer> map) throws IOException {
+		out.writeInt(map.size());
+		for(Map.Entry<String, Integer> e: map.entrySet()) {
+			SnapshotEncoding.putString(out, e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	private static void readIntegerMap(ByteBuffer in, Map<String, Integer> map) {
+		final int count = in.getInt();
+		for(int i = 0; i < count; i++) {
+			final String key = SnapshotEncoding.getString(in);
+			map.put(key, in.getInt());
+		}
+	}
+
+	public static ConsensusDocumentImpl readSnapshot(ByteBuffer in, String rawDocumentData) {
+		final ConsensusDocumentImpl document = new ConsensusDocumentImpl();
+		document.consensusMethod = in.getInt();
+		document.flavor = ConsensusFlavor.values()[in.get()];
+		document.validAfter = SnapshotEncoding.getTimestamp(in);
+		document.freshUntil = SnapshotEncoding.getTimestamp(in);
+		document.validUntil = SnapshotEncoding.getTimestamp(in);
+		document.distDelaySeconds = in.getInt();
+		document.voteDelaySeconds = in.getInt();
+		SnapshotEncoding.getStrings(in, document.clientVersions);
+		SnapshotEncoding.getStrings(in, document.serverVersions);
+		SnapshotEncoding.getStrings(in, document.knownFlags);
+		document.signingHash = SnapshotEncoding.getDigest(in);
+		document.signingHash256 = SnapshotEncoding.getDigest(in);
+		document.signatureCount = in.getInt();
+		readIntegerMap(in, document.bandwidthWeights);
+		readIntegerMap(in, document.parameters);
+
+		final List<String> flagNames = new ArrayList<String>();
+		SnapshotEncoding.getStrings(in, flagNames);
+		final int count = in.getInt();
+		for(int i = 0; i < count; i++) {
+			document.routerStatusEntries.add(RouterStatusImpl.readSnapshot(in, flagNames));
+		}
+		document.rawDocumentData = rawDocumentData;
+		document.isReadFromSnapshot = true;
+		return document;
+	}
 }
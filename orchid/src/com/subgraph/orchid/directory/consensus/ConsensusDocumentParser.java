@@ -22,16 +22,25 @@ public class ConsensusDocumentParser implements DocumentParser<ConsensusDocument
 	private final RouterStatusSectionParser routerStatusParser;
 	private final FooterSectionParser footerParser;
 	private final DocumentFieldParser fieldParser;
-	private DocumentSection currentSection = DocumentSection.PREAMBLE;
+	private DocumentSection currentSection;
 	private final ConsensusDocumentImpl document;
 	
 	private DocumentParsingResultHandler<ConsensusDocument> resultHandler;
 	
 	public ConsensusDocumentParser(DocumentFieldParser fieldParser) {
+		this(fieldParser, new ConsensusDocumentImpl(), DocumentSection.PREAMBLE);
+	}
+
+	/*
+	 * Parses one part of a document into document, beginning in firstSection.  Used with
+	 * parsePart() by ParallelConsensusDocumentParser.
+	 */
+	ConsensusDocumentParser(DocumentFieldParser fieldParser, ConsensusDocumentImpl document, DocumentSection firstSection) {
 		this.fieldParser = fieldParser;
 		initializeParser();
 		
-		document = new ConsensusDocumentImpl();
+		this.document = document;
+		this.currentSection = firstSection;
 		preambleParser = new PreambleSectionParser(fieldParser, document);
 		authorityParser = new AuthoritySectionParser(fieldParser, document);
 		routerStatusParser = new RouterStatusSectionParser(fieldParser, document);
@@ -57,6 +66,11 @@ public class ConsensusDocumentParser implements DocumentParser<ConsensusDocument
 		}
 	}
 	
+	/* Parses a part of a document, which is not passed to a result handler when complete. */
+	void parsePart() {
+		fieldParser.processDocument();
+	}
+
 	public DocumentParsingResult<ConsensusDocument> parse() {
 		final BasicDocumentParsingResult<ConsensusDocument> result = new BasicDocumentParsingResult<ConsensusDocument>();
 		parse(result);
@@ -67,6 +81,9 @@ public class ConsensusDocumentParser implements DocumentParser<ConsensusDocument
 		return new DocumentParsingHandler() {
 
 			public void endOfDocument() {
+				if(resultHandler == null) {
+					return;
+				}
 				document.setRawDocumentData(fieldParser.getRawDocument());
 				resultHandler.documentParsed(document);
 				fieldParser.logDebug("Finished parsing status document.");				
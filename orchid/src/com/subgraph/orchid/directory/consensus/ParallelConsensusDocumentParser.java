@@ -0,0 +1,157 @@
+package com.subgraph.orchid.directory.consensus;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.ConsensusDocument.ConsensusFlavor;
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.TorParsingException;
+import com.subgraph.orchid.crypto.TorMessageDigest;
+import com.subgraph.orchid.data.HexDigest;
+import com.subgraph.orchid.directory.DocumentFieldParserImpl;
+import com.subgraph.orchid.directory.consensus.ConsensusDocumentParser.DocumentSection;
+import com.subgraph.orchid.directory.parsing.BasicDocumentParsingResult;
+import com.subgraph.orchid.directory.parsing.DocumentParser;
+import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
+import com.subgraph.orchid.directory.parsing.DocumentParsingResultHandler;
+import com.subgraph.orchid.directory.parsing.ParallelDocumentParser;
+
+/**
+ * Parses a consensus document by splitting the router status section into chunks which
+ * are parsed concurrently, while the digests the authority signatures are checked against
+ * are calculated over the raw bytes of the document.  The preamble, authority and footer
+ * sections are parsed on the calling thread.
+ *
+ * The digests are only the same as those calculated line by line if the document has no
+ * carriage returns, so any document which has them, or which isn't laid out as expected,
+ * is parsed by a {@link ConsensusDocumentParser} instead.
+ */
+public class ParallelConsensusDocumentParser implements DocumentParser<ConsensusDocument> {
+	private final static String SIGNATURE_KEYWORD = "directory-signature";
+
+	private final ByteBuffer buffer;
+	private final int chunkCount;
+	private final ExecutorService executor;
+
+	public ParallelConsensusDocumentParser(ByteBuffer buffer, int chunkCount, ExecutorService executor) {
+		this.buffer = buffer;
+		this.chunkCount = chunkCount;
+		this.executor = executor;
+	}
+
+	public boolean parse(DocumentParsingResultHandler<ConsensusDocument> resultHandler) {
+		buffer.rewind();
+		final int end = buffer.limit();
+		final int routersStart = ParallelDocumentParser.findLine(buffer, "r", 0, end);
+		final int footerStart = (routersStart == -1) ? -1 : ParallelDocumentParser.findLine(buffer, "directory-footer", routersStart, end);
+		final int signatureStart = (footerStart == -1) ? -1 : ParallelDocumentParser.findLine(buffer, SIGNATURE_KEYWORD, footerStart, end);
+		if(signatureStart == -1 || containsCarriageReturn(buffer)) {
+			return new ConsensusDocumentParser(new DocumentFieldParserImpl(buffer)).parse(resultHandler);
+		}
+
+		final Future<HexDigest[]> signingHashes = executor.submit(createSigningHashTask(signatureStart));
+		final Future<String> rawDocument = executor.submit(createRawDocumentTask());
+		final List<Future<ConsensusDocumentImpl>> routerParts = new ArrayList<Future<ConsensusDocumentImpl>>();
+		try {
+			final ConsensusDocumentImpl document = new ConsensusDocumentImpl();
+			parsePart(0, routersStart, document, DocumentSection.PREAMBLE);
+			for(ByteBuffer chunk: ParallelDocumentParser.splitBuffer(buffer, routersStart, footerStart, "r", chunkCount)) {
+				routerParts.add(executor.submit(createRouterStatusTask(chunk, document.getFlavor())));
+			}
+			parsePart(footerStart, end, document, DocumentSection.FOOTER);
+
+			for(Future<ConsensusDocumentImpl> part: routerParts) {
+				document.addRouterStatusEntries(ParallelDocumentParser.getResult(part));
+			}
+			final HexDigest[] hashes = ParallelDocumentParser.getResult(signingHashes);
+			document.setSigningHash(hashes[0]);
+			document.setSigningHash256(hashes[1]);
+			document.setRawDocumentData(ParallelDocumentParser.getResult(rawDocument));
+			resultHandler.documentParsed(document);
+			return true;
+		} catch (TorParsingException e) {
+			resultHandler.parsingError(e.getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			resultHandler.parsingError("Interrupted while parsing consensus document");
+			return false;
+		} finally {
+			signingHashes.cancel(false);
+			rawDocument.cancel(false);
+			for(Future<ConsensusDocumentImpl> part: routerParts) {
+				part.cancel(false);
+			}
+		}
+	}
+
+	public DocumentParsingResult<ConsensusDocument> parse() {
+		final BasicDocumentParsingResult<ConsensusDocument> result = new BasicDocumentParsingResult<ConsensusDocument>();
+		parse(result);
+		return result;
+	}
+
+	private void parsePart(int start, int end, ConsensusDocumentImpl document, DocumentSection section) {
+		final ByteBuffer part = ParallelDocumentParser.slice(buffer, start, end);
+		new ConsensusDocumentParser(new DocumentFieldParserImpl(part), document, section).parsePart();
+	}
+
+	private Callable<ConsensusDocumentImpl> createRouterStatusTask(final ByteBuffer chunk, final ConsensusFlavor flavor) {
+		return new Callable<ConsensusDocumentImpl>() {
+			public ConsensusDocumentImpl call() {
+				final ConsensusDocumentImpl part = new ConsensusDocumentImpl();
+				part.setConsensusFlavor(flavor);
+				new ConsensusDocumentParser(new DocumentFieldParserImpl(chunk), part, DocumentSection.ROUTER_STATUS).parsePart();
+				return part;
+			}
+		};
+	}
+
+	/*
+	 * The signed part of the document runs from the start of the document to the end of the
+	 * keyword on the first signature line (dir-spec.txt 3.4.1).
+	 */
+	private Callable<HexDigest[]> createSigningHashTask(final int signatureStart) {
+		return new Callable<HexDigest[]>() {
+			public HexDigest[] call() {
+				final TorMessageDigest digest = new TorMessageDigest();
+				final TorMessageDigest digest256 = new TorMessageDigest(true);
+				final ByteBuffer signed = ParallelDocumentParser.slice(buffer, 0, signatureStart + SIGNATURE_KEYWORD.length() + 1);
+				final byte[] chunk = new byte[64 * 1024];
+				while(signed.hasRemaining()) {
+					final int n = Math.min(chunk.length, signed.remaining());
+					signed.get(chunk, 0, n);
+					digest.update(chunk, 0, n);
+					digest256.update(chunk, 0, n);
+				}
+				return new HexDigest[] { digest.getHexDigest(), digest256.getHexDigest() };
+			}
+		};
+	}
+
+	/* The raw document built up line by line always ends with a newline. */
+	private Callable<String> createRawDocumentTask() {
+		return new Callable<String>() {
+			public String call() {
+				final byte[] bytes = new byte[buffer.limit()];
+				ParallelDocumentParser.slice(buffer, 0, buffer.limit()).get(bytes);
+				final String raw = new String(bytes, Tor.getDefaultCharset());
+				return raw.endsWith("\n") ? raw : (raw + "\n");
+			}
+		};
+	}
+
+	private static boolean containsCarriageReturn(ByteBuffer buffer) {
+		for(int i = 0; i < buffer.limit(); i++) {
+			if(buffer.get(i) == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,6 +1,11 @@
 package com.subgraph.orchid.directory.consensus;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.subgraph.orchid.RouterStatus;
@@ -8,6 +13,7 @@ import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.data.IPv4Address;
 import com.subgraph.orchid.data.Timestamp;
 import com.subgraph.orchid.data.exitpolicy.ExitPorts;
+import com.subgraph.orchid.directory.SnapshotEncoding;
 
 public class RouterStatusImpl implements RouterStatus {
 	
@@ -41,6 +47,69 @@ public class RouterStatusImpl implements RouterStatus {
 	void setAcceptedPorts(String portList) { this.exitPorts = ExitPorts.createAcceptExitPorts(portList); }
 	void setRejectedPorts(String portList) { this.exitPorts = ExitPorts.createRejectExitPorts(portList); }
 	
+	/*
+	 * Flags are written as indexes into a table of flag names shared by all of the entries
+	 * in the snapshot.
+	 */
+	void writeSnapshot(DataOutputStream out, Map<String, Integer> flagIndexes) throws IOException {
+		SnapshotEncoding.putString(out, nickname);
+		SnapshotEncoding.putDigest(out, identity);
+		SnapshotEncoding.putDigest(out, digest);
+		SnapshotEncoding.putDigest(out, microdescriptorDigest);
+		SnapshotEncoding.putTimestamp(out, publicationTime);
+		out.writeBoolean(address != null);
+		if(address != null) {
+			out.writeInt(address.getAddressData());
+		}
+		out.writeInt(routerPort);
+		out.writeInt(directoryPort);
+		out.writeByte(flags.size());
+		for(String flag: flags) {
+			out.writeByte(flagIndexes.get(flag));
+		}
+		SnapshotEncoding.putString(out, version);
+		out.writeBoolean(hasBandwidth);
+		out.writeInt(bandwidthEstimate);
+		out.writeInt(bandwidthMeasured);
+		out.writeBoolean(exitPorts != null);
+		if(exitPorts != null) {
+			out.writeBoolean(exitPorts.areAcceptPorts());
+			SnapshotEncoding.putString(out, exitPorts.getPortList());
+		}
+	}
+
+	static RouterStatusImpl readSnapshot(ByteBuffer in, List<String> flagNames) {
+		final RouterStatusImpl status = new RouterStatusImpl();
+		status.nickname = SnapshotEncoding.getString(in);
+		status.identity = SnapshotEncoding.getDigest(in);
+		status.digest = SnapshotEncoding.getDigest(in);
+		status.microdescriptorDigest = SnapshotEncoding.getDigest(in);
+		status.publicationTime = SnapshotEncoding.getTimestamp(in);
+		if(in.get() != 0) {
+			status.address = new IPv4Address(in.getInt());
+		}
+		status.routerPort = in.getInt();
+		status.directoryPort = in.getInt();
+		final int flagCount = in.get() & 0xFF;
+		for(int i = 0; i < flagCount; i++) {
+			status.flags.add(flagNames.get(in.get() & 0xFF));
+		}
+		status.version = SnapshotEncoding.getString(in);
+		status.hasBandwidth = in.get() != 0;
+		status.bandwidthEstimate = in.getInt();
+		status.bandwidthMeasured = in.getInt();
+		if(in.get() != 0) {
+			final boolean accept = in.get() != 0;
+			final String portList = SnapshotEncoding.getString(in);
+			status.exitPorts = accept ? ExitPorts.createAcceptExitPorts(portList) : ExitPorts.createRejectExitPorts(portList);
+		}
+		return status;
+	}
+
+	Set<String> getFlags() {
+		return flags;
+	}
+
 	public String toString() {
 		return "Router: ("+ nickname +" "+ identity +" "+ digest +" "+ address +" "+ routerPort +" " + directoryPort
 			+" "+ version +" "+ exitPorts +")";
@@ -0,0 +1,197 @@
+package com.subgraph.orchid.directory.parsing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parses a buffer holding a list of documents by splitting it into chunks and parsing the
+ * chunks concurrently.  Every chunk begins with the first keyword line of a document, so
+ * a chunk can be parsed exactly as the whole buffer would be.  Results are passed to the
+ * result handler in the order the documents appear in the buffer, and stop at the first
+ * parsing error just as they do when the buffer is parsed in one piece.
+ */
+public abstract class ParallelDocumentParser<T> implements DocumentParser<T> {
+
+	private final ByteBuffer buffer;
+	private final String firstKeyword;
+	private final int chunkCount;
+	private final ExecutorService executor;
+
+	/**
+	 * @param buffer The documents to parse.
+	 * @param firstKeyword The keyword of the first line of each document.
+	 * @param chunkCount The number of chunks to split the buffer into.
+	 * @param executor Parses every chunk but the first, which is parsed by the calling thread.
+	 */
+	protected ParallelDocumentParser(ByteBuffer buffer, String firstKeyword, int chunkCount, ExecutorService executor) {
+		this.buffer = buffer;
+		this.firstKeyword = firstKeyword;
+		this.chunkCount = chunkCount;
+		this.executor = executor;
+	}
+
+	abstract protected DocumentParser<T> createChunkParser(ByteBuffer chunk);
+
+	public boolean parse(DocumentParsingResultHandler<T> resultHandler) {
+		final List<ByteBuffer> chunks = splitBuffer(buffer, 0, buffer.limit(), firstKeyword, chunkCount);
+		final List<Future<RecordedResults<T>>> futures = new ArrayList<Future<RecordedResults<T>>>();
+		for(int i = 1; i < chunks.size(); i++) {
+			futures.add(executor.submit(createChunkTask(chunks.get(i))));
+		}
+		try {
+			if(!parseChunk(chunks.get(0)).replay(resultHandler)) {
+				return false;
+			}
+			for(Future<RecordedResults<T>> f: futures) {
+				if(!getResult(f).replay(resultHandler)) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			resultHandler.parsingError("Interrupted while parsing documents");
+			return false;
+		} finally {
+			for(Future<RecordedResults<T>> f: futures) {
+				f.cancel(false);
+			}
+		}
+	}
+
+	public DocumentParsingResult<T> parse() {
+		final BasicDocumentParsingResult<T> result = new BasicDocumentParsingResult<T>();
+		parse(result);
+		return result;
+	}
+
+	private Callable<RecordedResults<T>> createChunkTask(final ByteBuffer chunk) {
+		return new Callable<RecordedResults<T>>() {
+			public RecordedResults<T> call() {
+				return parseChunk(chunk);
+			}
+		};
+	}
+
+	private RecordedResults<T> parseChunk(ByteBuffer chunk) {
+		final RecordedResults<T> results = new RecordedResults<T>();
+		createChunkParser(chunk).parse(results);
+		return results;
+	}
+
+	/**
+	 * Waits for a task and returns its result.  An unchecked exception thrown by the task is
+	 * thrown again on the calling thread, as it would have been without the executor.
+	 */
+	public static <V> V getResult(Future<V> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Splits the region of buffer between start and end into at most chunkCount slices of
+	 * roughly equal size.  Every slice but the first begins with a line starting with keyword.
+	 */
+	public static List<ByteBuffer> splitBuffer(ByteBuffer buffer, int start, int end, String keyword, int chunkCount) {
+		final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		final int chunkSize = (end - start) / Math.max(1, chunkCount);
+		int chunkStart = start;
+		for(int i = 1; i < chunkCount; i++) {
+			final int next = findLine(buffer, keyword, Math.max(chunkStart + 1, start + i * chunkSize), end);
+			if(next == -1) {
+				break;
+			}
+			chunks.add(slice(buffer, chunkStart, next));
+			chunkStart = next;
+		}
+		chunks.add(slice(buffer, chunkStart, end));
+		return chunks;
+	}
+
+	/**
+	 * Returns the offset of the first line at or after from and before end which starts with
+	 * keyword as a whole word, or -1 if there is no such line.
+	 */
+	public static int findLine(ByteBuffer buffer, String keyword, int from, int end) {
+		final int length = keyword.length();
+		for(int i = from; i + length <= end; i++) {
+			if((i == 0 || buffer.get(i - 1) == '\n') && startsWith(buffer, i, keyword)) {
+				if(i + length == end || isWordEnd(buffer.get(i + length))) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(ByteBuffer buffer, int offset, String s) {
+		for(int i = 0; i < s.length(); i++) {
+			if(buffer.get(offset + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isWordEnd(byte b) {
+		return b == ' ' || b == '\n' || b == '\r';
+	}
+
+	public static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		final ByteBuffer b = buffer.duplicate();
+		b.limit(end);
+		b.position(start);
+		return b.slice();
+	}
+
+	/* Records the results of parsing one chunk so that they can be passed on in order. */
+	private static class RecordedResults<T> implements DocumentParsingResultHandler<T> {
+		private final List<T> documents = new ArrayList<T>();
+		private final List<String> invalidMessages = new ArrayList<String>();
+		private String errorMessage;
+
+		public void documentParsed(T document) {
+			documents.add(document);
+			invalidMessages.add(null);
+		}
+
+		public void documentInvalid(T document, String message) {
+			documents.add(document);
+			invalidMessages.add(message);
+		}
+
+		public void parsingError(String message) {
+			errorMessage = message;
+		}
+
+		boolean replay(DocumentParsingResultHandler<T> handler) {
+			for(int i = 0; i < documents.size(); i++) {
+				if(invalidMessages.get(i) == null) {
+					handler.documentParsed(documents.get(i));
+				} else {
+					handler.documentInvalid(documents.get(i), invalidMessages.get(i));
+				}
+			}
+			if(errorMessage != null) {
+				handler.parsingError(errorMessage);
+				return false;
+			}
+			return true;
+		}
+	}
+}
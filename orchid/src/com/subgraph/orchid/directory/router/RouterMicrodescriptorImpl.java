@@ -1,5 +1,7 @@
 package com.subgraph.orchid.directory.router;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashSet;
@@ -11,6 +13,7 @@ import com.subgraph.orchid.crypto.TorPublicKey;
 import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.data.IPv4Address;
 import com.subgraph.orchid.data.exitpolicy.ExitPorts;
+import com.subgraph.orchid.directory.SnapshotEncoding;
 
 public class RouterMicrodescriptorImpl implements RouterMicrodescriptor {
 	
@@ -154,4 +157,55 @@ public class RouterMicrodescriptorImpl implements RouterMicrodescriptor {
 			return ByteBuffer.wrap(getRawDocumentData().getBytes(Tor.getDefaultCharset()));
 		}
 	}
+
+	/**
+	 * Writes this descriptor to a directory snapshot.  The onion key is written as the PEM
+	 * buffer it was parsed from, so that reading the snapshot doesn't decode any keys.
+	 */
+	public void writeSnapshot(DataOutputStream out) throws IOException {
+		SnapshotEncoding.putString(out, rawDocumentData);
+		SnapshotEncoding.putDigest(out, descriptorDigest);
+		out.writeBoolean(address != null);
+		if(address != null) {
+			out.writeInt(address.getAddressData());
+		}
+		out.writeInt(routerPort);
+		SnapshotEncoding.putString(out, (onionKey == null) ? null : onionKey.getPEMBuffer());
+		SnapshotEncoding.putBytes(out, ntorOnionKey);
+		SnapshotEncoding.putStrings(out, familyMembers);
+		SnapshotEncoding.putString(out, (acceptPorts == null) ? null : acceptPorts.getPortList());
+		SnapshotEncoding.putString(out, (rejectPorts == null) ? null : rejectPorts.getPortList());
+		out.writeLong(lastListed);
+		out.writeByte(cacheLocation.ordinal());
+	}
+
+	public static RouterMicrodescriptorImpl readSnapshot(ByteBuffer in) {
+		final RouterMicrodescriptorImpl md = new RouterMicrodescriptorImpl();
+		md.rawDocumentData = SnapshotEncoding.getString(in);
+		md.descriptorDigest = SnapshotEncoding.getDigest(in);
+		if(in.get() != 0) {
+			md.address = new IPv4Address(in.getInt());
+		}
+		md.routerPort = in.getInt();
+		final String onionKeyPEM = SnapshotEncoding.getString(in);
+		if(onionKeyPEM != null) {
+			md.onionKey = TorPublicKey.createFromPEMBuffer(onionKeyPEM);
+		}
+		md.ntorOnionKey = SnapshotEncoding.getBytes(in);
+		final int familyCount = in.getInt();
+		for(int i = 0; i < familyCount; i++) {
+			md.addFamilyMember(SnapshotEncoding.getString(in));
+		}
+		final String acceptPortList = SnapshotEncoding.getString(in);
+		if(acceptPortList != null) {
+			md.addAcceptPorts(acceptPortList);
+		}
+		final String rejectPortList = SnapshotEncoding.getString(in);
+		if(rejectPortList != null) {
+			md.addRejectPorts(rejectPortList);
+		}
+		md.lastListed = in.getLong();
+		md.cacheLocation = CacheLocation.values()[in.get()];
+		return md;
+	}
 }
@@ -0,0 +1,334 @@
+package com.subgraph.orchid.circuits;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.Circuit;
+import com.subgraph.orchid.Connection;
+import com.subgraph.orchid.ConnectionIOException;
+import com.subgraph.orchid.RelayCell;
+import com.subgraph.orchid.Router;
+import com.subgraph.orchid.circuits.cells.CellImpl;
+import com.subgraph.orchid.circuits.cells.RelayCellImpl;
+import com.subgraph.orchid.crypto.TorMessageDigest;
+import com.subgraph.orchid.crypto.TorRandom;
+import com.subgraph.orchid.crypto.TorStreamCipher;
+
+/**
+ * Measures the throughput of a stream over a one hop circuit to a fake relay in the same
+ * process.  The relay speaks the cell protocol over a loopback socket, with the same relay
+ * crypto and flow control as a real one, but without TLS and the link handshake, so the
+ * numbers reflect the stream, circuit and cell code rather than the network.
+ *
+ * Usage: StreamThroughputBenchmark [megabytes] [rounds]
+ */
+public class StreamThroughputBenchmark {
+	private final static int CIRCUIT_ID = 1;
+	private final static int CIRCWINDOW_START = 1000;
+	private final static int CIRCWINDOW_INCREMENT = 100;
+	private final static int STREAMWINDOW_START = 500;
+	private final static int STREAMWINDOW_INCREMENT = 50;
+	private final static int DATA_LEN = Cell.CELL_LEN - RelayCell.HEADER_SIZE;
+	private final static byte[] ZERO_DATA = new byte[DATA_LEN];
+
+	public static void main(String[] args) throws Exception {
+		final int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		final long total = megabytes * 1024L * 1024L;
+
+		final TorRandom random = new TorRandom();
+		final byte[] keyMaterial = random.getBytes(CircuitNodeCryptoState.KEY_MATERIAL_SIZE);
+		final byte[] verifyDigest = random.getBytes(TorMessageDigest.TOR_DIGEST_SIZE);
+
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final Socket clientSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+		final FakeRelay relay = new FakeRelay(server.accept(), keyMaterial, verifyDigest);
+		server.close();
+
+		final ExitCircuitImpl circuit = new ExitCircuitImpl(null, (Router) null);
+		circuit.appendNode(CircuitNodeImpl.createFirstHop(null, keyMaterial, verifyDigest));
+		final LoopbackConnection connection = new LoopbackConnection(clientSocket);
+		circuit.bindToConnection(connection);
+		circuit.getStatus().setStateOpen();
+		connection.start();
+		relay.start();
+
+		for(int i = 0; i < rounds; i++) {
+			System.out.println("Round "+ (i + 1) +": download "+ rate(total, download(circuit, relay, total))
+					+ ", upload "+ rate(total, upload(circuit, relay, total)));
+		}
+		clientSocket.close();
+	}
+
+	private static long download(ExitCircuitImpl circuit, final FakeRelay relay, final long total) throws IOException {
+		final StreamImpl stream = circuit.createNewStream();
+		final InputStream input = stream.getInputStream();
+		final byte[] buffer = new byte[64 * 1024];
+		final long start = System.nanoTime();
+		final Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					relay.sendData(stream.getStreamId(), total);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		sender.start();
+		long received = 0;
+		while(received < total) {
+			final int n = input.read(buffer);
+			if(n == -1)
+				throw new IOException("Stream closed after "+ received +" bytes");
+			received += n;
+		}
+		final long elapsed = System.nanoTime() - start;
+		stream.close();
+		return elapsed;
+	}
+
+	private static long upload(ExitCircuitImpl circuit, FakeRelay relay, long total) throws Exception {
+		final StreamImpl stream = circuit.createNewStream();
+		final OutputStream output = stream.getOutputStream();
+		final byte[] buffer = new byte[64 * 1024];
+		final long start = System.nanoTime();
+		long sent = 0;
+		while(sent < total) {
+			final int n = (int) Math.min(buffer.length, total - sent);
+			output.write(buffer, 0, n);
+			sent += n;
+		}
+		output.flush();
+		relay.waitForData(stream.getStreamId(), total);
+		final long elapsed = System.nanoTime() - start;
+		stream.close();
+		return elapsed;
+	}
+
+	private static String rate(long bytes, long nanos) {
+		final double seconds = nanos / 1e9;
+		return String.format("%.1f MB/s", bytes / (1024.0 * 1024.0) / seconds);
+	}
+
+	/* The client end of the link, reading cells on its own thread and delivering them to the one circuit. */
+	private static class LoopbackConnection implements Connection, Runnable {
+		private final Socket socket;
+		private final InputStream input;
+		private final OutputStream output;
+		private Circuit circuit;
+
+		LoopbackConnection(Socket socket) throws IOException {
+			socket.setTcpNoDelay(true);
+			this.socket = socket;
+			this.input = socket.getInputStream();
+			this.output = new BufferedOutputStream(socket.getOutputStream(), 32 * Cell.CELL_LEN);
+		}
+
+		void start() {
+			final Thread thread = new Thread(this, "loopback-connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			try {
+				while(true) {
+					final Cell cell = CellImpl.readFromInputStream(input);
+					if(cell.getCommand() == Cell.RELAY) {
+						circuit.deliverRelayCell(cell);
+					}
+				}
+			} catch (IOException e) {
+				// Closed at the end of the run
+			}
+		}
+
+		public Router getRouter() {
+			return null;
+		}
+
+		public boolean isClosed() {
+			return socket.isClosed();
+		}
+
+		public synchronized void sendCell(Cell cell) throws ConnectionIOException {
+			try {
+				output.write(cell.getCellBytes());
+				output.flush();
+			} catch (IOException e) {
+				throw new ConnectionIOException(e.getMessage());
+			}
+		}
+
+		public synchronized void sendCells(List<? extends Cell> cells) throws ConnectionIOException {
+			try {
+				for(Cell cell: cells) {
+					output.write(cell.getCellBytes());
+				}
+				output.flush();
+			} catch (IOException e) {
+				throw new ConnectionIOException(e.getMessage());
+			}
+		}
+
+		public void removeCircuit(Circuit circuit) {
+		}
+
+		public int bindCircuit(Circuit circuit) {
+			this.circuit = circuit;
+			return CIRCUIT_ID;
+		}
+	}
+
+	/*
+	 * The relay end of the link.  Its crypto state is the client's with the forward and backward
+	 * keys swapped, so cells it decrypts were encrypted by the client and cells it encrypts are
+	 * recognized by the client.
+	 */
+	private static class FakeRelay implements Runnable {
+		private final Socket socket;
+		private final InputStream input;
+		private final OutputStream output;
+		private final CircuitNodeCryptoState cryptoState;
+
+		/* Package windows for the cells sent to the client, guarded by this */
+		private int circuitPackageWindow = CIRCWINDOW_START;
+		private final Map<Integer, Integer> streamPackageWindows = new HashMap<Integer, Integer>();
+
+		/* Data cells and bytes received from the client, guarded by this */
+		private int circuitCellsReceived;
+		private final Map<Integer, Integer> streamCellsReceived = new HashMap<Integer, Integer>();
+		private final Map<Integer, Long> streamBytesReceived = new HashMap<Integer, Long>();
+
+		FakeRelay(Socket socket, byte[] keyMaterial, byte[] verifyDigest) throws IOException {
+			socket.setTcpNoDelay(true);
+			this.socket = socket;
+			this.input = socket.getInputStream();
+			this.output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+			this.cryptoState = CircuitNodeCryptoState.createFromKeyMaterial(swapDirections(keyMaterial), verifyDigest);
+		}
+
+		private static byte[] swapDirections(byte[] keyMaterial) {
+			final int digestLen = TorMessageDigest.TOR_DIGEST_SIZE;
+			final int keyLen = TorStreamCipher.KEY_LEN;
+			final byte[] swapped = new byte[keyMaterial.length];
+			System.arraycopy(keyMaterial, digestLen, swapped, 0, digestLen);
+			System.arraycopy(keyMaterial, 0, swapped, digestLen, digestLen);
+			System.arraycopy(keyMaterial, 2 * digestLen + keyLen, swapped, 2 * digestLen, keyLen);
+			System.arraycopy(keyMaterial, 2 * digestLen, swapped, 2 * digestLen + keyLen, keyLen);
+			return swapped;
+		}
+
+		void start() {
+			final Thread thread = new Thread(this, "fake-relay");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			try {
+				while(true) {
+					final Cell cell = CellImpl.readFromInputStream(input);
+					if(cell.getCommand() != Cell.RELAY) {
+						continue;
+					}
+					if(!cryptoState.decryptBackwardCell(cell)) {
+						throw new IOException("Relay cell not recognized");
+					}
+					processRelayCell(RelayCellImpl.createFromCell(null, cell));
+				}
+			} catch (IOException e) {
+				// Closed at the end of the run
+			}
+		}
+
+		private synchronized void processRelayCell(RelayCell cell) throws IOException {
+			final int streamId = cell.getStreamId();
+			switch(cell.getRelayCommand()) {
+			case RelayCell.RELAY_SENDME:
+				if(streamId == 0) {
+					circuitPackageWindow += CIRCWINDOW_INCREMENT;
+				} else {
+					streamPackageWindows.put(streamId, streamPackageWindow(streamId) + STREAMWINDOW_INCREMENT);
+				}
+				notifyAll();
+				break;
+
+			case RelayCell.RELAY_DATA:
+				final long bytes = get(streamBytesReceived, streamId, 0L) + cell.cellBytesRemaining();
+				streamBytesReceived.put(streamId, bytes);
+				final int streamCells = get(streamCellsReceived, streamId, 0) + 1;
+				streamCellsReceived.put(streamId, streamCells);
+				circuitCellsReceived += 1;
+				if(circuitCellsReceived % CIRCWINDOW_INCREMENT == 0) {
+					writeRelayCell(0, RelayCell.RELAY_SENDME, 0);
+				}
+				if(streamCells % STREAMWINDOW_INCREMENT == 0) {
+					writeRelayCell(streamId, RelayCell.RELAY_SENDME, 0);
+				}
+				output.flush();
+				notifyAll();
+				break;
+			}
+		}
+
+		/* Sends total bytes of RELAY_DATA cells on the stream, within the windows the client opens. */
+		void sendData(int streamId, long total) throws IOException, InterruptedException {
+			long sent = 0;
+			while(sent < total) {
+				synchronized(this) {
+					if(circuitPackageWindow == 0 || streamPackageWindow(streamId) == 0) {
+						output.flush();
+						while(circuitPackageWindow == 0 || streamPackageWindow(streamId) == 0) {
+							wait();
+						}
+					}
+					final int n = (int) Math.min(DATA_LEN, total - sent);
+					writeRelayCell(streamId, RelayCell.RELAY_DATA, n);
+					circuitPackageWindow -= 1;
+					streamPackageWindows.put(streamId, streamPackageWindow(streamId) - 1);
+					sent += n;
+				}
+			}
+			synchronized(this) {
+				output.flush();
+			}
+		}
+
+		synchronized void waitForData(int streamId, long total) throws InterruptedException {
+			while(get(streamBytesReceived, streamId, 0L) < total) {
+				wait();
+			}
+		}
+
+		private int streamPackageWindow(int streamId) {
+			return get(streamPackageWindows, streamId, STREAMWINDOW_START);
+		}
+
+		private static <T> T get(Map<Integer, T> map, int streamId, T defaultValue) {
+			final T value = map.get(streamId);
+			return (value == null) ? defaultValue : value;
+		}
+
+		private void writeRelayCell(int streamId, int relayCommand, int dataLength) throws IOException {
+			final RelayCell cell = new RelayCellImpl(null, CIRCUIT_ID, streamId, relayCommand);
+			if(dataLength > 0) {
+				cell.putByteArray(ZERO_DATA, 0, dataLength);
+			}
+			cell.setLength();
+			cryptoState.updateForwardDigest(cell);
+			cell.setDigest(cryptoState.getForwardDigestBytes());
+			cryptoState.encryptForwardCell(cell);
+			output.write(cell.getCellBytes());
+		}
+	}
+}
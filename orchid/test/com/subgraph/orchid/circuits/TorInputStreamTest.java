@@ -10,14 +10,20 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.CircuitNode;
 import com.subgraph.orchid.RelayCell;
+import com.subgraph.orchid.Router;
 import com.subgraph.orchid.Stream;
 import com.subgraph.orchid.circuits.TorInputStream;
+import com.subgraph.orchid.circuits.cells.RelayCellImpl;
+import com.subgraph.orchid.circuits.path.CircuitPathChooser;
 
 public class TorInputStreamTest {
 
@@ -181,4 +187,64 @@ public class TorInputStreamTest {
 		testOOB("(off + len) > b.length must throw OOB", 16, 8, 9);
 		testOOB("(off + len) < 0 must throw OOB", 16, Integer.MAX_VALUE, 10);
 	}
+
+	/* Records the SENDME cells a stream sends instead of passing them to a connection */
+	private static class SendmeCountingCircuit extends CircuitImpl {
+		private int sendmeCount;
+
+		SendmeCountingCircuit() {
+			super(null);
+		}
+
+		@Override
+		public RelayCell createRelayCell(int relayCommand, int streamId, CircuitNode targetNode) {
+			return new RelayCellImpl(targetNode, 0, streamId, relayCommand);
+		}
+
+		@Override
+		public void sendRelayCell(RelayCell cell) {
+			if(cell.getRelayCommand() == RelayCell.RELAY_SENDME) {
+				sendmeCount += 1;
+			}
+		}
+
+		@Override
+		protected List<Router> choosePathForCircuit(CircuitPathChooser pathChooser) {
+			return null;
+		}
+
+		@Override
+		protected String getCircuitTypeLabel() {
+			return "Test";
+		}
+	}
+
+	private static RelayCell createIncomingDataCell(int streamId, byte[] data) {
+		final RelayCellImpl cell = new RelayCellImpl(null, 0, streamId, RelayCell.RELAY_DATA);
+		cell.putByteArray(data);
+		cell.setLength();
+		return RelayCellImpl.createFromCell(null, cell);
+	}
+
+	@Test(timeout=1000)
+	public void testReadingQueuedCellsSendsSendme() throws IOException {
+		final SendmeCountingCircuit circuit = new SendmeCountingCircuit();
+		final StreamImpl stream = new StreamImpl(circuit, null, 1, false);
+		final byte[] data = new byte[Cell.CELL_PAYLOAD_LEN - RelayCell.HEADER_SIZE];
+		final int cellCount = 60;
+
+		/* enough cells to owe a SENDME, but too many are queued unread to send it yet */
+		for(int i = 0; i < cellCount; i++) {
+			stream.addInputCell(createIncomingDataCell(1, data));
+		}
+		assertEquals(0, circuit.sendmeCount);
+
+		/* draining the queue reopens the window with no further cell arriving */
+		final byte[] buffer = new byte[cellCount * data.length];
+		int n = 0;
+		while(n < buffer.length) {
+			n += stream.getInputStream().read(buffer, n, buffer.length - n);
+		}
+		assertEquals(1, circuit.sendmeCount);
+	}
 }
@@ -0,0 +1,50 @@
+package com.subgraph.orchid.circuits.path;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.Router;
+import com.subgraph.orchid.crypto.TorRandom;
+
+public class RouterAliasTableTest {
+
+	@Test
+	public void testChoicesFollowWeights() {
+		final double[] weights = { 1, 2, 3, 0, 4, 0.5, 9.5 };
+		final List<Router> routers = new ArrayList<Router>();
+		for(int i = 0; i < weights.length; i++) {
+			routers.add(createMock(Router.class));
+		}
+		final RouterAliasTable table = RouterAliasTable.create(routers, weights);
+		final TorRandom random = new TorRandom();
+		final Map<Router, Integer> counts = new HashMap<Router, Integer>();
+		final int draws = 200000;
+		for(int i = 0; i < draws; i++) {
+			final Router r = table.chooseRandomRouter(random);
+			counts.put(r, counts.containsKey(r) ? counts.get(r) + 1 : 1);
+		}
+		for(int i = 0; i < weights.length; i++) {
+			final Integer count = counts.get(routers.get(i));
+			final double observed = (count == null) ? 0 : count / (double) draws;
+			assertEquals(weights[i] / 20.0, observed, 0.01);
+		}
+		assertNull(counts.get(routers.get(3)));
+	}
+
+	@Test
+	public void testZeroWeights() {
+		final List<Router> routers = new ArrayList<Router>();
+		routers.add(createMock(Router.class));
+		routers.add(createMock(Router.class));
+		assertNull(RouterAliasTable.create(routers, new double[] { 0, 0 }));
+		assertNull(RouterAliasTable.create(new ArrayList<Router>(), new double[0]));
+	}
+}
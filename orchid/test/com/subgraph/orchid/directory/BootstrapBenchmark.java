@@ -0,0 +1,193 @@
+package com.subgraph.orchid.directory;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPublicKey;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.RouterMicrodescriptor;
+import com.subgraph.orchid.RouterStatus;
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.crypto.RSAKeyEncoder;
+import com.subgraph.orchid.directory.consensus.ConsensusDocumentParser;
+import com.subgraph.orchid.directory.parsing.DocumentParser;
+import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
+import com.subgraph.orchid.directory.router.RouterMicrodescriptorParser;
+import com.subgraph.orchid.encoders.Base64;
+
+/**
+ * Measures how long it takes to parse the documents a client loads while bootstrapping, a
+ * microdesc consensus and the microdescriptors it lists, on the calling thread and with the
+ * parallel parsers created by {@link DocumentParserFactoryImpl}.  The documents are generated
+ * with the same layout and roughly the same size as those served by the live network, and
+ * the results of both parsers are compared before any times are reported.
+ *
+ * Usage: BootstrapBenchmark [routers] [rounds]
+ */
+public class BootstrapBenchmark {
+	private final static SimpleDateFormat dateFormat = createDateFormat();
+
+	public static void main(String[] args) throws Exception {
+		final int routers = (args.length > 0) ? Integer.parseInt(args[0]) : 7000;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+		final List<byte[]> microdescriptorDigests = new ArrayList<byte[]>();
+		final ByteBuffer microdescriptors = toBuffer(generateMicrodescriptors(routers, microdescriptorDigests));
+		final ByteBuffer consensus = toBuffer(generateConsensus(microdescriptorDigests));
+		System.out.println("Consensus "+ consensus.limit() / 1024 +" kB, microdescriptors "+ microdescriptors.limit() / 1024 +" kB");
+
+		final DocumentParserFactoryImpl factory = new DocumentParserFactoryImpl();
+		compareConsensus(parseSequentialConsensus(consensus), factory.createConsensusDocumentParser(consensus).parse());
+		compareMicrodescriptors(parseSequentialMicrodescriptors(microdescriptors), factory.createRouterMicrodescriptorParser(microdescriptors).parse());
+
+		for(int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			parseSequentialConsensus(consensus);
+			parseSequentialMicrodescriptors(microdescriptors);
+			final long sequential = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			factory.createConsensusDocumentParser(consensus).parse();
+			factory.createRouterMicrodescriptorParser(microdescriptors).parse();
+			final long parallel = System.nanoTime() - start;
+			System.out.println("Round "+ (i + 1) +": sequential "+ sequential / 1000000 +" ms, parallel "+ parallel / 1000000 +" ms");
+		}
+	}
+
+	private static DocumentParsingResult<ConsensusDocument> parseSequentialConsensus(ByteBuffer buffer) {
+		return new ConsensusDocumentParser(new DocumentFieldParserImpl(buffer)).parse();
+	}
+
+	private static DocumentParsingResult<RouterMicrodescriptor> parseSequentialMicrodescriptors(ByteBuffer buffer) {
+		buffer.rewind();
+		final DocumentParser<RouterMicrodescriptor> parser = new RouterMicrodescriptorParser(new DocumentFieldParserImpl(buffer));
+		return parser.parse();
+	}
+
+	private static void compareConsensus(DocumentParsingResult<ConsensusDocument> expected, DocumentParsingResult<ConsensusDocument> actual) {
+		check(expected.isOkay() && actual.isOkay(), "consensus parsed");
+		final ConsensusDocument a = expected.getDocument();
+		final ConsensusDocument b = actual.getDocument();
+		check(a.getSigningHash().equals(b.getSigningHash()), "consensus signing hash");
+		check(a.getSigningHash256().equals(b.getSigningHash256()), "consensus signing hash (sha256)");
+		check(a.getRawDocumentData().equals(b.getRawDocumentData()), "consensus raw document");
+		check(a.getRequiredCertificates().size() == b.getRequiredCertificates().size(), "consensus signatures");
+		check(a.getValidUntilTime().getTime() == b.getValidUntilTime().getTime(), "consensus preamble");
+		check(a.getBandwidthWeight("Wgg") == b.getBandwidthWeight("Wgg"), "consensus bandwidth weights");
+		check(a.getRouterStatusEntries().size() == b.getRouterStatusEntries().size(), "router status count");
+		for(int i = 0; i < a.getRouterStatusEntries().size(); i++) {
+			final RouterStatus sa = a.getRouterStatusEntries().get(i);
+			final RouterStatus sb = b.getRouterStatusEntries().get(i);
+			check(sa.getIdentity().equals(sb.getIdentity()), "router status identity");
+			check(sa.getMicrodescriptorDigest().equals(sb.getMicrodescriptorDigest()), "router status microdescriptor digest");
+			check(sa.getEstimatedBandwidth() == sb.getEstimatedBandwidth(), "router status bandwidth");
+		}
+	}
+
+	private static void compareMicrodescriptors(DocumentParsingResult<RouterMicrodescriptor> expected, DocumentParsingResult<RouterMicrodescriptor> actual) {
+		check(expected.isOkay() && actual.isOkay(), "microdescriptors parsed");
+		final List<RouterMicrodescriptor> a = expected.getParsedDocuments();
+		final List<RouterMicrodescriptor> b = actual.getParsedDocuments();
+		check(a.size() == b.size(), "microdescriptor count");
+		for(int i = 0; i < a.size(); i++) {
+			check(a.get(i).getDescriptorDigest().equals(b.get(i).getDescriptorDigest()), "microdescriptor digest");
+			check(a.get(i).getRawDocumentData().equals(b.get(i).getRawDocumentData()), "microdescriptor raw document");
+		}
+	}
+
+	static String generateMicrodescriptors(int count, List<byte[]> digests) throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		final String onionKey = toPEM(new RSAKeyEncoder().getPKCS1Encoded((RSAPublicKey) generator.generateKeyPair().getPublic()));
+		final Random random = new Random(1);
+		final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		final StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			final String md = "onion-key\n"+ onionKey
+					+ "ntor-onion-key "+ base64(randomBytes(random, 32)) +"\n"
+					+ "family $"+ String.format("%040X", i) +" $"+ String.format("%040X", i + 1) +"\n"
+					+ "p "+ ((i % 3 == 0) ? "accept 80,443,8333" : "reject 1-65535") +"\n";
+			digests.add(sha256.digest(md.getBytes(Tor.getDefaultCharset())));
+			sb.append(md);
+		}
+		return sb.toString();
+	}
+
+	static String generateConsensus(List<byte[]> microdescriptorDigests) {
+		final Random random = new Random(2);
+		final long now = System.currentTimeMillis();
+		final StringBuilder sb = new StringBuilder();
+		sb.append("network-status-version 3 microdesc\nvote-status consensus\nconsensus-method 18\n");
+		sb.append("valid-after "+ formatDate(now - 3600000) +"\n");
+		sb.append("fresh-until "+ formatDate(now) +"\n");
+		sb.append("valid-until "+ formatDate(now + 7200000) +"\n");
+		sb.append("voting-delay 300 300\nclient-versions 0.2.4.21,0.2.4.22\nserver-versions 0.2.4.21,0.2.4.22\n");
+		sb.append("known-flags Authority BadExit Exit Fast Guard HSDir Named Running Stable Unnamed V2Dir Valid\n");
+		sb.append("params CircuitPriorityHalflifeMsec=30000 bwweightscale=10000\n");
+		for(int i = 0; i < 9; i++) {
+			sb.append("dir-source auth"+ i +" "+ String.format("%040X", i) +" auth"+ i +".example.com 10.0.0."+ i +" 80 443\n");
+			sb.append("contact auth"+ i +"@example.com\nvote-digest "+ String.format("%040X", 100 + i) +"\n");
+		}
+		for(int i = 0; i < microdescriptorDigests.size(); i++) {
+			sb.append("r router"+ i +" "+ base64(randomBytes(random, 20)) +" "+ formatDate(now - 7200000)
+					+" 10."+ (i >> 16 & 255) +"."+ (i >> 8 & 255) +"."+ (i & 255) +" 9001 "+ ((i % 2 == 0) ? "9030" : "0") +"\n");
+			sb.append("m "+ base64(microdescriptorDigests.get(i)) +"\n");
+			sb.append("s Fast Running Valid"+ ((i % 4 == 0) ? " Guard Stable" : "") + ((i % 7 == 0) ? " Exit" : "") +"\n");
+			sb.append("v Tor 0.2.4.22\n");
+			sb.append("w Bandwidth="+ random.nextInt(10000) +"\n");
+		}
+		sb.append("directory-footer\nbandwidth-weights Wbd=0 Wbe=0 Wbg=4194 Wbm=10000 Wdb=10000 Web=10000 Wed=10000 Wee=10000 Weg=10000 Wem=10000 Wgb=10000 Wgd=0 Wgg=5806 Wgm=5806 Wmb=10000 Wmd=0 Wme=0 Wmg=4194 Wmm=10000\n");
+		for(int i = 0; i < 9; i++) {
+			sb.append("directory-signature "+ String.format("%040X", i) +" "+ String.format("%040X", 200 + i) +"\n");
+			sb.append("-----BEGIN SIGNATURE-----\n"+ base64(randomBytes(random, 128)) +"\n-----END SIGNATURE-----\n");
+		}
+		return sb.toString();
+	}
+
+	private static String toPEM(byte[] der) {
+		final String b64 = new String(Base64.encode(der));
+		final StringBuilder sb = new StringBuilder("-----BEGIN RSA PUBLIC KEY-----\n");
+		for(int i = 0; i < b64.length(); i += 64) {
+			sb.append(b64.substring(i, Math.min(b64.length(), i + 64))).append("\n");
+		}
+		sb.append("-----END RSA PUBLIC KEY-----\n");
+		return sb.toString();
+	}
+
+	private static String base64(byte[] data) {
+		return new String(Base64.encode(data)).replace("=", "");
+	}
+
+	private static byte[] randomBytes(Random random, int n) {
+		final byte[] bytes = new byte[n];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer toBuffer(String s) {
+		return ByteBuffer.wrap(s.getBytes(Tor.getDefaultCharset()));
+	}
+
+	private static SimpleDateFormat createDateFormat() {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
+	private static String formatDate(long time) {
+		return dateFormat.format(new Date(time));
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) {
+			throw new IllegalStateException("Parallel result differs from sequential: "+ what);
+		}
+	}
+}
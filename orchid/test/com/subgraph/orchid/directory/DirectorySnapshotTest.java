@@ -0,0 +1,125 @@
+package com.subgraph.orchid.directory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.RouterMicrodescriptor;
+import com.subgraph.orchid.RouterStatus;
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.directory.consensus.ConsensusDocumentImpl;
+import com.subgraph.orchid.directory.consensus.ConsensusDocumentParser;
+import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
+import com.subgraph.orchid.directory.router.RouterMicrodescriptorParser;
+
+public class DirectorySnapshotTest {
+
+	private ByteBuffer consensusFile;
+	private ConsensusDocument consensus;
+	private DescriptorCache.Snapshot<RouterMicrodescriptor> microdescriptors;
+
+	@Before
+	public void setup() throws Exception {
+		final List<byte[]> digests = new ArrayList<byte[]>();
+		final ByteBuffer microdescriptorFile = toBuffer(BootstrapBenchmark.generateMicrodescriptors(20, digests));
+		consensusFile = toBuffer(BootstrapBenchmark.generateConsensus(digests));
+
+		final DocumentParsingResult<ConsensusDocument> consensusResult =
+				new ConsensusDocumentParser(new DocumentFieldParserImpl(consensusFile.duplicate())).parse();
+		assertTrue(consensusResult.isOkay());
+		consensus = consensusResult.getDocument();
+
+		final DocumentParsingResult<RouterMicrodescriptor> microdescriptorResult =
+				new RouterMicrodescriptorParser(new DocumentFieldParserImpl(microdescriptorFile.duplicate())).parse();
+		assertTrue(microdescriptorResult.isOkay());
+		microdescriptors = new DescriptorCache.Snapshot<RouterMicrodescriptor>(
+				SnapshotEncoding.digestBuffer(microdescriptorFile), 0,
+				SnapshotEncoding.digestBuffer(ByteBuffer.allocate(0)), microdescriptorResult.getParsedDocuments());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final DirectorySnapshot snapshot = DirectorySnapshot.read(createSnapshot());
+		assertNotNull(snapshot);
+
+		final ConsensusDocument c = snapshot.getConsensus(consensusFile);
+		assertNotNull(c);
+		assertEquals(consensus.getSigningHash(), c.getSigningHash());
+		assertEquals(consensus.getSigningHash256(), c.getSigningHash256());
+		assertEquals(consensus.getRawDocumentData(), c.getRawDocumentData());
+		assertEquals(consensus.getValidAfterTime().getTime(), c.getValidAfterTime().getTime());
+		assertEquals(consensus.getValidUntilTime().getTime(), c.getValidUntilTime().getTime());
+		assertEquals(consensus.getBandwidthWeight("Wgg"), c.getBandwidthWeight("Wgg"));
+		assertEquals(consensus.getRequiredCertificates().size(), c.getRequiredCertificates().size());
+		assertEquals(consensus.getRouterStatusEntries().size(), c.getRouterStatusEntries().size());
+		for(int i = 0; i < consensus.getRouterStatusEntries().size(); i++) {
+			final RouterStatus expected = consensus.getRouterStatusEntries().get(i);
+			final RouterStatus actual = c.getRouterStatusEntries().get(i);
+			assertEquals(expected.getNickname(), actual.getNickname());
+			assertEquals(expected.getIdentity(), actual.getIdentity());
+			assertEquals(expected.getMicrodescriptorDigest(), actual.getMicrodescriptorDigest());
+			assertEquals(expected.getEstimatedBandwidth(), actual.getEstimatedBandwidth());
+			assertEquals(expected.hasFlag("Guard"), actual.hasFlag("Guard"));
+		}
+
+		final DescriptorCache.Snapshot<RouterMicrodescriptor> mds = snapshot.getMicrodescriptors();
+		assertNotNull(mds);
+		assertEquals(microdescriptors.cacheDigest, mds.cacheDigest);
+		assertEquals(microdescriptors.journalLength, mds.journalLength);
+		assertEquals(microdescriptors.journalDigest, mds.journalDigest);
+		assertEquals(microdescriptors.descriptors.size(), mds.descriptors.size());
+		for(int i = 0; i < microdescriptors.descriptors.size(); i++) {
+			final RouterMicrodescriptor expected = microdescriptors.descriptors.get(i);
+			final RouterMicrodescriptor actual = mds.descriptors.get(i);
+			assertEquals(expected.getDescriptorDigest(), actual.getDescriptorDigest());
+			assertEquals(expected.getRawDocumentData(), actual.getRawDocumentData());
+			assertEquals(expected.getOnionKey(), actual.getOnionKey());
+			assertArrayEquals(expected.getNTorOnionKey(), actual.getNTorOnionKey());
+			assertEquals(expected.getFamilyMembers(), actual.getFamilyMembers());
+			assertEquals(expected.exitPolicyAccepts(443), actual.exitPolicyAccepts(443));
+		}
+	}
+
+	@Test
+	public void testStaleConsensusDigest() throws Exception {
+		final DirectorySnapshot snapshot = DirectorySnapshot.read(createSnapshot());
+		assertNotNull(snapshot);
+		final ByteBuffer changed = ByteBuffer.allocate(consensusFile.limit());
+		changed.put(consensusFile.duplicate());
+		changed.flip();
+		changed.put(changed.limit() - 2, (byte) (changed.get(changed.limit() - 2) ^ 1));
+		assertNull(snapshot.getConsensus(changed));
+		assertNotNull(snapshot.getMicrodescriptors());
+	}
+
+	@Test
+	public void testCorruptChecksum() throws Exception {
+		final ByteBuffer buffer = createSnapshot();
+		final int position = buffer.limit() / 2;
+		buffer.put(position, (byte) (buffer.get(position) ^ 1));
+		assertNull(DirectorySnapshot.read(buffer));
+	}
+
+	@Test
+	public void testEmptySnapshot() {
+		assertNull(DirectorySnapshot.read(ByteBuffer.allocate(0)));
+	}
+
+	private ByteBuffer createSnapshot() throws Exception {
+		return DirectorySnapshot.create((ConsensusDocumentImpl) consensus, SnapshotEncoding.digestBuffer(consensusFile), microdescriptors);
+	}
+
+	private static ByteBuffer toBuffer(String s) {
+		return ByteBuffer.wrap(s.getBytes(Tor.getDefaultCharset()));
+	}
+}
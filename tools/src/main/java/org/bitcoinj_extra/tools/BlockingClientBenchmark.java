@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.tools;
+
+import org.bitcoinj_extra.core.Context;
+import org.bitcoinj_extra.net.*;
+import org.bitcoinj_extra.params.MainNetParams;
+import org.bitcoinj_extra.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens 50, 500 and 5000 connections through {@link BlockingClientManager} to a {@link NioServer} in the same process
+ * that stands in for the remote peers, first with platform threads and then with virtual threads. For each it prints
+ * how long connecting and shutting down took, how many platform threads were live and how much heap and resident
+ * memory the process used while all connections were open.
+ *
+ * <p>Virtual threads need Java 21 or later, on older JVMs only platform threads are measured. Thousands of
+ * connections need a file descriptor limit of at least twice as many. Sizes can be given on the command line to
+ * override the defaults.</p>
+ */
+public class BlockingClientBenchmark {
+    private static final int[] DEFAULT_SIZES = { 50, 500, 5000 };
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) throws Exception {
+        new Context(MainNetParams.get());
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        if (!Threading.isVirtualThreadSupported())
+            System.out.println("Virtual threads are not supported by this JVM, measuring platform threads only.");
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), freePort());
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new IdleConnection(null);
+            }
+        }, address);
+        server.startAsync().awaitRunning();
+
+        System.out.printf("%8s %12s %12s %12s %10s %10s %12s%n", "threads", "connections", "connect ms",
+                "shutdown ms", "platform", "heap MB", "resident MB");
+        // Warm up.
+        measure(address, false, sizes[0], false);
+        for (int size : sizes) {
+            measure(address, false, size, true);
+            if (Threading.isVirtualThreadSupported())
+                measure(address, true, size, true);
+        }
+        server.stopAsync().awaitTerminated();
+    }
+
+    private static void measure(InetSocketAddress address, boolean virtual, int size, boolean print) throws Exception {
+        System.gc();
+        BlockingClientManager manager = new BlockingClientManager();
+        manager.setUseVirtualThreads(virtual);
+        manager.setConnectTimeoutMillis((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        manager.startAsync().awaitRunning();
+
+        CountDownLatch opened = new CountDownLatch(size);
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++)
+            manager.openConnection(address, new IdleConnection(opened));
+        if (!opened.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IllegalStateException("Only " + (size - opened.getCount()) + " of " + size + " connections opened");
+        long connectMillis = (System.nanoTime() - start) / 1000000;
+
+        System.gc();
+        Thread.sleep(200);
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long resident = residentBytes();
+
+        start = System.nanoTime();
+        manager.stopAsync().awaitTerminated();
+        long shutdownMillis = (System.nanoTime() - start) / 1000000;
+
+        if (print)
+            System.out.printf("%8s %12d %12d %12d %10d %10.1f %12s%n", virtual ? "virtual" : "platform", size,
+                    connectMillis, shutdownMillis, platformThreads, heap / 1048576.0,
+                    resident < 0 ? "n/a" : String.format("%.1f", resident / 1048576.0));
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    // Reads VmRSS from /proc on Linux, or returns -1 elsewhere.
+    private static long residentBytes() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:"))
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            // Not Linux.
+        }
+        return -1;
+    }
+
+    // Discards everything it receives, like a peer that has nothing to say.
+    private static class IdleConnection implements StreamConnection {
+        @Nullable private final CountDownLatch opened;
+
+        IdleConnection(@Nullable CountDownLatch opened) {
+            this.opened = opened;
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+            if (opened != null)
+                opened.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            buff.position(buff.limit());
+            return buff.limit();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.tools;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.script.ScriptBuilder;
+
+import com.google.common.primitives.Ints;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj_extra.script.ScriptOpCodes.*;
+
+/**
+ * Measures how long it takes to make filtered blocks for 10, 100 and 1000 peers out of a block of 2000 transactions,
+ * each peer with a filter of its own wallet's 100 keys. Filters are first applied transaction by transaction with
+ * {@link BloomFilter#applyAndUpdate(Transaction)}, building each partial merkle tree from the leaves, and then all at
+ * once with a {@link BloomMatcher}, which does the work that doesn't depend on the filter only once.
+ *
+ * <p>Keys and signatures are random bytes, nothing here needs them to be valid. Sizes can be given on the command
+ * line to override the defaults.</p>
+ */
+public class BloomFilterBenchmark {
+    private static final int[] DEFAULT_SIZES = { 10, 100, 1000 };
+    private static final int TRANSACTIONS = 2000;
+    private static final int KEYS_PER_FILTER = 100;
+
+    public static void main(String[] args) throws Exception {
+        // Blocks of the unit test network are solved right away.
+        NetworkParameters params = UnitTestParams.get();
+        new Context(params);
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        Random random = new Random(1);
+        Block block = makeBlock(params, random);
+
+        System.out.printf("%10s %16s %16s %16s %10s%n", "filters", "by tx ms", "matcher ms", "prepare ms",
+                "speedup");
+        // Warm up.
+        measure(block, makeFilters(random, sizes[0]), false);
+        for (int size : sizes)
+            measure(block, makeFilters(random, size), true);
+    }
+
+    private static void measure(Block block, List<BloomFilter> filters, boolean print) throws Exception {
+        List<BloomFilter> copies = new ArrayList<BloomFilter>(filters.size());
+        for (BloomFilter filter : filters)
+            copies.add(new BloomFilter(block.getParams(), filter.bitcoinSerialize()));
+
+        long start = System.nanoTime();
+        int oneByOneMatches = 0;
+        for (BloomFilter filter : filters)
+            oneByOneMatches += applyOneByOne(block, filter).getTransactionHashes().size();
+        long oneByOne = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        BloomMatcher matcher = new BloomMatcher(block);
+        long prepare = System.nanoTime() - start;
+        int matcherMatches = 0;
+        for (FilteredBlock filteredBlock : matcher.applyAndUpdate(copies))
+            matcherMatches += filteredBlock.getTransactionHashes().size();
+        long batch = System.nanoTime() - start;
+
+        if (oneByOneMatches != matcherMatches)
+            throw new IllegalStateException(oneByOneMatches + " matches by transaction, " + matcherMatches + " by matcher");
+        if (print)
+            System.out.printf("%10d %16.1f %16.1f %16.1f %9.1fx%n", filters.size(), oneByOne / 1e6, batch / 1e6,
+                    prepare / 1e6, (double) oneByOne / batch);
+    }
+
+    private static FilteredBlock applyOneByOne(Block block, BloomFilter filter) {
+        List<Transaction> txns = block.getTransactions();
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
+        byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
+        for (int i = 0; i < txns.size(); i++) {
+            txHashes.add(txns.get(i).getHash());
+            if (filter.applyAndUpdate(txns.get(i)))
+                Utils.setBitLE(bits, i);
+        }
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), bits, txHashes);
+        return new FilteredBlock(block.getParams(), block.cloneAsHeader(), pmt);
+    }
+
+    // Pay to pubkey hash transactions with one input and two outputs, like most of a real block.
+    private static Block makeBlock(NetworkParameters params, Random random) throws Exception {
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] signature = new byte[72];
+            random.nextBytes(signature);
+            byte[] scriptSig = new ScriptBuilder().data(signature).data(randomBytes(random, 33)).build().getProgram();
+            tx.addInput(new TransactionInput(params, tx, scriptSig,
+                    new TransactionOutPoint(params, 0, Sha256Hash.of(Ints.toByteArray(i)))));
+            for (int j = 0; j < 2; j++)
+                tx.addOutput(Coin.COIN, new ScriptBuilder().op(OP_DUP).op(OP_HASH160).data(randomBytes(random, 20))
+                        .op(OP_EQUALVERIFY).op(OP_CHECKSIG).build());
+            block.addTransaction(tx);
+        }
+        return block;
+    }
+
+    private static List<BloomFilter> makeFilters(Random random, int size) {
+        List<BloomFilter> filters = new ArrayList<BloomFilter>(size);
+        for (int i = 0; i < size; i++) {
+            BloomFilter filter = new BloomFilter(KEYS_PER_FILTER * 2, 0.0005, random.nextInt());
+            for (int j = 0; j < KEYS_PER_FILTER; j++) {
+                filter.insert(randomBytes(random, 33));
+                filter.insert(randomBytes(random, 20));
+            }
+            filters.add(filter);
+        }
+        return filters;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.tools;
+
+import org.bitcoinj_extra.core.ECKey;
+import org.bitcoinj_extra.crypto.LazyECPoint;
+import org.bitcoinj_extra.wallet.BasicKeyChain;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the memory used by the key lookup tables of a watching {@link BasicKeyChain}, and the lookup rate, at
+ * 10^5, 10^6 and 10^7 keys. For comparison the same keys are also indexed by a pair of
+ * {@code LinkedHashMap<ByteString, ECKey>}, which is what the chain used before.
+ *
+ * <p>Watching keys are made from random compressed encodings: points are decoded lazily so nothing here needs
+ * them to be on the curve. 10^7 keys need a heap of several gigabytes, run with e.g. {@code -Xmx8g}. Sizes can be
+ * given on the command line to override the defaults.</p>
+ */
+public class KeyLookupBenchmark {
+    private static final int[] DEFAULT_SIZES = { 100000, 1000000, 10000000 };
+    private static final int LOOKUPS = 1000000;
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        System.out.printf("%12s %18s %18s %16s%n", "keys", "chain bytes/key", "maps bytes/key", "lookups/sec");
+        for (int size : sizes) {
+            List<ECKey> keys = makeKeys(size);
+            long before = usedMemory();
+            BasicKeyChain chain = new BasicKeyChain();
+            chain.importKeys(keys);
+            long chainBytes = usedMemory() - before;
+            double lookupsPerSec = measureLookups(chain, keys);
+            chain = null;
+
+            before = usedMemory();
+            LinkedHashMap<ByteString, ECKey> hashToKeys = new LinkedHashMap<ByteString, ECKey>();
+            LinkedHashMap<ByteString, ECKey> pubkeyToKeys = new LinkedHashMap<ByteString, ECKey>();
+            for (ECKey key : keys) {
+                pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
+                hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+            }
+            long mapBytes = usedMemory() - before;
+            System.out.printf("%12d %18.1f %18.1f %16.0f%n", size, (double) chainBytes / size,
+                    (double) mapBytes / size, lookupsPerSec);
+            if (hashToKeys.size() + pubkeyToKeys.size() != size * 2)
+                throw new IllegalStateException();
+        }
+    }
+
+    private static List<ECKey> makeKeys(int size) {
+        Random random = new Random(size);
+        List<ECKey> keys = new ArrayList<ECKey>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] pub = new byte[33];
+            random.nextBytes(pub);
+            pub[0] = 0x02;
+            // The protected constructor keeps the point lazy, the public factories would try to decode it.
+            ECKey key = new ECKey(null, new LazyECPoint(ECKey.CURVE.getCurve(), pub)) {};
+            key.getPubKeyHash();    // Computed lazily, make sure it isn't counted against either index.
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static double measureLookups(BasicKeyChain chain, List<ECKey> keys) {
+        Random random = new Random(1);
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            byte[] hash = keys.get(random.nextInt(keys.size())).getPubKeyHash();
+            if (chain.findKeyFromPubHash(hash) != null)
+                found++;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found != LOOKUPS)
+            throw new IllegalStateException("Lookup failed");
+        return LOOKUPS * 1e9 / elapsed;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.tools;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.params.UnitTestParams;
+import org.bitcoinj_extra.protocols.channels.*;
+import org.bitcoinj_extra.utils.BriefLogFormatter;
+import org.bitcoinj_extra.wallet.Wallet;
+import org.bitcoinj_extra.wallet.WalletFiles;
+import org.bitcoinj_extra.wallet.WalletTransaction;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Puts load on a {@link PaymentChannelServerListener} from simulated {@link PaymentChannelClientConnection}s in the
+ * same process, talking over loopback with {@link UnitTestParams}. Transactions are "broadcast" to a broadcaster that
+ * accepts them straight away, so what's measured is the protocol itself: the framing in ProtobufConnection, the
+ * NioServer and client threads, the channel state machines, signing and checking signatures and saving the server
+ * wallet.</p>
+ *
+ * <p>All clients first open their channels, then each makes its payments one after the other, then all close. For
+ * each of the three phases it prints the throughput and the 50th, 90th, 99th percentile and maximum latency, and
+ * finally how often and for how long the server wallet was saved. Comparing runs with and without
+ * {@code --verifier-threads} and {@code --commit-delay} shows how much of the time signature checks and wallet saves
+ * take.</p>
+ *
+ * <p>Options:</p>
+ * <pre>
+ *   --clients=N             number of clients, each with its own channel (default 50)
+ *   --payments=N            payments per client (default 200)
+ *   --version=1|2           payment channel protocol version (default 2)
+ *   --verifier-threads=N    check payment signatures on a pool of N threads, see
+ *                           PaymentChannelServerListener.setPaymentVerifier (default 0, on the network thread)
+ *   --commit-delay=MS       collect channel updates for MS milliseconds before saving, see
+ *                           StoredPaymentChannelServerStates.setCommitDelay (default 0)
+ * </pre>
+ *
+ * <p>Every client runs its own network thread, so thousands of clients need a raised thread and file descriptor
+ * limit.</p>
+ */
+public class PaymentChannelBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int TIMEOUT_SECONDS = 120;
+    private static final Coin CLIENT_BALANCE = Coin.COIN;
+    private static final Coin CHANNEL_SIZE = Coin.CENT.multiply(10);
+    private static final Coin PAYMENT_SIZE = Coin.valueOf(1000);
+
+    private static Context context;
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+
+        OptionParser parser = new OptionParser();
+        OptionSpec<Integer> clientsFlag = parser.accepts("clients").withRequiredArg().ofType(Integer.class).defaultsTo(50);
+        OptionSpec<Integer> paymentsFlag = parser.accepts("payments").withRequiredArg().ofType(Integer.class).defaultsTo(200);
+        OptionSpec<Integer> versionFlag = parser.accepts("version").withRequiredArg().ofType(Integer.class).defaultsTo(2);
+        OptionSpec<Integer> verifierFlag = parser.accepts("verifier-threads").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        OptionSpec<Long> commitDelayFlag = parser.accepts("commit-delay").withRequiredArg().ofType(Long.class).defaultsTo(0L);
+        OptionSet options = parser.parse(args);
+        final int clients = clientsFlag.value(options);
+        final int payments = paymentsFlag.value(options);
+        final PaymentChannelClient.VersionSelector version = versionFlag.value(options) == 1 ?
+                PaymentChannelClient.VersionSelector.VERSION_1 : PaymentChannelClient.VersionSelector.VERSION_2;
+        final int verifierThreads = verifierFlag.value(options);
+        // The fee is zero so that the server can settle without having money of its own.
+        context = new Context(PARAMS, 100, Coin.ZERO, false);
+        Context.propagate(context);
+        final TransactionBroadcaster broadcaster = new InstantBroadcaster();
+
+        // The server, its wallet saved to a temporary file whenever a channel changes.
+        Wallet serverWallet = new Wallet(PARAMS);
+        StoredPaymentChannelServerStates channels = new StoredPaymentChannelServerStates(serverWallet, broadcaster);
+        channels.setCommitDelay(commitDelayFlag.value(options), TimeUnit.MILLISECONDS);
+        serverWallet.addExtension(channels);
+        serverWallet.freshReceiveKey();
+        File walletFile = File.createTempFile("payment_channel_benchmark", ".wallet");
+        walletFile.deleteOnExit();
+        SaveTimer saveTimer = new SaveTimer();
+        serverWallet.autosaveToFile(walletFile, 0, TimeUnit.MILLISECONDS, saveTimer);
+
+        final ConcurrentHashMap<Sha256Hash, SettableFuture<Long>> closedChannels =
+                new ConcurrentHashMap<Sha256Hash, SettableFuture<Long>>();
+        PaymentChannelServerListener server = new PaymentChannelServerListener(broadcaster, serverWallet,
+                TIMEOUT_SECONDS, CHANNEL_SIZE, new PaymentChannelServerListener.HandlerFactory() {
+                    @Nullable
+                    @Override
+                    public ServerConnectionEventHandler onNewConnection(SocketAddress clientAddress) {
+                        return new ServerConnectionEventHandler() {
+                            private volatile Sha256Hash channelId;
+
+                            @Override
+                            public void channelOpen(Sha256Hash channelId) {
+                                this.channelId = channelId;
+                            }
+
+                            @Override
+                            public ListenableFuture<ByteString> paymentIncrease(Coin by, Coin to, ByteString info) {
+                                return Futures.immediateFuture(null);
+                            }
+
+                            @Override
+                            public void channelClosed(PaymentChannelCloseException.CloseReason reason) {
+                                if (channelId != null)
+                                    closedFuture(closedChannels, channelId).set(System.nanoTime());
+                            }
+                        };
+                    }
+                });
+        ExecutorService verifier = null;
+        if (verifierThreads > 0) {
+            verifier = Executors.newFixedThreadPool(verifierThreads);
+            server.setPaymentVerifier(verifier);
+        }
+        final int port = freePort();
+        server.bindAndStart(port);
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        // The clients, each with a wallet holding a single confirmed coin.
+        final List<Wallet> wallets = new ArrayList<Wallet>(clients);
+        Random random = new Random(clients);
+        for (int i = 0; i < clients; i++)
+            wallets.add(makeClientWallet(broadcaster, random));
+
+        System.out.printf("%d clients, %d payments each, protocol version %d, %d verifier threads, %d ms commit delay%n",
+                clients, payments, version == PaymentChannelClient.VersionSelector.VERSION_1 ? 1 : 2, verifierThreads,
+                commitDelayFlag.value(options));
+        System.out.printf("%10s %10s %10s %12s %10s %10s %10s %10s%n", "phase", "count", "seconds", "per second",
+                "p50 ms", "p90 ms", "p99 ms", "max ms");
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        final PaymentChannelClientConnection[] connections = new PaymentChannelClientConnection[clients];
+
+        // Open.
+        runPhase("open", pool, clients, 1, new ClientTask() {
+            @Override
+            public void run(int client, Latencies latencies) throws Exception {
+                ECKey key = new ECKey();
+                wallets.get(client).importKey(key);
+                long start = System.nanoTime();
+                connections[client] = new PaymentChannelClientConnection(address, TIMEOUT_SECONDS,
+                        wallets.get(client), key, CHANNEL_SIZE, "client " + client,
+                        PaymentChannelClient.DEFAULT_TIME_WINDOW, null, version);
+                connections[client].getChannelOpenFuture().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                latencies.add(System.nanoTime() - start);
+            }
+        });
+
+        // Increment.
+        runPhase("increment", pool, clients, payments, new ClientTask() {
+            @Override
+            public void run(int client, Latencies latencies) throws Exception {
+                for (int i = 0; i < payments; i++) {
+                    long start = System.nanoTime();
+                    connections[client].incrementPayment(PAYMENT_SIZE).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    latencies.add(System.nanoTime() - start);
+                }
+            }
+        });
+
+        // Close, timed until the server has settled the channel and dropped the connection.
+        runPhase("close", pool, clients, 1, new ClientTask() {
+            @Override
+            public void run(int client, Latencies latencies) throws Exception {
+                Sha256Hash channelId = connections[client].state().getContract().getHash();
+                long start = System.nanoTime();
+                connections[client].settle();
+                long end = closedFuture(closedChannels, channelId).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                latencies.add(end - start);
+            }
+        });
+
+        System.out.printf("Server wallet saved %d times in %.1f ms total%n", saveTimer.saves.get(),
+                saveTimer.nanos.get() / 1000000.0);
+
+        pool.shutdown();
+        server.close();
+        if (verifier != null)
+            verifier.shutdown();
+        serverWallet.shutdownAutosaveAndWait();
+    }
+
+    private interface ClientTask {
+        void run(int client, Latencies latencies) throws Exception;
+    }
+
+    // Runs the task for every client at once and prints the throughput and latencies of the phase.
+    private static void runPhase(String name, ExecutorService pool, int clients, int perClient, final ClientTask task)
+            throws Exception {
+        final Latencies latencies = new Latencies(clients * perClient);
+        List<Future<?>> futures = new ArrayList<Future<?>>(clients);
+        final CountDownLatch start = new CountDownLatch(1);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Context.propagate(context);
+                    start.await();
+                    task.run(client, latencies);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long[] sorted = latencies.sorted();
+        System.out.printf("%10s %10d %10.2f %12.1f %10.2f %10.2f %10.2f %10.2f%n", name, sorted.length, seconds,
+                sorted.length / seconds, percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    // Returns the given percentile of the sorted latencies, in milliseconds.
+    private static double percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static SettableFuture<Long> closedFuture(ConcurrentHashMap<Sha256Hash, SettableFuture<Long>> closed,
+                                                     Sha256Hash channelId) {
+        SettableFuture<Long> future = SettableFuture.create();
+        SettableFuture<Long> existing = closed.putIfAbsent(channelId, future);
+        return existing != null ? existing : future;
+    }
+
+    private static Wallet makeClientWallet(TransactionBroadcaster broadcaster, Random random) {
+        Wallet wallet = new Wallet(PARAMS);
+        wallet.addExtension(new StoredPaymentChannelClientStates(wallet, broadcaster));
+        Transaction tx = new Transaction(PARAMS);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.wrap(hash))));
+        tx.addOutput(CLIENT_BALANCE, wallet.freshReceiveAddress());
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        tx.getConfidence().setAppearedAtChainHeight(1);
+        tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        return wallet;
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    // Collects latencies in nanoseconds from many threads.
+    private static class Latencies {
+        private final long[] values;
+        private final AtomicInteger size = new AtomicInteger();
+
+        Latencies(int capacity) {
+            values = new long[capacity];
+        }
+
+        void add(long nanos) {
+            values[size.getAndIncrement()] = nanos;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size.get());
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    // Sums up the time spent saving the wallet. Saves happen on a single thread.
+    private static class SaveTimer implements WalletFiles.Listener {
+        final AtomicInteger saves = new AtomicInteger();
+        final AtomicLong nanos = new AtomicLong();
+        private volatile long start;
+
+        @Override
+        public void onBeforeAutoSave(File tempFile) {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void onAfterAutoSave(File newlySavedFile) {
+            saves.incrementAndGet();
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    // Accepts every transaction straight away.
+    private static class InstantBroadcaster implements TransactionBroadcaster {
+        @Override
+        public TransactionBroadcast broadcastTransaction(Transaction tx) {
+            SettableFuture<Transaction> future = SettableFuture.create();
+            future.set(tx);
+            return TransactionBroadcast.createMockBroadcast(tx, future);
+        }
+    }
+}
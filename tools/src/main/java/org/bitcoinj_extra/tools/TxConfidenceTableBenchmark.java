@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.tools;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.params.MainNetParams;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Simulates peers announcing the same transactions to a {@link TxConfidenceTable}, as happens when a transaction
+ * propagates through the network, and prints how many {@link TxConfidenceTable#seen(Sha256Hash, PeerAddress)} calls
+ * per second the table handled. Each peer runs on its own thread and announces every transaction several times, in
+ * its own order. The confidence objects are kept reachable so that they aren't cleaned out of the table.
+ *
+ * <p>Peer counts can be given on the command line to override the defaults.</p>
+ */
+public class TxConfidenceTableBenchmark {
+    private static final int[] DEFAULT_PEERS = { 1, 10, 100 };
+    // Well below the size of the table, so that nothing gets evicted.
+    private static final int TRANSACTIONS = TxConfidenceTable.MAX_SIZE / 2;
+    private static final int ANNOUNCEMENTS = 20;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        new Context(params);
+        int[] peerCounts = DEFAULT_PEERS;
+        if (args.length > 0) {
+            peerCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                peerCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%8s %14s %10s %14s%n", "peers", "transactions", "ms", "seen/sec");
+        // Warm up.
+        measure(params, peerCounts[peerCounts.length - 1], false);
+        for (int peers : peerCounts)
+            measure(params, peers, true);
+    }
+
+    private static void measure(NetworkParameters params, int numPeers, boolean print) throws Exception {
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final TxConfidenceTable table = new TxConfidenceTable();
+            final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            final List<TransactionConfidence> pinned = new ArrayList<TransactionConfidence>();
+            for (int i = 0; i < TRANSACTIONS; i++) {
+                Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) round, (byte) (i >> 8), (byte) i });
+                hashes.add(hash);
+                pinned.add(table.getOrCreate(hash));
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(numPeers);
+            final long[] start = new long[1];
+            // The last peer to get ready starts the clock, then all of them are released at once.
+            final CyclicBarrier barrier = new CyclicBarrier(numPeers, new Runnable() {
+                @Override
+                public void run() {
+                    start[0] = System.nanoTime();
+                }
+            });
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int p = 0; p < numPeers; p++) {
+                final PeerAddress peer = new PeerAddress(params,
+                        InetAddress.getByAddress(new byte[] { 10, (byte) (p >> 16), (byte) (p >> 8), (byte) p }));
+                final int offset = p * 7919 % TRANSACTIONS;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        barrier.await();
+                        for (int n = 0; n < ANNOUNCEMENTS; n++)
+                            for (int i = 0; i < TRANSACTIONS; i++)
+                                table.seen(hashes.get((offset + i) % TRANSACTIONS), peer);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start[0]);
+            executor.shutdown();
+            if (table.numBroadcastPeers(hashes.get(0)) != numPeers)
+                throw new IllegalStateException("Lost announcements");
+            pinned.clear();
+        }
+        if (print) {
+            long total = (long) numPeers * TRANSACTIONS * ANNOUNCEMENTS;
+            System.out.printf("%8d %14d %10.1f %14.0f%n", numPeers, TRANSACTIONS, bestNanos / 1e6,
+                    total / (bestNanos / 1e9));
+        }
+    }
+}
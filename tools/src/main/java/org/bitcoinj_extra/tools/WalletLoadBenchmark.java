@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 bitcoinj-extra contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj_extra.tools;
+
+import org.bitcoinj_extra.core.*;
+import org.bitcoinj_extra.crypto.DeterministicKey;
+import org.bitcoinj_extra.params.MainNetParams;
+import org.bitcoinj_extra.wallet.KeyChain;
+import org.bitcoinj_extra.wallet.Wallet;
+import org.bitcoinj_extra.wallet.WalletProtobufSerializer;
+import org.bitcoinj_extra.wallet.WalletTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long {@link WalletProtobufSerializer} takes to read synthetic wallets of 10k, 100k and 1M
+ * transactions, on a single thread and then with one thread per processor. Half of the transactions spend an output
+ * of the one before, so connecting inputs to outputs is part of what's measured.
+ *
+ * <p>The 1M transaction wallet needs a heap of several gigabytes, run with e.g. {@code -Xmx8g}. Sizes can be given
+ * on the command line to override the defaults.</p>
+ */
+public class WalletLoadBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final int[] DEFAULT_SIZES = { 10000, 100000, 1000000 };
+    private static final int MAX_KEYS = 1000;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        new Context(PARAMS);
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        final int threads = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%12s %12s %14s %14s %10s%n", "transactions", "file MB", "serial ms",
+                threads + " threads ms", "speedup");
+        for (int size : sizes) {
+            byte[] bytes = makeWallet(size);
+            measure(bytes, threads, size);  // Warm up.
+            long serial = measure(bytes, 1, size);
+            long parallel = measure(bytes, threads, size);
+            System.out.printf("%12d %12.1f %14d %14d %10.2f%n", size, bytes.length / 1048576.0, serial, parallel,
+                    (double) serial / parallel);
+        }
+    }
+
+    private static byte[] makeWallet(int size) throws Exception {
+        Wallet wallet = new Wallet(PARAMS);
+        int numKeys = Math.min(MAX_KEYS, Math.max(1, size / 10));
+        List<DeterministicKey> keys = wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, numKeys);
+        Random random = new Random(size);
+        Transaction previous = null;
+        for (int i = 0; i < size; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            if (previous != null && i % 2 == 1) {
+                TransactionOutput spent = previous.getOutput(0);
+                tx.addInput(spent).connect(spent);
+                wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, previous));
+            } else {
+                if (previous != null)
+                    wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, previous));
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                        new TransactionOutPoint(PARAMS, 0, Sha256Hash.wrap(hash))));
+            }
+            tx.addOutput(Coin.CENT, keys.get(random.nextInt(keys.size())).toAddress(PARAMS));
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            tx.getConfidence().setAppearedAtChainHeight(1 + i / 1000);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            previous = tx;
+        }
+        if (previous != null)
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, previous));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        return output.toByteArray();
+    }
+
+    // Returns the best of a few runs, in milliseconds.
+    private static long measure(byte[] bytes, int threads, int size) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            System.gc();
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setLoadThreads(threads);
+            long start = System.nanoTime();
+            Wallet wallet = serializer.readWallet(new ByteArrayInputStream(bytes));
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            if (wallet.getTransactions(true).size() != size)
+                throw new IllegalStateException("Wallet did not load completely");
+            best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+}
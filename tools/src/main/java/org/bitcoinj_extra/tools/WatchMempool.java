@@ -25,6 +25,7 @@ import org.bitcoinj_extra.core.NetworkParameters;
 import org.bitcoinj_extra.core.Peer;
 import org.bitcoinj_extra.core.PeerGroup;
 import org.bitcoinj_extra.core.Transaction;
+import org.bitcoinj_extra.core.TxMemoryPool;
 import org.bitcoinj_extra.net.discovery.DnsDiscovery;
 import org.bitcoinj_extra.params.MainNetParams;
 import org.bitcoinj_extra.utils.BriefLogFormatter;
@@ -43,12 +44,14 @@ public class WatchMempool {
     private static final String TOTAL_KEY = "TOTAL";
     private static final long START_MS = System.currentTimeMillis();
     private static final long STATISTICS_FREQUENCY_MS = 1000 * 5;
+    private static final TxMemoryPool pool = new TxMemoryPool(PARAMS);
 
     public static void main(String[] args) throws InterruptedException {
         BriefLogFormatter.init();
         PeerGroup peerGroup = new PeerGroup(PARAMS);
         peerGroup.setMaxConnections(32);
         peerGroup.addPeerDiscovery(new DnsDiscovery(PARAMS));
+        peerGroup.setTxMemoryPool(pool);
         peerGroup.addOnTransactionBroadcastListener(new OnTransactionBroadcastListener() {
             @Override
             public void onTransaction(Peer peer, Transaction tx) {
@@ -78,6 +81,7 @@ public class WatchMempool {
 
     private static synchronized void printCounters() {
         System.out.printf("Runtime: %d minutes\n", (System.currentTimeMillis() - START_MS) / 1000 / 60);
+        System.out.printf("Memory pool: %d transactions, %d kB\n", pool.size(), pool.getMemoryUsage() / 1024);
         Integer total = counters.get(TOTAL_KEY);
         if (total == null)
             return;